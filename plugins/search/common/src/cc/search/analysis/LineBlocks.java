@@ -0,0 +1,229 @@
+package cc.search.analysis;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Line addressable content: the lines are grouped into blocks of
+ * LINES_PER_BLOCK lines and every block is compressed independently, so a
+ * line (or a range of lines) can be read by decompressing only its block.
+ *
+ * Layout: vint lines per block, vint line count, vint block count, then for
+ * every block its compressed and uncompressed (UTF-8) length as vints,
+ * finally the compressed blocks.
+ */
+public final class LineBlocks implements LineInformations.LineSource {
+  /**
+   * Number of lines in a block.
+   */
+  public static final int LINES_PER_BLOCK = 32;
+  /**
+   * The encoded blocks.
+   */
+  private final byte[] _bytes;
+  /**
+   * Number of lines in a block.
+   */
+  private final int _linesPerBlock;
+  /**
+   * Number of lines.
+   */
+  private final int _lineCount;
+  /**
+   * Start of the compressed blocks in _bytes.
+   */
+  private final int[] _blockStarts;
+  /**
+   * Compressed length of the blocks.
+   */
+  private final int[] _compressedLengths;
+  /**
+   * Uncompressed length of the blocks.
+   */
+  private final int[] _lengths;
+  /**
+   * Index of the last decompressed block (-1 if none).
+   */
+  private int _currentBlock = -1;
+  /**
+   * Lines of the last decompressed block.
+   */
+  private String[] _currentLines;
+
+  /**
+   * @param bytes_ encoded blocks (see encode()). The bytes are not copied.
+   */
+  public LineBlocks(BytesRef bytes_) {
+    _bytes = bytes_.bytes;
+
+    final ByteArrayDataInput in = new ByteArrayDataInput(bytes_.bytes,
+      bytes_.offset, bytes_.length);
+    _linesPerBlock = in.readVInt();
+    _lineCount = in.readVInt();
+
+    final int blockCount = in.readVInt();
+    _blockStarts = new int[blockCount];
+    _compressedLengths = new int[blockCount];
+    _lengths = new int[blockCount];
+    for (int i = 0; i < blockCount; ++i) {
+      _compressedLengths[i] = in.readVInt();
+      _lengths[i] = in.readVInt();
+    }
+
+    int start = in.getPosition();
+    for (int i = 0; i < blockCount; ++i) {
+      _blockStarts[i] = start;
+      start += _compressedLengths[i];
+    }
+  }
+
+  /**
+   * @return number of lines.
+   */
+  public int getLineCount() {
+    return _lineCount;
+  }
+
+  @Override
+  public String getLine(int lineNum_) throws IOException {
+    if (lineNum_ < 1 || lineNum_ > _lineCount) {
+      throw new IndexOutOfBoundsException("Bad line number: " + lineNum_);
+    }
+
+    final int block = (lineNum_ - 1) / _linesPerBlock;
+    if (block != _currentBlock) {
+      _currentLines = decompress(block);
+      _currentBlock = block;
+    }
+
+    return _currentLines[(lineNum_ - 1) % _linesPerBlock];
+  }
+
+  /**
+   * Decompresses the lines of a block.
+   *
+   * @param block_ index of the block.
+   * @return lines of the block.
+   * @throws IOException
+   */
+  private String[] decompress(int block_) throws IOException {
+    final byte[] text = new byte[_lengths[block_]];
+    final Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(_bytes, _blockStarts[block_],
+        _compressedLengths[block_]);
+      int read = 0;
+      while (read < text.length && !inflater.finished()) {
+        final int count = inflater.inflate(text, read, text.length - read);
+        if (count == 0 && (inflater.needsInput() ||
+          inflater.needsDictionary())) {
+          break;
+        }
+        read += count;
+      }
+
+      if (read != text.length) {
+        throw new IOException("Corrupt line block " + block_ + "!");
+      }
+    } catch (DataFormatException ex) {
+      throw new IOException("Corrupt line block " + block_ + "!", ex);
+    } finally {
+      inflater.end();
+    }
+
+    final int lines = Math.min(_linesPerBlock,
+      _lineCount - block_ * _linesPerBlock);
+    final String blockText = new String(text, StandardCharsets.UTF_8);
+    final String[] result = new String[lines];
+    int start = 0;
+    for (int i = 0; i < lines; ++i) {
+      final int newLine = blockText.indexOf('\n', start);
+      final int end = newLine < 0 ? blockText.length() : newLine;
+      result[i] = blockText.substring(start, end);
+      start = end + 1;
+    }
+
+    return result;
+  }
+
+  /**
+   * Encodes a content in line blocks.
+   *
+   * @param content_ the content.
+   * @param lineInfos_ line informations of the content.
+   * @return encoded blocks.
+   */
+  public static BytesRef encode(String content_,
+    LineInformations lineInfos_) {
+    final int lineCount = lineInfos_.getLineCount();
+    final int blockCount = (lineCount + LINES_PER_BLOCK - 1) /
+      LINES_PER_BLOCK;
+
+    final byte[][] blocks = new byte[blockCount][];
+    final int[] compressedLengths = new int[blockCount];
+    final int[] lengths = new int[blockCount];
+    int dataLength = 0;
+
+    final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      for (int i = 0; i < blockCount; ++i) {
+        final int firstLine = i * LINES_PER_BLOCK + 1;
+        final int nextBlockLine = firstLine + LINES_PER_BLOCK;
+        final int start = lineInfos_.getLineStartOffset(firstLine);
+        final int end = nextBlockLine <= lineCount ?
+          lineInfos_.getLineStartOffset(nextBlockLine) : content_.length();
+
+        final byte[] text = content_.substring(start, end).getBytes(
+          StandardCharsets.UTF_8);
+        lengths[i] = text.length;
+
+        deflater.reset();
+        deflater.setInput(text);
+        deflater.finish();
+
+        byte[] compressed = new byte[text.length + text.length / 10 + 64];
+        int size = 0;
+        while (!deflater.finished()) {
+          if (size == compressed.length) {
+            compressed = Arrays.copyOf(compressed, size * 2);
+          }
+          size += deflater.deflate(compressed, size, compressed.length - size);
+        }
+
+        blocks[i] = compressed;
+        compressedLengths[i] = size;
+        dataLength += size;
+      }
+    } finally {
+      deflater.end();
+    }
+
+    // A vint takes 5 bytes at most.
+    final byte[] bytes = new byte[5 * (3 + 2 * blockCount) + dataLength];
+    final ByteArrayDataOutput out = new ByteArrayDataOutput(bytes);
+    try {
+      out.writeVInt(LINES_PER_BLOCK);
+      out.writeVInt(lineCount);
+      out.writeVInt(blockCount);
+      for (int i = 0; i < blockCount; ++i) {
+        out.writeVInt(compressedLengths[i]);
+        out.writeVInt(lengths[i]);
+      }
+      for (int i = 0; i < blockCount; ++i) {
+        out.writeBytes(blocks[i], 0, compressedLengths[i]);
+      }
+    } catch (IOException ex) {
+      // ByteArrayDataOutput does not throw.
+      throw new AssertionError(ex);
+    }
+
+    return new BytesRef(bytes, 0, out.getPosition());
+  }
+}
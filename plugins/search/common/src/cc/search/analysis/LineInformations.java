@@ -2,193 +2,302 @@ package cc.search.analysis;
 
 import java.io.IOException;
 import java.io.Reader;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.NavigableMap;
-import java.util.TreeMap;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.BytesRef;
 
 /**
  * Utility class for working with line positions.
+ *
+ * The line start offsets are stored in a primitive array. The content is
+ * needed only for the text of the lines, so an instance built from stored
+ * line starts (see fromLineStarts()) loads the content on demand, or reads
+ * the lines from a line source (see withLineSource()).
  */
 public final class LineInformations {
   /**
-   * Map from line number to its content.
+   * Loads the content for the text of the lines.
    */
-  private final List<String> _lines;
+  public interface ContentLoader {
+    /**
+     * @return the content (the line starts must be computed from it).
+     * @throws IOException
+     */
+    String load() throws IOException;
+  }
+
   /**
-   * Map from line number to its start offset.
+   * Source of the text of single lines (e.g. a line addressable content store,
+   * see LineBlocks), so the whole content is not needed for a line.
    */
-  private final List<Integer> _lineToStartOffsets;
+  public interface LineSource {
+    /**
+     * @param lineNum_ line number (starting from 1)
+     * @return line content (without the line separator).
+     * @throws IOException
+     */
+    String getLine(int lineNum_) throws IOException;
+  }
+
   /**
-   * Map from start offset to line number.
+   * Start offset of the lines (index 0 is line 1).
    */
-  private final NavigableMap<Integer, Integer> _startOffsetToLine;
-  
+  private final int[] _lineStarts;
   /**
-   * Helper class for reading lines.
+   * Number of lines.
    */
-  private class LineReader {
-    /**
-     * The input.
-     */
-    private final Reader _in;
-    /**
-     * Line builder.
-     */
-    private final StringBuilder _lineBuilder;
-    /**
-     * Current line start offset.
-     */
-    private int _currStartOff = 0;
-    /**
-     * Current line end offset.
-     */
-    private int _currEndOff = -1;
-    /**
-     * Current line number.
-     */
-    private int _currLineNum = 0;
-    /**
-     * Current line content.
-     */
-    private String _currLine;
-    /**
-     * @param in_ input.
-     */
-    LineReader(Reader in_) {
-      _in = in_;
-      _lineBuilder = new StringBuilder(2000);
-    }
-    /**
-     * Reads a line from the input.
-     * 
-     * @return false on EOF, true otherwise.
-     * @throws IOException 
-     */
-    boolean readNextLine() throws IOException {
-      _lineBuilder.setLength(0);
-      
-      _currStartOff = _currEndOff + 1;
-      
-      boolean endOfFile = false;
-      while (true) {
-        int ch = _in.read();
-        if (ch == -1) {
-          endOfFile = true;
-          break;
-        } else {
-          ++_currEndOff;
-          if (ch == '\n') {
-            break;
-          } else {
-            _lineBuilder.append((char)ch);
-          }
-        }
-      }
-      
-      ++_currLineNum;
-      _currLine = _lineBuilder.toString();
-      
-      return !_currLine.isEmpty() || !endOfFile;
-    }
-    
-    /**
-     * Reads al the lines from the input and fills the outer class.
-     * 
-     * @throws IOException 
-     */
-    void fillFromLines() throws IOException {
-      while (readNextLine()) {
-        _lines.add(_currLine);
-        _lineToStartOffsets.add(_currStartOff);
-        _startOffsetToLine.put(_currStartOff, _currLineNum);
-      }
-    }
+  private final int _lineCount;
+  /**
+   * Content loader (can be null if the content is given).
+   */
+  private final ContentLoader _loader;
+  /**
+   * Line source (can be null: then the lines are read from the content).
+   */
+  private final LineSource _lineSource;
+  /**
+   * The content (null until loaded).
+   */
+  private String _content;
+
+  /**
+   * @param lineStarts_ start offsets of the lines.
+   * @param lineCount_ number of lines.
+   * @param content_ the content (can be null).
+   * @param loader_ content loader (can be null).
+   * @param lineSource_ line source (can be null).
+   */
+  private LineInformations(int[] lineStarts_, int lineCount_, String content_,
+    ContentLoader loader_, LineSource lineSource_) {
+    _lineStarts = lineStarts_;
+    _lineCount = lineCount_;
+    _content = content_;
+    _loader = loader_;
+    _lineSource = lineSource_;
   }
-  
+
   /**
-   * Construct an empty object (for internal use only).
+   * @return number of lines.
    */
-  private LineInformations() {
-    _lines = new ArrayList<>(5000);
-    _lineToStartOffsets = new ArrayList<>(5000);
-    _startOffsetToLine = new TreeMap<>();
+  public int getLineCount() {
+    return _lineCount;
   }
-  
+
   /**
-   * Returns a line by line number.
-   * 
+   * Returns a line by line number. The line is read from the line source if
+   * there is one, otherwise the content is loaded on the first call if it was
+   * not given.
+   *
    * @param lineNum_ line number (starting from 1)
    * @return line content.
+   * @throws UncheckedIOException if loading the content failed.
    */
   public String getLineContent(int lineNum_) {
-    return _lines.get(lineNum_ - 1);
+    if (_lineSource != null && _content == null) {
+      if (lineNum_ < 1 || lineNum_ > _lineCount) {
+        throw new IndexOutOfBoundsException("Bad line number: " + lineNum_);
+      }
+
+      try {
+        return _lineSource.getLine(lineNum_);
+      } catch (IOException ex) {
+        throw new UncheckedIOException("Reading line failed!", ex);
+      }
+    }
+
+    final String content = getContent();
+    final int start = getLineStartOffset(lineNum_);
+    final int newLine = content.indexOf('\n', start);
+
+    return content.substring(start, newLine < 0 ? content.length() : newLine);
   }
-  
+
   /**
    * Returns the start offset of a line by line number.
-   * 
+   *
    * @param lineNum_ line number (starting from 1)
    * @return start offset for the line.
    */
   public int getLineStartOffset(int lineNum_) {
-    return _lineToStartOffsets.get(lineNum_ - 1);
+    if (lineNum_ < 1 || lineNum_ > _lineCount) {
+      throw new IndexOutOfBoundsException("Bad line number: " + lineNum_);
+    }
+
+    return _lineStarts[lineNum_ - 1];
   }
-  
+
   /**
    * Returns a line number for an offset.
-   * 
+   *
    * @param offset_ an offset.
    * @return line number.
    */
   public int getLineNumberForOffset(int offset_) {
-    Map.Entry<Integer, Integer> entry = _startOffsetToLine.floorEntry(offset_);
-    if (entry == null) {
-      return _startOffsetToLine.lastEntry().getValue();
-    } else {
-      return entry.getValue();
+    final int index = Arrays.binarySearch(_lineStarts, 0, _lineCount,
+      offset_);
+    if (index >= 0) {
+      return index + 1;
     }
+
+    // The line before the insertion point.
+    final int line = -index - 1;
+    return line == 0 ? _lineCount : line;
   }
-  
+
   /**
    * Converts start offset and length to Location.
-   * 
+   *
    * @param startOffset_ start offset
    * @param length_ length
-   * @return 
+   * @return
    */
   public Location offsetToLocation(int startOffset_, int length_) {
     int line = getLineNumberForOffset(startOffset_);
     int startColumn = startOffset_ - getLineStartOffset(line) + 1;
     int endColumn = startColumn + length_ - 1;
-    
+
     return new Location(line, startColumn, endColumn);
   }
-  
+
   /**
    * Converts a location to its start offset.
-   * 
+   *
    * @param loc_ a location.
-   * @return 
+   * @return
    */
   public int locationToStartOffset(Location loc_) {
     return getLineStartOffset(loc_.line) + loc_.startColumn - 1;
   }
-  
+
+  /**
+   * Returns an instance with the same lines but with an other content source.
+   * The line starts are shared (an instance without content can be cached
+   * and used with the content of a request).
+   *
+   * @param loader_ content loader (can be null: then the text of the lines is
+   *  not available).
+   * @return a new instance.
+   */
+  public LineInformations withContent(ContentLoader loader_) {
+    return new LineInformations(_lineStarts, _lineCount, null, loader_, null);
+  }
+
+  /**
+   * Returns an instance with the same lines and content source which reads
+   * the text of the lines from the given line source.
+   *
+   * @param lineSource_ line source of the same content.
+   * @return a new instance.
+   */
+  public LineInformations withLineSource(LineSource lineSource_) {
+    return new LineInformations(_lineStarts, _lineCount, _content, _loader,
+      lineSource_);
+  }
+
+  /**
+   * Encodes the line start offsets (delta encoded variable length integers).
+   *
+   * @return encoded line starts (see fromLineStarts()).
+   */
+  public BytesRef encodeLineStarts() {
+    // A vint takes 5 bytes at most.
+    final byte[] bytes = new byte[5 * (_lineCount + 1)];
+    final ByteArrayDataOutput out = new ByteArrayDataOutput(bytes);
+
+    try {
+      out.writeVInt(_lineCount);
+      int prev = 0;
+      for (int i = 0; i < _lineCount; ++i) {
+        out.writeVInt(_lineStarts[i] - prev);
+        prev = _lineStarts[i];
+      }
+    } catch (IOException ex) {
+      // ByteArrayDataOutput does not throw.
+      throw new AssertionError(ex);
+    }
+
+    return new BytesRef(bytes, 0, out.getPosition());
+  }
+
+  /**
+   * Returns the content (it is loaded if needed).
+   *
+   * @return the content.
+   */
+  private String getContent() {
+    if (_content == null) {
+      if (_loader == null) {
+        throw new IllegalStateException("No content for line informations!");
+      }
+
+      try {
+        _content = _loader.load();
+      } catch (IOException ex) {
+        throw new UncheckedIOException("Loading content failed!", ex);
+      }
+    }
+
+    return _content;
+  }
+
   /**
-   * Constructs an instance from the given input.
-   * 
+   * Constructs an instance from the given input. Lines are separated by '\n'
+   * and an empty last line is not counted.
+   *
    * @param content_ input.
    * @return a filled instance.
-   * @throws IOException 
+   * @throws IOException
    */
   public static LineInformations fromReader(Reader content_) throws IOException {
-    final LineInformations result = new LineInformations();
-    
-    LineReader reader = result.new LineReader(content_);
-    reader.fillFromLines();
-    
-    return result;
+    final StringBuilder builder = new StringBuilder(8192);
+    final char[] buffer = new char[8192];
+    int read;
+    while ((read = content_.read(buffer)) != -1) {
+      builder.append(buffer, 0, read);
+    }
+
+    final String content = builder.toString();
+    int[] lineStarts = new int[Math.max(16, content.length() / 32)];
+    int lineCount = 0;
+
+    if (!content.isEmpty()) {
+      lineStarts[lineCount++] = 0;
+    }
+
+    for (int i = content.indexOf('\n'); i >= 0 && i + 1 < content.length();
+      i = content.indexOf('\n', i + 1)) {
+      if (lineCount == lineStarts.length) {
+        lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+      }
+      lineStarts[lineCount++] = i + 1;
+    }
+
+    return new LineInformations(lineStarts, lineCount, content, null, null);
+  }
+
+  /**
+   * Constructs an instance from encoded line starts (see encodeLineStarts()).
+   *
+   * @param lineStarts_ encoded line starts.
+   * @param loader_ content loader (can be null: then the text of the lines is
+   *  not available).
+   * @return a new instance.
+   */
+  public static LineInformations fromLineStarts(BytesRef lineStarts_,
+    ContentLoader loader_) {
+    final ByteArrayDataInput in = new ByteArrayDataInput(lineStarts_.bytes,
+      lineStarts_.offset, lineStarts_.length);
+
+    final int lineCount = in.readVInt();
+    final int[] lineStarts = new int[lineCount];
+    int prev = 0;
+    for (int i = 0; i < lineCount; ++i) {
+      prev += in.readVInt();
+      lineStarts[i] = prev;
+    }
+
+    return new LineInformations(lineStarts, lineCount, null, loader_, null);
   }
 }
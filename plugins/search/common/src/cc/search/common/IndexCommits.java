@@ -0,0 +1,107 @@
+package cc.search.common;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.store.Directory;
+
+/**
+ * Indexing session state in the commit user data of an index database.
+ *
+ * A session which re-creates the index drops the old documents, so its
+ * commits are not served until the session finishes (see isServable()): the
+ * search service keeps the last servable commit (see
+ * KeepServableCommitPolicy) instead of a half-built index. Only such an
+ * unfinished rebuild can be resumed (see isResumable()).
+ */
+public final class IndexCommits {
+  /**
+   * Commit user data key: id of the session which made the commit (a resumed
+   * session keeps the id of the interrupted one).
+   */
+  public static final String SESSION_ID_KEY = "cc.search.sessionId";
+  /**
+   * Commit user data key: state of the session which made the commit.
+   */
+  public static final String SESSION_STATE_KEY = "cc.search.sessionState";
+  /**
+   * Commit user data key: "true" if the session which made the commit
+   * re-creates the index.
+   */
+  public static final String SESSION_REBUILD_KEY = "cc.search.sessionRebuild";
+  /**
+   * Session state: the session is still running (a periodic commit).
+   */
+  public static final String STATE_RUNNING = "running";
+  /**
+   * Session state: the session is finished (its last commit).
+   */
+  public static final String STATE_FINISHED = "finished";
+
+  /**
+   * Utility class.
+   */
+  private IndexCommits() {
+  }
+
+  /**
+   * @param commitData_ commit user data (can be null).
+   * @return true if the commit was made by a running session.
+   */
+  public static boolean isUnfinished(Map<String, String> commitData_) {
+    return commitData_ != null &&
+      STATE_RUNNING.equals(commitData_.get(SESSION_STATE_KEY));
+  }
+
+  /**
+   * @param commitData_ commit user data (can be null).
+   * @return true if the commit was made by a session which re-creates the
+   *  index.
+   */
+  public static boolean isRebuild(Map<String, String> commitData_) {
+    return commitData_ != null &&
+      Boolean.parseBoolean(commitData_.get(SESSION_REBUILD_KEY));
+  }
+
+  /**
+   * @param commitData_ commit user data (can be null).
+   * @return false if the commit is a half-built index of an unfinished
+   *  rebuild.
+   */
+  public static boolean isServable(Map<String, String> commitData_) {
+    return !isUnfinished(commitData_) || !isRebuild(commitData_);
+  }
+
+  /**
+   * @param commitData_ commit user data (can be null).
+   * @return true if the commit was made by an unfinished rebuild: every
+   *  document of the commit was indexed by that session, so it can be
+   *  continued.
+   */
+  public static boolean isResumable(Map<String, String> commitData_) {
+    return isUnfinished(commitData_) && isRebuild(commitData_) &&
+      commitData_.get(SESSION_ID_KEY) != null;
+  }
+
+  /**
+   * Finds the last servable commit of an index database.
+   *
+   * @param dir_ an index database.
+   * @return the last servable commit or null if there is none (a new index
+   *  is being built).
+   * @throws IOException
+   */
+  public static IndexCommit findServableCommit(Directory dir_)
+    throws IOException {
+    final List<IndexCommit> commits = DirectoryReader.listCommits(dir_);
+    for (int i = commits.size() - 1; i >= 0; --i) {
+      if (isServable(commits.get(i).getUserData())) {
+        return commits.get(i);
+      }
+    }
+
+    return null;
+  }
+}
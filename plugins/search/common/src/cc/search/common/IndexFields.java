@@ -46,6 +46,30 @@ public class IndexFields {
    * Document boost value.
    */
   public static final String boostValue = "boost";
+  /**
+   * The ordinal of a chunk (stored, only for files indexed in chunks).
+   */
+  public static final String chunkOrdinalField = "chunk";
+  /**
+   * The number of file lines before the first line of a chunk (stored, only
+   * for files indexed in chunks).
+   */
+  public static final String chunkBaseLineField = "chunkLine";
+  /**
+   * The file id of the canonical document (only for alias documents of files
+   * with the same content as the canonical one).
+   */
+  public static final String aliasOfField = "aliasOf";
+  /**
+   * Start offsets of the lines of the content (binary doc values, see
+   * LineInformations.encodeLineStarts()).
+   */
+  public static final String lineStartsField = "lineStarts";
+  /**
+   * Content compressed in line blocks for reading single lines (binary doc
+   * values, see LineBlocks).
+   */
+  public static final String contentBlocksField = "contentBlocks";
   
   /**
    * Maps a Tag.Kind to a document field name. 
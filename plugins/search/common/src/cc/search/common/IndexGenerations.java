@@ -0,0 +1,142 @@
+package cc.search.common;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Layout of index generations for blue/green index deployment: every full
+ * rebuild writes a new index directory (a generation) into a common
+ * generations directory. The names of the generations must sort in the order
+ * of creation (e.g. timestamps). A generation can be served only after the
+ * indexer put the ready marker into it.
+ */
+public final class IndexGenerations {
+  /**
+   * Marker file of a complete generation.
+   */
+  public static final String READY_MARKER = "index.ready";
+  /**
+   * Marker file of a generation which was rolled back (it will not be served
+   * again).
+   */
+  public static final String REJECTED_MARKER = "index.rejected";
+  /**
+   * Command file in the generations directory: roll back to the previously
+   * served generation.
+   */
+  public static final String ROLLBACK_REQUEST = "rollback.request";
+
+  /**
+   * Utility class.
+   */
+  private IndexGenerations() {
+  }
+
+  /**
+   * Marks a generation as complete.
+   *
+   * @param generationDir_ the generation directory.
+   * @throws IOException
+   */
+  public static void markReady(File generationDir_) throws IOException {
+    final File marker = new File(generationDir_, READY_MARKER);
+    if (!marker.exists() && !marker.createNewFile()) {
+      throw new IOException("Failed to create " + marker);
+    }
+  }
+
+  /**
+   * Marks a generation as rejected.
+   *
+   * @param generationDir_ the generation directory.
+   * @throws IOException
+   */
+  public static void markRejected(File generationDir_) throws IOException {
+    final File marker = new File(generationDir_, REJECTED_MARKER);
+    if (!marker.exists() && !marker.createNewFile()) {
+      throw new IOException("Failed to create " + marker);
+    }
+  }
+
+  /**
+   * @param generationDir_ a generation directory.
+   * @return true if the generation is ready and not rejected.
+   */
+  public static boolean isServable(File generationDir_) {
+    return new File(generationDir_, READY_MARKER).isFile() &&
+      !new File(generationDir_, REJECTED_MARKER).exists();
+  }
+
+  /**
+   * Lists the generations (ordered from the oldest to the newest).
+   *
+   * @param generationsDir_ the generations directory.
+   * @return generation directories (maybe empty).
+   */
+  public static List<File> listGenerations(File generationsDir_) {
+    final File[] dirs = generationsDir_.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file_) {
+        return file_.isDirectory();
+      }
+    });
+
+    if (dirs == null) {
+      return new ArrayList<>();
+    }
+
+    Arrays.sort(dirs);
+    return new ArrayList<>(Arrays.asList(dirs));
+  }
+
+  /**
+   * @param generationsDir_ the generations directory.
+   * @return the newest servable generation or null.
+   */
+  public static File findNewestServable(File generationsDir_) {
+    final List<File> generations = listGenerations(generationsDir_);
+    for (int i = generations.size() - 1; i >= 0; --i) {
+      if (isServable(generations.get(i))) {
+        return generations.get(i);
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Deletes a generation recursively.
+   *
+   * @param generationDir_ the generation directory.
+   * @throws IOException
+   */
+  public static void delete(File generationDir_) throws IOException {
+    Files.walkFileTree(generationDir_.toPath(), new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file_, BasicFileAttributes attrs_)
+        throws IOException {
+        Files.delete(file_);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir_, IOException ex_)
+        throws IOException {
+        if (ex_ != null) {
+          throw ex_;
+        }
+        Files.delete(dir_);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
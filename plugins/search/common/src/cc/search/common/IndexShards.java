@@ -0,0 +1,141 @@
+package cc.search.common;
+
+import cc.search.common.config.CommonOptions;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Layout of a sharded index: the shards are independent index databases in
+ * the shard-&lt;n&gt; subdirectories of the index directory. A file (every
+ * document with the same file id) is always in the same shard.
+ */
+public final class IndexShards {
+  /**
+   * Prefix of the shard directory names.
+   */
+  public static final String SHARD_DIR_PREFIX = "shard-";
+
+  /**
+   * Utility class.
+   */
+  private IndexShards() {
+  }
+
+  /**
+   * @param indexDir_ the index directory.
+   * @param shard_ shard number.
+   * @return the directory of the shard.
+   */
+  public static File getShardDir(File indexDir_, int shard_) {
+    return new File(indexDir_, SHARD_DIR_PREFIX + shard_);
+  }
+
+  /**
+   * @param fileId_ a file id.
+   * @param shardCount_ number of shards.
+   * @return the shard of the file.
+   */
+  public static int getShardOf(String fileId_, int shardCount_) {
+    return (fileId_.hashCode() & Integer.MAX_VALUE) % shardCount_;
+  }
+
+  /**
+   * Lists the existing shard directories (ordered by shard number).
+   *
+   * @param indexDir_ the index directory.
+   * @return shard directories (maybe empty).
+   */
+  public static List<File> findShardDirs(File indexDir_) {
+    final File[] dirs = indexDir_.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file_) {
+        return file_.isDirectory() && getShardNumber(file_) >= 0;
+      }
+    });
+
+    if (dirs == null) {
+      return new ArrayList<>();
+    }
+
+    Arrays.sort(dirs, new Comparator<File>() {
+      @Override
+      public int compare(File dir1_, File dir2_) {
+        return Integer.compare(getShardNumber(dir1_), getShardNumber(dir2_));
+      }
+    });
+
+    return new ArrayList<>(Arrays.asList(dirs));
+  }
+
+  /**
+   * @param dir_ a directory.
+   * @return the shard number of a shard directory or -1.
+   */
+  private static int getShardNumber(File dir_) {
+    final String name = dir_.getName();
+    if (!name.startsWith(SHARD_DIR_PREFIX)) {
+      return -1;
+    }
+
+    try {
+      return Integer.parseInt(name.substring(SHARD_DIR_PREFIX.length()));
+    } catch (NumberFormatException ex) {
+      return -1;
+    }
+  }
+
+  /**
+   * Opens the index for reading: the main index database and the shards (if
+   * any). More than one database is opened as a MultiReader.
+   *
+   * @param opts_ program options.
+   * @return an index reader.
+   * @throws IOException
+   */
+  public static IndexReader openReader(CommonOptions opts_)
+    throws IOException {
+    final File indexDir = new File(opts_.indexDirPath);
+    final List<DirectoryReader> readers = new ArrayList<>();
+
+    try {
+      final Directory mainDir = FSDirectory.open(indexDir,
+        opts_.createLockFactory());
+      if (DirectoryReader.indexExists(mainDir)) {
+        readers.add(DirectoryReader.open(mainDir));
+      }
+
+      for (File shardDir : findShardDirs(indexDir)) {
+        final Directory dir = FSDirectory.open(shardDir,
+          opts_.createLockFactory());
+        if (DirectoryReader.indexExists(dir)) {
+          readers.add(DirectoryReader.open(dir));
+        }
+      }
+    } catch (IOException ex) {
+      for (DirectoryReader reader : readers) {
+        reader.close();
+      }
+      throw ex;
+    }
+
+    switch (readers.size()) {
+      case 0:
+        throw new IOException("No index found in " + indexDir);
+      case 1:
+        return readers.get(0);
+      default:
+        return new MultiReader(readers.toArray(
+          new IndexReader[readers.size()]), true);
+    }
+  }
+}
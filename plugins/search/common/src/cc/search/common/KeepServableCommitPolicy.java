@@ -0,0 +1,38 @@
+package cc.search.common;
+
+import java.io.IOException;
+import java.util.List;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexDeletionPolicy;
+
+/**
+ * Keeps the last commit and the last servable commit (see IndexCommits) of
+ * an index database, so the search service can serve the old index while a
+ * rebuild is committed periodically. The other commits are deleted.
+ */
+public final class KeepServableCommitPolicy extends IndexDeletionPolicy {
+  @Override
+  public void onInit(List<? extends IndexCommit> commits_)
+    throws IOException {
+    onCommit(commits_);
+  }
+
+  @Override
+  public void onCommit(List<? extends IndexCommit> commits_)
+    throws IOException {
+    final int last = commits_.size() - 1;
+
+    int servable = -1;
+    for (int i = last; i >= 0 && servable < 0; --i) {
+      if (IndexCommits.isServable(commits_.get(i).getUserData())) {
+        servable = i;
+      }
+    }
+
+    for (int i = 0; i < last; ++i) {
+      if (i != servable) {
+        commits_.get(i).delete();
+      }
+    }
+  }
+}
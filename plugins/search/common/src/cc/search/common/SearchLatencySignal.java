@@ -0,0 +1,144 @@
+package cc.search.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A file based signal about the recent search latency. The search service
+ * publishes the latency and the indexer reads it to throttle the background
+ * merges when the searches become slow. Both processes get the path of the
+ * signal file with the -searchLatencySignal option (see CommonOptions). It
+ * must not be in the index directory: an index generation can be read-only
+ * and its directory is replaced by the next generation.
+ *
+ * The signal file contains two numbers: the latency in milliseconds (a high
+ * percentile of the recent searches) and the publish time.
+ */
+public final class SearchLatencySignal {
+  /**
+   * Logger.
+   */
+  private static final Logger _log = Logger.getLogger(
+    SearchLatencySignal.class.getName());
+  /**
+   * Minimal time between two publications.
+   */
+  private static final long PUBLISH_PERIOD_MS = 1000;
+  /**
+   * Number of recent latencies in the window.
+   */
+  private static final int WINDOW_SIZE = 128;
+  /**
+   * The published latency is this percentile of the window.
+   */
+  private static final double PERCENTILE = 0.95;
+  /**
+   * The signal file.
+   */
+  private final Path _signalFile;
+  /**
+   * Recent latencies (a ring buffer).
+   */
+  private final long[] _window = new long[WINDOW_SIZE];
+  /**
+   * Number of recorded latencies.
+   */
+  private long _recorded = 0;
+  /**
+   * Time of the last publication.
+   */
+  private long _lastPublish = 0;
+  /**
+   * True if a publish failure is already logged as a warning.
+   */
+  private final AtomicBoolean _failureLogged = new AtomicBoolean(false);
+
+  /**
+   * @param signalFile_ the signal file.
+   */
+  public SearchLatencySignal(File signalFile_) {
+    _signalFile = signalFile_.toPath();
+  }
+
+  /**
+   * Records the latency of a search and publishes the signal (at most once
+   * in every PUBLISH_PERIOD_MS).
+   *
+   * @param latencyMs_ search latency in milliseconds.
+   */
+  public void record(long latencyMs_) {
+    final long[] window;
+    final long now = System.currentTimeMillis();
+
+    synchronized (this) {
+      _window[(int) (_recorded++ % WINDOW_SIZE)] = latencyMs_;
+      if (now - _lastPublish < PUBLISH_PERIOD_MS) {
+        return;
+      }
+
+      _lastPublish = now;
+      window = Arrays.copyOf(_window, (int) Math.min(_recorded, WINDOW_SIZE));
+    }
+
+    Arrays.sort(window);
+    publish(window[(int) ((window.length - 1) * PERCENTILE)], now);
+  }
+
+  /**
+   * Writes the signal file atomically.
+   *
+   * @param latencyMs_ search latency.
+   * @param time_ publish time.
+   */
+  private void publish(long latencyMs_, long time_) {
+    try {
+      final Path tmpFile = _signalFile.resolveSibling(_signalFile.getFileName() +
+        "." + Thread.currentThread().getId());
+      Files.write(tmpFile, (latencyMs_ + " " + time_).getBytes(
+        StandardCharsets.US_ASCII));
+      Files.move(tmpFile, _signalFile, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException ex) {
+      // The searches go on without the signal, so it is reported only once.
+      _log.log(_failureLogged.compareAndSet(false, true) ? Level.WARNING :
+        Level.FINE, "Failed to publish the search latency to " +
+        _signalFile + "!", ex);
+    }
+  }
+
+  /**
+   * Reads a signal file.
+   *
+   * @param signalFile_ the signal file.
+   * @param maxAgeMs_ older signals are ignored (the service is idle).
+   * @return the published latency in milliseconds or -1 if there is no
+   *  (recent) signal.
+   */
+  public static long read(File signalFile_, long maxAgeMs_) {
+    try {
+      final String[] values = new String(Files.readAllBytes(
+        signalFile_.toPath()),
+        StandardCharsets.US_ASCII).trim().split(" ");
+      if (values.length != 2) {
+        return -1;
+      }
+
+      final long time = Long.parseLong(values[1]);
+      if (System.currentTimeMillis() - time > maxAgeMs_) {
+        return -1;
+      }
+
+      return Long.parseLong(values[0]);
+    } catch (IOException | NumberFormatException ex) {
+      return -1;
+    }
+  }
+}
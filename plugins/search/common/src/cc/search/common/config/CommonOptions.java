@@ -24,6 +24,18 @@ public abstract class CommonOptions {
    * Output file descriptor for thrift IPC.
    */
   public int ipcOutFd;
+  /**
+   * Serve thrift IPC on a TCP port of the loopback interface instead of the
+   * file descriptors. The port is chosen by the process and written to
+   * ipcOutFd, the clients are authenticated with the access token read from
+   * ipcInFd (see IPCProcessor).
+   */
+  public boolean ipcSocket = false;
+  /**
+   * Number of IPC clients served concurrently (only if ipcSocket is set, the
+   * file descriptors are always served by one thread).
+   */
+  public int ipcWorkers = 1;
   /**
    * Use SimpleFileLock in Lucene. It's more NFS friendly, but not as stable as
    * a native lock. This option is basically because artf448170.
@@ -34,6 +46,11 @@ public abstract class CommonOptions {
    * lock files after an "abnormal process termination" (i.e.: kill or crash).
    */
   public boolean cleanupLocks = false;
+  /**
+   * Path of the search latency signal file (see SearchLatencySignal), null if
+   * there is no signal. The search service publishes it, the indexer reads it.
+   */
+  public String searchLatencySignalPath = null;
 
   /**
    * Checks all required fields.
@@ -44,6 +61,14 @@ public abstract class CommonOptions {
       throw new InvalidValueException("No index database path given!");
     }
     
+    if (!usesIpc()) {
+      return;
+    }
+    
+    if (ipcSocket && ipcWorkers < 1) {
+      throw new InvalidValueException("Bad ipcWorkers: " + ipcWorkers);
+    }
+    
     if (ipcInFd == 0) {
       throw new InvalidValueException("No ipcInFd!");
     }
@@ -53,6 +78,13 @@ public abstract class CommonOptions {
     }
   }
 
+  /**
+   * @return true if the application needs the IPC options.
+   */
+  protected boolean usesIpc() {
+    return true;
+  }
+
   /**
    * Sets values from command line arguments.
    *
@@ -95,6 +127,19 @@ public abstract class CommonOptions {
             argIter.remove();
           }
           break;
+        case "-ipcSocket":
+          ipcSocket = true;
+          argIter.remove();
+          break;
+        case "-ipcWorkers":
+          if (!argIter.hasNext()) {
+            throw new InvalidValueException("-ipcWorkers is empty");
+          } else {
+            argIter.remove();
+            ipcWorkers = parseInt("-ipcWorkers", argIter.next());
+            argIter.remove();
+          }
+          break;
         case "-useSimpleFileLock":
           useSimpleLock = true;
           argIter.remove();
@@ -103,10 +148,36 @@ public abstract class CommonOptions {
           cleanupLocks = true;
           argIter.remove();
           break;
+        case "-searchLatencySignal":
+          if (!argIter.hasNext()) {
+            throw new InvalidValueException("No path for -searchLatencySignal");
+          } else {
+            argIter.remove();
+            searchLatencySignalPath = argIter.next();
+            argIter.remove();
+          }
+          break;
       }
     }
   }
   
+  /**
+   * Parses the numeric value of an argument.
+   *
+   * @param arg_ argument name.
+   * @param value_ argument value.
+   * @return the value as a number.
+   * @throws cc.search.common.config.InvalidValueException
+   */
+  private static int parseInt(String arg_, String value_)
+    throws InvalidValueException {
+    try {
+      return Integer.parseInt(value_);
+    } catch (NumberFormatException ex) {
+      throw new InvalidValueException("Bad value for " + arg_ + ": " + value_);
+    }
+  }
+  
   /**
    * Creates a new lock factory based on configuration. The default behavior is
    * to create a NativeFSLockFactory but for NFS it isn't working (the locking
@@ -135,7 +206,12 @@ public abstract class CommonOptions {
       + "\t-indexDB path\n\t\tPath of index database.\n"
       + "\t-ipcInFd fd\n\t\tFile descriptor for IPC IN.\n"
       + "\t-ipcOutFd id\n\t\tFile descriptor for IPC OUT.\n"
+      + "\t-ipcSocket\n\t\tServe IPC clients on a local TCP port instead of the file descriptors:\n"
+      + "\t\tthe access token is read from IPC IN, the port is written to IPC OUT.\n"
+      + "\t-ipcWorkers count\n\t\tNumber of IPC clients served concurrently on the IPC port.\n"
       + "\t-useSimpleFileLock\n\t\tUse NFS friendly file locks.\n"
-      + "\t-cleanupLocks\n\t\tCleanup locks before first lock..\n";
+      + "\t-cleanupLocks\n\t\tCleanup locks before first lock..\n"
+      + "\t-searchLatencySignal path\n\t\tSearch latency signal file (outside of the index database)\n"
+      + "\t\tpublished by the search service and read by the indexer.\n";
   }
 }
\ No newline at end of file
@@ -1,9 +1,23 @@
 package cc.search.common.ipc;
 
 import cc.search.common.config.CommonOptions;
+import java.io.BufferedReader;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.thrift.TException;
@@ -12,11 +26,29 @@ import org.apache.thrift.protocol.TBinaryProtocol;
 import org.apache.thrift.protocol.TProtocol;
 import org.apache.thrift.protocol.TProtocolFactory;
 import org.apache.thrift.transport.TIOStreamTransport;
+import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.TServerTransport;
+import org.apache.thrift.transport.TSocket;
 import org.apache.thrift.transport.TTransport;
 import org.apache.thrift.transport.TTransportException;
 
 /**
- * Helper class for thrift based IPC communication.
+ * Helper class for thrift based IPC communication. The messages come from
+ * file descriptors (pipes) or, if ipcSocket is set, from TCP connections on
+ * the loopback interface. In the latter case the clients are served until a
+ * client stops the serving, so the process can outlive its clients.
+ *
+ * The port is bound by this process (so no other process can take it
+ * meanwhile) and it is written to the IPC output descriptor. The port is open
+ * for every local user, so a client has to send the access token first, which
+ * is read from the IPC input descriptor: it is known only by the starter of
+ * the process.
+ *
+ * With more than one IPC worker the clients are served concurrently: every
+ * connection is served by a worker thread. The requests of a connection are
+ * still processed one after the other, so the responses are in the order of
+ * the requests. A connection waits for a free worker if all of them are
+ * busy.
  */
 public class IPCProcessor implements AutoCloseable {
   /**
@@ -29,45 +61,135 @@ public class IPCProcessor implements AutoCloseable {
    */
   private final TProcessor _processor;
   /**
-   * Transport object for incoming messages.
+   * Protocol factory.
+   */
+  private final TProtocolFactory _protocolFactory;
+  /**
+   * Server transport for accepting clients (null if IPC is on pipes).
+   */
+  private final TServerTransport _serverTransport;
+  /**
+   * Access token of the clients (null if IPC is on pipes).
+   */
+  private final byte[] _token;
+  /**
+   * The IPC port (0 if IPC is on pipes).
+   */
+  private final int _port;
+  /**
+   * Worker threads for the clients (null if the clients are served on the
+   * accepting thread).
+   */
+  private final ExecutorService _workers;
+  /**
+   * The connected clients (for closing them on stop).
+   */
+  private final Set<TTransport> _clients = Collections.newSetFromMap(
+    new ConcurrentHashMap<TTransport, Boolean>());
+  /**
+   * Transport object for incoming messages (null if IPC is on a socket).
    */
   private final TTransport _inTransport;
   /**
-   * Transport object for outgoing messages.
+   * Transport object for outgoing messages (null if IPC is on a socket).
    */
   private final TTransport _outTransport;
   /**
-   * Protocol object for incoming messages.
+   * Protocol object for incoming messages (null if IPC is on a socket).
    */
   private final TProtocol _inProtocol;
   /**
-   * Protocol object for outgoing messages.
+   * Protocol object for outgoing messages (null if IPC is on a socket).
    */
   private final TProtocol _outProtocol;
   /**
    * Ture if serving is enabled.
    */
-  private boolean _continueServing = true;
+  private volatile boolean _continueServing = true;
+  /**
+   * The running requests can finish in this time after stopping.
+   */
+  private static final long STOP_GRACE_SECS = 10;
+  /**
+   * A client has to send its access token in this time after connecting.
+   */
+  private static final int AUTH_TIMEOUT_MS = 5000;
   
   /**
    * Creates a new processor.
    * 
    * @param options_ app options.
    * @param processor_  a thrift processor.
-   * @throws java.io.FileNotFoundException 
+   * @throws java.io.IOException 
    */
   public IPCProcessor(CommonOptions options_, TProcessor processor_)
-    throws FileNotFoundException {
+    throws IOException {
     _processor = processor_;
+    _protocolFactory = new TBinaryProtocol.Factory();
     
-    TProtocolFactory factory = new TBinaryProtocol.Factory();
-    _inTransport = new TIOStreamTransport(
-      new FileInputStream(getFileNameFromFd(options_.ipcInFd)));
-    _outTransport = new TIOStreamTransport(
-      new FileOutputStream(getFileNameFromFd(options_.ipcOutFd)));
-    
-    _inProtocol = factory.getProtocol(_inTransport);
-    _outProtocol = factory.getProtocol(_outTransport);
+    if (options_.ipcSocket) {
+      final String token = readToken(getFileNameFromFd(options_.ipcInFd));
+      if (token == null || token.isEmpty()) {
+        throw new IOException("No IPC access token!");
+      }
+      _token = token.getBytes(StandardCharsets.US_ASCII);
+      
+      final TServerSocket serverSocket;
+      try {
+        serverSocket = new TServerSocket(new InetSocketAddress(
+          InetAddress.getLoopbackAddress(), 0));
+      } catch (TTransportException ex) {
+        throw new IOException("Failed to open an IPC port!", ex);
+      }
+      _serverTransport = serverSocket;
+      _port = serverSocket.getServerSocket().getLocalPort();
+      
+      try (OutputStream out = new FileOutputStream(
+        getFileNameFromFd(options_.ipcOutFd))) {
+        out.write((Integer.toString(_port) + "\n").getBytes(
+          StandardCharsets.US_ASCII));
+      }
+      
+      _workers = options_.ipcWorkers > 1 ?
+        Executors.newFixedThreadPool(options_.ipcWorkers) : null;
+      _inTransport = null;
+      _outTransport = null;
+      _inProtocol = null;
+      _outProtocol = null;
+    } else {
+      _token = null;
+      _port = 0;
+      _serverTransport = null;
+      _workers = null;
+      _inTransport = new TIOStreamTransport(
+        new FileInputStream(getFileNameFromFd(options_.ipcInFd)));
+      _outTransport = new TIOStreamTransport(
+        new FileOutputStream(getFileNameFromFd(options_.ipcOutFd)));
+
+      _inProtocol = _protocolFactory.getProtocol(_inTransport);
+      _outProtocol = _protocolFactory.getProtocol(_outTransport);
+    }
+  }
+  
+  /**
+   * Reads the access token of the clients.
+   * 
+   * @param path_ path of the IPC input.
+   * @return the first line of the input (null if it is empty).
+   * @throws IOException 
+   */
+  private static String readToken(String path_) throws IOException {
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+      new FileInputStream(path_), StandardCharsets.US_ASCII))) {
+      return reader.readLine();
+    }
+  }
+  
+  /**
+   * @return the IPC port or 0 if IPC is on file descriptors.
+   */
+  public int getPort() {
+    return _port;
   }
   
   /**
@@ -76,6 +198,11 @@ public class IPCProcessor implements AutoCloseable {
   public void serve() {
     _continueServing = true;
     
+    if (_serverTransport != null) {
+      serveClients();
+      return;
+    }
+    
     try {
       _inTransport.open();
       _outTransport.open();
@@ -84,12 +211,146 @@ public class IPCProcessor implements AutoCloseable {
       return;
     }
     
+    processMessages(_inProtocol, _outProtocol);
+  }
+  
+  /**
+   * Accepts and serves clients (on the worker threads if any) until the
+   * serving is stopped.
+   */
+  private void serveClients() {
+    try {
+      _serverTransport.listen();
+    } catch (TTransportException ex) {
+      _log.log(Level.SEVERE, "Listening on IPC port failed!", ex);
+      return;
+    }
+    
+    while (_continueServing) {
+      final TTransport client;
+      try {
+        client = _serverTransport.accept();
+      } catch (TTransportException ex) {
+        if (_continueServing) {
+          _log.log(Level.WARNING, "Accepting a client failed!", ex);
+        }
+        continue;
+      }
+      
+      _log.log(Level.FINE, "Client connected.");
+      if (_workers == null) {
+        serveClient(client);
+        continue;
+      }
+      
+      try {
+        _workers.execute(new Runnable() {
+          @Override
+          public void run() {
+            serveClient(client);
+          }
+        });
+      } catch (RejectedExecutionException ex) {
+        // Stopped meanwhile.
+        client.close();
+      }
+    }
+    
+    if (_workers != null) {
+      stopWorkers();
+    }
+  }
+  
+  /**
+   * Serves a connected client until it disconnects or the serving is stopped.
+   * 
+   * @param client_ client transport.
+   */
+  private void serveClient(TTransport client_) {
+    _clients.add(client_);
+    try {
+      if (!authenticate((TSocket) client_)) {
+        _log.log(Level.WARNING, "Rejected an IPC client without a valid " +
+          "access token!");
+        return;
+      }
+      
+      processMessages(_protocolFactory.getProtocol(client_),
+        _protocolFactory.getProtocol(client_));
+    } finally {
+      _clients.remove(client_);
+      client_.close();
+    }
+  }
+  
+  /**
+   * Reads and checks the access token of a new client.
+   * 
+   * @param client_ client transport.
+   * @return true if the client sent the access token.
+   */
+  private boolean authenticate(TSocket client_) {
+    final byte[] token = new byte[_token.length];
+    try {
+      // A silent client must not block the serving.
+      client_.setTimeout(AUTH_TIMEOUT_MS);
+      client_.readAll(token, 0, token.length);
+      client_.setTimeout(0);
+    } catch (TTransportException ex) {
+      return false;
+    }
+    
+    return MessageDigest.isEqual(token, _token);
+  }
+  
+  /**
+   * Lets the running requests finish, then disconnects the clients.
+   */
+  private void stopWorkers() {
+    _workers.shutdown();
+    
+    // A request is read completely before processing, so closing the input
+    // side wakes up the idle clients without breaking a running request.
+    for (TTransport client : _clients) {
+      try {
+        ((TSocket) client).getSocket().shutdownInput();
+      } catch (IOException ex) {
+        _log.log(Level.FINE, "Failed to shut down a client!", ex);
+      }
+    }
+    
+    try {
+      if (!_workers.awaitTermination(STOP_GRACE_SECS, TimeUnit.SECONDS)) {
+        for (TTransport client : _clients) {
+          client.close();
+        }
+        _workers.shutdownNow();
+        _workers.awaitTermination(STOP_GRACE_SECS, TimeUnit.SECONDS);
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  /**
+   * Processes the messages of a client until it disconnects or the serving is
+   * stopped.
+   * 
+   * @param inProtocol_ protocol for incoming messages.
+   * @param outProtocol_ protocol for outgoing messages.
+   */
+  private void processMessages(TProtocol inProtocol_, TProtocol outProtocol_) {
     boolean cont = _continueServing;
     while (cont) {
       try {
-        cont = _continueServing && _processor.process(_inProtocol, _outProtocol);
+        cont = _continueServing && _processor.process(inProtocol_,
+          outProtocol_);
       } catch (TTransportException ex) {
-        _log.log(Level.SEVERE, "Client died!", ex);
+        if (_serverTransport != null) {
+          _log.log(Level.FINE, "Client disconnected.");
+        } else {
+          _log.log(Level.SEVERE, "Client died!", ex);
+        }
         return;
       } catch (TException ex) {
         _log.log(Level.SEVERE, "Something went wrong!", ex);
@@ -102,6 +363,11 @@ public class IPCProcessor implements AutoCloseable {
    */
   public void stopServe() {
     _continueServing = false;
+    
+    if (_workers != null) {
+      // Wake up the accepting thread.
+      _serverTransport.interrupt();
+    }
   }
 
   /**
@@ -117,7 +383,11 @@ public class IPCProcessor implements AutoCloseable {
 
   @Override
   public void close() {
-    _inTransport.close();
-    _outTransport.close();
+    if (_serverTransport != null) {
+      _serverTransport.close();
+    } else {
+      _inTransport.close();
+      _outTransport.close();
+    }
   }
 }
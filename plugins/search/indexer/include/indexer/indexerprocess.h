@@ -1,10 +1,15 @@
 #ifndef CC_PARSER_INDEXERPROCESS_H
 #define CC_PARSER_INDEXERPROCESS_H
 
+#include <memory>
 #include <unordered_map>
 #include <string>
 #include <vector>
 
+#include <sys/types.h>
+
+#include <thrift/transport/TTransport.h>
+
 #include <util/pipedprocess.h>
 #include <IndexerService.h>
 
@@ -15,6 +20,15 @@ namespace parser
 
 /**
  * Indexer process. Currently it's a Java application.
+ *
+ * A resident indexer (see openResident()) is a Java process which outlives
+ * the parser: it is started by the first parse run and the later runs connect
+ * to it on its IPC port, so they do not pay for the startup and the warmup of
+ * a new JVM. Every run is an indexing session (see beginSession() and
+ * endSession()). The port and the access token of the connections are in the
+ * pid file of the indexer, which is readable only by its owner. The pid file
+ * is locked while an indexer is started or stopped, so only one indexer runs
+ * on an index. It runs until it is stopped (see stopResident()).
  */
 class IndexerProcess :
   public util::PipedProcess,
@@ -31,7 +45,10 @@ public:
     ReplaceExisting, /*!< Replace documents with their new versions and keep the
       unchanged ones. */
 
-    Merge /*!< Merge new and old documents. */
+    Merge, /*!< Merge new and old documents. */
+
+    Resume /*!< Continue an interrupted session: keep the committed documents
+      (see getDurableFileIds()). */
   };
   
   /**
@@ -63,15 +80,49 @@ public:
     OpenMode openMode_,
     LockMode lockMode_ = LockMode::Simple);
   
+  /**
+   * Connects to the resident indexer of an index database. If it is not
+   * running yet, then it is started in the background.
+   *
+   * @param indexDatabase_ Path to index database.
+   * @param lockMode_ Lucene database lock mode.
+   * @return the indexer client.
+   * @throw Failure if the indexer can not be started or connected (also if
+   *   a running indexer does not respond: an other one is not started).
+   */
+  static std::unique_ptr<IndexerProcess> openResident(
+    const std::string& indexDatabase_,
+    LockMode lockMode_ = LockMode::Simple);
+
+  /**
+   * Stops the resident indexer of an index database (if it is running) and
+   * waits for its exit. The indexer commits its running session first.
+   *
+   * @param indexDatabase_ Path to index database.
+   * @return true if an indexer was stopped.
+   * @throw Failure if the running indexer does not respond or exit.
+   */
+  static bool stopResident(const std::string& indexDatabase_);
+
   /**
    * Closes the I/O pipe so the child process will exit if it finished. Also
-   * waits for the process to exit.
+   * waits for the process to exit. A resident indexer is only disconnected,
+   * it keeps running.
    */
   ~IndexerProcess();
+
+  /**
+   * @return true if this is a client of a resident indexer.
+   */
+  bool isResident() const;
   
 public:
   virtual void stop() override;
   
+  virtual void beginSession(const search::SessionMode::type mode_) override;
+
+  virtual int32_t endSession() override;
+
   virtual void indexFile(
     const std::string& fileId_,
     const std::string& filePath_,
@@ -81,16 +132,89 @@ public:
     const std::string& fileId_,
     const search::Fields& fields_) override;
 
+  virtual void getDurableFileIds(std::vector<std::string>& fileIds_) override;
+
   virtual void buildSuggestions() override;
 
   virtual void getStatistics(
     std::map<std::string, std::string>& stat_) override;
   
+private:
+  /**
+   * Creates a client of a resident indexer (see openResident() and
+   * stopResident()). It is not connected yet.
+   *
+   * @param indexDatabase_ Path to index database.
+   */
+  explicit IndexerProcess(const std::string& indexDatabase_);
+
+  /**
+   * Reads the process id, the port and the access token of the resident
+   * indexer from its pid file.
+   *
+   * @return true if the pid file names a running indexer.
+   */
+  bool readResidentInfo();
+
+  /**
+   * @return true if the resident indexer process is running.
+   */
+  bool isResidentAlive() const;
+
+  /**
+   * Starts a resident indexer in the background (it is not a child of this
+   * process) and writes its pid file. It returns when the indexer listens on
+   * its IPC port.
+   *
+   * @param indexDatabase_ Path to index database.
+   * @param lockMode_ Lucene database lock mode.
+   */
+  void startResident(const std::string& indexDatabase_, LockMode lockMode_);
+
+  /**
+   * Connects to the resident indexer and sends the access token. It retries
+   * while the indexer is alive.
+   *
+   * @param attempts_ Number of connecting attempts.
+   * @return true on success.
+   */
+  bool connectResident(int attempts_);
+
+  /**
+   * Aborts if the indexer process is not alive.
+   */
+  void checkProcess();
+
 private:
   /**
    * Second pipe for thrift.
    */
   int _pipeFd2[2];
+  /**
+   * Path of the pid file of the resident indexer (empty if not resident).
+   */
+  std::string _residentPidFile;
+  /**
+   * Process id of the resident indexer.
+   */
+  pid_t _residentPid;
+  /**
+   * IPC port of the resident indexer.
+   */
+  int _residentPort;
+  /**
+   * Access token of the IPC connections of the resident indexer (the port is
+   * open for every local user).
+   */
+  std::string _residentToken;
+  /**
+   * True if the indexer was stopped by the client.
+   */
+  bool _stopped;
+  /**
+   * Connection to the resident indexer.
+   */
+  boost::shared_ptr<apache::thrift::transport::TTransport> _transport;
   /**
    * Indexer interface for IPC communication.
    */
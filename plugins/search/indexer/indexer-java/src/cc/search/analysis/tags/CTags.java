@@ -9,7 +9,6 @@ import java.util.Collection;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import cc.search.analysis.Location;
 import cc.search.indexer.Context;
 
 /**
@@ -225,17 +224,18 @@ class CTags implements TagGenerator {
   }
 
   /**
-   * Parses a ctags tag.
+   * Parses a ctags tag and adds it to the tags of the file.
    *
-   * @param context_ indexing context.
+   * @param tags_ container for tags.
+   * @param filePath_ path of the tagged file.
    * @param tagText_ tag as it is in the tags file.
    * @param tagAttributes_ the attribute part of th line.
-   * @return parsed tag or null on non-fatal error.
    */
-  private Tag parseTag(Context context_, String tagText_, String tagAttributes_) {
+  private void parseTag(UnlocatedTags tags_, String filePath_,
+    String tagText_, String tagAttributes_) {
     if (tagText_.startsWith("operator ")) {
       // Workaround for C++ operators
-      return null;
+      return;
     }
 
     int lineNumber = -1;
@@ -248,7 +248,7 @@ class CTags implements TagGenerator {
       if (attrNameEnd < 0) {
         _log.log(Level.WARNING, "Malformed attribute: {0}",
           tagAttributes_.substring(attrStart));
-        return null;
+        return;
       }
 
       int attrValueEnd = tagAttributes_.indexOf('\t', attrNameEnd + 1);
@@ -275,45 +275,22 @@ class CTags implements TagGenerator {
     // Check values
     if (lineNumberStr == null || lineNumberStr.isEmpty()) {
       _log.log(Level.WARNING, "Missing line number!");
-      return null;
+      return;
     } else if (lineNumber < 1) {
       _log.log(Level.WARNING, "Bad line number {0} (value: {1}, file: {2})!",
-        new Object[]{lineNumberStr, lineNumber,
-          context_.getFileFullPath()});
-      return null;
-    } else if (kind == null || kind.isEmpty()) {
+        new Object[]{lineNumberStr, lineNumber, filePath_});
+      return;
+    } else if (kind == null || kind.isEmpty() || tagText_.isEmpty()) {
       _log.log(Level.WARNING, "Missing tag kind!");
-      return null;
-    }
-
-    int startColumn;
-    try {
-      // Calculate location
-      // FIXME: what if there is more than one match in this line???
-      startColumn = context_.lineInfos.getLineContent(lineNumber).
-        indexOf(tagText_);
-      if (startColumn < 0) {
-        // it could be an something special.
-        _log.log(Level.FINER, "'{0}' not found in file '{2}' at line {1}!",
-          new Object[]{tagText_, lineNumber,
-            context_.getFileFullPath()});
-        return null;
-      }
-    } catch (IndexOutOfBoundsException ex) {
-      _log.log(Level.SEVERE, "Possibly bad line number: ''{0}'' for file " +
-        "''{1}''", new Object[]{lineNumberStr,
-          context_.getFileFullPath()});
-      return null;
+      return;
     }
 
-    startColumn += 1;
-    final Location loc = new Location(lineNumber, startColumn, startColumn +
-      tagText_.length() - 1);
     try {
-      return new Tag(loc, tagText_, kind, parseKind(kind));
+      // The columns are calculated from the content (see
+      // UnlocatedTags.locate()).
+      tags_.add(lineNumber, tagText_, kind, parseKind(kind));
     } catch (IOException ex) {
       // Parsing tag (kind) failed / not supported tag!
-      return null;
     }
   }
 
@@ -321,10 +298,11 @@ class CTags implements TagGenerator {
    * Processes a file (previously parsed by tagFile) with ctags.
    *
    * @param tags_ container for tags.
-   * @param context_ indexing context.
+   * @param filePath_ path of the tagged file.
    * @throws IOException
    */
-  private void processTags(Tags tags_, Context context_) throws IOException {
+  private void processTags(UnlocatedTags tags_, String filePath_)
+    throws IOException {
     while (true) {
       String outLine = _ctagsOutput.readLine();
 
@@ -361,17 +339,21 @@ class CTags implements TagGenerator {
         continue;
       }
 
-      Tag parsedTag = parseTag(context_, tag, outLine.substring(pos + 3));
-      if (parsedTag != null) {
-        tags_.add(parsedTag, context_.lineInfos.getLineStartOffset(
-          parsedTag.location.line) + parsedTag.location.startColumn - 1);
-      }
+      parseTag(tags_, filePath_, tag, outLine.substring(pos + 3));
     }
   }
 
   @Override
   public void generate(Tags tags_, Context context_) throws IOException {
-    tagFile(context_.getFileFullPath());
-    processTags(tags_, context_);
+    final UnlocatedTags tags = new UnlocatedTags();
+    generate(tags, context_.getFileFullPath());
+    tags.locate(tags_, context_);
+  }
+
+  @Override
+  public void generate(UnlocatedTags tags_, String filePath_)
+    throws IOException {
+    tagFile(filePath_);
+    processTags(tags_, filePath_);
   }
 }
@@ -87,5 +87,14 @@ public class SourceTagGenerator implements TagGenerator {
     _genericCTags.generate(tags_, context_);
     _artf460600CTags.generate(tags_, context_);
   }
+  
+  @Override
+  public void generate(UnlocatedTags tags_, String filePath_)
+    throws IOException {
+    checkCTags();
+    
+    _genericCTags.generate(tags_, filePath_);
+    _artf460600CTags.generate(tags_, filePath_);
+  }
 
 }
@@ -15,4 +15,15 @@ public interface TagGenerator extends AutoCloseable {
    * @throws java.io.IOException
    */
   public void generate(Tags tags_, Context context_) throws IOException;
+  
+  /**
+   * Generate tags for the given file without reading its content (for the
+   * files which are indexed in chunks).
+   * 
+   * @param tags_ object for storing tags.
+   * @param filePath_ path of the file.
+   * @throws java.io.IOException
+   */
+  public void generate(UnlocatedTags tags_, String filePath_)
+    throws IOException;
 }
@@ -0,0 +1,167 @@
+package cc.search.analysis.tags;
+
+import cc.search.analysis.Location;
+import cc.search.indexer.Context;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tags of a file by line number, which are not located in the content yet
+ * (ctags reports only the line of a tag). They are located in the content of
+ * the whole file or of a chunk of the file (see locate()), so a file which is
+ * indexed in chunks is tagged only once.
+ */
+public final class UnlocatedTags {
+  /**
+   * A tag without its columns.
+   */
+  private static final class Entry {
+    /**
+     * Line number in the file (starting from 1).
+     */
+    final int line;
+    /**
+     * The tag as it is in the source content.
+     */
+    final String text;
+    /**
+     * The original kind of the tag.
+     */
+    final String kind;
+    /**
+     * Generic kind of the tag.
+     */
+    final Tag.Kind genericKind;
+
+    /**
+     * @param line_ line number in the file.
+     * @param text_ tag as text.
+     * @param kind_ original kind.
+     * @param genericKind_ generic kind.
+     */
+    Entry(int line_, String text_, String kind_, Tag.Kind genericKind_) {
+      line = line_;
+      text = text_;
+      kind = kind_;
+      genericKind = genericKind_;
+    }
+  }
+
+  /**
+   * Logger.
+   */
+  private static final Logger _log  = Logger.getLogger(UnlocatedTags.class
+    .getName());
+  /**
+   * The tags.
+   */
+  private final List<Entry> _entries = new ArrayList<>();
+  /**
+   * True if _entries is ordered by line.
+   */
+  private boolean _sorted = true;
+
+  /**
+   * Adds a tag.
+   *
+   * @param line_ line number in the file (starting from 1).
+   * @param text_ tag as text.
+   * @param kind_ original kind.
+   * @param genericKind_ generic kind.
+   */
+  public void add(int line_, String text_, String kind_,
+    Tag.Kind genericKind_) {
+    if (!_entries.isEmpty() &&
+      _entries.get(_entries.size() - 1).line > line_) {
+      _sorted = false;
+    }
+
+    _entries.add(new Entry(line_, text_, kind_, genericKind_));
+  }
+
+  /**
+   * @return the number of tags.
+   */
+  public int size() {
+    return _entries.size();
+  }
+
+  /**
+   * Locates the tags of the lines of a context (a file or a chunk of a file)
+   * in its content and adds them to a tag container. The locations and the
+   * offsets are relative to the context.
+   *
+   * @param tags_ container for the located tags.
+   * @param context_ the context.
+   */
+  public void locate(Tags tags_, Context context_) {
+    if (!_sorted) {
+      // The order of the tags of a line is kept.
+      Collections.sort(_entries, new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a_, Entry b_) {
+          return Integer.compare(a_.line, b_.line);
+        }
+      });
+      _sorted = true;
+    }
+
+    final int firstLine = context_.baseLine + 1;
+    final int lastLine = context_.baseLine +
+      context_.lineInfos.getLineCount();
+
+    for (int i = findFirst(firstLine); i < _entries.size(); ++i) {
+      final Entry entry = _entries.get(i);
+      if (entry.line > lastLine) {
+        if (!context_.isChunk()) {
+          _log.log(Level.SEVERE, "Possibly bad line number: ''{0}'' for file " +
+            "''{1}''", new Object[]{entry.line, context_.getFileFullPath()});
+        }
+        break;
+      }
+
+      final int line = entry.line - context_.baseLine;
+
+      // FIXME: what if there is more than one match in this line???
+      final int startColumn = context_.lineInfos.getLineContent(line).
+        indexOf(entry.text);
+      if (startColumn < 0) {
+        // it could be an something special.
+        _log.log(Level.FINER, "''{0}'' not found in file ''{2}'' at line " +
+          "{1}!", new Object[]{entry.text, entry.line,
+            context_.getFileFullPath()});
+        continue;
+      }
+
+      final Location loc = new Location(line, startColumn + 1,
+        startColumn + entry.text.length());
+      tags_.add(new Tag(loc, entry.text, entry.kind, entry.genericKind),
+        context_.lineInfos.getLineStartOffset(line) + startColumn);
+    }
+  }
+
+  /**
+   * Finds the first tag on or after a line.
+   *
+   * @param line_ a line number.
+   * @return index of the tag or the number of tags if there is none.
+   */
+  private int findFirst(int line_) {
+    int low = 0;
+    int high = _entries.size();
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (_entries.get(mid).line < line_) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+
+    return low;
+  }
+}
@@ -2,6 +2,8 @@ package cc.search.indexer;
 
 import cc.parser.search.FieldValue;
 import cc.parser.search.searchindexerConstants;
+import cc.search.analysis.LineBlocks;
+import cc.search.analysis.LineInformations;
 import cc.search.analysis.Location;
 import cc.search.analysis.tags.Tag;
 import cc.search.analysis.tags.TagGenerator;
@@ -11,12 +13,15 @@ import cc.search.analysis.tags.Tags;
 import cc.search.common.IndexFields;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FieldType;
@@ -31,8 +36,9 @@ import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHitCountCollector;
 import org.apache.lucene.util.BytesRef;
 
 /**
@@ -88,6 +94,28 @@ abstract public class AbstractIndexer {
   
   public abstract Context createContext() throws IOException;
   
+  /**
+   * Creates the right indexer for a file: large files are indexed in chunks.
+   * 
+   * @param filePath_ file to index.
+   * @param fileId_ database id of the file.
+   * @param mimeType_ mime type of the file.
+   * @param indexWriter_ index database.
+   * @param contentRegistry_ registry for content deduplication (can be null).
+   * @return a new indexer.
+   */
+  public static AbstractIndexer createForFile(String filePath_, String fileId_,
+    String mimeType_, IndexWriter indexWriter_,
+    ContentRegistry contentRegistry_) {
+    if (new File(filePath_).length() > ChunkedFileIndexer.CHUNKING_THRESHOLD) {
+      return new ChunkedFileIndexer(filePath_, fileId_, mimeType_,
+        indexWriter_);
+    } else {
+      return new FileIndexer(filePath_, fileId_, mimeType_, indexWriter_,
+        contentRegistry_);
+    }
+  }
+  
   /**
    * Indexes a file and adds it to the database.
    * 
@@ -95,111 +123,165 @@ abstract public class AbstractIndexer {
    */
   public boolean index() {
     try {
-      final Context ctx = createContext();
-      final Tags tags = generateTagsForContext(ctx);
+      indexContext(createContext());
       
-      if (ctx.extraFields != null) {
-        Iterator<String> extraFieldIter = ctx.extraFields.keySet().iterator();
-        
-        while (extraFieldIter.hasNext()) {
-          String extraField = extraFieldIter.next();
-          switch (extraField) {
-            case searchindexerConstants.FIELD_DEFINITIONS:
-              // Extra definitions
-              appendTagsFromFieldValues(extraField, ctx, tags);
-              break;
-            case searchindexerConstants.FIELD_PARSE_STATUS: {
-              // Extra boot by parse status
-                long extraBoost = 0;
-                long origBoost = 1;
-
-                final List<FieldValue> values =ctx.extraFields.get(extraField);
-                if (values == null || values.size() != 1) {
-                  _log.log(Level.SEVERE, "{0} needs exactly on field value!",
-                    extraField);
-                  break;
-                }
+      return true;
+    } catch (IOException ex) {
+      _log.log(Level.INFO, "Failed to (re)index file: {0}", ex.getMessage());
+      return false;
+    }
+  }
+  
+  /**
+   * Indexes a context and adds its document to the database.
+   * 
+   * @param ctx_ context to index.
+   * @throws IOException 
+   */
+  protected void indexContext(Context ctx_) throws IOException {
+    if (ctx_.isAlias() && ctx_.extraFields == null) {
+      // The content and the tags are indexed with the canonical document.
+      insertDocumentToIndex(ctx_);
+      return;
+    }
+    
+    final Tags tags = generateTagsForContext(ctx_);
+    
+    if (ctx_.extraFields != null) {
+      Iterator<String> extraFieldIter = ctx_.extraFields.keySet().iterator();
+      
+      while (extraFieldIter.hasNext()) {
+        String extraField = extraFieldIter.next();
+        switch (extraField) {
+          case searchindexerConstants.FIELD_DEFINITIONS:
+            // Extra definitions
+            appendTagsFromFieldValues(extraField, ctx_, tags);
+            break;
+          case searchindexerConstants.FIELD_PARSE_STATUS: {
+            // Extra boot by parse status
+              long extraBoost = 0;
+              long origBoost = 1;
 
-                switch (values.get(0).value) {
-                  case searchindexerConstants.PSTATUS_PARSED:
-                  case searchindexerConstants.PSTATUS_PART_PARSED:
-                    extraBoost = 1;
-                    break;
-                  case searchindexerConstants.PSTATUS_NOT_PARSED:
-                    extraBoost = 0;
-                    break;
-                  default:
-                    _log.log(Level.SEVERE, "Bad field value {1} for {0}!",
-                      new Object[] { extraField, values.get(0).value });
-                    break;
-                }
+              final List<FieldValue> values =ctx_.extraFields.get(extraField);
+              if (values == null || values.size() != 1) {
+                _log.log(Level.SEVERE, "{0} needs exactly on field value!",
+                  extraField);
+                break;
+              }
 
-                if (extraBoost <= 0) {
+              switch (values.get(0).value) {
+                case searchindexerConstants.PSTATUS_PARSED:
+                case searchindexerConstants.PSTATUS_PART_PARSED:
+                  extraBoost = 1;
                   break;
-                }
-
-                IndexableField boostFld = ctx.document.getField(
-                  IndexFields.boostValue);
-                if (boostFld != null) {
-                  origBoost = boostFld.numericValue().longValue();
-                }
+                case searchindexerConstants.PSTATUS_NOT_PARSED:
+                  extraBoost = 0;
+                  break;
+                default:
+                  _log.log(Level.SEVERE, "Bad field value {1} for {0}!",
+                    new Object[] { extraField, values.get(0).value });
+                  break;
+              }
 
-                _log.log(Level.FINE, "Set boost from {0} to {1}.",
-                  new Object[] { origBoost, origBoost + extraBoost });
+              if (extraBoost <= 0) {
+                break;
+              }
 
-                ctx.document.removeFields(IndexFields.boostValue);
-                ctx.document.add(new NumericDocValuesField(
-                  IndexFields.boostValue, origBoost + extraBoost));
+              IndexableField boostFld = ctx_.document.getField(
+                IndexFields.boostValue);
+              if (boostFld != null) {
+                origBoost = boostFld.numericValue().longValue();
               }
-              break;
-            default:
-              _log.log(Level.WARNING, "Skipping filed: {0}", extraField);
-              break;
-          }
+
+              _log.log(Level.FINE, "Set boost from {0} to {1}.",
+                new Object[] { origBoost, origBoost + extraBoost });
+
+              ctx_.document.removeFields(IndexFields.boostValue);
+              ctx_.document.add(new NumericDocValuesField(
+                IndexFields.boostValue, origBoost + extraBoost));
+            }
+            break;
+          default:
+            _log.log(Level.WARNING, "Skipping filed: {0}", extraField);
+            break;
         }
       }
-      
-      replaceTagsInDocument(ctx.document, tags);
-      insertDocumentToIndex(ctx);
-      
-      return true;
-    } catch (IOException ex) {
-      _log.log(Level.INFO, "Failed to (re)index file: {0}", ex.getMessage());
-      return false;
     }
+    
+    replaceTagsInDocument(ctx_.document, tags);
+    insertDocumentToIndex(ctx_);
   }
   
   /**
-   * Loads a document by database id and sets its field with correct meta data.
-   * Actually it makes a copy from the original document.
-   * 
-   * NOTE: tags streams are not copied only the IndexFields.tagsField.
+   * Loads the stored fields of the documents of a file by database id: one
+   * document or the chunks of a large file (in document order).
    * 
    * @param reader_ an IndexReader.
    * @param fileId_ the file`s database id.
-   * @return a Document that looks like the original one (except the tag
-   *  streams).
-   * @throws IOException 
+   * @return the documents of the file.
+   * @throws IOException if the file is not found.
    */
-  static Document loadDocumentWithMetadata(IndexReader reader_,
-    String fileId_) throws IOException {
+  static List<Document> loadDocuments(IndexReader reader_, String fileId_)
+    throws IOException {
     final IndexSearcher searcher = new IndexSearcher(reader_);
     final TermQuery query = new TermQuery(new Term(IndexFields.fileDbIdField,
       fileId_));
-    final TopDocs docs = searcher.search(query, 1);
     
-    if (docs.scoreDocs.length != 1) {
+    final TotalHitCountCollector counter = new TotalHitCountCollector();
+    searcher.search(query, counter);
+    if (counter.getTotalHits() == 0) {
       throw new IOException("Document with id: '" + fileId_ + "' not found! ");
     }
     
-    final Document oldDoc = reader_.document(docs.scoreDocs[0].doc);
-    final File origFile = new File(oldDoc.get(IndexFields.filePathField));
-    final String origContent = oldDoc.get(IndexFields.contentField);
-    final String origContentMime = oldDoc.get(IndexFields.mimeTypeField);
-    final BytesRef origTagsBin = oldDoc.getBinaryValue(IndexFields.tagsField);
+    final ScoreDoc[] hits = searcher.search(query,
+      counter.getTotalHits()).scoreDocs;
+    Arrays.sort(hits, new Comparator<ScoreDoc>() {
+      @Override
+      public int compare(ScoreDoc a_, ScoreDoc b_) {
+        return Integer.compare(a_.doc, b_.doc);
+      }
+    });
     
-    final Document doc = createDocumentForFile(fileId_, origFile, origContent,
-      origContentMime);
+    final List<Document> docs = new ArrayList<>(hits.length);
+    for (ScoreDoc hit : hits) {
+      docs.add(reader_.document(hit.doc));
+    }
+    
+    return docs;
+  }
+  
+  /**
+   * Makes a copy of a loaded document (of a file, of a chunk of a file or of
+   * an alias) and sets its fields with correct meta data.
+   * 
+   * NOTE: tags streams are not copied only the IndexFields.tagsField.
+   * 
+   * @param oldDoc_ the stored fields of the document (see loadDocuments()).
+   * @return a Document that looks like the original one (except the tag
+   *  streams).
+   */
+  static Document copyDocumentWithMetadata(Document oldDoc_) {
+    final String fileId = oldDoc_.get(IndexFields.fileDbIdField);
+    final File origFile = new File(oldDoc_.get(IndexFields.filePathField));
+    final String origContentMime = oldDoc_.get(IndexFields.mimeTypeField);
+    final String origAliasOf = oldDoc_.get(IndexFields.aliasOfField);
+    final IndexableField origOrdinal = oldDoc_.getField(
+      IndexFields.chunkOrdinalField);
+    final BytesRef origTagsBin = oldDoc_.getBinaryValue(IndexFields.tagsField);
+    
+    final Document doc;
+    if (origAliasOf != null) {
+      doc = createAliasDocument(fileId, origFile, origContentMime,
+        origAliasOf);
+    } else if (origOrdinal != null) {
+      doc = createDocumentForChunk(fileId, origFile,
+        oldDoc_.get(IndexFields.contentField), origContentMime,
+        origOrdinal.numericValue().intValue(), oldDoc_.getField(
+          IndexFields.chunkBaseLineField).numericValue().intValue());
+    } else {
+      doc = createDocumentForFile(fileId, origFile,
+        oldDoc_.get(IndexFields.contentField), origContentMime);
+    }
     
     if (origTagsBin != null) {
       doc.add(new StoredField(IndexFields.tagsField, origTagsBin));
@@ -249,6 +331,101 @@ abstract public class AbstractIndexer {
     return doc;
   }
   
+  /**
+   * Creates the field of the line start offsets of a document, so the search
+   * service does not have to scan the content for the lines.
+   * 
+   * @param lineInfos_ line informations of the content.
+   * @return a new doc values field.
+   */
+  static BinaryDocValuesField createLineStartsField(
+    LineInformations lineInfos_) {
+    return new BinaryDocValuesField(IndexFields.lineStartsField,
+      lineInfos_.encodeLineStarts());
+  }
+  
+  /**
+   * Creates the field of the content compressed in line blocks, so the search
+   * service can read the matching lines without loading the whole content.
+   * 
+   * @param content_ the content.
+   * @param lineInfos_ line informations of the content.
+   * @return a new doc values field.
+   */
+  static BinaryDocValuesField createContentBlocksField(String content_,
+    LineInformations lineInfos_) {
+    return new BinaryDocValuesField(IndexFields.contentBlocksField,
+      LineBlocks.encode(content_, lineInfos_));
+  }
+  
+  /**
+   * Creates a document for a chunk of a given file and sets its common fields.
+   * Every chunk of a file has the same file id.
+   * 
+   * @param fileId_ file database id.
+   * @param file_file object for file path.
+   * @param chunkContent_ chunk content as string.
+   * @param fileMimeType_ file content mime type.
+   * @param chunkOrdinal_ the ordinal of the chunk.
+   * @param baseLine_ number of file lines before the first line of the chunk.
+   * @return a new document.
+   */
+  static Document createDocumentForChunk(String fileId_, File file_,
+    String chunkContent_, String fileMimeType_, int chunkOrdinal_,
+    int baseLine_) {
+    final Document doc = createDocumentForFile(fileId_, file_, chunkContent_,
+      fileMimeType_);
+    
+    if (chunkOrdinal_ > 0) {
+      // Only the first chunk stores the file name (for suggestions).
+      doc.removeFields(IndexFields.fileNameField);
+      doc.add(new StringField(IndexFields.fileNameField,
+        file_.getName().toLowerCase(), Field.Store.NO));
+    }
+    
+    doc.add(new StoredField(IndexFields.chunkOrdinalField, chunkOrdinal_));
+    doc.add(new StoredField(IndexFields.chunkBaseLineField, baseLine_));
+    
+    return doc;
+  }
+  
+  /**
+   * Creates a lightweight document for a file which has the same content as
+   * an other (canonical) file. It has the path fields for filtering and a
+   * reference to the canonical document, but no content and tags.
+   * 
+   * @param fileId_ file database id.
+   * @param file_file object for file path.
+   * @param fileMimeType_ file content mime type.
+   * @param canonicalFileId_ database id of the canonical file.
+   * @return a new document.
+   */
+  static Document createAliasDocument(String fileId_, File file_,
+    String fileMimeType_, String canonicalFileId_) {
+    Document doc = new Document();
+    
+    // File path
+    doc.add(new TextField(IndexFields.filePathField, file_.getAbsolutePath(),
+      Field.Store.YES));
+    // File name
+    doc.add(new StringField(IndexFields.fileNameField,
+      file_.getName().toLowerCase(), Field.Store.YES));
+    // Directory path
+    doc.add(new StringField(IndexFields.fileDirPathField,
+      file_.getParentFile().getAbsolutePath().toLowerCase(), Field.Store.NO));
+    // File id
+    doc.add(new StringField(IndexFields.fileDbIdField, fileId_,
+      Field.Store.YES));
+    // Mime type
+    doc.add(new StringField(IndexFields.mimeTypeField, fileMimeType_,
+      Field.Store.YES));
+    // Canonical file id
+    doc.add(new StringField(IndexFields.aliasOfField, canonicalFileId_,
+      Field.Store.YES));
+    
+    return doc;
+  }
+  
   /**
    * @param fileMimeType_ a file mime-type.
    * @return ture if the file is a source file by its mime-type, false
@@ -282,16 +459,21 @@ abstract public class AbstractIndexer {
   
   /**
    * Generates tags for the given document or loads a previous version if it
-   * exists.
+   * exists. Chunks of a file and aliases get an empty tag container (the
+   * chunks are tagged by ChunkedFileIndexer).
    * 
    * @param context_ indexer context.
    * @return a tags container.
    * @throws IOException 
    */
-  private static Tags generateTagsForContext(Context context_)
+  protected Tags generateTagsForContext(Context context_)
     throws IOException {
     BytesRef tagsBin = context_.document.getBinaryValue(IndexFields.tagsField);
-    if (tagsBin == null) {
+    if (tagsBin == null && (context_.isChunk() || context_.isAlias())) {
+      // ctags works on the whole file, so a chunk can not be tagged alone.
+      // The tags of an alias are indexed with its canonical file.
+      return new Tags();
+    } else if (tagsBin == null) {
       TagGenerator generator = TagGeneratorManager.get().getGenerator();
       try {
         Tags tags = new Tags();
@@ -312,7 +494,9 @@ abstract public class AbstractIndexer {
   }
   
   /**
-   * Adds tags the from user provided extra field map (if any).
+   * Adds tags the from user provided extra field map (if any). The field
+   * values have file line numbers, so a chunk of a file gets only the tags of
+   * its lines.
    * 
    * @param field a document field.
    * @param context_ indexer context.
@@ -329,19 +513,32 @@ abstract public class AbstractIndexer {
       return;
     }
     
+    if (context_.lineInfos == null) {
+      _log.log(Level.FINE, "No content for the tags of {0}, skipping them.",
+        context_.getFileFullPath());
+      return;
+    }
+    
     for (FieldValue value : values) {
       try {
-        // Only single line tags supported
+        // The values are shared by the chunks of a file, so they are not
+        // modified.
+        final int line = (int) value.location.startLine - context_.baseLine;
+        if (context_.isChunk() &&
+          (line < 1 || line > context_.lineInfos.getLineCount())) {
+          // The tag is in an other chunk.
+          continue;
+        }
+        
+        int endColumn = (int) value.location.endColumn;
         if (value.location.startLine != value.location.endLine) {
           // Only single line names are supported
-          value.location.endLine = value.location.startLine;
-          value.location.endColumn = context_.lineInfos.getLineContent(
-            (int) value.location.startLine).length() + 1; 
+          endColumn = context_.lineInfos.getLineContent(line).length() + 1; 
         }
 
         // Workaround for bad "end-of-line" position
-        value.location.startColumn = Math.min(value.location.startColumn,
-          value.location.endColumn);
+        final int startColumn = Math.min((int) value.location.startColumn,
+          endColumn);
 
         Tag.Kind kind;
         try {
@@ -355,10 +552,7 @@ abstract public class AbstractIndexer {
         try {
           // I assume that we got a location with exclusive end (as it is in
           // the thrift API documentation), so let`s convert it to inclusive.
-          loc = new Location(
-            (int) value.location.startLine,
-            (int) value.location.startColumn,
-            (int) value.location.endColumn - 1);
+          loc = new Location(line, startColumn, endColumn - 1);
         } catch (IllegalArgumentException ex) {
           _log.log(Level.FINE, "Skipping tag: ''{0}'' due to its wrong " +
             "location: {1}", new Object[]{value.value,
@@ -0,0 +1,300 @@
+package cc.search.indexer;
+
+import cc.search.analysis.tags.TagGenerator;
+import cc.search.analysis.tags.TagGeneratorManager;
+import cc.search.analysis.tags.Tags;
+import cc.search.analysis.tags.UnlocatedTags;
+import cc.search.common.IndexFields;
+import cc.search.indexer.util.IOHelper;
+import cc.search.indexer.util.MimeTypeDetector;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.Term;
+
+/**
+ * Class for indexing a large file as overlapping line-window sub-documents
+ * (chunks). Every chunk has the same file id, and stores its ordinal and the
+ * number of file lines before its first line, so the search service can
+ * translate the chunk relative line numbers. Only one chunk is in the memory
+ * at once, whatever the file size.
+ *
+ * The file is tagged once before the chunks are read (ctags works on the
+ * whole file), and every chunk gets the tags of its lines.
+ */
+public class ChunkedFileIndexer extends AbstractIndexer {
+  /**
+   * Logger.
+   */
+  private static final Logger _log  = Logger.getLogger(ChunkedFileIndexer.class
+    .getName());
+  /**
+   * Files larger than this (in bytes) are indexed in chunks.
+   */
+  public static final long CHUNKING_THRESHOLD = 1024 * 1024;
+  /**
+   * Maximal number of lines in a chunk.
+   */
+  private static final int MAX_CHUNK_LINES = 10000;
+  /**
+   * Maximal number of characters in a chunk. Longer lines are truncated.
+   */
+  private static final int MAX_CHUNK_CHARS = 1024 * 1024;
+  /**
+   * Number of lines repeated from the end of the previous chunk.
+   */
+  private static final int OVERLAP_LINES = 10;
+  /**
+   * Maximal number of characters repeated from the previous chunk.
+   */
+  private static final int MAX_OVERLAP_CHARS = 64 * 1024;
+  /**
+   * File path to index.
+   */
+  private final String _filePath;
+  /**
+   * The database id of the file.
+   */
+  private final String _fileId;
+  /**
+   * The mime type of the file.
+   */
+  private final String _fileMimeType;
+  /**
+   * Lines of the current chunk (the overlap from the previous chunk first).
+   */
+  private final List<String> _lines = new ArrayList<>();
+  /**
+   * Line builder for reading.
+   */
+  private final StringBuilder _lineBuilder = new StringBuilder(2000);
+  /**
+   * The file to index (valid during index()).
+   */
+  private File _file;
+  /**
+   * The detected mime type (valid during index()).
+   */
+  private String _mimeType;
+  /**
+   * The tags of the whole file (valid during index()).
+   */
+  private UnlocatedTags _unlocatedTags;
+  /**
+   * Content reader (valid during index()).
+   */
+  private Reader _reader;
+  /**
+   * True if the reader reached the end of the file.
+   */
+  private boolean _eof = false;
+  /**
+   * Ordinal of the next chunk.
+   */
+  private int _nextOrdinal = 0;
+  /**
+   * Number of file lines before the first line in _lines.
+   */
+  private int _baseLine = 0;
+
+  /**
+   * @param file_ file to index
+   * @param fileId_ database id of the file
+   * @param mimeType_ mime type of the file.
+   * @param indexWriter_ index database
+   */
+  public ChunkedFileIndexer(String file_, String fileId_, String mimeType_,
+    IndexWriter indexWriter_) {
+    super(indexWriter_);
+
+    _filePath = file_;
+    _fileId = fileId_;
+    _fileMimeType = mimeType_;
+  }
+
+  /**
+   * Indexes all chunks of the file.
+   *
+   * @return true on success, false on fail.
+   */
+  @Override
+  public boolean index() {
+    _file = new File(_filePath);
+    if (!_file.canRead() || !_file.isFile()) {
+      _log.log(Level.SEVERE, "Couldn''t read {0}! Skipping!", _filePath);
+      return false;
+    }
+
+    try {
+      _mimeType = FileIndexer.resolveMimeType(_file, _fileMimeType,
+        IOHelper.readHead(_file, MimeTypeDetector.HEAD_SIZE));
+
+      if (_indexWriter.getConfig().getOpenMode() != OpenMode.CREATE) {
+        // Drop the old version (maybe with a different chunk count)
+        _indexWriter.deleteDocuments(new Term(IndexFields.fileDbIdField,
+          _fileId));
+      }
+
+      _unlocatedTags = generateTags();
+
+      try (Reader reader = IOHelper.openReader(_file)) {
+        _reader = reader;
+
+        Context ctx = createContext();
+        while (ctx != null) {
+          indexContext(ctx);
+          ctx = createContext();
+        }
+      } finally {
+        _reader = null;
+        _unlocatedTags = null;
+      }
+
+      _log.log(Level.FINE, "Indexed {0} in {1} chunk(s).",
+        new Object[] { _filePath, _nextOrdinal });
+      return true;
+    } catch (IOException ex) {
+      _log.log(Level.INFO, "Failed to index file in chunks: {0}",
+        ex.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Reads the next chunk of the file. Must be called only from index().
+   *
+   * @return the context of the next chunk or null if there is no more.
+   * @throws IOException
+   */
+  @Override
+  public Context createContext() throws IOException {
+    int chars = 0;
+    for (final String line : _lines) {
+      chars += line.length() + 1;
+    }
+
+    int newLines = 0;
+    while (newLines == 0 ||
+      (_lines.size() < MAX_CHUNK_LINES && chars < MAX_CHUNK_CHARS)) {
+      final String line = readLine();
+      if (line == null) {
+        break;
+      }
+
+      _lines.add(line);
+      chars += line.length() + 1;
+      ++newLines;
+    }
+
+    if (newLines == 0) {
+      return null;
+    }
+
+    final StringBuilder content = new StringBuilder(chars);
+    for (final String line : _lines) {
+      content.append(line).append('\n');
+    }
+
+    final Context ctx = new Context(_fileId, _file, content.toString(),
+      _mimeType, _nextOrdinal++, _baseLine);
+
+    // Keep the last lines for the next chunk
+    int overlap = 0;
+    int overlapChars = 0;
+    while (overlap < OVERLAP_LINES && overlap < newLines) {
+      overlapChars += _lines.get(_lines.size() - overlap - 1).length() + 1;
+      if (overlapChars > MAX_OVERLAP_CHARS) {
+        break;
+      }
+      ++overlap;
+    }
+
+    _baseLine += _lines.size() - overlap;
+    _lines.subList(0, _lines.size() - overlap).clear();
+
+    return ctx;
+  }
+
+  /**
+   * Tags the whole file. A file which can not be tagged is indexed without
+   * tags.
+   *
+   * @return the tags of the file.
+   * @throws IOException
+   */
+  private UnlocatedTags generateTags() throws IOException {
+    final UnlocatedTags tags = new UnlocatedTags();
+
+    TagGenerator generator = TagGeneratorManager.get().getGenerator();
+    try {
+      generator.generate(tags, _filePath);
+    } catch (IOException ex) {
+      _log.log(Level.WARNING, "Failed to tag {0}, its chunks have no tags: " +
+        "{1}", new Object[] { _filePath, ex.getMessage() });
+    } finally {
+      TagGeneratorManager.get().releaseGenerator(generator);
+    }
+
+    return tags;
+  }
+
+  @Override
+  protected Tags generateTagsForContext(Context context_) throws IOException {
+    final Tags tags = new Tags();
+    if (_unlocatedTags != null) {
+      // A chunk gets the tags of its lines only.
+      _unlocatedTags.locate(tags, context_);
+    }
+
+    return tags;
+  }
+
+  /**
+   * Reads a line (without the line end) from the file. Only the '\n'
+   * character is a line end (like in LineInformations).
+   *
+   * @return the next line or null on EOF.
+   * @throws IOException
+   */
+  private String readLine() throws IOException {
+    if (_eof) {
+      return null;
+    }
+
+    _lineBuilder.setLength(0);
+
+    boolean truncated = false;
+    while (true) {
+      final int ch = _reader.read();
+      if (ch == -1) {
+        _eof = true;
+        if (_lineBuilder.length() == 0 && !truncated) {
+          return null;
+        }
+        break;
+      } else if (ch == '\n') {
+        break;
+      } else if (_lineBuilder.length() < MAX_CHUNK_CHARS) {
+        _lineBuilder.append((char) ch);
+      } else if (!truncated) {
+        truncated = true;
+        _log.log(Level.WARNING, "Truncating a too long line in {0}",
+          _filePath);
+      }
+    }
+
+    return _lineBuilder.toString();
+  }
+
+  @Override
+  protected void insertDocumentToIndex(Context context_) throws IOException {
+    // The old chunks are already deleted in index()
+    _indexWriter.addDocument(context_.document);
+  }
+}
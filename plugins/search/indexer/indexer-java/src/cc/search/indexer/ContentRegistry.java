@@ -0,0 +1,65 @@
+package cc.search.indexer;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A thread safe registry of indexed file contents for detecting files with
+ * identical content. The first file with a given content is the canonical
+ * one, the others are indexed as aliases of it.
+ */
+public final class ContentRegistry {
+  /**
+   * Content hash -> canonical file id map.
+   */
+  private final ConcurrentMap<ByteBuffer, String> _canonicalIds =
+    new ConcurrentHashMap<>();
+  
+  /**
+   * Returns the canonical file of a content.
+   * 
+   * @param contentHash_ hash of a file content (see hash()).
+   * @return the id of the canonical file with this content or null if no
+   *  file with this content is indexed yet.
+   */
+  public String getCanonicalId(byte[] contentHash_) {
+    return _canonicalIds.get(ByteBuffer.wrap(contentHash_));
+  }
+  
+  /**
+   * Registers an indexed file as the canonical file of its content (if it has
+   * none yet). It must be called only after the document of the file is added
+   * to the index, so an alias never refers to a missing document. Two files
+   * with the same content which are indexed at the same time can both be
+   * canonical files.
+   * 
+   * @param fileId_ file database id.
+   * @param contentHash_ hash of the file content (see hash()).
+   */
+  public void register(String fileId_, byte[] contentHash_) {
+    _canonicalIds.putIfAbsent(ByteBuffer.wrap(contentHash_), fileId_);
+  }
+  
+  /**
+   * @return number of distinct contents.
+   */
+  public int size() {
+    return _canonicalIds.size();
+  }
+  
+  /**
+   * @param content_ raw file content.
+   * @return SHA-1 hash of the content.
+   */
+  public static byte[] hash(byte[] content_) {
+    try {
+      return MessageDigest.getInstance("SHA-1").digest(content_);
+    } catch (NoSuchAlgorithmException ex) {
+      // impossible: every Java platform supports SHA-1
+      throw new AssertionError(ex);
+    }
+  }
+}
@@ -5,15 +5,13 @@ import cc.search.analysis.LineInformations;
 import cc.search.common.IndexFields;
 import cc.search.indexer.util.IOHelper;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
 import java.util.List;
 import java.util.Map;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
 
 /**
  * Analysis context.
@@ -31,6 +29,20 @@ public final class Context {
    * Line informations.
    */
   public final LineInformations lineInfos;
+  /**
+   * The ordinal of the chunk if the file is indexed in chunks, -1 otherwise.
+   */
+  public final int chunkOrdinal;
+  /**
+   * Number of file lines before the first line of the chunk (0 if the file is
+   * not indexed in chunks). The lines of lineInfos are relative to this.
+   */
+  public final int baseLine;
+  /**
+   * The file id of the canonical document if this is an alias of a file with
+   * the same content, null otherwise.
+   */
+  public final String aliasOf;
   
   /**
    * @return file db id.
@@ -47,45 +59,133 @@ public final class Context {
   }
   
   /**
-   * Builds a context by reading the given file.
+   * Builds a context from the already read content of the given file.
    * 
-   * @param file_ file.
    * @param fileId_ file database id.
+   * @param file_ file.
+   * @param rawContent_ the raw content of the file.
    * @param fileMimeType_  mime type.
-   * @throws FileNotFoundException
    * @throws IOException 
    */
-  public Context(String fileId_, File file_, String fileMimeType_)
-    throws FileNotFoundException, IOException {
-    // Read content from a file stream
-    try (FileInputStream stream = new FileInputStream(file_)) {
-      String fileContent = IOHelper.readFullContent(
-        IOHelper.getReaderForInput(stream));
+  public Context(String fileId_, File file_, byte[] rawContent_,
+    String fileMimeType_) throws IOException {
+    String fileContent = IOHelper.decodeContent(rawContent_);
+    chunkOrdinal = -1;
+    baseLine = 0;
+    aliasOf = null;
+    
+    // Get line informations
+    try (Reader reader = new StringReader(fileContent)) {
+      lineInfos = LineInformations.fromReader(reader);
       
-      // Get line informations
-      try (Reader reader = new StringReader(fileContent)) {
-        lineInfos = LineInformations.fromReader(reader);
-        
-        document = AbstractIndexer.createDocumentForFile(fileId_, file_,
-          fileContent, fileMimeType_);
-      }
+      document = AbstractIndexer.createDocumentForFile(fileId_, file_,
+        fileContent, fileMimeType_);
+      document.add(AbstractIndexer.createLineStartsField(lineInfos));
+      document.add(AbstractIndexer.createContentBlocksField(fileContent,
+        lineInfos));
     }
   }
   
   /**
-   * Opens an existing document for update.
+   * Builds a context for a chunk (a window of lines) of a large file.
    * 
-   * @param reader_ an index reader.
-   * @param fileId_ a file id.
+   * @param fileId_ file database id.
+   * @param file_ file.
+   * @param chunkContent_ the content of the chunk.
+   * @param fileMimeType_ mime type.
+   * @param chunkOrdinal_ the ordinal of the chunk (starting from 0).
+   * @param baseLine_ number of file lines before the first line of the chunk.
    * @throws IOException 
    */
-  public Context(IndexReader reader_, String fileId_) throws IOException {
-    document = AbstractIndexer.loadDocumentWithMetadata(reader_, fileId_);
+  public Context(String fileId_, File file_, String chunkContent_,
+    String fileMimeType_, int chunkOrdinal_, int baseLine_)
+    throws IOException {
+    chunkOrdinal = chunkOrdinal_;
+    baseLine = baseLine_;
+    aliasOf = null;
+    
+    // Get line informations (relative to the chunk)
+    try (Reader reader = new StringReader(chunkContent_)) {
+      lineInfos = LineInformations.fromReader(reader);
+      
+      document = AbstractIndexer.createDocumentForChunk(fileId_, file_,
+        chunkContent_, fileMimeType_, chunkOrdinal_, baseLine_);
+      document.add(AbstractIndexer.createLineStartsField(lineInfos));
+      document.add(AbstractIndexer.createContentBlocksField(chunkContent_,
+        lineInfos));
+    }
+  }
+  
+  /**
+   * @return true if this context is a chunk of a file.
+   */
+  public boolean isChunk() {
+    return chunkOrdinal >= 0;
+  }
+  
+  /**
+   * Builds a context for a file which has the same content as an already
+   * indexed (canonical) file. The document of an alias has no content.
+   * 
+   * @param fileId_ file database id.
+   * @param file_ file.
+   * @param fileMimeType_ mime type.
+   * @param canonicalFileId_ the database id of the canonical file.
+   */
+  public Context(String fileId_, File file_, String fileMimeType_,
+    String canonicalFileId_) {
+    chunkOrdinal = -1;
+    baseLine = 0;
+    aliasOf = canonicalFileId_;
+    lineInfos = null;
+    document = AbstractIndexer.createAliasDocument(fileId_, file_,
+      fileMimeType_, canonicalFileId_);
+  }
+  
+  /**
+   * @return true if this context is an alias of an other file.
+   */
+  public boolean isAlias() {
+    return aliasOf != null;
+  }
+  
+  /**
+   * Opens an existing document (of a file, of a chunk of a file or of an
+   * alias) for update.
+   * 
+   * @param oldDoc_ the stored fields of the document (see
+   *  AbstractIndexer.loadDocuments()).
+   * @param canonicalLineInfos_ line informations of the canonical content if
+   *  the document is an alias (can be null).
+   * @throws IOException 
+   */
+  public Context(Document oldDoc_, LineInformations canonicalLineInfos_)
+    throws IOException {
+    document = AbstractIndexer.copyDocumentWithMetadata(oldDoc_);
+    aliasOf = document.get(IndexFields.aliasOfField);
+    
+    final IndexableField ordinalField = document.getField(
+      IndexFields.chunkOrdinalField);
+    chunkOrdinal = ordinalField == null ? -1 :
+      ordinalField.numericValue().intValue();
+    final IndexableField baseLineField = document.getField(
+      IndexFields.chunkBaseLineField);
+    baseLine = baseLineField == null ? 0 :
+      baseLineField.numericValue().intValue();
+    
+    if (aliasOf != null) {
+      // The alias has the same lines as its canonical file.
+      lineInfos = canonicalLineInfos_;
+      return;
+    }
     
     // Get line informations
-    try (Reader reader = new StringReader(document.get(
-      IndexFields.contentField))) {
+    final String content = document.get(IndexFields.contentField);
+    try (Reader reader = new StringReader(content)) {
       lineInfos = LineInformations.fromReader(reader);
     }
+    document.add(AbstractIndexer.createLineStartsField(lineInfos));
+    document.add(AbstractIndexer.createContentBlocksField(content,
+      lineInfos));
   }
 }
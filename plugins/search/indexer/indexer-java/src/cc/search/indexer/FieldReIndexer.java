@@ -1,18 +1,36 @@
 package cc.search.indexer;
 
 import cc.parser.search.FieldValue;
+import cc.search.analysis.LineInformations;
+import cc.search.common.IndexFields;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
 
 /**
  * Indexer implementation for field re-indexing (see {@link
  *  cc.search.indexer.app.Indexer#addFieldValues(java.lang.String,
  *  java.util.Map)}).
+ *
+ * The field values of a file indexed in chunks are added to every chunk (a
+ * tag only to the chunks of its line). The field values of an alias are
+ * stored in the alias document: its tags are located in the content of its
+ * canonical file.
  */
 public class FieldReIndexer extends AbstractIndexer {
+  /**
+   * Logger.
+   */
+  private static final Logger _log  = Logger.getLogger(FieldReIndexer.class
+    .getName());
   /**
    * File database id.
    */
@@ -25,9 +43,9 @@ public class FieldReIndexer extends AbstractIndexer {
    * An IndexReader.
    */
   private final IndexReader _indexReader;
-  
+
   /**
-   * 
+   *
    * @param fileId_ Value for {@link FieldReIndexer#_fileId}.
    * @param fieldValues_ Value for {@link FieldReIndexer#_fieldValues}.
    * @param indexWriter_ See {@link
@@ -37,19 +55,116 @@ public class FieldReIndexer extends AbstractIndexer {
    */
   public FieldReIndexer(String fileId_, Map<String, List<FieldValue>>
     fieldValues_, IndexWriter indexWriter_, IndexReader indexReader_) {
-    
+
     super(indexWriter_);
-    
+
     _fileId = fileId_;
     _fieldValues = fieldValues_;
     _indexReader = indexReader_;
   }
-  
+
+  /**
+   * Re-indexes every document of the file.
+   *
+   * @return true on success, false on fail.
+   */
+  @Override
+  public boolean index() {
+    try {
+      final List<Document> oldDocs = loadDocuments(_indexReader, _fileId);
+      final LineInformations canonicalLineInfos =
+        loadCanonicalLineInfos(oldDocs.get(0));
+
+      if (oldDocs.get(0).getField(IndexFields.chunkOrdinalField) != null) {
+        // The chunks are replaced at once (see insertDocumentToIndex()).
+        _indexWriter.deleteDocuments(new Term(IndexFields.fileDbIdField,
+          _fileId));
+      }
+
+      for (Document oldDoc : oldDocs) {
+        indexContext(createContext(oldDoc, canonicalLineInfos));
+      }
+
+      return true;
+    } catch (IOException ex) {
+      _log.log(Level.INFO, "Failed to (re)index file: {0}", ex.getMessage());
+      return false;
+    }
+  }
+
   @Override
   public Context createContext() throws IOException {
-    Context ctx = new Context(_indexReader, _fileId);
+    final List<Document> oldDocs = loadDocuments(_indexReader, _fileId);
+    if (oldDocs.size() != 1) {
+      throw new IOException("Document with id: '" + _fileId + "' is " +
+        "indexed in chunks, use index() for it!");
+    }
+
+    return createContext(oldDocs.get(0),
+      loadCanonicalLineInfos(oldDocs.get(0)));
+  }
+
+  /**
+   * Creates the update context of a document of the file.
+   *
+   * @param oldDoc_ the stored fields of the document.
+   * @param canonicalLineInfos_ line informations of the canonical file if the
+   *  file is an alias (can be null).
+   * @return the context.
+   * @throws IOException
+   */
+  private Context createContext(Document oldDoc_,
+    LineInformations canonicalLineInfos_) throws IOException {
+    final Context ctx = new Context(oldDoc_, canonicalLineInfos_);
     ctx.extraFields = _fieldValues;
-    
+
     return ctx;
   }
+
+  /**
+   * Loads the line informations of the canonical file of an alias.
+   *
+   * @param oldDoc_ the stored fields of a document of the file.
+   * @return the line informations or null if the document is not an alias
+   *  (or its canonical file is not found).
+   * @throws IOException
+   */
+  private LineInformations loadCanonicalLineInfos(Document oldDoc_)
+    throws IOException {
+    final String canonicalId = oldDoc_.get(IndexFields.aliasOfField);
+    if (canonicalId == null) {
+      return null;
+    }
+
+    final List<Document> canonicalDocs;
+    try {
+      canonicalDocs = loadDocuments(_indexReader, canonicalId);
+    } catch (IOException ex) {
+      _log.log(Level.FINE, "The canonical file of {0} is not found: {1}",
+        new Object[] { _fileId, ex.getMessage() });
+      return null;
+    }
+
+    // Only a file which is not indexed in chunks can be canonical.
+    final String content = canonicalDocs.get(0).get(IndexFields.contentField);
+    if (canonicalDocs.size() != 1 || content == null) {
+      return null;
+    }
+
+    try (Reader reader = new StringReader(content)) {
+      return LineInformations.fromReader(reader);
+    }
+  }
+
+  @Override
+  protected void insertDocumentToIndex(Context context_) throws IOException {
+    if (context_.isChunk()) {
+      // The old chunks are already deleted in index()
+      _indexWriter.addDocument(context_.document);
+    } else {
+      // The old version is replaced in any open mode.
+      _indexWriter.updateDocument(new Term(IndexFields.fileDbIdField,
+        _fileId), context_.document);
+    }
+  }
 }
@@ -1,10 +1,11 @@
 package cc.search.indexer;
 
-import com.j256.simplemagic.ContentInfo;
-import com.j256.simplemagic.ContentInfoUtil;
+import cc.search.indexer.util.IOHelper;
+import cc.search.indexer.util.MimeTypeDetector;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.NoSuchFileException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.lucene.index.IndexWriter;
@@ -30,7 +31,15 @@ public class FileIndexer extends AbstractIndexer {
    * The mime type of the file.
    */
   private final String _fileMimeType;
-  
+  /**
+   * Registry of the already indexed contents or null if deduplication is
+   * disabled.
+   */
+  private final ContentRegistry _contentRegistry;
+  /**
+   * Content hash of the file (if it is registered after indexing).
+   */
+  private byte[] _contentHash;
 
   /**
    * @param file_ file to index
@@ -40,11 +49,24 @@ public class FileIndexer extends AbstractIndexer {
    */
   public FileIndexer(String file_, String fileId_, String mimeType_,
     IndexWriter indexWriter_) {
+    this(file_, fileId_, mimeType_, indexWriter_, null);
+  }
+  
+  /**
+   * @param file_ file to index
+   * @param fileId_ database id of the file
+   * @param mimeType_ mime type of the file.
+   * @param indexWriter_ index database
+   * @param contentRegistry_ registry for content deduplication (can be null).
+   */
+  public FileIndexer(String file_, String fileId_, String mimeType_,
+    IndexWriter indexWriter_, ContentRegistry contentRegistry_) {
     super(indexWriter_);
     
     _filePath = file_;
     _fileId = fileId_;
     _fileMimeType = mimeType_;
+    _contentRegistry = contentRegistry_;
   }
   
   @Override
@@ -57,18 +79,22 @@ public class FileIndexer extends AbstractIndexer {
 
     if (file.isFile()) {
       try {
-        String mimeType = _fileMimeType;
-        if (mimeType.equals("text/plain")) {
-          String fileType = tryDetectMimeType(new File(_filePath));
-          if (fileType != null && !fileType.equals(mimeType)) {
-            mimeType = fileType;
-            _log.log(Level.FINER, "Got a better file type for {0}: {1}",
-                new Object[]{_filePath, fileType});
+        final byte[] content = IOHelper.readFullContent(file);
+        final String mimeType = resolveMimeType(file, _fileMimeType, content);
+        
+        if (_contentRegistry != null) {
+          _contentHash = ContentRegistry.hash(content);
+          final String canonicalId = _contentRegistry.getCanonicalId(
+            _contentHash);
+          if (canonicalId != null && !canonicalId.equals(_fileId)) {
+            _log.log(Level.FINEST, "{0} has the same content as {1}.",
+              new Object[] { file.getPath(), canonicalId });
+            return new Context(_fileId, file, mimeType, canonicalId);
           }
         }
         
-        return new Context(_fileId, file, mimeType);
-      } catch (FileNotFoundException e) {
+        return new Context(_fileId, file, content, mimeType);
+      } catch (FileNotFoundException | NoSuchFileException e) {
         _log.log(Level.SEVERE, "File not found: {0}! Skipping!",file.getPath());
         return null;
       } catch (IOException e) {
@@ -82,33 +108,37 @@ public class FileIndexer extends AbstractIndexer {
     }
   }
   
+  @Override
+  protected void indexContext(Context ctx_) throws IOException {
+    super.indexContext(ctx_);
+    
+    if (_contentHash != null && !ctx_.isAlias()) {
+      // The document is added, so it can be the canonical one of aliases.
+      _contentRegistry.register(_fileId, _contentHash);
+    }
+  }
+  
   /**
-   * Tries to detect the mime-type of a given file.
-   * 
-   * NOTE:
-   * First I tried Files.probeContentType(Path) but it causes a SEGFAULT on some
-   * machines in the JVM.
+   * Tries to give a better mime-type for a file than text/plain.
    * 
    * @param file_ a file.
-   * @return a mime type or null failure.
+   * @param mimeType_ the mime-type given by the caller.
+   * @param head_ the head (or the full content) of the file.
+   * @return the detected or the original mime-type.
    */
-  private static String tryDetectMimeType(File file_) {
-    try {
-      final ContentInfoUtil util = new ContentInfoUtil();
-      
-      ContentInfo cinfo = util.findMatch(file_);
-      if (cinfo == null) {
-        cinfo = ContentInfoUtil.findExtensionMatch(file_.getName());
-      }
-      
-      if (cinfo != null) {
-        return cinfo.getMimeType();
-      }
-    } catch (IllegalStateException | IOException ex) {
-      _log.log(Level.WARNING, "Something bad happened during the mime-type " +
-        "detection!", ex);
+  static String resolveMimeType(File file_, String mimeType_, byte[] head_) {
+    if (!mimeType_.equals("text/plain")) {
+      return mimeType_;
+    }
+    
+    final String fileType = MimeTypeDetector.get().detect(file_.getName(),
+      head_);
+    if (fileType != null && !fileType.equals(mimeType_)) {
+      _log.log(Level.FINER, "Got a better file type for {0}: {1}",
+          new Object[]{file_.getPath(), fileType});
+      return fileType;
     }
     
-    return null;
+    return mimeType_;
   }
 }
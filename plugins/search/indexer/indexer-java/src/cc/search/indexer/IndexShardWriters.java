@@ -0,0 +1,222 @@
+package cc.search.indexer;
+
+import cc.search.analysis.SourceAnalyzer;
+import cc.search.common.IndexFields;
+import cc.search.common.IndexShards;
+import cc.search.common.config.CommonOptions;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+
+/**
+ * Independent index writers for the shards of an index (see IndexShards).
+ * The files are distributed by their ids, so the shards can flush and merge
+ * in parallel. At the end the shards can be merged into the main index or
+ * kept as they are (the search service opens them as one MultiReader).
+ */
+public final class IndexShardWriters implements AutoCloseable {
+  /**
+   * Logger.
+   */
+  private static final Logger _log = Logger.getLogger(
+    IndexShardWriters.class.getName());
+  /**
+   * Number of deleted terms in a batch.
+   */
+  private static final int DELETE_BATCH_SIZE = 1024;
+  /**
+   * The index directory.
+   */
+  private final File _indexDir;
+  /**
+   * Shard directories.
+   */
+  private final List<Directory> _dirs = new ArrayList<>();
+  /**
+   * Shard writers.
+   */
+  private final List<IndexWriter> _writers = new ArrayList<>();
+  /**
+   * True if the writers are closed.
+   */
+  private boolean _closed = false;
+
+  /**
+   * Creates new (empty) shards. The old shards are deleted.
+   *
+   * @param options_ program options (index path and locking).
+   * @param shardCount_ number of shards.
+   * @param ramBufferSizeMB_ RAM buffer size of all shards together.
+   * @throws IOException
+   */
+  public IndexShardWriters(CommonOptions options_, int shardCount_,
+    double ramBufferSizeMB_) throws IOException {
+    _indexDir = new File(options_.indexDirPath);
+    deleteShardDirs(_indexDir);
+
+    try {
+      for (int i = 0; i < shardCount_; ++i) {
+        final Directory dir = FSDirectory.open(
+          IndexShards.getShardDir(_indexDir, i), options_.createLockFactory());
+        _dirs.add(dir);
+
+        final IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_4_9,
+          new SourceAnalyzer());
+        iwc.setRAMBufferSizeMB(ramBufferSizeMB_ / shardCount_);
+        iwc.setOpenMode(OpenMode.CREATE);
+        _writers.add(new IndexWriter(dir, iwc));
+      }
+    } catch (IOException ex) {
+      close();
+      throw ex;
+    }
+  }
+
+  /**
+   * @param fileId_ a file id.
+   * @return the writer of the shard of the file.
+   */
+  public IndexWriter getWriter(String fileId_) {
+    return _writers.get(IndexShards.getShardOf(fileId_, _writers.size()));
+  }
+
+  /**
+   * @return all shard writers.
+   */
+  public List<IndexWriter> getWriters() {
+    return Collections.unmodifiableList(_writers);
+  }
+
+  /**
+   * Closes the shard writers, adds the shards to the main index and deletes
+   * the shard directories.
+   *
+   * @param target_ writer of the main index.
+   * @param replaceOld_ if true, the older versions of the files in the
+   *  shards are deleted from the main index first.
+   * @throws IOException
+   */
+  public void mergeInto(IndexWriter target_, boolean replaceOld_)
+    throws IOException {
+    close();
+
+    if (replaceOld_) {
+      for (Directory dir : _dirs) {
+        deleteFilesOfShard(target_, dir);
+      }
+    }
+
+    final long start = System.currentTimeMillis();
+    target_.addIndexes(_dirs.toArray(new Directory[_dirs.size()]));
+    _log.log(Level.INFO, "Merged {0} shard(s) in {1} ms.", new Object[] {
+      _dirs.size(), System.currentTimeMillis() - start });
+
+    for (Directory dir : _dirs) {
+      dir.close();
+    }
+    deleteShardDirs(_indexDir);
+  }
+
+  /**
+   * Deletes the documents of the files of a shard from the main index.
+   *
+   * @param target_ writer of the main index.
+   * @param shardDir_ a shard directory.
+   * @throws IOException
+   */
+  private static void deleteFilesOfShard(IndexWriter target_,
+    Directory shardDir_) throws IOException {
+    try (DirectoryReader reader = DirectoryReader.open(shardDir_)) {
+      final Terms terms = MultiFields.getTerms(reader,
+        IndexFields.fileDbIdField);
+      if (terms == null) {
+        return;
+      }
+
+      final List<Term> batch = new ArrayList<>(DELETE_BATCH_SIZE);
+      final TermsEnum termsEnum = terms.iterator(null);
+      BytesRef term;
+      while ((term = termsEnum.next()) != null) {
+        batch.add(new Term(IndexFields.fileDbIdField,
+          BytesRef.deepCopyOf(term)));
+        if (batch.size() == DELETE_BATCH_SIZE) {
+          target_.deleteDocuments(batch.toArray(new Term[batch.size()]));
+          batch.clear();
+        }
+      }
+
+      if (!batch.isEmpty()) {
+        target_.deleteDocuments(batch.toArray(new Term[batch.size()]));
+      }
+    }
+  }
+
+  /**
+   * Deletes every shard directory in an index directory.
+   *
+   * @param indexDir_ the index directory.
+   * @throws IOException
+   */
+  public static void deleteShardDirs(File indexDir_) throws IOException {
+    for (File shardDir : IndexShards.findShardDirs(indexDir_)) {
+      Files.walkFileTree(shardDir.toPath(), new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(Path file_,
+          BasicFileAttributes attrs_) throws IOException {
+          Files.delete(file_);
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir_, IOException ex_)
+          throws IOException {
+          if (ex_ != null) {
+            throw ex_;
+          }
+          Files.delete(dir_);
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    }
+  }
+
+  /**
+   * Closes (and commits) the shard writers. The shards are kept.
+   */
+  @Override
+  public void close() {
+    if (_closed) {
+      return;
+    }
+    _closed = true;
+
+    for (IndexWriter writer : _writers) {
+      try {
+        writer.close();
+      } catch (IOException ex) {
+        _log.log(Level.SEVERE, "Error on closing a shard writer!", ex);
+      }
+    }
+  }
+}
@@ -10,16 +10,40 @@ public class IndexerTask implements Callable<Boolean> {
    * The wrapped indexer.
    */
   private final AbstractIndexer _indexer;
+  /**
+   * Committer of the index or null.
+   */
+  private final PeriodicCommitter _committer;
   
   /**
    * @param indexer_ an indexer.
    */
   public IndexerTask(AbstractIndexer indexer_) {
+    this(indexer_, null);
+  }
+  
+  /**
+   * @param indexer_ an indexer.
+   * @param committer_ committer of the index (can be null).
+   */
+  public IndexerTask(AbstractIndexer indexer_, PeriodicCommitter committer_) {
     _indexer = indexer_;
+    _committer = committer_;
   }
   
   @Override
   public Boolean call() throws Exception {
-    return _indexer.index();
+    if (_committer == null) {
+      return _indexer.index();
+    }
+    
+    boolean success = false;
+    _committer.beginChange();
+    try {
+      success = _indexer.index();
+      return success;
+    } finally {
+      _committer.endChange(success);
+    }
   }
 }
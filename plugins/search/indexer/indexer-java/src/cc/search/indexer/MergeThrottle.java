@@ -0,0 +1,261 @@
+package cc.search.indexer;
+
+import cc.search.common.SearchLatencySignal;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MergeScheduler;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.RateLimitedDirectoryWrapper;
+
+/**
+ * Limits the write rate of the background merges so they do not saturate the
+ * disks shared with the search service. The limit is adaptive: it is halved
+ * when the search service reports (see SearchLatencySignal) that the search
+ * latency is over a limit and it grows back slowly when the searches are fast
+ * again (or there are no searches at all).
+ *
+ * Usage: open the index writer on getDirectory() with getMergeScheduler().
+ */
+public final class MergeThrottle implements AutoCloseable {
+  /**
+   * Logger.
+   */
+  private static final Logger _log = Logger.getLogger(
+    MergeThrottle.class.getName());
+  /**
+   * Period of the rate adjustment.
+   */
+  private static final long ADJUST_PERIOD_MS = 2000;
+  /**
+   * Older latency signals are ignored.
+   */
+  private static final long SIGNAL_MAX_AGE_MS = 10000;
+  /**
+   * The first throttled rate (and the rate above which the limit is removed)
+   * if there is no maximal rate.
+   */
+  private static final double UNLIMITED_MB_PER_SEC = 64.0;
+  /**
+   * Multiplier of the rate when the searches are fast.
+   */
+  private static final double INCREASE_FACTOR = 1.5;
+  /**
+   * The search latency signal file (null if there is no signal).
+   */
+  private final File _signalFile;
+  /**
+   * The rate limited directory.
+   */
+  private final RateLimitedDirectoryWrapper _directory;
+  /**
+   * The merge scheduler.
+   */
+  private final MonitoredMergeScheduler _scheduler =
+    new MonitoredMergeScheduler();
+  /**
+   * Maximal merge rate in MB/s (0 means unlimited).
+   */
+  private final double _maxMBPerSec;
+  /**
+   * Minimal merge rate in MB/s.
+   */
+  private final double _minMBPerSec;
+  /**
+   * Search latency limit in milliseconds (0 means no adaptive throttling).
+   */
+  private final long _latencyLimitMs;
+  /**
+   * Thread for the rate adjustment.
+   */
+  private final ScheduledExecutorService _adjuster =
+    Executors.newSingleThreadScheduledExecutor();
+  /**
+   * Current merge rate limit in MB/s (null means unlimited).
+   */
+  private volatile Double _currentMBPerSec;
+  /**
+   * The last read search latency (-1 if there was no recent signal).
+   */
+  private volatile long _lastLatencyMs = -1;
+
+  /**
+   * Merge scheduler which counts the merges and the merged bytes.
+   */
+  private static final class MonitoredMergeScheduler
+    extends ConcurrentMergeScheduler {
+    /**
+     * Number of finished merges.
+     */
+    final AtomicLong finishedMerges = new AtomicLong(0);
+    /**
+     * Bytes of the finished merges.
+     */
+    final AtomicLong mergedBytes = new AtomicLong(0);
+    /**
+     * Time spent with the finished merges (summed for every merge thread).
+     */
+    final AtomicLong mergeNanos = new AtomicLong(0);
+    /**
+     * Number of running merges.
+     */
+    final AtomicInteger runningMerges = new AtomicInteger(0);
+    /**
+     * Bytes of the running merges.
+     */
+    final AtomicLong runningBytes = new AtomicLong(0);
+
+    @Override
+    protected void doMerge(MergePolicy.OneMerge merge_) throws IOException {
+      final long bytes = merge_.totalBytesSize();
+      runningMerges.incrementAndGet();
+      runningBytes.addAndGet(bytes);
+
+      final long start = System.nanoTime();
+      try {
+        super.doMerge(merge_);
+
+        finishedMerges.incrementAndGet();
+        mergedBytes.addAndGet(bytes);
+      } finally {
+        mergeNanos.addAndGet(System.nanoTime() - start);
+        runningBytes.addAndGet(-bytes);
+        runningMerges.decrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * @param directory_ the index directory.
+   * @param signalFile_ the search latency signal file (null means no adaptive
+   *  throttling).
+   * @param maxMBPerSec_ maximal merge rate in MB/s (0 means unlimited).
+   * @param minMBPerSec_ the adaptive throttling does not go below this rate.
+   * @param latencyLimitMs_ throttle the merges when the search latency is
+   *  over this limit (0 means no adaptive throttling).
+   */
+  public MergeThrottle(Directory directory_, File signalFile_,
+    double maxMBPerSec_, double minMBPerSec_, long latencyLimitMs_) {
+    _signalFile = signalFile_;
+    _directory = new RateLimitedDirectoryWrapper(directory_);
+    _maxMBPerSec = maxMBPerSec_;
+    _minMBPerSec = maxMBPerSec_ > 0 ?
+      Math.min(minMBPerSec_, maxMBPerSec_) : minMBPerSec_;
+    _latencyLimitMs = latencyLimitMs_;
+
+    setRate(_maxMBPerSec > 0 ? _maxMBPerSec : null);
+
+    if (_latencyLimitMs > 0 && _signalFile != null) {
+      _adjuster.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            adjustRate();
+          } catch (RuntimeException ex) {
+            _log.log(Level.WARNING, "Merge rate adjustment failed!", ex);
+          }
+        }
+      }, ADJUST_PERIOD_MS, ADJUST_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * @return the rate limited directory for the index writer.
+   */
+  public Directory getDirectory() {
+    return _directory;
+  }
+
+  /**
+   * @return the merge scheduler for the index writer.
+   */
+  public MergeScheduler getMergeScheduler() {
+    return _scheduler;
+  }
+
+  /**
+   * Sets the merge rate limit.
+   *
+   * @param mbPerSec_ new limit in MB/s (null means unlimited).
+   */
+  private void setRate(Double mbPerSec_) {
+    _currentMBPerSec = mbPerSec_;
+    _directory.setMaxWriteMBPerSec(mbPerSec_, IOContext.Context.MERGE);
+  }
+
+  /**
+   * Reads the latency signal and adjusts the merge rate: multiplicative
+   * decrease on slow searches, slower multiplicative increase on fast ones
+   * and no change between the half of the limit and the limit.
+   */
+  private void adjustRate() {
+    final long latency = SearchLatencySignal.read(_signalFile,
+      SIGNAL_MAX_AGE_MS);
+    _lastLatencyMs = latency;
+
+    final Double current = _currentMBPerSec;
+    final double ceiling = _maxMBPerSec > 0 ? _maxMBPerSec :
+      UNLIMITED_MB_PER_SEC;
+
+    if (latency > _latencyLimitMs) {
+      final double rate = Math.max(_minMBPerSec,
+        (current == null ? ceiling : current) / 2);
+      if (current == null || rate < current) {
+        _log.log(Level.INFO, "Search latency is {0} ms, merge rate limit: " +
+          "{1} MB/s", new Object[] { latency, rate });
+        setRate(rate);
+      }
+    } else if (latency < _latencyLimitMs / 2 && current != null) {
+      final double rate = current * INCREASE_FACTOR;
+      if (rate >= ceiling) {
+        setRate(_maxMBPerSec > 0 ? _maxMBPerSec : null);
+      } else {
+        setRate(rate);
+      }
+    }
+  }
+
+  /**
+   * Adds the merge statistics to a map.
+   *
+   * @param stats_ statistics map.
+   */
+  public void addStatistics(Map<String, String> stats_) {
+    final long nanos = _scheduler.mergeNanos.get();
+    final double mergedMB = _scheduler.mergedBytes.get() / (1024.0 * 1024.0);
+    final Double rate = _currentMBPerSec;
+
+    stats_.put("Finished merges", Long.toString(
+      _scheduler.finishedMerges.get()));
+    stats_.put("Merge throughput (MB/s)", String.format("%.2f",
+      nanos == 0 ? 0.0 : mergedMB / (nanos / 1e9)));
+    stats_.put("Running merges", Integer.toString(
+      _scheduler.runningMerges.get()));
+    stats_.put("Merge backlog (MB)", String.format("%.2f",
+      _scheduler.runningBytes.get() / (1024.0 * 1024.0)));
+    stats_.put("Merge rate limit (MB/s)", rate == null ? "unlimited" :
+      String.format("%.2f", rate));
+    stats_.put("Search latency (ms)", _lastLatencyMs < 0 ? "unknown" :
+      Long.toString(_lastLatencyMs));
+  }
+
+  /**
+   * Stops the rate adjustment. The merges are not throttled any more (the
+   * index writer may wait for them on close).
+   */
+  @Override
+  public void close() {
+    _adjuster.shutdownNow();
+    setRate(null);
+  }
+}
@@ -0,0 +1,332 @@
+package cc.search.indexer;
+
+import cc.search.common.IndexCommits;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.lucene.index.IndexWriter;
+
+/**
+ * Commits the index periodically (after a given number of indexed files or
+ * after a given time) so a crashed or killed indexing session could be
+ * resumed. Every index modification (indexing a file or adding field values)
+ * must be between beginChange() and endChange() calls, so a commit never
+ * contains a half indexed file (e.g. some chunks of a large file).
+ *
+ * The commits record the state of the session (see IndexCommits): the
+ * periodic commits of a session which re-creates the index are not served by
+ * the search service, only the last commit of the finished session (see
+ * finishSession()).
+ */
+public final class PeriodicCommitter implements AutoCloseable {
+  /**
+   * Logger.
+   */
+  private static final Logger _log = Logger.getLogger(PeriodicCommitter.class
+    .getName());
+  /**
+   * Commit user data key: number of files indexed in all sessions.
+   */
+  public static final String COMMITTED_FILES_KEY = "cc.search.committedFiles";
+  /**
+   * Commit user data key: commit time (milliseconds since the epoch).
+   */
+  public static final String COMMIT_TIME_KEY = "cc.search.commitTime";
+  /**
+   * Commit user data key: start time of the session which made the commit
+   * (milliseconds since the epoch).
+   */
+  public static final String SESSION_START_KEY = "cc.search.sessionStart";
+  /**
+   * The index databases (more than one for a sharded index).
+   */
+  private final List<IndexWriter> _indexWriters;
+  /**
+   * Maximal number of indexed but not committed files (0 means no limit).
+   */
+  private final int _maxUncommittedFiles;
+  /**
+   * Changes hold the read lock, commits hold the write lock.
+   */
+  private final ReadWriteLock _commitLock = new ReentrantReadWriteLock(true);
+  /**
+   * Thread for the commits.
+   */
+  private final ScheduledExecutorService _scheduler =
+    Executors.newSingleThreadScheduledExecutor();
+  /**
+   * True if a commit is already scheduled by the file counter.
+   */
+  private final AtomicBoolean _commitRequested = new AtomicBoolean(false);
+  /**
+   * Number of indexed but not committed files.
+   */
+  private final AtomicLong _uncommittedFiles = new AtomicLong(0);
+  /**
+   * Number of committed files (in all sessions).
+   */
+  private volatile long _committedFiles;
+  /**
+   * Id of this session.
+   */
+  private volatile String _sessionId = UUID.randomUUID().toString();
+  /**
+   * True if the session re-creates the index.
+   */
+  private volatile boolean _rebuild = false;
+  /**
+   * Start time of this session.
+   */
+  private volatile long _sessionStart = System.currentTimeMillis();
+  /**
+   * Commit runnable for the scheduler.
+   */
+  private final Runnable _commitTask = new Runnable() {
+    @Override
+    public void run() {
+      try {
+        commit();
+      } catch (IOException ex) {
+        _log.log(Level.SEVERE, "Periodic commit failed!", ex);
+      }
+    }
+  };
+
+  /**
+   * @param indexWriter_ index database.
+   * @param maxUncommittedFiles_ commit after this many indexed files (0 means
+   *  no limit).
+   * @param commitPeriodSecs_ commit after this many seconds (0 means no
+   *  periodic commit).
+   * @param resume_ true if the session continues a previous one (the count
+   *  of the committed files is loaded from the last commit).
+   */
+  public PeriodicCommitter(IndexWriter indexWriter_, int maxUncommittedFiles_,
+    int commitPeriodSecs_, boolean resume_) {
+    this(Collections.singletonList(indexWriter_), maxUncommittedFiles_,
+      commitPeriodSecs_, resume_);
+  }
+
+  /**
+   * @param indexWriters_ index databases (e.g. the shards of an index) which
+   *  are committed together.
+   * @param maxUncommittedFiles_ commit after this many indexed files (0 means
+   *  no limit).
+   * @param commitPeriodSecs_ commit after this many seconds (0 means no
+   *  periodic commit).
+   * @param resume_ true if the session continues a previous one (the count
+   *  of the committed files is loaded from the last commit).
+   */
+  public PeriodicCommitter(List<IndexWriter> indexWriters_,
+    int maxUncommittedFiles_, int commitPeriodSecs_, boolean resume_) {
+    _indexWriters = new ArrayList<>(indexWriters_);
+    _maxUncommittedFiles = maxUncommittedFiles_;
+    _committedFiles = resume_ ?
+      getCommittedFileCount(_indexWriters.get(0).getCommitData()) : 0;
+
+    if (commitPeriodSecs_ > 0) {
+      _scheduler.scheduleWithFixedDelay(_commitTask, commitPeriodSecs_,
+        commitPeriodSecs_, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * @param commitData_ commit user data of an index.
+   * @return the number of committed files stored in the user data.
+   */
+  public static long getCommittedFileCount(Map<String, String> commitData_) {
+    final String count = commitData_ == null ? null :
+      commitData_.get(COMMITTED_FILES_KEY);
+    if (count == null) {
+      return 0;
+    }
+
+    try {
+      return Long.parseLong(count);
+    } catch (NumberFormatException ex) {
+      _log.log(Level.WARNING, "Bad committed file count: {0}", count);
+      return 0;
+    }
+  }
+
+  /**
+   * Starts a new indexing session.
+   *
+   * @param rebuild_ true if the session re-creates the index (its commits
+   *  are not served until the session is finished).
+   * @param resume_ true if the session continues the unfinished session of
+   *  the last commit (its id and the count of the committed files is kept).
+   */
+  public void beginSession(boolean rebuild_, boolean resume_) {
+    _commitLock.writeLock().lock();
+    try {
+      final String lastId = _indexWriters.get(0).getCommitData().get(
+        IndexCommits.SESSION_ID_KEY);
+      _sessionId = resume_ && lastId != null ? lastId :
+        UUID.randomUUID().toString();
+      _sessionStart = System.currentTimeMillis();
+      _rebuild = rebuild_;
+      if (rebuild_ && !resume_) {
+        _committedFiles = 0;
+        _uncommittedFiles.set(0);
+      }
+    } finally {
+      _commitLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Must be called before an index modification.
+   */
+  public void beginChange() {
+    _commitLock.readLock().lock();
+  }
+
+  /**
+   * Must be called after an index modification (also on failure).
+   *
+   * @param fileIndexed_ true if a file was indexed successfully.
+   */
+  public void endChange(boolean fileIndexed_) {
+    final long uncommittedFiles = fileIndexed_ ?
+      _uncommittedFiles.incrementAndGet() : 0;
+    _commitLock.readLock().unlock();
+
+    if (_maxUncommittedFiles > 0 && uncommittedFiles >= _maxUncommittedFiles
+      && _commitRequested.compareAndSet(false, true)) {
+      try {
+        _scheduler.execute(_commitTask);
+      } catch (RuntimeException ex) {
+        // Shutting down: close() commits anyway.
+        _commitRequested.set(false);
+      }
+    }
+  }
+
+  /**
+   * Commits all finished changes with the progress in the commit user data.
+   * Waits for the running changes.
+   *
+   * @throws IOException
+   */
+  public void commit() throws IOException {
+    commit(IndexCommits.STATE_RUNNING, false);
+  }
+
+  /**
+   * Commits the session as finished (even if there is no change since the
+   * last commit), so the index can be served. Waits for the running changes.
+   *
+   * @throws IOException
+   */
+  public void finishSession() throws IOException {
+    commit(IndexCommits.STATE_FINISHED, true);
+  }
+
+  /**
+   * Commits all finished changes with the progress and the session state in
+   * the commit user data. Waits for the running changes.
+   *
+   * @param state_ session state (see IndexCommits).
+   * @param force_ commit even if there is no change.
+   * @throws IOException
+   */
+  private void commit(String state_, boolean force_) throws IOException {
+    _commitLock.writeLock().lock();
+    try {
+      _commitRequested.set(false);
+      if (!force_ && !hasUncommittedChanges()) {
+        return;
+      }
+
+      final long files = _uncommittedFiles.getAndSet(0);
+      final Map<String, String> commitData = new HashMap<>();
+      commitData.put(COMMITTED_FILES_KEY, Long.toString(_committedFiles +
+        files));
+      commitData.put(COMMIT_TIME_KEY, Long.toString(
+        System.currentTimeMillis()));
+      commitData.put(SESSION_START_KEY, Long.toString(_sessionStart));
+      commitData.put(IndexCommits.SESSION_ID_KEY, _sessionId);
+      commitData.put(IndexCommits.SESSION_STATE_KEY, state_);
+      commitData.put(IndexCommits.SESSION_REBUILD_KEY,
+        Boolean.toString(_rebuild));
+
+      try {
+        for (IndexWriter writer : _indexWriters) {
+          // The commit data is a change, so the commit is written.
+          writer.setCommitData(commitData);
+          writer.commit();
+        }
+      } catch (IOException | RuntimeException ex) {
+        _uncommittedFiles.addAndGet(files);
+        throw ex;
+      }
+
+      _committedFiles += files;
+      _log.log(Level.INFO, "Index committed ({0} file(s) in total, session " +
+        "{1}).", new Object[] { _committedFiles, state_ });
+    } finally {
+      _commitLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return true if any of the index databases has uncommitted changes.
+   */
+  private boolean hasUncommittedChanges() {
+    for (IndexWriter writer : _indexWriters) {
+      if (writer.hasUncommittedChanges()) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * @return number of committed files (in all sessions).
+   */
+  public long getCommittedFileCount() {
+    return _committedFiles;
+  }
+
+  /**
+   * @return id of the current session.
+   */
+  public String getSessionId() {
+    return _sessionId;
+  }
+
+  /**
+   * Stops the periodic commits and commits the last changes (the session is
+   * not finished by closing, see finishSession()).
+   */
+  @Override
+  public void close() {
+    _scheduler.shutdown();
+    try {
+      _scheduler.awaitTermination(1, TimeUnit.HOURS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+
+    try {
+      commit();
+    } catch (IOException ex) {
+      _log.log(Level.SEVERE, "Final commit failed!", ex);
+    }
+  }
+}
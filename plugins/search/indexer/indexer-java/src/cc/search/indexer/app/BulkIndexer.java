@@ -0,0 +1,577 @@
+package cc.search.indexer.app;
+
+import cc.search.analysis.SourceAnalyzer;
+import cc.search.analysis.tags.TagGeneratorManager;
+import cc.search.common.IndexGenerations;
+import cc.search.common.IndexShards;
+import cc.search.common.KeepServableCommitPolicy;
+import cc.search.common.config.InvalidValueException;
+import cc.search.common.config.UnknownArgumentException;
+import cc.search.indexer.AbstractIndexer;
+import cc.search.indexer.ContentRegistry;
+import cc.search.indexer.IndexShardWriters;
+import cc.search.indexer.IndexerTask;
+import cc.search.indexer.PeriodicCommitter;
+import cc.search.indexer.util.IOHelper;
+import cc.search.indexer.util.MimeTypeDetector;
+import cc.search.suggestion.DatabaseBuilder;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+/**
+ * Standalone indexer: indexes directory trees (walked in parallel) or the
+ * files of a file list without the parser and the thrift IPC. The file ids are
+ * computed like in the parser (FNV-1a hash of the path) and the files are
+ * filtered like in SearchParser::shouldHandle(), so the index is compatible
+ * with the one built by the parser if the paths are the same.
+ */
+public class BulkIndexer implements AutoCloseable {
+  /**
+   * Logger.
+   */
+  private static final Logger _log = Logger.getLogger(BulkIndexer.class
+    .getName());
+  /**
+   * Excluded file suffixes (same as in SearchParser).
+   */
+  private static final String[] EXCLUDED_SUFFIXES = {
+    ".doc", ".rtf", ".htm", ".html", ".xml", ".cc.d", ".cc.opts", ".bin",
+    ".hhk", ".hhc", ".output", ".output.0", ".output.1",
+    ".metrics.dat", ".pp"
+  };
+  /**
+   * Files larger than this are skipped (same as in SearchParser).
+   */
+  private static final long MAX_FILE_SIZE = 1024L * 1024 * 1024;
+  /**
+   * Number of bytes checked for detecting binary files.
+   */
+  private static final int TEXT_CHECK_SIZE = 8192;
+  /**
+   * Default mime type (it is refined by the file indexer).
+   */
+  private static final String DEFAULT_MIME_TYPE = "text/plain";
+  /**
+   * Program options.
+   */
+  private final BulkIndexerOptions _options;
+  /**
+   * This is the index directory.
+   */
+  private final Directory _indexDir;
+  /**
+   * The index database.
+   */
+  private final IndexWriter _indexWriter;
+  /**
+   * Shard writers or null if the index is not sharded.
+   */
+  private final IndexShardWriters _shardWriters;
+  /**
+   * Commits the index periodically.
+   */
+  private final PeriodicCommitter _committer;
+  /**
+   * Registry of the indexed file contents for deduplication or null if it is
+   * disabled.
+   */
+  private final ContentRegistry _contentRegistry;
+  /**
+   * Executor for the indexer tasks. Its queue is bounded, so the directory
+   * walkers (or the list reader) index the file themselves if the indexer
+   * threads are busy.
+   */
+  private final ThreadPoolExecutor _indexExecutor;
+  /**
+   * Pool for the parallel directory walk.
+   */
+  private final ForkJoinPool _walkerPool;
+  /**
+   * Thread for the progress reports.
+   */
+  private final ScheduledExecutorService _reporter =
+    Executors.newSingleThreadScheduledExecutor();
+  /**
+   * Number of indexed files.
+   */
+  private final AtomicLong _indexedFiles = new AtomicLong(0);
+  /**
+   * Number of bytes in the indexed files.
+   */
+  private final AtomicLong _indexedBytes = new AtomicLong(0);
+  /**
+   * Number of files failed to index.
+   */
+  private final AtomicLong _failedFiles = new AtomicLong(0);
+  /**
+   * Number of skipped files.
+   */
+  private final AtomicLong _skippedFiles = new AtomicLong(0);
+  /**
+   * Start time of the indexing.
+   */
+  private long _startTime;
+
+  /**
+   * Async task for indexing a file.
+   */
+  private class BulkIndexerTask implements Runnable {
+    /**
+     * The file to index.
+     */
+    private final Path _file;
+    /**
+     * File size.
+     */
+    private final long _size;
+
+    /**
+     * @param file_ the file to index.
+     * @param size_ file size.
+     */
+    BulkIndexerTask(Path file_, long size_) {
+      _file = file_;
+      _size = size_;
+    }
+
+    @Override
+    public void run() {
+      final String filePath = _file.toString();
+
+      try {
+        if (!isPlainText(_file.toFile())) {
+          _log.log(Level.FINE, "Skipping {0} because it is not plain text.",
+            filePath);
+          _skippedFiles.incrementAndGet();
+          return;
+        }
+
+        final String fileId = getFileId(filePath);
+        final AbstractIndexer indexer = AbstractIndexer.createForFile(
+          filePath, fileId, DEFAULT_MIME_TYPE, getWriter(fileId),
+          _contentRegistry);
+
+        if (new IndexerTask(indexer, _committer).call()) {
+          _indexedFiles.incrementAndGet();
+          _indexedBytes.addAndGet(_size);
+        } else {
+          _failedFiles.incrementAndGet();
+        }
+      } catch (Exception ex) {
+        _log.log(Level.WARNING, "Failed to index " + filePath, ex);
+        _failedFiles.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Recursive task for walking a directory tree: the subdirectories are walked
+   * by forked tasks.
+   */
+  private class DirectoryWalker extends RecursiveAction {
+    /**
+     * Serial version id.
+     */
+    private static final long serialVersionUID = 1L;
+    /**
+     * The directory to walk.
+     */
+    private final Path _dir;
+
+    /**
+     * @param dir_ the directory to walk.
+     */
+    DirectoryWalker(Path dir_) {
+      _dir = dir_;
+    }
+
+    @Override
+    protected void compute() {
+      final List<DirectoryWalker> subTasks = new ArrayList<>();
+
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(_dir)) {
+        for (Path entry : entries) {
+          final BasicFileAttributes attrs;
+          try {
+            // Symbolic links are not followed (no cycles).
+            attrs = Files.readAttributes(entry, BasicFileAttributes.class,
+              LinkOption.NOFOLLOW_LINKS);
+          } catch (IOException ex) {
+            _log.log(Level.FINE, "Failed to stat {0}", entry);
+            continue;
+          }
+
+          if (attrs.isDirectory()) {
+            final DirectoryWalker subTask = new DirectoryWalker(entry);
+            subTask.fork();
+            subTasks.add(subTask);
+          } else if (attrs.isRegularFile()) {
+            handleFile(entry, attrs.size());
+          }
+        }
+      } catch (IOException ex) {
+        _log.log(Level.WARNING, "Failed to list directory {0}", _dir);
+      }
+
+      for (DirectoryWalker subTask : subTasks) {
+        subTask.join();
+      }
+    }
+  }
+
+  /**
+   * @param options_ command line options
+   * @throws IOException
+   */
+  private BulkIndexer(BulkIndexerOptions options_) throws IOException {
+    _options = options_;
+
+    try {
+      _indexDir = FSDirectory.open(new File(_options.indexDirPath),
+        _options.createLockFactory());
+
+      IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_4_9,
+        new SourceAnalyzer());
+      iwc.setRAMBufferSizeMB(1024.0);
+      iwc.setOpenMode(_options.indexOpenMode == Options.OpenMode.CREATE ?
+        OpenMode.CREATE : OpenMode.CREATE_OR_APPEND);
+      // The old index is served until the rebuild is finished.
+      iwc.setIndexDeletionPolicy(new KeepServableCommitPolicy());
+
+      if (_options.markReady) {
+        // The index is not ready until this run finishes.
+        Files.deleteIfExists(new File(_options.indexDirPath,
+          IndexGenerations.READY_MARKER).toPath());
+      }
+
+      // Files of a merged index could be duplicated in the kept shards.
+      if (_options.indexOpenMode != Options.OpenMode.CREATE &&
+        !IndexShards.findShardDirs(new File(_options.indexDirPath))
+          .isEmpty()) {
+        throw new IOException("The index has kept shards, it can be only " +
+          "re-created!");
+      }
+
+      _indexWriter = new IndexWriter(_indexDir, iwc);
+
+      if (_options.shards > 1) {
+        _shardWriters = new IndexShardWriters(_options, _options.shards,
+          iwc.getRAMBufferSizeMB());
+        _committer = new PeriodicCommitter(_shardWriters.getWriters(),
+          _options.commitFileLimit, _options.commitPeriodSecs, false);
+      } else {
+        if (_options.indexOpenMode == Options.OpenMode.CREATE) {
+          IndexShardWriters.deleteShardDirs(new File(_options.indexDirPath));
+        }
+
+        _shardWriters = null;
+        _committer = new PeriodicCommitter(_indexWriter,
+          _options.commitFileLimit, _options.commitPeriodSecs,
+          _options.indexOpenMode != Options.OpenMode.CREATE);
+      }
+
+      // The shards are new databases: they are not served half-built either.
+      _committer.beginSession(_shardWriters != null ||
+        _options.indexOpenMode == Options.OpenMode.CREATE, false);
+    } catch (IOException e) {
+      _log.log(Level.SEVERE, "Failed to open search index!", e);
+      throw e;
+    }
+
+    TagGeneratorManager.init();
+    // Load the magic database before the indexer threads need it.
+    MimeTypeDetector.get();
+    // Deduplication only on a new index (see Indexer).
+    _contentRegistry = _options.indexOpenMode == Options.OpenMode.CREATE ?
+      new ContentRegistry() : null;
+
+    _indexExecutor = new ThreadPoolExecutor(_options.threads,
+      _options.threads, 0, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<Runnable>(_options.threads * 4),
+      new ThreadPoolExecutor.CallerRunsPolicy());
+    _walkerPool = new ForkJoinPool(Math.max(2, _options.threads / 2));
+  }
+
+  @Override
+  public void close() {
+    _reporter.shutdownNow();
+    _walkerPool.shutdown();
+    _indexExecutor.shutdown();
+    _committer.close();
+
+    if (_shardWriters != null) {
+      _shardWriters.close();
+    }
+
+    try {
+      _indexWriter.close();
+    } catch (IOException ex) {
+      _log.log(Level.SEVERE, "Error on closing index writer!", ex);
+    }
+
+    try {
+      _indexDir.close();
+    } catch (IOException ex) {
+      _log.log(Level.SEVERE, "Error on closing index!", ex);
+    }
+
+    TagGeneratorManager.destroy();
+  }
+
+  /**
+   * Indexes the given directories and the files of the file list.
+   *
+   * @throws IOException
+   */
+  private void run() throws IOException {
+    _startTime = System.currentTimeMillis();
+    _reporter.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        logProgress();
+      }
+    }, _options.progressSecs, _options.progressSecs, TimeUnit.SECONDS);
+
+    for (String root : _options.rootDirs) {
+      final Path rootPath = Paths.get(root).toAbsolutePath().normalize();
+      if (!Files.isDirectory(rootPath)) {
+        _log.log(Level.WARNING, "Not a directory: {0}", rootPath);
+        continue;
+      }
+
+      _walkerPool.invoke(new DirectoryWalker(rootPath));
+    }
+
+    if (_options.indexFilesList != null) {
+      indexFileList(_options.indexFilesList);
+    }
+
+    // Wait for the running indexers
+    _indexExecutor.shutdown();
+    try {
+      while (!_indexExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+        _log.log(Level.FINE, "Waiting for the indexer threads...");
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+
+    _reporter.shutdownNow();
+    logProgress();
+    _committer.finishSession();
+
+    if (_shardWriters != null) {
+      if (_options.keepShards) {
+        _shardWriters.close();
+      } else {
+        _log.log(Level.INFO, "Merging shards...");
+        _shardWriters.mergeInto(_indexWriter,
+          _options.indexOpenMode != Options.OpenMode.CREATE);
+      }
+    }
+    // Also drops the old documents if the shards are kept.
+    _indexWriter.commit();
+
+    if (_options.buildSuggestions) {
+      _log.log(Level.INFO, "Building suggestion databases...");
+      try (IndexReader reader = IndexShards.openReader(_options)) {
+        new DatabaseBuilder(reader, _options).buildAll();
+      }
+    }
+
+    if (_options.markReady) {
+      IndexGenerations.markReady(new File(_options.indexDirPath));
+    }
+  }
+
+  /**
+   * @param fileId_ a file id.
+   * @return the writer for the file (the writer of its shard if the index is
+   *  sharded).
+   */
+  private IndexWriter getWriter(String fileId_) {
+    return _shardWriters == null ? _indexWriter :
+      _shardWriters.getWriter(fileId_);
+  }
+
+  /**
+   * Indexes the files of a file list.
+   *
+   * @param listPath_ path of the list or "-" for the standard input.
+   * @throws IOException
+   */
+  private void indexFileList(String listPath_) throws IOException {
+    try (BufferedReader reader = listPath_.equals("-") ?
+      new BufferedReader(new InputStreamReader(System.in,
+        StandardCharsets.UTF_8)) :
+      Files.newBufferedReader(Paths.get(listPath_), StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty()) {
+          continue;
+        }
+
+        final Path file = Paths.get(line).toAbsolutePath().normalize();
+        final BasicFileAttributes attrs;
+        try {
+          attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException ex) {
+          _log.log(Level.WARNING, "Not found: {0}", file);
+          _skippedFiles.incrementAndGet();
+          continue;
+        }
+
+        if (attrs.isRegularFile()) {
+          handleFile(file, attrs.size());
+        } else {
+          _skippedFiles.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  /**
+   * Filters a regular file and submits it for indexing.
+   *
+   * @param file_ absolute path of a regular file.
+   * @param size_ file size.
+   */
+  private void handleFile(Path file_, long size_) {
+    if (!shouldHandle(file_.toString(), size_)) {
+      _log.log(Level.FINE, "Skipping {0}", file_);
+      _skippedFiles.incrementAndGet();
+      return;
+    }
+
+    _indexExecutor.execute(new BulkIndexerTask(file_, size_));
+  }
+
+  /**
+   * The same rules as SearchParser::shouldHandle().
+   *
+   * @param path_ file path.
+   * @param size_ file size.
+   * @return true if the file should be indexed.
+   */
+  private static boolean shouldHandle(String path_, long size_) {
+    final String normPath = path_.toLowerCase(Locale.ROOT);
+    for (String suffix : EXCLUDED_SUFFIXES) {
+      if (normPath.endsWith(suffix)) {
+        return false;
+      }
+    }
+
+    return size_ <= MAX_FILE_SIZE;
+  }
+
+  /**
+   * Checks that a file is a text file or not: a text file has no zero byte in
+   * its head (the parser asks libmagic for this).
+   *
+   * @param file_ a file.
+   * @return true for text files.
+   * @throws IOException
+   */
+  private static boolean isPlainText(File file_) throws IOException {
+    for (byte b : IOHelper.readHead(file_, TEXT_CHECK_SIZE)) {
+      if (b == 0) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Computes the file id like the parser: the decimal form of the unsigned
+   * 64 bit FNV-1a hash of the path bytes (see util::fnvHash()).
+   *
+   * @param path_ file path.
+   * @return file id.
+   */
+  static String getFileId(String path_) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : path_.getBytes(StandardCharsets.UTF_8)) {
+      // std::string chars are signed, so they are sign extended in C++ too.
+      hash ^= b;
+      hash *= 0x100000001b3L;
+    }
+
+    return Long.toUnsignedString(hash);
+  }
+
+  /**
+   * Logs the progress and the throughput.
+   */
+  private void logProgress() {
+    final double secs = Math.max(1,
+      System.currentTimeMillis() - _startTime) / 1000.0;
+    final long files = _indexedFiles.get();
+    final long bytes = _indexedBytes.get();
+
+    _log.log(Level.INFO, String.format(Locale.ROOT,
+      "[%.0fs] Indexed %d file(s) (%.1f MB), failed: %d, skipped: %d, " +
+      "%.1f file(s)/s, %.2f MB/s, committed: %d", secs, files,
+      bytes / 1048576.0, _failedFiles.get(), _skippedFiles.get(),
+      files / secs, bytes / 1048576.0 / secs,
+      _committer.getCommittedFileCount()));
+  }
+
+  /**
+   * Entry point.
+   *
+   * @param args command line parameters.
+   */
+  public static void main(String[] args) {
+    BulkIndexer indexer;
+
+    try {
+      indexer = new BulkIndexer(new BulkIndexerOptions(args));
+    } catch (UnknownArgumentException | InvalidValueException | IOException e) {
+      _log.log(Level.SEVERE, "Fatal error!", e);
+      System.out.println(BulkIndexerOptions.getUsage());
+      System.exit(-1);
+      return;
+    }
+
+    try {
+      indexer.run();
+    } catch (IOException ex) {
+      _log.log(Level.SEVERE, "Indexing failed!", ex);
+    } finally {
+      indexer.close();
+    }
+
+    _log.log(Level.INFO, "Bulk indexer finished!");
+  }
+}
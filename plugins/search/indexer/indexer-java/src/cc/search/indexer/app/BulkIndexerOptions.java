@@ -0,0 +1,225 @@
+package cc.search.indexer.app;
+
+import cc.search.common.config.CommonOptions;
+import cc.search.common.config.InvalidValueException;
+import cc.search.common.config.UnknownArgumentException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Program options for the standalone bulk indexer.
+ */
+final class BulkIndexerOptions extends CommonOptions {
+  /**
+   * Index database open mode.
+   */
+  public Options.OpenMode indexOpenMode = Options.OpenMode.CREATE;
+  /**
+   * Directories to index recursively.
+   */
+  public final List<String> rootDirs = new ArrayList<>();
+  /**
+   * A file which contains the paths of the files to index (one path per line)
+   * or "-" for the standard input. Can be null.
+   */
+  public String indexFilesList = null;
+  /**
+   * Number of indexer threads.
+   */
+  public int threads = Runtime.getRuntime().availableProcessors();
+  /**
+   * Commit the index after this many indexed files (0 means no limit).
+   */
+  public int commitFileLimit = 10000;
+  /**
+   * Commit the index periodically after this many seconds (0 means no
+   * periodic commit).
+   */
+  public int commitPeriodSecs = 300;
+  /**
+   * Progress report period in seconds.
+   */
+  public int progressSecs = 5;
+  /**
+   * Number of independent shard writers (0 or 1 means no sharding).
+   */
+  public int shards = 0;
+  /**
+   * Keep the shards as they are instead of merging them into the main index.
+   */
+  public boolean keepShards = false;
+  /**
+   * Build the suggestion databases after indexing.
+   */
+  public boolean buildSuggestions = false;
+  /**
+   * Put the ready marker into the index directory at the end (for the
+   * blue/green deployment, see IndexGenerations).
+   */
+  public boolean markReady = false;
+
+  @Override
+  protected boolean usesIpc() {
+    return false;
+  }
+
+  @Override
+  protected void validate() throws InvalidValueException {
+    super.validate();
+
+    if (rootDirs.isEmpty() && indexFilesList == null) {
+      throw new InvalidValueException("Nothing to index: no -root or " +
+        "-indexFilesList given!");
+    }
+
+    if (threads < 1) {
+      throw new InvalidValueException("Bad value for -threads: " + threads);
+    }
+
+    if (keepShards && shards < 2) {
+      throw new InvalidValueException("-keepShards needs at least 2 shards!");
+    }
+
+    if (keepShards && indexOpenMode != Options.OpenMode.CREATE) {
+      throw new InvalidValueException("-keepShards works only with -create!");
+    }
+
+    if (progressSecs < 1) {
+      throw new InvalidValueException("Bad value for -progressSeconds: " +
+        progressSecs);
+    }
+  }
+
+  @Override
+  protected void setFromCommandLineArguments(List<String> args_)
+    throws InvalidValueException, UnknownArgumentException {
+
+    super.setFromCommandLineArguments(args_);
+
+    Iterator<String> argIter = args_.iterator();
+    while (argIter.hasNext()) {
+      String arg = argIter.next();
+
+      switch (arg) {
+        case "-create":
+          indexOpenMode = Options.OpenMode.CREATE;
+          break;
+        case "-merge":
+          indexOpenMode = Options.OpenMode.MERGE;
+          break;
+        case "-root":
+          rootDirs.add(getValue(arg, argIter));
+          break;
+        case "-indexFilesList":
+          indexFilesList = getValue(arg, argIter);
+          break;
+        case "-threads":
+          threads = getIntValue(arg, argIter);
+          break;
+        case "-commitFiles":
+          commitFileLimit = getIntValue(arg, argIter);
+          break;
+        case "-commitSeconds":
+          commitPeriodSecs = getIntValue(arg, argIter);
+          break;
+        case "-progressSeconds":
+          progressSecs = getIntValue(arg, argIter);
+          break;
+        case "-shards":
+          shards = getIntValue(arg, argIter);
+          break;
+        case "-keepShards":
+          keepShards = true;
+          break;
+        case "-buildSuggestions":
+          buildSuggestions = true;
+          break;
+        case "-markReady":
+          markReady = true;
+          break;
+        default:
+          throw new UnknownArgumentException(arg);
+      }
+    }
+  }
+
+  /**
+   * @param arg_ argument name.
+   * @param argIter_ argument iterator.
+   * @return the value of the argument.
+   * @throws InvalidValueException
+   */
+  private static String getValue(String arg_, Iterator<String> argIter_)
+    throws InvalidValueException {
+    if (!argIter_.hasNext()) {
+      throw new InvalidValueException(arg_ + " is empty");
+    }
+
+    return argIter_.next();
+  }
+
+  /**
+   * @param arg_ argument name.
+   * @param argIter_ argument iterator.
+   * @return the value of the argument as a non negative number.
+   * @throws InvalidValueException
+   */
+  private static int getIntValue(String arg_, Iterator<String> argIter_)
+    throws InvalidValueException {
+    final String value = getValue(arg_, argIter_);
+    try {
+      final int intValue = Integer.parseInt(value);
+      if (intValue >= 0) {
+        return intValue;
+      }
+    } catch (NumberFormatException ex) {
+      // handled below
+    }
+
+    throw new InvalidValueException("Bad value for " + arg_ + ": " + value);
+  }
+
+  /**
+   * Returns a command line help message for the user.
+   *
+   * @return help message.
+   */
+  public static String getUsage() {
+    return "Command line arguments:\n"
+      + "\t-indexDB path\n\t\tPath of index database.\n"
+      + "\t-useSimpleFileLock\n\t\tUse NFS friendly file locks.\n"
+      + "\t-cleanupLocks\n\t\tCleanup locks before first lock..\n"
+      + "\t-create\n\t\tOverwrite the index database if already exists or create one (default).\n"
+      + "\t-merge\n\t\tKeep the documents of the index database and replace the indexed files.\n"
+      + "\t-root dir\n\t\tIndex the files of a directory recursively (can be given more than once).\n"
+      + "\t-indexFilesList file\n\t\tIndex the files listed in a file (one path per line, - for the standard input).\n"
+      + "\t-threads count\n\t\tNumber of indexer threads (default: number of processors).\n"
+      + "\t-commitFiles count\n\t\tCommit the index after this many indexed files (0: no limit, default: 10000).\n"
+      + "\t-commitSeconds secs\n\t\tCommit the index periodically (0: never, default: 300).\n"
+      + "\t-progressSeconds secs\n\t\tProgress report period (default: 5).\n"
+      + "\t-shards count\n\t\tIndex with independent shard writers, then merge the shards (default: 0, no sharding).\n"
+      + "\t-keepShards\n\t\tKeep the shards instead of merging them (the search service opens them together).\n"
+      + "\t-buildSuggestions\n\t\tBuild the suggestion databases after indexing.\n"
+      + "\t-markReady\n\t\tMark the index as a ready generation for the search service at the end.\n"
+      + "\n\n"
+      + "The file ids are computed from the absolute paths like the parser does,\n"
+      + "and the files are filtered with the rules of the search parser. ";
+  }
+
+  /**
+   * Builds an instance from command line arguments.
+   *
+   * @param args_ command line arguments.
+   */
+  public BulkIndexerOptions(String[] args_)
+    throws UnknownArgumentException, InvalidValueException {
+
+    ArrayList<String> args = new ArrayList<>(Arrays.asList(args_));
+    setFromCommandLineArguments(args);
+
+    validate();
+  }
+}
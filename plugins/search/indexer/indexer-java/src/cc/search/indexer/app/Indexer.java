@@ -2,21 +2,36 @@ package cc.search.indexer.app;
 
 import cc.parser.search.FieldValue;
 import cc.parser.search.IndexerService;
+import cc.parser.search.SessionMode;
 import cc.search.analysis.SourceAnalyzer;
 import cc.search.analysis.tags.TagGeneratorManager;
 import cc.search.common.ipc.IPCProcessor;
 import cc.search.common.config.InvalidValueException;
 import cc.search.common.config.UnknownArgumentException;
+import cc.search.common.IndexCommits;
+import cc.search.common.IndexFields;
+import cc.search.common.IndexShards;
+import cc.search.common.KeepServableCommitPolicy;
+import cc.search.indexer.AbstractIndexer;
+import cc.search.indexer.ContentRegistry;
+import cc.search.indexer.IndexShardWriters;
 import cc.search.indexer.FieldReIndexer;
-import cc.search.indexer.FileIndexer;
 import cc.search.indexer.IndexerTask;
+import cc.search.indexer.MergeThrottle;
+import cc.search.indexer.PeriodicCommitter;
+import cc.search.indexer.util.MimeTypeDetector;
 import cc.search.suggestion.DatabaseBuilder;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -24,23 +39,41 @@ import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.ReaderManager;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
 
 /**
- * Creates or updates an index database.
+ * Creates or updates an index database. If an IPC port is given then the
+ * indexer is a resident (daemon) process: it serves clients one after the
+ * other and keeps the index writer, the tag generators and the caches between
+ * the indexing sessions (see beginSession() and endSession()).
  */
 public class Indexer implements AutoCloseable, IndexerService.Iface {
   /**
    * Logger.
    */
   private static final Logger _log = Logger.getLogger(Indexer.class.getName());
+  /**
+   * Field set for re-indexing an alias.
+   */
+  private static final Set<String> ALIAS_FIELD_SET = new HashSet<>(
+    Arrays.asList(IndexFields.fileDbIdField, IndexFields.filePathField,
+      IndexFields.mimeTypeField));
   /**
    * Command line options.
    */
@@ -49,6 +82,10 @@ public class Indexer implements AutoCloseable, IndexerService.Iface {
    * This is the index directory.
    */
   private final Directory _indexDir;
+  /**
+   * Merge rate limiter.
+   */
+  private final MergeThrottle _mergeThrottle;
   /**
    * The index database.
    */
@@ -57,6 +94,10 @@ public class Indexer implements AutoCloseable, IndexerService.Iface {
    * Reader manager for concurrent read/write. 
    */
   private final ReaderManager _readerManager;
+  /**
+   * Commits the index periodically.
+   */
+  private final PeriodicCommitter _committer;
   /**
    * List of asyc indexer results.
    */
@@ -65,6 +106,25 @@ public class Indexer implements AutoCloseable, IndexerService.Iface {
    * Executor for async tasks.
    */
   private final ExecutorService _executor;
+  /**
+   * Registry of the indexed file contents for deduplication or null if it is
+   * disabled (in the current session).
+   */
+  private volatile ContentRegistry _contentRegistry = null;
+  /**
+   * The files indexed by the current update session (their aliases have to
+   * be re-indexed, see reindexAliases()).
+   */
+  private final Set<String> _updatedFileIds = Collections.newSetFromMap(
+    new ConcurrentHashMap<String, Boolean>());
+  /**
+   * Open mode of the current session.
+   */
+  private volatile Options.OpenMode _sessionMode;
+  /**
+   * True if there is a running session.
+   */
+  private boolean _sessionActive = false;
   /**
    * IPC message processor.
    */
@@ -87,36 +147,239 @@ public class Indexer implements AutoCloseable, IndexerService.Iface {
         _options.createLockFactory());
       Analyzer analyzer = new SourceAnalyzer();
 
+      // The merges must not starve the search service on the same disks.
+      _mergeThrottle = new MergeThrottle(_indexDir,
+        _options.searchLatencySignalPath == null ? null :
+          new File(_options.searchLatencySignalPath),
+        _options.mergeMaxMBPerSec, _options.mergeMinMBPerSec,
+        _options.searchLatencyLimitMs);
+
       IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_4_9,analyzer);
       iwc.setRAMBufferSizeMB(1024.0);
+      iwc.setMergeScheduler(_mergeThrottle.getMergeScheduler());
+      // The old index is served until a rebuild session is finished.
+      iwc.setIndexDeletionPolicy(new KeepServableCommitPolicy());
 
-      switch (_options.indexOpenMode) {
-        case CREATE:
-          iwc.setOpenMode(OpenMode.CREATE);
-          break;
-        default:
-          iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
-          break;
+      if (_options.indexOpenMode == Options.OpenMode.CREATE &&
+        !isDaemon()) {
+        iwc.setOpenMode(OpenMode.CREATE);
+      } else {
+        // A daemon drops the old documents only if a session asks for it.
+        iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
       }
       
-      _indexWriter = new IndexWriter(_indexDir, iwc);
+      _indexWriter = new IndexWriter(_mergeThrottle.getDirectory(), iwc);
       _readerManager = new ReaderManager(_indexWriter, true);
+      _committer = new PeriodicCommitter(_indexWriter,
+        _options.commitFileLimit, _options.commitPeriodSecs,
+        _options.indexOpenMode != Options.OpenMode.CREATE);
     } catch (IOException e) {
       _log.log(Level.SEVERE, "Failed to open search index!", e);
       throw e;
     }
     
     TagGeneratorManager.init();
+    // Load the magic database before the indexer threads need it.
+    MimeTypeDetector.get();
     _executor = Executors.newCachedThreadPool();
     _indexers = new ArrayList<>();
     _processor = new IPCProcessor(options_,
       new IndexerService.Processor<Indexer>(this));
+    
+    if (!isDaemon()) {
+      // Implicit session with the command line options.
+      startSession(_options.indexOpenMode, false);
+    }
+  }
+  
+  /**
+   * @return true if the indexer is a resident process.
+   */
+  private boolean isDaemon() {
+    return _options.ipcSocket;
+  }
+  
+  /**
+   * Starts a new session. Only an unfinished rebuild can be resumed (see
+   * IndexCommits.isResumable()), otherwise a RESUME session re-creates the
+   * index.
+   * 
+   * @param mode_ session open mode.
+   * @param dropOld_ drop the old documents in CREATE mode (false only if the
+   *  index writer is just opened in CREATE mode).
+   * @throws IOException 
+   */
+  private void startSession(Options.OpenMode mode_, boolean dropOld_)
+    throws IOException {
+    if (_sessionActive) {
+      _log.log(Level.WARNING, "Starting a new session without ending the " +
+        "previous one!");
+      finishSession();
+    }
+    
+    Options.OpenMode mode = mode_;
+    boolean dropOld = dropOld_;
+    if (mode == Options.OpenMode.RESUME &&
+      !IndexCommits.isResumable(_indexWriter.getCommitData())) {
+      // The last commit is a finished index (or an update): its files could
+      // be stale, so none of them is durable.
+      _log.log(Level.WARNING, "No unfinished rebuild to resume, " +
+        "re-creating the index!");
+      mode = Options.OpenMode.CREATE;
+      dropOld = true;
+    }
+    
+    final File indexDir = new File(_options.indexDirPath);
+    if (mode == Options.OpenMode.CREATE) {
+      // The search service would open the kept shards of a bulk indexing.
+      IndexShardWriters.deleteShardDirs(indexDir);
+    } else if (!IndexShards.findShardDirs(indexDir).isEmpty()) {
+      throw new IOException("The index has kept shards, it can be only " +
+        "re-created!");
+    }
+    
+    // The session is begun before dropping the old documents, so no commit
+    // publishes the empty index.
+    _committer.beginSession(mode == Options.OpenMode.CREATE ||
+      mode == Options.OpenMode.RESUME, mode == Options.OpenMode.RESUME);
+    
+    if (mode == Options.OpenMode.CREATE && dropOld) {
+      _committer.beginChange();
+      try {
+        _indexWriter.deleteAll();
+      } finally {
+        _committer.endChange(false);
+      }
+    }
+    
+    // Deduplication only on a new index: the registry knows only the files
+    // of the session. The aliases of the files which are re-indexed by an
+    // update session are re-indexed at the end of the session.
+    _updatedFileIds.clear();
+    _contentRegistry = mode == Options.OpenMode.CREATE ?
+      new ContentRegistry() : null;
+    _sessionMode = mode;
+    _docModifiedCounter = 0;
+    _sessionActive = true;
+    
+    _log.log(Level.INFO, "Indexing session started! Mode: {0}",
+      mode.name());
+  }
+  
+  /**
+   * Finishes the current session: waits for the indexing tasks and commits
+   * the index.
+   * 
+   * @return number of successfully indexed files.
+   */
+  private int finishSession() {
+    final int indexedFileCount = waitFileIndexers();
+    _log.log(Level.INFO, "Indexed {0} file(s)", indexedFileCount);
+    
+    if (!_updatedFileIds.isEmpty()) {
+      reindexAliases();
+      _log.log(Level.INFO, "Re-indexed {0} alias(es)", waitFileIndexers());
+    }
+    _log.log(Level.INFO, "Modified {0} file(s)", _docModifiedCounter);
+    
+    try {
+      _committer.finishSession();
+      _readerManager.maybeRefresh();
+    } catch (IOException ex) {
+      _log.log(Level.SEVERE, "Failed to commit the session!", ex);
+    }
+    
+    _contentRegistry = null;
+    _sessionActive = false;
+    
+    return indexedFileCount;
+  }
+  
+  /**
+   * Re-indexes the aliases of the files indexed by an update session: the
+   * canonical document of an alias is replaced by the new version of its
+   * file, which may have an other content (or it may be indexed in chunks).
+   * An alias is re-indexed from its own file as a normal document, or it is
+   * deleted if its file can not be read any more.
+   */
+  private void reindexAliases() {
+    try {
+      _readerManager.maybeRefreshBlocking();
+      
+      final DirectoryReader reader = _readerManager.acquire();
+      try {
+        final Bits liveDocs = MultiFields.getLiveDocs(reader);
+        for (String fileId : _updatedFileIds) {
+          final DocsEnum aliases = MultiFields.getTermDocsEnum(reader,
+            liveDocs, IndexFields.aliasOfField, new BytesRef(fileId),
+            DocsEnum.FLAG_NONE);
+          if (aliases == null) {
+            continue;
+          }
+          
+          int doc;
+          while ((doc = aliases.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+            reindexAlias(reader.document(doc, ALIAS_FIELD_SET));
+          }
+        }
+      } finally {
+        _readerManager.release(reader);
+      }
+    } catch (IOException ex) {
+      _log.log(Level.SEVERE, "Failed to re-index the aliases!", ex);
+    }
+    
+    _updatedFileIds.clear();
+  }
+  
+  /**
+   * Re-indexes an alias from its file (asynchronously) or deletes it if the
+   * file can not be read.
+   * 
+   * @param alias_ stored fields of the alias document (see ALIAS_FIELD_SET).
+   * @throws IOException 
+   */
+  private void reindexAlias(Document alias_) throws IOException {
+    final String fileId = alias_.get(IndexFields.fileDbIdField);
+    final String filePath = alias_.get(IndexFields.filePathField);
+    
+    if (!new File(filePath).canRead()) {
+      _log.log(Level.INFO, "Deleting the alias {0}: its canonical file is " +
+        "changed and it can not be read.", filePath);
+      _committer.beginChange();
+      try {
+        _indexWriter.deleteDocuments(new Term(IndexFields.fileDbIdField,
+          fileId));
+      } finally {
+        _committer.endChange(false);
+      }
+      return;
+    }
+    
+    final AbstractIndexer indexer = AbstractIndexer.createForFile(filePath,
+      fileId, alias_.get(IndexFields.mimeTypeField), _indexWriter, null);
+    _indexers.add(_executor.submit(new IndexerTask(indexer, _committer)));
+  }
+  
+  /**
+   * Starts a session with the command line options if there is no running
+   * session (a daemon client may not start a session).
+   * 
+   * @throws IOException 
+   */
+  private void ensureSession() throws IOException {
+    if (!_sessionActive) {
+      _log.log(Level.WARNING, "No session, starting one!");
+      startSession(_options.indexOpenMode, true);
+    }
   }
 
   @Override
   public void close() {
     _processor.close();
     _executor.shutdown();
+    _committer.close();
+    _mergeThrottle.close();
     
     try {
       _readerManager.close();
@@ -180,14 +443,19 @@ public class Indexer implements AutoCloseable, IndexerService.Iface {
     }
 
     try {
-      _log.log(Level.INFO, "Indexer started! Mode: {0}",
-        indexer._options.indexOpenMode.name());
+      if (indexer.isDaemon()) {
+        _log.log(Level.INFO, "Indexer daemon started on port {0}!",
+          Integer.toString(indexer._processor.getPort()));
+      } else {
+        _log.log(Level.INFO, "Indexer started! Mode: {0}",
+          indexer._options.indexOpenMode.name());
+      }
       
       indexer._processor.serve();
-        
-      final int indexedFileCount = indexer.waitFileIndexers();
-      _log.log(Level.INFO, "Indexed {0} file(s)", indexedFileCount);
-      _log.log(Level.INFO, "Modified {0} file(s)", indexer._docModifiedCounter);
+      
+      if (indexer._sessionActive) {
+        indexer.finishSession();
+      }
     } finally {
       indexer.close();
     }
@@ -200,13 +468,57 @@ public class Indexer implements AutoCloseable, IndexerService.Iface {
     _processor.stopServe();
   }
 
+  @Override
+  public void beginSession(SessionMode mode_) {
+    try {
+      switch (mode_) {
+        case Create:
+          startSession(Options.OpenMode.CREATE, true);
+          break;
+        case ReplaceExisting:
+          startSession(Options.OpenMode.REPLACE_OLD, true);
+          break;
+        case Merge:
+          startSession(Options.OpenMode.MERGE, true);
+          break;
+        case Resume:
+          startSession(Options.OpenMode.RESUME, true);
+          break;
+        default:
+          _log.log(Level.SEVERE, "Unknown session mode: {0}", mode_);
+          break;
+      }
+    } catch (IOException ex) {
+      _log.log(Level.SEVERE, "Failed to start a session!", ex);
+    } catch (Exception ex) {
+      _log.log(Level.SEVERE, "An unknown exception caught!", ex);
+    }
+  }
+
+  @Override
+  public int endSession() {
+    if (!_sessionActive) {
+      _log.log(Level.WARNING, "No session to end!");
+      return 0;
+    }
+    
+    return finishSession();
+  }
+
   @Override
   public void indexFile(String fileId_, String filePath_, String mimeType_) {
     _log.log(Level.FINEST, "Adding file {0} to index.", filePath_);
     
     try {
-      _indexers.add(_executor.submit(new IndexerTask(
-        new FileIndexer(filePath_, fileId_, mimeType_, _indexWriter))));
+      ensureSession();
+      
+      final AbstractIndexer indexer = AbstractIndexer.createForFile(filePath_,
+        fileId_, mimeType_, _indexWriter, _contentRegistry);
+      if (_sessionMode != Options.OpenMode.CREATE) {
+        _updatedFileIds.add(fileId_);
+      }
+      
+      _indexers.add(_executor.submit(new IndexerTask(indexer, _committer)));
     } catch (Exception ex) {
       _log.log(Level.SEVERE, "An unknown exception caught!", ex);
     }
@@ -217,6 +529,14 @@ public class Indexer implements AutoCloseable, IndexerService.Iface {
     Map<String, List<FieldValue>> fields_) throws org.apache.thrift.TException {
     
     _log.log(Level.FINEST, "Start adding extra values to file {0}", fileId_);
+    try {
+      ensureSession();
+    } catch (IOException ex) {
+      _log.log(Level.SEVERE, "Failed to start a session!", ex);
+      return;
+    }
+    
+    _committer.beginChange();
     try {
       _readerManager.maybeRefreshBlocking();
       
@@ -241,9 +561,59 @@ public class Indexer implements AutoCloseable, IndexerService.Iface {
         "exception!", ex);
     } catch (Exception ex) {
       _log.log(Level.SEVERE, "An unknown exception caught!", ex);
+    } finally {
+      _committer.endChange(false);
     }
   }
 
+  @Override
+  public List<String> getDurableFileIds() {
+    final List<String> fileIds = new ArrayList<>();
+
+    try {
+      if (!DirectoryReader.indexExists(_indexDir)) {
+        return fileIds;
+      }
+
+      // Open the last commit (not the near real-time view of the writer)
+      try (DirectoryReader reader = DirectoryReader.open(_indexDir)) {
+        // Only the files of this (resumed) rebuild are durable: an older
+        // commit would report the stale files of the old index.
+        final Map<String, String> commitData =
+          reader.getIndexCommit().getUserData();
+        if (!IndexCommits.isResumable(commitData) ||
+          !_committer.getSessionId().equals(
+            commitData.get(IndexCommits.SESSION_ID_KEY))) {
+          return fileIds;
+        }
+
+        final Terms terms = MultiFields.getTerms(reader,
+          IndexFields.fileDbIdField);
+        if (terms == null) {
+          return fileIds;
+        }
+
+        final Bits liveDocs = MultiFields.getLiveDocs(reader);
+        final TermsEnum termsEnum = terms.iterator(null);
+        DocsEnum docsEnum = null;
+        BytesRef term;
+        while ((term = termsEnum.next()) != null) {
+          docsEnum = termsEnum.docs(liveDocs, docsEnum, DocsEnum.FLAG_NONE);
+          if (docsEnum.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+            fileIds.add(term.utf8ToString());
+          }
+        }
+      }
+    } catch (IOException ex) {
+      _log.log(Level.SEVERE, "Failed to read the committed file ids!", ex);
+    } catch (Exception ex) {
+      _log.log(Level.SEVERE, "An unknown exception caught!", ex);
+    }
+
+    _log.log(Level.INFO, "{0} file(s) are committed.", fileIds.size());
+    return fileIds;
+  }
+
   @Override
   public void buildSuggestions() {
     _log.log(Level.FINEST, "Start building suggestion databases");
@@ -275,6 +645,9 @@ public class Indexer implements AutoCloseable, IndexerService.Iface {
       final DirectoryReader reader = _readerManager.acquire();
       try {
         res.put("Documents in index", Integer.toString(reader.numDocs()));
+        res.put("Committed files", Long.toString(
+          _committer.getCommittedFileCount()));
+        _mergeThrottle.addStatistics(res);
       } finally {
         _readerManager.release(reader);
       }
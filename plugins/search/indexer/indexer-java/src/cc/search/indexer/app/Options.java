@@ -19,13 +19,48 @@ final class Options extends CommonOptions {
   public enum OpenMode {
     CREATE,
     REPLACE_OLD,
-    MERGE
+    MERGE,
+    RESUME
   }
 
   /**
    * Index database open mode.
    */
   public OpenMode indexOpenMode = OpenMode.CREATE;
+  /**
+   * Commit the index after this many indexed files (0 means no limit).
+   */
+  public int commitFileLimit = 10000;
+  /**
+   * Commit the index periodically after this many seconds (0 means no
+   * periodic commit).
+   */
+  public int commitPeriodSecs = 300;
+  /**
+   * Maximal write rate of the merges in MB/s (0 means unlimited).
+   */
+  public int mergeMaxMBPerSec = 0;
+  /**
+   * The adaptive merge throttling does not go below this rate (MB/s).
+   */
+  public int mergeMinMBPerSec = 2;
+  /**
+   * Throttle the merges when the search service reports a higher latency
+   * (in milliseconds, 0 means no adaptive throttling). It needs the latency
+   * signal (see searchLatencySignalPath).
+   */
+  public int searchLatencyLimitMs = 500;
+  
+  @Override
+  protected void validate() throws InvalidValueException {
+    super.validate();
+    
+    if (ipcWorkers > 1) {
+      // The indexing sessions are shared between the clients.
+      throw new InvalidValueException("The indexer serves only one IPC " +
+        "client at a time!");
+    }
+  }
   
   @Override
   protected void setFromCommandLineArguments(List<String> args_)
@@ -47,12 +82,69 @@ final class Options extends CommonOptions {
         case "-merge":
           indexOpenMode = OpenMode.MERGE;
           break;
+        case "-resume":
+          indexOpenMode = OpenMode.RESUME;
+          break;
+        case "-commitFiles":
+          if (!argIter.hasNext()) {
+            throw new InvalidValueException("-commitFiles is empty");
+          }
+          commitFileLimit = parseNonNegative(arg, argIter.next());
+          break;
+        case "-commitSeconds":
+          if (!argIter.hasNext()) {
+            throw new InvalidValueException("-commitSeconds is empty");
+          }
+          commitPeriodSecs = parseNonNegative(arg, argIter.next());
+          break;
+        case "-mergeMBPerSec":
+          if (!argIter.hasNext()) {
+            throw new InvalidValueException("-mergeMBPerSec is empty");
+          }
+          mergeMaxMBPerSec = parseNonNegative(arg, argIter.next());
+          break;
+        case "-mergeMinMBPerSec":
+          if (!argIter.hasNext()) {
+            throw new InvalidValueException("-mergeMinMBPerSec is empty");
+          }
+          mergeMinMBPerSec = parseNonNegative(arg, argIter.next());
+          if (mergeMinMBPerSec == 0) {
+            throw new InvalidValueException("-mergeMinMBPerSec must be " +
+              "positive");
+          }
+          break;
+        case "-searchLatencyLimit":
+          if (!argIter.hasNext()) {
+            throw new InvalidValueException("-searchLatencyLimit is empty");
+          }
+          searchLatencyLimitMs = parseNonNegative(arg, argIter.next());
+          break;
         default:
           throw new UnknownArgumentException(arg);
       }
     }
   }
   
+  /**
+   * @param arg_ argument name.
+   * @param value_ argument value.
+   * @return the value as a non negative number.
+   * @throws InvalidValueException 
+   */
+  private static int parseNonNegative(String arg_, String value_)
+    throws InvalidValueException {
+    try {
+      final int value = Integer.parseInt(value_);
+      if (value >= 0) {
+        return value;
+      }
+    } catch (NumberFormatException ex) {
+      // handled below
+    }
+    
+    throw new InvalidValueException("Bad value for " + arg_ + ": " + value_);
+  }
+  
   /**
    * Returns a command line help message for the user.
    * 
@@ -63,9 +155,18 @@ final class Options extends CommonOptions {
       + "\t-create\n\t\tOverwrite the index database if already exists or create one.\n"
       + "\t-append\n\t\tDo not overwrite the index database if already exists, just append to the documents.\n"
       + "\t-replaceExisting\n\t\tOverwrite the index database. (Not implemented)\n"
+      + "\t-resume\n\t\tContinue an interrupted -create session: keep the committed documents (else re-create the index).\n"
+      + "\t-commitFiles count\n\t\tCommit the index after this many indexed files (0: no limit, default: 10000).\n"
+      + "\t-commitSeconds secs\n\t\tCommit the index periodically (0: never, default: 300).\n"
+      + "\t-mergeMBPerSec rate\n\t\tMaximal write rate of the index merges in MB/s (0: unlimited, default: 0).\n"
+      + "\t-mergeMinMBPerSec rate\n\t\tMinimal merge rate when the merges are throttled (default: 2).\n"
+      + "\t-searchLatencyLimit ms\n\t\tThrottle the merges when the search service is slower (0: never, default: 500,\n\t\tneeds -searchLatencySignal).\n"
       + "\n\n"
       + "The indexer reads the file paths line-by-line from the given source \n"
-      + "(-indexFilesList) which is the standard input by default. ";
+      + "(-indexFilesList) which is the standard input by default. \n"
+      + "With -ipcSocket the indexer is a resident process which serves many \n"
+      + "indexing sessions (see beginSession and endSession) and the open \n"
+      + "mode is used only for clients which do not start a session. ";
   }
 
   /**
@@ -1,70 +1,139 @@
 package cc.search.indexer.util;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
 
 /**
  * Helper method for I/O.
  */
 public class IOHelper {
   /**
-   * Construct an InputStreamReader with a possibly correct character set. The
-   * implementation is based on OpenGrock (TextAnalyzer.java).
-   * 
-   * @param input_ input stream.
-   * @return input reader.
-   * @throws java.io.IOException
+   * Reads the full content of a file to a byte array.
+   *
+   * @param file_ a file.
+   * @return raw content.
+   * @throws IOException
    */
-  public static InputStreamReader getReaderForInput(InputStream input_) throws IOException {
-    InputStream in = input_.markSupported() ?
-      input_ : new BufferedInputStream(input_);
-
-    String charset = null;
-    byte[] head = new byte[3];
-    
-    in.mark(3);
-    
-    int br = in.read(head, 0, 3);
-    if (br >= 2
-      && (head[0] == (byte) 0xFE && head[1] == (byte) 0xFF)
-      || (head[0] == (byte) 0xFF && head[1] == (byte) 0xFE)) {
-      charset = "UTF-16";
-      in.reset();
-    } else if (br >= 3
-      && head[0] == (byte) 0xEF && head[1] == (byte) 0xBB
-      && head[2] == (byte) 0xBF) {
-      // InputStreamReader does not properly discard BOM on UTF8 streams,
-      // so don't reset the stream.
-      charset = "UTF-8";
+  public static byte[] readFullContent(File file_) throws IOException {
+    return Files.readAllBytes(file_.toPath());
+  }
+
+  /**
+   * Reads the first (at most) size_ bytes of a file.
+   *
+   * @param file_ a file.
+   * @param size_ maximal number of bytes to read.
+   * @return the head of the file.
+   * @throws IOException
+   */
+  public static byte[] readHead(File file_, int size_) throws IOException {
+    try (InputStream in = new FileInputStream(file_)) {
+      final byte[] head = new byte[size_];
+
+      int length = 0;
+      while (length < size_) {
+        final int br = in.read(head, length, size_ - length);
+        if (br < 0) {
+          break;
+        }
+        length += br;
+      }
+
+      return length == size_ ? head : Arrays.copyOf(head, length);
     }
+  }
+
+  /**
+   * Decodes a raw file content with a possibly correct character set. The
+   * charset detection is based on OpenGrock (TextAnalyzer.java).
+   *
+   * @param content_ raw content.
+   * @return content.
+   */
+  public static String decodeContent(byte[] content_) {
+    final int bomLength = getUtf8BomLength(content_, content_.length);
+
+    return new String(content_, bomLength, content_.length - bomLength,
+      detectCharset(content_, content_.length));
+  }
+
+  /**
+   * Opens a reader for a file with a possibly correct character set (see
+   * {@link #decodeContent(byte[])}).
+   *
+   * @param file_ a file.
+   * @return a buffered reader for the content.
+   * @throws IOException
+   */
+  public static Reader openReader(File file_) throws IOException {
+    final InputStream in = new BufferedInputStream(new FileInputStream(file_));
+
+    try {
+      final byte[] head = new byte[3];
+      in.mark(3);
+
+      int length = 0;
+      while (length < head.length) {
+        final int br = in.read(head, length, head.length - length);
+        if (br < 0) {
+          break;
+        }
+        length += br;
+      }
 
-    if (charset == null) {
       in.reset();
-      charset = Charset.defaultCharset().name();
-    }
+      // InputStreamReader does not properly discard BOM on UTF8 streams.
+      in.skip(getUtf8BomLength(head, length));
 
-    return new InputStreamReader(in, charset);
+      return new BufferedReader(new InputStreamReader(in,
+        detectCharset(head, length)));
+    } catch (IOException ex) {
+      in.close();
+      throw ex;
+    }
   }
+
   /**
-   * Reads the full content of the stream to a String.
-   * 
-   * @param reader_ input stream.
-   * @return content.
-   * @throws IOException 
+   * Detects the character set of a content by its byte order mark.
+   *
+   * @param head_ the head of the content.
+   * @param length_ valid bytes in head_.
+   * @return character set.
    */
-  public static String readFullContent(InputStreamReader reader_) throws IOException {
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
+  private static Charset detectCharset(byte[] head_, int length_) {
+    if (length_ >= 2
+      && ((head_[0] == (byte) 0xFE && head_[1] == (byte) 0xFF)
+      || (head_[0] == (byte) 0xFF && head_[1] == (byte) 0xFE))) {
+      return StandardCharsets.UTF_16;
+    } else if (getUtf8BomLength(head_, length_) != 0) {
+      return StandardCharsets.UTF_8;
+    }
 
-    int b = reader_.read();
-    while (b != -1) {
-      out.write(b);
-      b = reader_.read();
+    return Charset.defaultCharset();
+  }
+
+  /**
+   * @param head_ the head of the content.
+   * @param length_ valid bytes in head_.
+   * @return the length of the UTF8 byte order mark (0 if there is no BOM).
+   */
+  private static int getUtf8BomLength(byte[] head_, int length_) {
+    if (length_ >= 3
+      && head_[0] == (byte) 0xEF && head_[1] == (byte) 0xBB
+      && head_[2] == (byte) 0xBF) {
+      return 3;
     }
 
-    return out.toString(reader_.getEncoding());
+    return 0;
   }
 }
@@ -0,0 +1,230 @@
+package cc.search.indexer.util;
+
+import com.j256.simplemagic.ContentInfo;
+import com.j256.simplemagic.ContentInfoUtil;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A shared, thread safe mime-type detector.
+ * 
+ * Loading the magic database is expensive, so this class loads it only once
+ * and runs the detection on the head of an already read file content. The
+ * results are cached by file extension and head signature, and some well
+ * known source file extensions are resolved without any content inspection.
+ */
+public final class MimeTypeDetector {
+  /**
+   * Logger.
+   */
+  private static final Logger _log  = Logger.getLogger(MimeTypeDetector.class
+    .getName());
+  /**
+   * Number of bytes inspected by the magic database (same as the default read
+   * size of ContentInfoUtil).
+   */
+  public static final int HEAD_SIZE = ContentInfoUtil.DEFAULT_READ_SIZE;
+  /**
+   * Maximal number of cached detection results.
+   */
+  private static final int MAX_CACHE_SIZE = 10000;
+  /**
+   * Marker for "no mime type found" in the cache.
+   */
+  private static final String NO_MIME_TYPE = "";
+  /**
+   * Singleton instance.
+   */
+  private static final MimeTypeDetector _instance = new MimeTypeDetector();
+  /**
+   * Extension -> mime type map for the fast path.
+   */
+  private static final Map<String, String> _extensionToMime = new HashMap<>();
+  /**
+   * The magic database (read only after construction).
+   */
+  private final ContentInfoUtil _magic;
+  /**
+   * Cache for detection results (LRU).
+   */
+  private final Map<CacheKey, String> _cache;
+  
+  static {
+    _extensionToMime.put("c", "text/x-c");
+    _extensionToMime.put("h", "text/x-c");
+    _extensionToMime.put("cc", "text/x-c++");
+    _extensionToMime.put("cpp", "text/x-c++");
+    _extensionToMime.put("cxx", "text/x-c++");
+    _extensionToMime.put("hh", "text/x-c++");
+    _extensionToMime.put("hpp", "text/x-c++");
+    _extensionToMime.put("hxx", "text/x-c++");
+    _extensionToMime.put("java", "text/x-java");
+    _extensionToMime.put("php", "text/x-php");
+    _extensionToMime.put("py", "text/x-python");
+    _extensionToMime.put("pl", "text/x-perl");
+    _extensionToMime.put("pm", "text/x-perl");
+    _extensionToMime.put("rb", "text/x-ruby");
+    _extensionToMime.put("tcl", "text/x-tcl");
+    _extensionToMime.put("awk", "text/x-awk");
+    _extensionToMime.put("m4", "text/x-m4");
+    _extensionToMime.put("sh", "text/x-shellscript");
+    _extensionToMime.put("js", "application/javascript");
+  }
+  
+  /**
+   * Cache key: file extension and a signature of the head bytes.
+   */
+  private static final class CacheKey {
+    /**
+     * File extension (lower case, maybe empty).
+     */
+    private final String _extension;
+    /**
+     * Number of head bytes.
+     */
+    private final int _length;
+    /**
+     * 64 bit FNV-1a hash of the head bytes.
+     */
+    private final long _signature;
+    
+    /**
+     * @param extension_ file extension.
+     * @param head_ content bytes.
+     * @param length_ number of valid bytes in head_.
+     */
+    CacheKey(String extension_, byte[] head_, int length_) {
+      long hash = 0xcbf29ce484222325L;
+      for (int i = 0; i < length_; ++i) {
+        hash ^= head_[i] & 0xff;
+        hash *= 0x100000001b3L;
+      }
+      
+      _extension = extension_;
+      _length = length_;
+      _signature = hash;
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = 7;
+      hash = 53 * hash + _extension.hashCode();
+      hash = 53 * hash + _length;
+      hash = 53 * hash + (int) (_signature ^ (_signature >>> 32));
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj_) {
+      if (!(obj_ instanceof CacheKey)) {
+        return false;
+      }
+      
+      final CacheKey other = (CacheKey) obj_;
+      return _length == other._length && _signature == other._signature &&
+        _extension.equals(other._extension);
+    }
+  }
+  
+  /**
+   * Loads the magic database.
+   */
+  private MimeTypeDetector() {
+    _magic = new ContentInfoUtil();
+    _cache = Collections.synchronizedMap(
+      new LinkedHashMap<CacheKey, String>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<CacheKey, String> e_) {
+          return size() > MAX_CACHE_SIZE;
+        }
+      });
+  }
+  
+  /**
+   * Returns the shared instance. The first call loads the magic database.
+   * 
+   * @return the detector.
+   */
+  public static MimeTypeDetector get() {
+    return _instance;
+  }
+  
+  /**
+   * Tries to detect the mime-type of a file by its name and content. This
+   * method is thread safe.
+   * 
+   * NOTE:
+   * First I tried Files.probeContentType(Path) but it causes a SEGFAULT on some
+   * machines in the JVM.
+   * 
+   * @param fileName_ the name of the file.
+   * @param content_ the content of the file (only the first HEAD_SIZE bytes
+   *  are used).
+   * @return a mime type or null on failure.
+   */
+  public String detect(String fileName_, byte[] content_) {
+    final String extension = getExtension(fileName_);
+    
+    final String knownMime = _extensionToMime.get(extension);
+    if (knownMime != null) {
+      return knownMime;
+    }
+    
+    final CacheKey key = new CacheKey(extension, content_,
+      Math.min(content_.length, HEAD_SIZE));
+    String mimeType = _cache.get(key);
+    if (mimeType == null) {
+      mimeType = detectByMagic(fileName_, content_);
+      _cache.put(key, mimeType);
+    }
+    
+    return mimeType == NO_MIME_TYPE ? null : mimeType;
+  }
+  
+  /**
+   * Runs the magic database on the head bytes, and falls back to the extension
+   * match.
+   * 
+   * @param fileName_ the name of the file.
+   * @param content_ the content of the file.
+   * @return a mime type or NO_MIME_TYPE.
+   */
+  private String detectByMagic(String fileName_, byte[] content_) {
+    try {
+      final byte[] head = content_.length > HEAD_SIZE ?
+        Arrays.copyOf(content_, HEAD_SIZE) : content_;
+      
+      ContentInfo cinfo = _magic.findMatch(head);
+      if (cinfo == null) {
+        cinfo = ContentInfoUtil.findExtensionMatch(fileName_);
+      }
+      
+      if (cinfo != null && cinfo.getMimeType() != null) {
+        return cinfo.getMimeType();
+      }
+    } catch (IllegalStateException ex) {
+      _log.log(Level.WARNING, "Something bad happened during the mime-type " +
+        "detection!", ex);
+    }
+    
+    return NO_MIME_TYPE;
+  }
+  
+  /**
+   * @param fileName_ a file name.
+   * @return the lower case extension of the file or an empty string.
+   */
+  private static String getExtension(String fileName_) {
+    final int dotPos = fileName_.lastIndexOf('.');
+    if (dotPos < 0 || dotPos == fileName_.length() - 1) {
+      return "";
+    }
+    
+    return fileName_.substring(dotPos + 1).toLowerCase();
+  }
+}
@@ -85,6 +85,31 @@ struct FieldValue
  */
 typedef map<string, list<FieldValue>> Fields
 
+/**
+ * Open mode of an indexing session.
+ */
+enum SessionMode
+{
+  /**
+   * Drop all documents and build a new index.
+   */
+  Create = 0,
+  /**
+   * Replace documents with their new versions and keep the unchanged ones.
+   */
+  ReplaceExisting = 1,
+  /**
+   * Merge new and old documents.
+   */
+  Merge = 2,
+  /**
+   * Continue an interrupted Create session: keep the committed documents.
+   * If the last commit is not an unfinished Create session, then the index
+   * is re-created.
+   */
+  Resume = 3
+}
+
 /**
  * Interface for search indexer.
  */
@@ -96,6 +121,26 @@ service IndexerService
    */
   oneway void stop(),
 
+  /**
+   * Starts a new indexing session. An indexer started with command line
+   * options has an implicit session (with the mode given on the command line)
+   * so it is needed only for a resident (daemon) indexer which serves many
+   * sessions with the same index writer, tag generators and caches. An
+   * unfinished session is finished first.
+   *
+   * @param mode_ session open mode.
+   */
+  void beginSession(1:SessionMode mode_),
+
+  /**
+   * Finishes the current session: waits for the running indexing tasks and
+   * commits the index. The indexer keeps running, so a new session can be
+   * started.
+   *
+   * @return number of successfully indexed files in the session.
+   */
+  i32 endSession(),
+
   /**
    * Add a file to the index database.
    *
@@ -119,6 +164,17 @@ service IndexerService
     1:string fileId_,
     2:Fields fields_),
 
+  /**
+   * Returns the database ids of the files which are in the last commit of
+   * the index database. The index is committed periodically, so after a
+   * crash a new indexer (opened with the resume mode) can continue the work
+   * by indexing only the other files. The list is empty unless the last
+   * commit belongs to the current (resumed) Create session.
+   *
+   * @return file ids.
+   */
+  list<string> getDurableFileIds(),
+
   /**
    * (Re)Builds a suggestion index databases. Its a blocking call, so it may
    * take a long time.
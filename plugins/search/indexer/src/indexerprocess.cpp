@@ -1,8 +1,22 @@
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <fstream>
+#include <iterator>
 #include <sstream>
+#include <thread>
+
+#include <fcntl.h>
+#include <signal.h>
+#include <sys/file.h>
+#include <sys/stat.h>
+#include <unistd.h>
 
 #include <boost/log/expressions.hpp>
 
 #include <thrift/transport/TFDTransport.h>
+#include <thrift/transport/TSocket.h>
+#include <thrift/transport/TBufferTransports.h>
 #include <thrift/protocol/TBinaryProtocol.h>
 
 #include <util/logutil.h>
@@ -20,6 +34,127 @@
   #define JAVAMEMORYAMOUNT "-Xmx2g"
 #endif
 
+namespace
+{
+
+/**
+ * Returns the log level option of the Java process.
+ */
+std::string getLogLevelOption()
+{
+  std::string logLevelOpt("-Dcc.search.logLevel=");
+
+  auto fmtSeverity = cc::util::getSeverityLevel();
+
+  if (fmtSeverity == boost::log::trivial::info)
+    logLevelOpt += "INFO";
+  else if (fmtSeverity == boost::log::trivial::error ||
+           fmtSeverity == boost::log::trivial::warning)
+    logLevelOpt += "WARNING";
+  else if (fmtSeverity == boost::log::trivial::fatal)
+    logLevelOpt += "SEVERE";
+  else
+    logLevelOpt += "FINEST";
+
+  return logLevelOpt;
+}
+
+/**
+ * Returns the path of the search latency signal of an index database. It is
+ * next to the index database (not in it), the search service publishes the
+ * same file (see ServiceProcess).
+ */
+std::string getLatencySignalPath(const std::string& indexDatabase_)
+{
+  return indexDatabase_ + ".latency";
+}
+
+/**
+ * Generates a random access token for the IPC connections.
+ *
+ * @return the token as a hex string or an empty string on failure.
+ */
+std::string generateToken()
+{
+  unsigned char bytes[16];
+  std::ifstream random("/dev/urandom", std::ios::binary);
+  if (!random.read(reinterpret_cast<char*>(bytes), sizeof(bytes)))
+  {
+    return std::string();
+  }
+
+  std::string token;
+  char hex[3];
+  for (unsigned char byte : bytes)
+  {
+    std::snprintf(hex, sizeof(hex), "%02x", byte);
+    token += hex;
+  }
+
+  return token;
+}
+
+/**
+ * Exclusive lock of the pid file of a resident indexer, so concurrent parser
+ * runs do not start two indexers on the same index. It is released when the
+ * object is destroyed.
+ */
+class PidFileLock
+{
+public:
+  /**
+   * Waits for the lock of a pid file. The file is created if it does not
+   * exist.
+   *
+   * @param path_ Path of the pid file.
+   * @throw Failure if the file can not be locked.
+   */
+  explicit PidFileLock(const std::string& path_) :
+    _fd(::open(path_.c_str(), O_RDWR | O_CREAT | O_CLOEXEC, S_IRUSR | S_IWUSR))
+  {
+    if (_fd < 0 || ::flock(_fd, LOCK_EX) != 0)
+    {
+      if (_fd >= 0)
+        ::close(_fd);
+      throw cc::util::PipedProcess::Failure("Failed to lock " + path_);
+    }
+  }
+
+  PidFileLock(const PidFileLock&) = delete;
+  PidFileLock& operator=(const PidFileLock&) = delete;
+
+  ~PidFileLock()
+  {
+    ::close(_fd);
+  }
+
+private:
+  /**
+   * The locked file.
+   */
+  int _fd;
+};
+
+/**
+ * Reads a line from a file descriptor.
+ *
+ * @param fd_ the file descriptor.
+ * @return the line without the new line character.
+ */
+std::string readLine(int fd_)
+{
+  std::string line;
+  char c;
+  while (::read(fd_, &c, 1) == 1 && c != '\n')
+  {
+    line += c;
+  }
+
+  return line;
+}
+
+} // anonymous namespace
+
 namespace cc
 {
 namespace parser
@@ -28,7 +163,9 @@ namespace parser
 IndexerProcess::IndexerProcess(
   const std::string& indexDatabase_,
   IndexerProcess::OpenMode openMode_,
-  IndexerProcess::LockMode lockMode_)
+  IndexerProcess::LockMode lockMode_) :
+  _pipeFd2{0, 0}, _residentPid(0), _residentPort(0),
+  _stopped(false)
 {
   openPipe(_pipeFd2[0], _pipeFd2[1]);
 
@@ -38,19 +175,8 @@ IndexerProcess::IndexerProcess(
     std::string inFd(std::to_string(_pipeFd[0]));
     std::string outFd(std::to_string(_pipeFd2[1]));
 
-    std::string logLevelOpt("-Dcc.search.logLevel=");
-
-    auto fmtSeverity = util::getSeverityLevel();
-
-    if (fmtSeverity == boost::log::trivial::info)
-      logLevelOpt += "INFO";
-    else if (fmtSeverity == boost::log::trivial::error ||
-             fmtSeverity == boost::log::trivial::warning)
-      logLevelOpt += "WARNING";
-    else if (fmtSeverity == boost::log::trivial::fatal)
-      logLevelOpt += "SEVERE";
-    else
-      logLevelOpt += "FINEST";
+    std::string logLevelOpt(getLogLevelOption());
+    std::string latencySignal(getLatencySignalPath(indexDatabase_));
 
     std::vector<const char*> execArguments {
       "java", JAVAMEMORYAMOUNT,
@@ -60,7 +186,8 @@ IndexerProcess::IndexerProcess(
       "cc.search.indexer.app.Indexer",
       "-indexDB", indexDatabase_.c_str(),
       "-ipcInFd", inFd.c_str(),
-      "-ipcOutFd", outFd.c_str()
+      "-ipcOutFd", outFd.c_str(),
+      "-searchLatencySignal", latencySignal.c_str()
     };
 
     switch (openMode_)
@@ -74,6 +201,9 @@ IndexerProcess::IndexerProcess(
       case OpenMode::Merge:
         execArguments.push_back("-merge");
         break;
+      case OpenMode::Resume:
+        execArguments.push_back("-resume");
+        break;
     }
 
     switch (lockMode_)
@@ -114,9 +244,318 @@ IndexerProcess::IndexerProcess(
   }
 }
 
+IndexerProcess::IndexerProcess(const std::string& indexDatabase_) :
+  _pipeFd2{0, 0},
+  _residentPidFile(indexDatabase_ + ".indexer.pid"),
+  _residentPid(0),
+  _residentPort(0),
+  _stopped(false)
+{
+}
+
+std::unique_ptr<IndexerProcess> IndexerProcess::openResident(
+  const std::string& indexDatabase_,
+  IndexerProcess::LockMode lockMode_)
+{
+  std::unique_ptr<IndexerProcess> indexer(new IndexerProcess(indexDatabase_));
+  PidFileLock lock(indexer->_residentPidFile);
+
+  if (indexer->readResidentInfo())
+  {
+    // A running indexer holds the index, so an other one must not be started
+    // (it would clean up the locks of the running one).
+    if (!indexer->connectResident(50))
+    {
+      throw Failure("The resident indexer (pid " +
+        std::to_string(indexer->_residentPid) + ") does not respond!");
+    }
+
+    LOG(info) << "Connected to the resident indexer (pid "
+      << indexer->_residentPid << ").";
+    return indexer;
+  }
+
+  indexer->startResident(indexDatabase_, lockMode_);
+
+  if (!indexer->connectResident(10))
+  {
+    throw Failure("Failed to connect to the resident indexer!");
+  }
+
+  LOG(info) << "Started a resident indexer (pid "
+    << indexer->_residentPid << ").";
+  return indexer;
+}
+
+bool IndexerProcess::stopResident(const std::string& indexDatabase_)
+{
+  IndexerProcess indexer(indexDatabase_);
+  if (::access(indexer._residentPidFile.c_str(), F_OK) != 0)
+  {
+    // No resident indexer was started on this index.
+    return false;
+  }
+
+  PidFileLock lock(indexer._residentPidFile);
+
+  if (!indexer.readResidentInfo())
+  {
+    return false;
+  }
+
+  if (!indexer.connectResident(50))
+  {
+    throw Failure("The resident indexer (pid " +
+      std::to_string(indexer._residentPid) + ") does not respond!");
+  }
+
+  // The indexer commits its session before it exits.
+  indexer.stop();
+  for (int attempt = 0; indexer.isResidentAlive(); ++attempt)
+  {
+    if (attempt >= 6000)
+    {
+      throw Failure("The resident indexer (pid " +
+        std::to_string(indexer._residentPid) + ") does not exit!");
+    }
+
+    std::this_thread::sleep_for(std::chrono::milliseconds(100));
+  }
+
+  // The file stays, it is the lock of the next starter.
+  if (::truncate(indexer._residentPidFile.c_str(), 0) != 0)
+  {
+    LOG(warning) << "Failed to clear " << indexer._residentPidFile;
+  }
+
+  LOG(info) << "Stopped the resident indexer (pid "
+    << indexer._residentPid << ").";
+  return true;
+}
+
+bool IndexerProcess::readResidentInfo()
+{
+  std::ifstream pidFile(_residentPidFile);
+  if (!(pidFile >> _residentPid))
+  {
+    _residentPid = 0;
+    return false;
+  }
+
+  if (!isResidentAlive())
+  {
+    return false;
+  }
+
+  // An indexer without port or token in the pid file is still running.
+  pidFile >> _residentPort >> _residentToken;
+  return true;
+}
+
+bool IndexerProcess::isResidentAlive() const
+{
+  if (_residentPid <= 0 || ::kill(_residentPid, 0) != 0)
+  {
+    return false;
+  }
+
+  // The pid may be reused by an other process after the indexer exited.
+  std::ifstream cmdline("/proc/" + std::to_string(_residentPid) + "/cmdline");
+  std::string args(
+    (std::istreambuf_iterator<char>(cmdline)),
+    std::istreambuf_iterator<char>());
+
+  return args.find("cc.search.indexer.app.Indexer") != std::string::npos;
+}
+
+void IndexerProcess::startResident(
+  const std::string& indexDatabase_,
+  IndexerProcess::LockMode lockMode_)
+{
+  _residentToken = generateToken();
+  if (_residentToken.empty())
+  {
+    throw Failure("Failed to generate an IPC access token!");
+  }
+
+  // The indexer reads the access token from the first pipe and writes its
+  // port to the second one.
+  int tokenPipe[2] = {0, 0};
+  openPipe(tokenPipe[0], tokenPipe[1]);
+  openPipe(_pipeFd2[0], _pipeFd2[1]);
+
+  std::string inFd(std::to_string(tokenPipe[0]));
+  std::string outFd(std::to_string(_pipeFd2[1]));
+  std::string logLevelOpt(getLogLevelOption());
+  std::string logFile(indexDatabase_ + ".indexer.log");
+  std::string latencySignal(getLatencySignalPath(indexDatabase_));
+
+  std::vector<const char*> execArguments {
+    "java", JAVAMEMORYAMOUNT,
+    "-Djava.util.logging.config.class=cc.search.common.config.LogConfigurator",
+    "-Djava.util.logging.SimpleFormatter.format=[%4$s] %5$s%6$s%n",
+    logLevelOpt.c_str(),
+    "cc.search.indexer.app.Indexer",
+    "-indexDB", indexDatabase_.c_str(),
+    "-ipcInFd", inFd.c_str(),
+    "-ipcOutFd", outFd.c_str(),
+    "-ipcSocket",
+    "-searchLatencySignal", latencySignal.c_str()
+  };
+
+  if (lockMode_ == LockMode::Simple)
+  {
+    execArguments.push_back("-useSimpleFileLock");
+    execArguments.push_back("-cleanupLocks");
+  }
+
+  execArguments.push_back(nullptr);
+
+  // The indexer is started by an intermediate child, so it is not our child
+  // and it does not die with the parser.
+  if (startProcess(false) == 0)
+  {
+    ::setsid();
+
+    pid_t pid = ::fork();
+    if (pid == 0)
+    {
+      // The indexer must not keep the descriptors of the parser (e.g. the
+      // pid file lock or database connections) open.
+      long maxFd = ::sysconf(_SC_OPEN_MAX);
+      for (int fd = STDERR_FILENO + 1; fd < maxFd; ++fd)
+      {
+        if (fd != tokenPipe[0] && fd != _pipeFd2[1])
+          ::close(fd);
+      }
+
+      int nullFd = ::open("/dev/null", O_RDONLY | O_CLOEXEC);
+      int logFd = ::open(logFile.c_str(),
+        O_WRONLY | O_CREAT | O_APPEND | O_CLOEXEC, 0644);
+      if (nullFd >= 0)
+        ::dup2(nullFd, STDIN_FILENO);
+      if (logFd >= 0)
+      {
+        ::dup2(logFd, STDOUT_FILENO);
+        ::dup2(logFd, STDERR_FILENO);
+      }
+
+      ::execvp("java", const_cast<char* const*>(execArguments.data()));
+
+      // this shouldn't be executed by child process
+      ::_exit(1);
+    }
+
+    ssize_t written = ::write(_pipeFd[1], &pid, sizeof(pid));
+    ::_exit(written == sizeof(pid) ? 0 : 1);
+  }
+
+  pid_t pid = -1;
+  bool gotPid = ::read(_pipeFd[0], &pid, sizeof(pid)) == sizeof(pid);
+
+  refreshExitStatus(true);
+  closePipe(_pipeFd[0], _pipeFd[1]);
+
+  // Only the indexer writes the port, so the reading ends if it dies.
+  ::close(_pipeFd2[1]);
+  _pipeFd2[1] = 0;
+
+  if (gotPid && pid > 0)
+  {
+    // It waits until the indexer opened the index and its port.
+    std::string token(_residentToken + '\n');
+    if (::write(tokenPipe[1], token.data(), token.size()) ==
+        static_cast<ssize_t>(token.size()))
+    {
+      _residentPort = std::atoi(readLine(_pipeFd2[0]).c_str());
+    }
+  }
+
+  closePipe(tokenPipe[0], tokenPipe[1]);
+  closePipe(_pipeFd2[0], _pipeFd2[1]);
+
+  if (!gotPid || pid <= 0 || _residentPort <= 0)
+  {
+    throw Failure("Failed to start the resident indexer!");
+  }
+
+  _residentPid = pid;
+
+  // The access token is readable only by the owner.
+  int pidFd = ::open(
+    _residentPidFile.c_str(), O_WRONLY | O_CREAT | O_TRUNC, S_IRUSR | S_IWUSR);
+  if (pidFd < 0 || ::fchmod(pidFd, S_IRUSR | S_IWUSR) != 0)
+  {
+    if (pidFd >= 0)
+      ::close(pidFd);
+    throw Failure("Failed to write the pid file of the resident indexer!");
+  }
+
+  std::string info(std::to_string(_residentPid) + ' ' +
+    std::to_string(_residentPort) + ' ' + _residentToken + '\n');
+  bool written = ::write(pidFd, info.data(), info.size()) ==
+    static_cast<ssize_t>(info.size());
+  ::close(pidFd);
+
+  if (!written)
+  {
+    throw Failure("Failed to write the pid file of the resident indexer!");
+  }
+}
+
+bool IndexerProcess::connectResident(int attempts_)
+{
+  using namespace apache::thrift::transport;
+  using ProtocolFactory =
+    apache::thrift::protocol::TBinaryProtocolFactoryT<TBufferedTransport>;
+
+  boost::shared_ptr<TSocket> socket(new TSocket("127.0.0.1", _residentPort));
+  boost::shared_ptr<TBufferedTransport> transport(
+    new TBufferedTransport(socket));
+
+  for (int attempt = 1; ; ++attempt)
+  {
+    try
+    {
+      transport->open();
+      transport->write(
+        reinterpret_cast<const uint8_t*>(_residentToken.data()),
+        _residentToken.size());
+      transport->flush();
+      break;
+    }
+    catch (const TTransportException&)
+    {
+      transport->close();
+      if (attempt >= attempts_ || !isResidentAlive())
+      {
+        return false;
+      }
+
+      std::this_thread::sleep_for(std::chrono::milliseconds(100));
+    }
+  }
+
+  ProtocolFactory protFactory;
+
+  _transport = transport;
+  _indexer.reset(new search::IndexerServiceClient(
+    protFactory.getProtocol(transport)));
+  return true;
+}
+
 IndexerProcess::~IndexerProcess()
 {
-  if (_indexer && isAlive())
+  if (isResident())
+  {
+    // The indexer keeps running for the next client.
+    _indexer.reset(nullptr);
+    if (_transport)
+      _transport->close();
+    return;
+  }
+
+  if (_indexer && !_stopped && isAlive())
     _indexer->stop();
 
   closePipe(_pipeFd[0], _pipeFd[1]);
@@ -125,9 +564,44 @@ IndexerProcess::~IndexerProcess()
   _indexer.reset(nullptr);
 }
 
+bool IndexerProcess::isResident() const
+{
+  return !_residentPidFile.empty();
+}
+
+void IndexerProcess::checkProcess()
+{
+  bool alive = isResident()
+    ? isResidentAlive()
+    : isAlive();
+
+  if (!alive)
+  {
+    LOG(error) << "Index process is not alive!";
+    ::abort();
+  }
+}
+
 void IndexerProcess::stop()
 {
-  assert(false && "IndexerProcess::stop called");
+  checkProcess();
+
+  _indexer->stop();
+  _stopped = true;
+}
+
+void IndexerProcess::beginSession(const search::SessionMode::type mode_)
+{
+  checkProcess();
+
+  _indexer->beginSession(mode_);
+}
+
+int32_t IndexerProcess::endSession()
+{
+  checkProcess();
+
+  return _indexer->endSession();
 }
 
 void IndexerProcess::indexFile(
@@ -135,11 +609,7 @@ void IndexerProcess::indexFile(
   const std::string& filePath_,
   const std::string& mimeType_)
 {
-  if (!isAlive())
-  {
-    LOG(error) << "Index process is not alive!";
-    ::abort();
-  }
+  checkProcess();
   
   _indexer->indexFile(fileId_, filePath_, mimeType_);
 }
@@ -148,33 +618,28 @@ void IndexerProcess::addFieldValues(
   const std::string& fileId_,
   const search::Fields& fields_)
 {
-  if (!isAlive())
-  {
-    LOG(error) << "Index process is not alive!";
-    ::abort();
-  }
+  checkProcess();
 
   _indexer->addFieldValues(fileId_, fields_);
 }
 
+void IndexerProcess::getDurableFileIds(std::vector<std::string>& fileIds_)
+{
+  checkProcess();
+
+  _indexer->getDurableFileIds(fileIds_);
+}
+
 void IndexerProcess::buildSuggestions()
 {
-  if (!isAlive())
-  {
-    LOG(error) << "Index process is not alive!";
-    ::abort();
-  }
+  checkProcess();
 
   _indexer->buildSuggestions();
 }
 
 void IndexerProcess::getStatistics(std::map<std::string, std::string>& stat_)
 {
-  if (!isAlive())
-  {
-    LOG(error) << "Index process is not alive!";
-    ::abort();
-  }
+  checkProcess();
 
   _indexer->getStatistics(stat_);
 }
@@ -1,6 +1,9 @@
 #ifndef CC_PARSER_SEARCHPARSER_H
 #define CC_PARSER_SEARCHPARSER_H
 
+#include <string>
+#include <unordered_set>
+
 #include <magic.h>
 
 #include <util/parserutil.h>
@@ -35,6 +38,12 @@ private:
    */
   std::unique_ptr<IndexerProcess> _indexProcess;
 
+  /**
+   * Ids of the files which are already indexed (only when resuming an
+   * interrupted indexing).
+   */
+  std::unordered_set<std::string> _durableFileIds;
+
   /**
   * libmagic handler for mime types.
   */
@@ -57,9 +57,52 @@ SearchParser::SearchParser(ParserContext& ctx_) : AbstractParser(ctx_),
 
     //--- Open a new process ---//
 
-    _indexProcess.reset(new IndexerProcess(
-      indexDir,
-      IndexerProcess::OpenMode::Create));
+    const bool resume = ctx_.options.count("search-resume") &&
+      ctx_.options["search-resume"].as<bool>();
+
+    const bool resident = ctx_.options.count("search-resident-indexer") &&
+      ctx_.options["search-resident-indexer"].as<bool>();
+
+    const bool stopResident = ctx_.options.count("search-stop-indexer") &&
+      ctx_.options["search-stop-indexer"].as<bool>();
+
+    // A running resident indexer holds the index, so it is stopped if this
+    // run does not use it.
+    if ((stopResident || !resident) &&
+        IndexerProcess::stopResident(indexDir))
+    {
+      LOG(info) << "The resident search indexer is stopped.";
+    }
+
+    if (resident)
+    {
+      // The resident indexer outlives this run, the run is a session.
+      _indexProcess = IndexerProcess::openResident(indexDir);
+      _indexProcess->beginSession(resume
+        ? search::SessionMode::Resume
+        : search::SessionMode::Create);
+    }
+    else
+    {
+      _indexProcess.reset(new IndexerProcess(
+        indexDir,
+        resume
+          ? IndexerProcess::OpenMode::Resume
+          : IndexerProcess::OpenMode::Create));
+    }
+
+    //--- Skip the files of the interrupted session ---//
+
+    if (resume)
+    {
+      std::vector<std::string> fileIds;
+      _indexProcess->getDurableFileIds(fileIds);
+      _durableFileIds.insert(fileIds.begin(), fileIds.end());
+
+      LOG(info)
+        << "Resuming search indexing, " << _durableFileIds.size()
+        << " file(s) are already indexed.";
+    }
   }
   catch (const IndexerProcess::Failure& ex_)
   {
@@ -132,6 +175,12 @@ util::DirIterCallback SearchParser::getParserCallback(const std::string& path_)
 
     model::FilePtr file = _ctx.srcMgr.getFile(currPath_);
 
+    if (file && _durableFileIds.count(std::to_string(file->id)))
+    {
+      LOG(debug) << "Skipping " << currPath_ << " because it is indexed.";
+      return true;
+    }
+
     if (file)
     {
       std::string mimeType("text/plain");
@@ -174,13 +223,15 @@ bool SearchParser::shouldHandle(const std::string& path_)
       return false;
   }
 
-  //--- The file is larger than one megabyte. ---//
+  //--- The file is larger than one gigabyte. ---//
 
+  // Files larger than one megabyte are indexed in chunks by the indexer, so
+  // this is only a sanity limit.
   struct stat statbuf;
   if (::stat(path_.c_str(), &statbuf) == -1)
     return false;
 
-  if (statbuf.st_size > (1024 * 1024))
+  if (statbuf.st_size > (1024 * 1024 * 1024))
     return false;
 
   return true;
@@ -188,10 +239,19 @@ bool SearchParser::shouldHandle(const std::string& path_)
 
 void SearchParser::postParse()
 {
+  if (_indexProcess->isResident())
+  {
+    // Commit the session before building the suggestions from the index.
+    LOG(info)
+      << "Search indexing session finished, "
+      << _indexProcess->endSession() << " file(s) are indexed.";
+  }
+
   _indexProcess->buildSuggestions();
   try
   {
-    // Wait for indexer process to exit.
+    // Wait for indexer process to exit (or disconnect from the resident
+    // indexer).
     _indexProcess.reset(nullptr);
   }
   catch (...)
@@ -210,7 +270,23 @@ extern "C"
 {
   boost::program_options::options_description getOptions()
   {
-    boost::program_options::options_description description("Search Plugin");
+    namespace po = boost::program_options;
+
+    po::options_description description("Search Plugin");
+
+    description.add_options()
+      ("search-resume", po::bool_switch()->default_value(false),
+        "Continue an interrupted search indexing: keep the already committed "
+        "documents of the search index and index only the other files.")
+      ("search-resident-indexer", po::bool_switch()->default_value(false),
+        "Keep the search indexer running after the parsing and use it in the "
+        "next runs: they do not start a new indexer process. It runs until "
+        "a run without this option or with --search-stop-indexer.")
+      ("search-stop-indexer", po::bool_switch()->default_value(false),
+        "Stop the resident search indexer (see --search-resident-indexer) "
+        "before the parsing, e.g. to free its memory or to restart it with "
+        "new settings.");
+
     return description;
   }
 
@@ -4,7 +4,6 @@
 #include <cstdio>
 #include <memory>
 #include <functional>
-#include <mutex>
 
 #include <boost/regex.hpp>
 #include <boost/program_options/variables_map.hpp>
@@ -46,6 +45,9 @@ public:
   void suggest(SearchSuggestions& _return,
     const SearchSuggestionParams& params_) override;
 
+  void countHits(RangedHitCountResult& _return,
+    const SearchParams& params_) override;
+
 private:
   /**
    * Validates a regluar expression. If the expression is invalid then a thrift
@@ -57,8 +59,11 @@ private:
 
   std::shared_ptr<odb::database> _db;
 
+  /**
+   * The Java search service. It serves concurrent requests on its own, so
+   * the calls are not serialized here.
+   */
   std::unique_ptr<ServiceProcess> _javaProcess;
-  std::mutex _javaProcessMutex;
 };
 
 } // search
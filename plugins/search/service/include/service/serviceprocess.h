@@ -1,9 +1,20 @@
 #ifndef CC_SERVICE_SERVICEPROCESS_H
 #define CC_SERVICE_SERVICEPROCESS_H
 
+#include <algorithm>
+#include <condition_variable>
+#include <cstdio>
+#include <cstdlib>
+#include <fstream>
 #include <memory>
+#include <mutex>
+#include <thread>
+#include <vector>
 
-#include <thrift/transport/TFDTransport.h>
+#include <unistd.h>
+
+#include <thrift/transport/TSocket.h>
+#include <thrift/transport/TBufferTransports.h>
 #include <thrift/protocol/TBinaryProtocol.h>
 
 #include <util/pipedprocess.h>
@@ -18,6 +29,19 @@ namespace service
 namespace search
 {
 
+/**
+ * Client of the Java search service. The service serves IPC on a port of the
+ * loopback interface, the requests are sent on a pool of connections, so the
+ * requests of concurrent callers are served in parallel (every connection has
+ * its own worker in the service). The methods are thread safe.
+ *
+ * The service binds the port itself and reports it on a pipe. The port is
+ * open for every local user, so every connection sends a random access token
+ * first, which is given to the service on a pipe too.
+ *
+ * The service is stopped on a separate control connection (it has its own
+ * worker), so stopping does not wait for the pooled connections.
+ */
 class ServiceProcess : public SearchServiceIf, public util::PipedProcess
 {
 public:
@@ -31,9 +55,16 @@ public:
    * Opens the service process.
    *
    * @param indexDatabase_ path to a index database
+   * @param connections_ maximum number of concurrent requests (connections)
    */
-  ServiceProcess(const std::string& indexDatabase_) :
-    _indexDatabase(indexDatabase_)
+  ServiceProcess(
+    const std::string& indexDatabase_,
+    std::size_t connections_ = defaultConnections()) :
+    _indexDatabase(indexDatabase_),
+    _token(generateToken()),
+    _port(0),
+    _maxConnections(std::max<std::size_t>(1, connections_)),
+    _connectionCount(0)
   {
     openPipe(_pipeFd2[0], _pipeFd2[1]);
 
@@ -42,6 +73,10 @@ public:
     {
       std::string inFd(std::to_string(_pipeFd[0]));
       std::string outFd(std::to_string(_pipeFd2[1]));
+      // One more worker for the control connection.
+      std::string workers(std::to_string(_maxConnections + 1));
+      // The indexer reads the same file (see IndexerProcess).
+      std::string latencySignal(_indexDatabase + ".latency");
 
       std::string logLevelOpt("-Dcc.search.logLevel=");
       auto fmtSeverity = util::getSeverityLevel();
@@ -65,6 +100,9 @@ public:
         "-indexDB", _indexDatabase.c_str(),
         "-ipcInFd", inFd.c_str(),
         "-ipcOutFd", outFd.c_str(),
+        "-ipcSocket",
+        "-ipcWorkers", workers.c_str(),
+        "-searchLatencySignal", latencySignal.c_str(),
         "-useSimpleFileLock",
         "-cleanupLocks",
         nullptr);
@@ -74,17 +112,30 @@ public:
       // This shouldn't be executed by child process
       ::abort();
     }
-    else
+
+    // Only the service writes the port, so the reading ends if it dies.
+    ::close(_pipeFd2[1]);
+    _pipeFd2[1] = 0;
+
+    _port = handshake();
+    closePipe(_pipeFd2[0], _pipeFd2[1]);
+    if (_port <= 0)
     {
-      getClientInterface();
+      throw Failure("Failed to start the search service!");
     }
+
+    _control = connect(controlTimeoutMs);
   }
 
   ~ServiceProcess()
   {
     try
     {
-      pleaseStop();
+      std::lock_guard<std::mutex> lock(_controlMutex);
+      if (_control && isAlive())
+      {
+        _control->client->pleaseStop();
+      }
     }
     catch (const ProcessDied&)
     {
@@ -94,9 +145,17 @@ public:
       LOG(warning) << "'pleaseStop' failed!";
     }
 
-    _service.reset(nullptr);
+    if (_control)
+    {
+      _control->transport->close();
+    }
 
-    closePipe(_pipeFd2[0], _pipeFd2[1]);
+    std::lock_guard<std::mutex> lock(_poolMutex);
+    for (auto& connection : _idleConnections)
+    {
+      connection->transport->close();
+    }
+    _idleConnections.clear();
   }
 
 public:
@@ -104,39 +163,208 @@ public:
     SearchResult& _return,
     const SearchParams& params_) override
   {
-    checkProcess();
-    _service->search(_return, params_);
+    invoke([&](SearchServiceIf& service_)
+    {
+      service_.search(_return, params_);
+    });
   }
 
   void searchFile(
     FileSearchResult& _return,
     const SearchParams& params_) override
   {
-    checkProcess();
-    _service->searchFile(_return, params_);
+    invoke([&](SearchServiceIf& service_)
+    {
+      service_.searchFile(_return, params_);
+    });
   }
 
   void getSearchTypes(
     std::vector<SearchType>& _return) override
   {
-    checkProcess();
-    _service->getSearchTypes(_return);
+    invoke([&](SearchServiceIf& service_)
+    {
+      service_.getSearchTypes(_return);
+    });
   }
 
   void pleaseStop() override
   {
     checkProcess();
-    _service->pleaseStop();
+
+    std::lock_guard<std::mutex> lock(_controlMutex);
+    _control->client->pleaseStop();
   }
 
   void suggest(SearchSuggestions& _return,
     const SearchSuggestionParams& params_) override
   {
-    checkProcess();
-    _service->suggest(_return, params_);
+    invoke([&](SearchServiceIf& service_)
+    {
+      service_.suggest(_return, params_);
+    });
+  }
+
+  void countHits(RangedHitCountResult& _return,
+    const SearchParams& params_) override
+  {
+    invoke([&](SearchServiceIf& service_)
+    {
+      service_.countHits(_return, params_);
+    });
   }
 
 private:
+  /**
+   * A connection to the service.
+   */
+  struct Connection
+  {
+    /**
+     * Transport of the connection.
+     */
+    boost::shared_ptr<apache::thrift::transport::TTransport> transport;
+
+    /**
+     * Client interface on the connection.
+     */
+    std::unique_ptr<SearchServiceIf> client;
+  };
+
+  /**
+   * Calls the service on a pooled connection. A connection which failed
+   * in the transport is dropped, because its state is unknown.
+   *
+   * @param call_ the call on the client interface.
+   * @throw apache::thrift::TException
+   */
+  template <typename Call>
+  void invoke(Call call_)
+  {
+    checkProcess();
+
+    std::unique_ptr<Connection> connection = acquireConnection();
+    try
+    {
+      call_(*connection->client);
+    }
+    catch (const apache::thrift::transport::TTransportException&)
+    {
+      connection->transport->close();
+      releaseConnection(nullptr);
+      checkProcess();
+      throw;
+    }
+    catch (...)
+    {
+      releaseConnection(std::move(connection));
+      throw;
+    }
+
+    releaseConnection(std::move(connection));
+  }
+
+  /**
+   * Takes an idle connection or opens a new one if the pool is not full,
+   * otherwise it waits for a connection.
+   *
+   * @return a connection.
+   * @throw apache::thrift::TException
+   */
+  std::unique_ptr<Connection> acquireConnection()
+  {
+    {
+      std::unique_lock<std::mutex> lock(_poolMutex);
+      _poolCond.wait(lock, [this]()
+      {
+        return !_idleConnections.empty() ||
+          _connectionCount < _maxConnections;
+      });
+
+      if (!_idleConnections.empty())
+      {
+        std::unique_ptr<Connection> connection =
+          std::move(_idleConnections.back());
+        _idleConnections.pop_back();
+        return connection;
+      }
+
+      ++_connectionCount;
+    }
+
+    try
+    {
+      return connect();
+    }
+    catch (...)
+    {
+      releaseConnection(nullptr);
+      throw;
+    }
+  }
+
+  /**
+   * Gives back a connection to the pool.
+   *
+   * @param connection_ the connection or null if it was dropped.
+   */
+  void releaseConnection(std::unique_ptr<Connection> connection_)
+  {
+    {
+      std::lock_guard<std::mutex> lock(_poolMutex);
+      if (connection_)
+      {
+        _idleConnections.push_back(std::move(connection_));
+      }
+      else
+      {
+        --_connectionCount;
+      }
+    }
+
+    _poolCond.notify_one();
+  }
+
+  /**
+   * Opens a new connection and sends the access token on it.
+   *
+   * @param recvTimeoutMs_ timeout of the responses in milliseconds (0: none).
+   * @return the connection.
+   * @throw apache::thrift::TException
+   */
+  std::unique_ptr<Connection> connect(int recvTimeoutMs_ = 0)
+  {
+    using namespace apache::thrift::transport;
+    using ProtocolFactory =
+      apache::thrift::protocol::TBinaryProtocolFactoryT<TBufferedTransport>;
+
+    boost::shared_ptr<TSocket> socket(new TSocket("127.0.0.1", _port));
+    socket->setRecvTimeout(recvTimeoutMs_);
+    boost::shared_ptr<TBufferedTransport> transport(
+      new TBufferedTransport(socket));
+
+    try
+    {
+      transport->open();
+      transport->write(
+        reinterpret_cast<const uint8_t*>(_token.data()), _token.size());
+      transport->flush();
+    }
+    catch (const TTransportException&)
+    {
+      checkProcess();
+      throw;
+    }
+
+    ProtocolFactory protFactory;
+
+    std::unique_ptr<Connection> connection(new Connection());
+    connection->transport = transport;
+    connection->client.reset(new SearchServiceClient(
+      protFactory.getProtocol(transport)));
+    return connection;
+  }
+
   /**
    * Throws a thrift exception if the service process is dead.
    *
@@ -144,6 +372,7 @@ private:
    */
   void checkProcess()
   {
+    std::lock_guard<std::mutex> lock(_processMutex);
     if (!isAlive())
     {
       throw ProcessDied();
@@ -151,42 +380,128 @@ private:
   }
 
   /**
-   * Creates the client interface.
+   * Gives the access token to the service and reads its IPC port. It waits
+   * until the service opened the index and its port.
+   *
+   * @return the port or 0 if the service died.
    */
-  void getClientInterface()
+  int handshake()
   {
-    using Transport = apache::thrift::transport::TFDTransport;
-    using ProtocolFactory =
-      apache::thrift::protocol::TBinaryProtocolFactoryT<Transport>;
+    std::string line(_token + '\n');
+    if (::write(_pipeFd[1], line.data(), line.size()) !=
+        static_cast<ssize_t>(line.size()))
+    {
+      return 0;
+    }
 
-    boost::shared_ptr<apache::thrift::transport::TTransport> transIn(
-      new Transport(_pipeFd2[0], Transport::NO_CLOSE_ON_DESTROY));
-    boost::shared_ptr<apache::thrift::transport::TTransport> transOut(
-      new Transport(_pipeFd[1], Transport::NO_CLOSE_ON_DESTROY));
+    line.clear();
+    char c;
+    while (::read(_pipeFd2[0], &c, 1) == 1 && c != '\n')
+    {
+      line += c;
+    }
 
-    ProtocolFactory protFactory;
+    return std::atoi(line.c_str());
+  }
 
-    _service.reset(new SearchServiceClient(
-      protFactory.getProtocol(transIn),
-      protFactory.getProtocol(transOut)));
+  /**
+   * Generates a random access token for the IPC connections.
+   *
+   * @return the token as a hex string.
+   */
+  static std::string generateToken()
+  {
+    unsigned char bytes[16];
+    std::ifstream random("/dev/urandom", std::ios::binary);
+    if (!random.read(reinterpret_cast<char*>(bytes), sizeof(bytes)))
+    {
+      throw Failure("Failed to generate an IPC access token!");
+    }
+
+    std::string token;
+    char hex[3];
+    for (unsigned char byte : bytes)
+    {
+      std::snprintf(hex, sizeof(hex), "%02x", byte);
+      token += hex;
+    }
+
+    return token;
   }
 
+  /**
+   * @return the default number of connections (one per CPU core).
+   */
+  static std::size_t defaultConnections()
+  {
+    return std::max(1u, std::thread::hardware_concurrency());
+  }
 
 private:
+  /**
+   * Response timeout of the control connection in milliseconds.
+   */
+  static constexpr int controlTimeoutMs = 10000;
+
   /**
    * Path to a index database;
    */
   const std::string _indexDatabase;
 
   /**
-   * Service interface for IPC communication.
+   * Access token of the IPC connections.
+   */
+  const std::string _token;
+
+  /**
+   * IPC port of the service.
+   */
+  int _port;
+
+  /**
+   * Second pipe for the IPC handshake (the service writes its port on it).
+   */
+  int _pipeFd2[2] = {0, 0};
+
+  /**
+   * Connection for stopping the service.
+   */
+  std::unique_ptr<Connection> _control;
+
+  /**
+   * Mutex for the control connection.
+   */
+  std::mutex _controlMutex;
+
+  /**
+   * Maximum number of connections (and workers in the service).
+   */
+  const std::size_t _maxConnections;
+
+  /**
+   * Number of open (idle or used) connections.
+   */
+  std::size_t _connectionCount;
+
+  /**
+   * Idle connections.
+   */
+  std::vector<std::unique_ptr<Connection>> _idleConnections;
+
+  /**
+   * Mutex for the connection pool.
+   */
+  std::mutex _poolMutex;
+
+  /**
+   * Signals a released connection.
    */
-  std::unique_ptr<SearchServiceIf> _service;
+  std::condition_variable _poolCond;
 
   /**
-   * Second pipe.
+   * Mutex for checking the process state.
    */
-  int _pipeFd2[2];
+  std::mutex _processMutex;
 };
 
 } // search
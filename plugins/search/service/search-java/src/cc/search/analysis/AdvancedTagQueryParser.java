@@ -2,6 +2,7 @@ package cc.search.analysis;
 
 import cc.search.analysis.tags.Tag;
 import cc.search.common.IndexFields;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 import org.apache.lucene.analysis.Analyzer;
@@ -13,12 +14,39 @@ import org.apache.lucene.util.Version;
 
 /**
  * Query parser for advanced tag search.
+ *
+ * Like every Lucene QueryParser, an instance is not thread-safe: use one
+ * parser per thread (the result of a parse does not depend on the parser
+ * any more).
  */
 public class AdvancedTagQueryParser extends QueryParser {
   /**
-   * Set of kinds found in the last parsed query.
+   * Result of a parse: the query and the kinds found in it.
    */
-  private final Set<Tag.Kind> _tagKinds;
+  public static final class ParseResult {
+    /**
+     * The parsed query.
+     */
+    public final Query query;
+    /**
+     * Set of kinds found in the query (unmodifiable).
+     */
+    public final Set<Tag.Kind> kinds;
+
+    /**
+     * @param query_ the parsed query.
+     * @param kinds_ set of kinds found in the query.
+     */
+    private ParseResult(Query query_, Set<Tag.Kind> kinds_) {
+      query = query_;
+      kinds = Collections.unmodifiableSet(kinds_);
+    }
+  }
+  
+  /**
+   * Set of kinds found in the query under parsing.
+   */
+  private Set<Tag.Kind> _tagKinds = new HashSet<>();
   
   /**
    * Creates an AdvancedTagQueryParser.
@@ -27,17 +55,18 @@ public class AdvancedTagQueryParser extends QueryParser {
    */
   public AdvancedTagQueryParser(Analyzer analyzer_) {
     super(Version.LUCENE_4_9, IndexFields.definitionsField, analyzer_);
-    
-    _tagKinds = new HashSet<>();
   }
   
   /**
-   * Returns the kinds found in the query during a parse() call.
+   * Parses a query and collects the tag kinds in it.
    * 
-   * @return set of kinds.
+   * @param query_ query string.
+   * @return the query and its kinds.
+   * @throws ParseException 
    */
-  public Set<Tag.Kind> getParsedKinds() {
-    return _tagKinds;
+  public ParseResult parseWithKinds(String query_) throws ParseException {
+    final Query query = parse(query_);
+    return new ParseResult(query, _tagKinds);
   }
   
   /**
@@ -95,7 +124,8 @@ public class AdvancedTagQueryParser extends QueryParser {
 
   @Override
   public Query parse(String query_) throws ParseException {
-    _tagKinds.clear();
+    // A new set: the previous one may be owned by a ParseResult.
+    _tagKinds = new HashSet<>();
     return super.parse(query_);
   }
 }
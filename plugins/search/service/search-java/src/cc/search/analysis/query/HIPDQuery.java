@@ -2,12 +2,9 @@ package cc.search.analysis.query;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Objects;
 import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.lucene.index.AtomicReader;
@@ -157,7 +154,8 @@ public class HIPDQuery extends Query {
       }
       
       final TermsEnum termEnum = fieldTerms.iterator(null);
-      final MatchingDocEnum docEnum = new MatchingDocEnum(_terms.size());
+      final MatchingDocEnum docEnum = new MatchingDocEnum(_terms.size(),
+        _minMatchingTerm);
       
       // Collect possibly matching terms
       for (int i = 0; i < _terms.size(); ++i) {
@@ -205,226 +203,330 @@ public class HIPDQuery extends Query {
    */
   private class HIPDScorer extends Scorer {
     /**
-     * Helper class for searching the best match(es) in a document.
+     * Helper class for searching the best match(es) in a document. An
+     * instance is reused for the documents of the scorer: the state is kept in
+     * primitive arrays, so searching does not allocate.
+     *
+     * The current positions of the terms are kept in a sorted array (a query
+     * has only a few terms, so shifting the array is cheaper than a tree).
      */
     private final class BestMatchSearcher {
       /**
-       * Current position -> term mapping.
+       * The term contexts of the current document.
        */
-      private final TreeMap<Integer, MatchingDocEnum.TermContext>
-        _availablePositions = new TreeMap<>();;
+      private final MatchingDocEnum.TermContext[] _contexts;
       /**
-       * The current best match (if any).
+       * Available positions in ascending order (the first _availableCount
+       * elements are used).
        */
-      private List<MatchingDocEnum.TermContext> _bestMatch = null;
+      private final int[] _positions;
       /**
-       * The score of the best match (valid if _bestMatch is not null).
+       * Index of the term context on the position in _positions.
        */
-      private float _bestMatchScore = 0;
-      
+      private final int[] _positionTerms;
       /**
-       * Construct a new context for finding the best match in the document.
-       * 
-       * @param matchingTerms_ matching terms in the document.
-       * @throws IOException 
+       * Number of available positions.
        */
-      private BestMatchSearcher(
-        List<MatchingDocEnum.TermContext> matchingTerms_)
-        throws IOException {
-        ArrayList<MatchingDocEnum.TermContext> shiftTerms =
-          new ArrayList<>(matchingTerms_);
-        
-        shiftPositions(shiftTerms);
+      private int _availableCount;
+      /**
+       * Index of the term contexts which need to be shifted.
+       */
+      private int[] _shiftTerms;
+      /**
+       * Buffer for the collisions while shifting.
+       */
+      private int[] _collisions;
+      /**
+       * Number of terms in _shiftTerms.
+       */
+      private int _shiftCount;
+      /**
+       * Index of the term contexts of the last match.
+       */
+      private final int[] _match;
+      /**
+       * Number of terms in the last match.
+       */
+      private int _matchCount;
+      /**
+       * The size of the current best match (0 if there is no match yet).
+       */
+      private int _bestMatchSize;
+      /**
+       * The score of the best match (valid if _bestMatchSize is not 0).
+       */
+      private float _bestMatchScore;
+      /**
+       * ((|Q| - 1)(Dmax + 1))^2 for the score.
+       */
+      private final double _scoreNorm;
+
+      /**
+       * @param maxTerms_ maximal number of matching terms in a document.
+       */
+      private BestMatchSearcher(int maxTerms_) {
+        _contexts = new MatchingDocEnum.TermContext[maxTerms_];
+        _positions = new int[maxTerms_];
+        _positionTerms = new int[maxTerms_];
+        _shiftTerms = new int[maxTerms_];
+        _collisions = new int[maxTerms_];
+        _match = new int[maxTerms_];
+
+        final double norm = (_terms.size() - 1) * (_maxDifference + 1);
+        _scoreNorm = norm * norm;
       }
-      
+
+      /**
+       * Starts the search in a new document: every term is shifted to its
+       * first position.
+       *
+       * @param docEnum_ the document enumerator on the document (the position
+       *  iteration of its matching terms is started).
+       * @return false if there is no opportunity to find a match.
+       * @throws IOException
+       */
+      private boolean reset(MatchingDocEnum docEnum_) throws IOException {
+        _availableCount = 0;
+        _bestMatchSize = 0;
+        _bestMatchScore = 0;
+        _shiftCount = 0;
+        for (int i = 0; i < docEnum_.matchCount(); ++i) {
+          _contexts[i] = docEnum_.match(i);
+          _shiftTerms[_shiftCount++] = i;
+        }
+
+        return shiftPositions();
+      }
+
+      /**
+       * Finds a position in the available positions.
+       *
+       * @param position_ a position.
+       * @return the index of the position or -1.
+       */
+      private int indexOf(int position_) {
+        final int index = Arrays.binarySearch(_positions, 0, _availableCount,
+          position_);
+        return index < 0 ? -1 : index;
+      }
+
+      /**
+       * Inserts a position into the available positions.
+       *
+       * @param position_ a position (not available yet).
+       * @param term_ index of the term context on the position.
+       */
+      private void insert(int position_, int term_) {
+        final int index = -Arrays.binarySearch(_positions, 0, _availableCount,
+          position_) - 1;
+        System.arraycopy(_positions, index, _positions, index + 1,
+          _availableCount - index);
+        System.arraycopy(_positionTerms, index, _positionTerms, index + 1,
+          _availableCount - index);
+        _positions[index] = position_;
+        _positionTerms[index] = term_;
+        ++_availableCount;
+      }
+
+      /**
+       * Removes a position from the available positions.
+       *
+       * @param index_ index of the position.
+       */
+      private void removeAt(int index_) {
+        --_availableCount;
+        System.arraycopy(_positions, index_ + 1, _positions, index_,
+          _availableCount - index_);
+        System.arraycopy(_positionTerms, index_ + 1, _positionTerms, index_,
+          _availableCount - index_);
+      }
+
       /**
-       * Shifts the positions of the terms in _availablePositions by
-       * shiftTerms_. It also handles the collisions caused by terms with
-       * multiple occurrence.
-       * 
-       * @parm shiftTerms_ list of terms that needs to be shifted.
+       * Shifts the positions of the terms in _shiftTerms. It also handles the
+       * collisions caused by terms with multiple occurrence: the colliding
+       * terms are shifted again until there is no collision.
+       *
        * @return false if we have no opportunity to find a better match, true
        * otherwise.
-       * @throws IOException 
+       * @throws IOException
        */
-      private boolean shiftPositions(
-        List<MatchingDocEnum.TermContext> shiftTerms_) throws IOException {
-        final ArrayList<MatchingDocEnum.TermContext> collisions =
-          new ArrayList<>(shiftTerms_.size());
-
-        for (final MatchingDocEnum.TermContext ctx : shiftTerms_) {
-          // Shift terms must be dropped out from the available positions before
-          // any shifting
-          if (_availablePositions.get(ctx.lastPosition()) == ctx) {
-            _availablePositions.remove(ctx.lastPosition());
+      private boolean shiftPositions() throws IOException {
+        while (_shiftCount > 0) {
+          for (int i = 0; i < _shiftCount; ++i) {
+            // Shift terms must be dropped out from the available positions
+            // before any shifting
+            final int term = _shiftTerms[i];
+            final int index = indexOf(_contexts[term].lastPosition());
+            if (index >= 0 && _positionTerms[index] == term) {
+              removeAt(index);
+            }
           }
-        }
 
-        int availShiftTerms = shiftTerms_.size();
-        for (final MatchingDocEnum.TermContext ctx : shiftTerms_) {
-          int pos = ctx.nextPosition();
-          if (pos == MatchingDocEnum.TermContext.NO_MORE_POSITION) {
-            // drop this term
-            if (_bestMatch != null && _bestMatch.size() >
-              _availablePositions.size() + availShiftTerms) {
-              // After we drop this term, we can`t find a better match, so better
-              // return now.
-              return false;
-            } else {
-              --availShiftTerms;
-              // Continue with reduced term set.
-              continue;
+          int collisionCount = 0;
+          int availShiftTerms = _shiftCount;
+          for (int i = 0; i < _shiftCount; ++i) {
+            final int term = _shiftTerms[i];
+            final MatchingDocEnum.TermContext ctx = _contexts[term];
+            final int pos = ctx.nextPosition();
+            if (pos == MatchingDocEnum.TermContext.NO_MORE_POSITION) {
+              // drop this term
+              if (_bestMatchSize != 0 && _bestMatchSize >
+                _availableCount + availShiftTerms) {
+                // After we drop this term, we can`t find a better match, so
+                // better return now.
+                return false;
+              } else {
+                --availShiftTerms;
+                // Continue with reduced term set.
+                continue;
+              }
             }
-          }
-          
-          final MatchingDocEnum.TermContext collision =
-            _availablePositions.get(pos);
-          if (collision != null) {
-            // Multiple terms in the same position is not allowed, but if the
-            // same term could be in the search expression in multiple times
-            assert collision.term().equals(ctx.term()) :
-              "Multiple terms in the same position is not allowed!";
-            
-             if (ctx.relativePosition() > collision.relativePosition()) {
-              // Shift the current context because it should be after $collision
-              // (if the order is relevant).
-              collisions.add(ctx);
+
+            final int index = indexOf(pos);
+            if (index >= 0) {
+              // Multiple terms in the same position is not allowed, but if the
+              // same term could be in the search expression in multiple times
+              final int collision = _positionTerms[index];
+              assert _contexts[collision].term().equals(ctx.term()) :
+                "Multiple terms in the same position is not allowed!";
+
+              if (ctx.relativePosition() >
+                _contexts[collision].relativePosition()) {
+                // Shift the current context because it should be after
+                // $collision (if the order is relevant).
+                _collisions[collisionCount++] = term;
+              } else {
+                // Shift the one that currently in the array.
+                _collisions[collisionCount++] = collision;
+                _positionTerms[index] = term;
+              }
             } else {
-              // Shift the one that currently in the map.
-              collisions.add(collision);
-              _availablePositions.remove(pos);
-              _availablePositions.put(pos, ctx);
+              --availShiftTerms;
+              insert(pos, term);
             }
-          } else {
-            --availShiftTerms;
-            _availablePositions.put(pos, ctx);
           }
-        }
 
-        shiftTerms_.clear();
-        shiftTerms_.addAll(collisions);
-        if (!shiftTerms_.isEmpty()) {
-          return shiftPositions(shiftTerms_);
+          // The collisions are the next terms to shift.
+          final int[] shifted = _shiftTerms;
+          _shiftTerms = _collisions;
+          _collisions = shifted;
+          _shiftCount = collisionCount;
         }
 
         return true;
       }
-      
+
       /**
-       * Finds a next possible match starting from the lowest position from
-       * {@link #_availablePositions}.
-       * 
-       * @parm shiftTerms_ a collection for storing terms that needs to be
-       *  shifted.
-       * @return the list of matching terms or null.
+       * Finds a next possible match starting from the lowest available
+       * position. The match is stored in _match and the leftmost term is
+       * marked for shifting.
+       *
+       * @return false if there is no match.
        */
-      private List<MatchingDocEnum.TermContext> findNextMatch(
-        List<MatchingDocEnum.TermContext> shiftTerms_) {
-        final int startPos = _availablePositions.firstKey();    
-        int endPos = startPos;
-
-        // Find the longest match with the least start position
-        int currPos = _availablePositions.floorKey(endPos + _maxDifference);
-        while (currPos != endPos) {
-          endPos = currPos;
-          currPos = _availablePositions.floorKey(endPos + _maxDifference);
+      private boolean findNextMatch() {
+        // Find the longest match with the least start position: the next
+        // position must be at most _maxDifference after the last one.
+        int end = 0;
+        while (true) {
+          int next = end;
+          final long limit = (long) _positions[end] + _maxDifference;
+          while (next + 1 < _availableCount && _positions[next + 1] <= limit) {
+            ++next;
+          }
+          if (next == end) {
+            break;
+          }
+          end = next;
         }
 
-        final SortedMap<Integer, MatchingDocEnum.TermContext> matchCandidate =
-          _availablePositions.subMap(startPos, endPos + 1);
+        final int leftmost = _positionTerms[0];
+        _shiftTerms[0] = leftmost;
+        _shiftCount = 1;
 
-        final MatchingDocEnum.TermContext leftmost =
-          matchCandidate.get(matchCandidate.firstKey());
-        if (matchCandidate.size() < _minMatchingTerm) {
+        if (end + 1 < _minMatchingTerm) {
           // If the longest match is too short, than we need to shift
-          shiftTerms_.add(leftmost);
-          return null;
+          return false;
         }
 
-        final ArrayList<MatchingDocEnum.TermContext> match =
-          new ArrayList<>(matchCandidate.size());
+        _matchCount = 0;
         if (_allowSwappedTerms) {
           // We allow swap so this is a match, no need to check the order
-          match.addAll(matchCandidate.values());
+          for (int i = 0; i <= end; ++i) {
+            _match[_matchCount++] = _positionTerms[i];
+          }
         } else {
           // We have to select the terms in correct order
-          int currentRelPos = leftmost.relativePosition();
-
-          final Collection<MatchingDocEnum.TermContext> terms =
-            matchCandidate.values();
-          for (MatchingDocEnum.TermContext ctx : terms) {
-            if (ctx.relativePosition() >= currentRelPos) {
-              match.add(ctx);
-              currentRelPos = ctx.relativePosition();
+          int currentRelPos = _contexts[leftmost].relativePosition();
+          for (int i = 0; i <= end; ++i) {
+            final int relPos = _contexts[_positionTerms[i]].relativePosition();
+            if (relPos >= currentRelPos) {
+              _match[_matchCount++] = _positionTerms[i];
+              currentRelPos = relPos;
             }
           }
         }
 
-        shiftTerms_.add(leftmost);
-
-        return match;
+        return true;
       }
-      
+
       /**
-       * Calculates the score of a match.
-       * 
-       * @param match_ list of matching terms.
+       * Calculates the score of the last match.
+       *
+       * The sum of (d_j - d_i)^2 over the pairs of the match (where d is the
+       * position in the document minus the position in the query) is computed
+       * in one pass as N * sum(d^2) - (sum(d))^2.
+       *
        * @return match score.
        */
-      private float calculateMatchScore(
-        List<MatchingDocEnum.TermContext> match_) {
-        
-        double similarity = 0;
-        for (int i = 0; i < match_.size(); ++i) {
-          for (int j = i + 1; j < match_.size(); ++j) {
-            final MatchingDocEnum.TermContext mai = match_.get(i);
-            final MatchingDocEnum.TermContext maj = match_.get(j);
-
-            similarity += Math.pow(
-              // P_a(a_j) -  P_a(a_i)
-              (maj.lastPosition() - mai.lastPosition()) -
-              // P_q(a_j) -  P_q(a_i)
-              (maj.relativePosition() - mai.relativePosition()), 2);
-          }
+      private float calculateMatchScore() {
+        long sum = 0;
+        long sumOfSquares = 0;
+        for (int i = 0; i < _matchCount; ++i) {
+          final MatchingDocEnum.TermContext ctx = _contexts[_match[i]];
+          // P_a(a_i) - P_q(a_i)
+          final long d = ctx.lastPosition() - ctx.relativePosition();
+          sum += d;
+          sumOfSquares += d * d;
         }
 
+        double similarity = _matchCount * sumOfSquares - sum * sum;
+
         similarity /=
           // (N * (N - 1)) / 2
-          (0.5 * (match_.size() * (match_.size() - 1))) *
+          (0.5 * (_matchCount * (_matchCount - 1))) *
           // ((|Q| - 1)(Dmax + 1))^2
-          Math.pow((_terms.size() - 1) * (_maxDifference + 1), 2);
+          _scoreNorm;
 
         similarity = 1.0 - similarity;
 
-        return (float)(match_.size() + similarity);
+        return (float)(_matchCount + similarity);
       }
-      
+
       /**
        * Finds the best match by the matching terms in a document and returns
        * its score. It will also call the result collector (if it is not null).
-       * 
-       * @param matchingTerms_ matching terms in the document.
+       *
+       * @param docEnum_ the document enumerator on the document (the position
+       *  iteration of its matching terms is started).
        * @return the score of the best match in this document.
-       * @throws IOException 
+       * @throws IOException
        */
-      float findBestMatch() throws IOException {
-        
-        ArrayList<MatchingDocEnum.TermContext> shiftTerms =
-          new ArrayList<>(_docEnum.numTermContext());
+      float findBestMatch(MatchingDocEnum docEnum_) throws IOException {
+        if (!reset(docEnum_)) {
+          return 0;
+        }
 
-        while (_availablePositions.size() >= _minMatchingTerm &&
-          (_bestMatch == null ||
-           _bestMatch.size() <= _availablePositions.size())) {
+        while (_availableCount >= _minMatchingTerm &&
+          (_bestMatchSize == 0 || _bestMatchSize <= _availableCount)) {
 
-          List<MatchingDocEnum.TermContext> match = findNextMatch(shiftTerms);
-          if (match != null && match.size() >= _minMatchingTerm) {
-            float matchScore = calculateMatchScore(match);
+          if (findNextMatch() && _matchCount >= _minMatchingTerm) {
+            final float matchScore = calculateMatchScore();
 
             if (matchScore > 0 && _resultCollector != null) {
-              final MatchingDocEnum.TermContext left = match.get(0);
-              final MatchingDocEnum.TermContext right = match.get(
-                match.size() - 1);
-              
+              final MatchingDocEnum.TermContext left = _contexts[_match[0]];
+              final MatchingDocEnum.TermContext right = _contexts[
+                _match[_matchCount - 1]];
+
               _resultCollector.collectMatch(left.lastDocId() + _docBase,
                 new MatchCollector.MatchInfo(matchScore, left.startOffset(),
                   right.endOffset()));
@@ -432,11 +534,11 @@ public class HIPDQuery extends Query {
 
             if (matchScore > _bestMatchScore) {
               _bestMatchScore = matchScore;
-              _bestMatch = match;
+              _bestMatchSize = _matchCount;
             }
           }
 
-          if (!shiftPositions(shiftTerms)) {
+          if (!shiftPositions()) {
             break;
           }
         }
@@ -461,6 +563,10 @@ public class HIPDQuery extends Query {
      * The document offset from the reader context.
      */
     private final int _docBase;
+    /**
+     * Best match searcher (reused for every document).
+     */
+    private final BestMatchSearcher _bestMatchSearcher;
     
     /**
      * @param weight_ the weight that creates this class.
@@ -471,28 +577,22 @@ public class HIPDQuery extends Query {
       super(weight_);
       _docEnum = docEnum_;
       _docBase = docBase_;
+      _bestMatchSearcher = new BestMatchSearcher(docEnum_.numTermContext());
     }
     
     /**
-     * Calculates the score of a document match.
+     * Calculates the score of the current document of the document
+     * enumerator.
      * 
-     * @param docMatch_ a matching document.
      * @return the score.
      * @throws IOException 
      */
-    private float calculateScore(MatchingDocEnum.DocMatch docMatch_)
-      throws IOException {
-      final List<MatchingDocEnum.TermContext> matches = docMatch_.matches();
-      if (matches.size() < _minMatchingTerm) {
-        return 0;
-      }
-      
-      for (MatchingDocEnum.TermContext ctx : matches) {
-        ctx.startPositionIteration();
+    private float calculateScore() throws IOException {
+      for (int i = 0; i < _docEnum.matchCount(); ++i) {
+        _docEnum.match(i).startPositionIteration();
       }
       
-      BestMatchSearcher searcher = new BestMatchSearcher(matches);
-      return searcher.findBestMatch();
+      return _bestMatchSearcher.findBestMatch(_docEnum);
     }
 
     @Override
@@ -525,16 +625,19 @@ public class HIPDQuery extends Query {
       _currentDoc = NO_MORE_DOCS;
       _currentDocScore = 0;
       
-      MatchingDocEnum.DocMatch candidateDoc = _docEnum.advance(targetDocId_);
-      while (candidateDoc != null) {
-        final float score = calculateScore(candidateDoc);
+      // Two phases: the enumerator returns the documents with at least
+      // _minMatchingTerm matching terms (by document ids only), the positions
+      // are checked only for these candidates.
+      int candidateDoc = _docEnum.advance(targetDocId_);
+      while (candidateDoc != NO_MORE_DOCS) {
+        final float score = calculateScore();
         if (score > 0) {
-          _currentDoc = candidateDoc.docId();
+          _currentDoc = candidateDoc;
           _currentDocScore = score;
           break;
         }
         
-        candidateDoc = _docEnum.advance(candidateDoc.docId() + 1);
+        candidateDoc = _docEnum.advance(candidateDoc + 1);
       }
       
       return _currentDoc;
@@ -542,8 +645,8 @@ public class HIPDQuery extends Query {
 
     @Override
     public long cost() {
-      // I don`t know better.
-      return 42;
+      // Upper bound of the candidates (the positional check may reject them)
+      return _docEnum.cost();
     }
   }
   
@@ -1,14 +1,20 @@
 package cc.search.analysis.query;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Comparator;
 import org.apache.lucene.index.DocsAndPositionsEnum;
 import org.apache.lucene.index.Term;
 import static org.apache.lucene.search.DocIdSetIterator.NO_MORE_DOCS;
 
 /**
- * Helper class for enumerating possibly matching documents.
+ * Helper class for enumerating possibly matching documents: the union of the
+ * documents of the terms, restricted to the documents with a minimal number
+ * of matching terms. Only the rarest terms (the lead terms) are enumerated
+ * in a priority queue ordered by their current document, the most frequent
+ * ones are advanced to the candidates (from the rarest) only while the
+ * candidate can still have enough matching terms. No object is allocated per
+ * document.
  * 
  * @author Alex Gábor Ispánovics <gabor.alex.ispanovics@ericsson.com>
  */
@@ -148,100 +154,283 @@ final class MatchingDocEnum {
       _lastPosition = -1;
       return _termDocPosEnum.advance(targetDocId_);
     }
-  }
-  
-  /**
-   * Helper class for a matching document.
-   */
-  static class DocMatch {
-    /**
-     * Document id.
-     */
-    private final int _docId;
-    /**
-     * Terms from the query found in this document.
-     */
-    private final List<TermContext> _matches;
-    
-    /**
-     * @param docId_ document id.
-     * @param matches_ matches.
-     */
-    DocMatch(int docId_, List<TermContext> matches_) {
-      _docId = docId_;
-      _matches = matches_;
-    }
     
     /**
-     * @return document id.
+     * Returns the cost of the enumerator (the number of documents of the
+     * term).
+     * @return cost.
      */
-    int docId() {
-      return _docId;
-    }
-    
-    /**
-     * @return list of matching terms.
-     */
-    List<TermContext> matches() {
-      return _matches;
+    long cost() {
+      return _termDocPosEnum.cost();
     }
   }
   
   /**
-   * Terms in the enumerator.
+   * Orders the term contexts by the number of their documents.
+   */
+  private static final Comparator<TermContext> COST_ORDER =
+    new Comparator<TermContext>() {
+      @Override
+      public int compare(TermContext ctx1_, TermContext ctx2_) {
+        return Long.compare(ctx1_.cost(), ctx2_.cost());
+      }
+    };
+  
+  /**
+   * The added term contexts.
+   */
+  private final TermContext[] _terms;
+  /**
+   * Number of added term contexts.
+   */
+  private int _numTerms = 0;
+  /**
+   * True if the terms are partitioned to lead and tail terms.
+   */
+  private boolean _partitioned = false;
+  /**
+   * The lead terms (the rarest ones) ordered by their current document (a
+   * binary min-heap, the first _heapSize elements are used). Every document
+   * with enough matching terms contains at least one of them.
+   */
+  private final TermContext[] _heap;
+  /**
+   * Number of lead terms in the heap.
+   */
+  private int _heapSize = 0;
+  /**
+   * Lead terms on the current candidate (popped from the heap).
+   */
+  private final TermContext[] _popped;
+  /**
+   * Number of lead terms on the current candidate.
+   */
+  private int _poppedCount = 0;
+  /**
+   * The tail terms (the most frequent ones) from the rarest. They are only
+   * advanced to the candidates of the lead terms.
+   */
+  private TermContext[] _tail;
+  /**
+   * Term contexts on the current document, ordered by their position in the
+   * query.
+   */
+  private final TermContext[] _matches;
+  /**
+   * Number of term contexts on the current document.
+   */
+  private int _matchCount = 0;
+  /**
+   * Minimal number of matching terms in a document.
+   */
+  private final int _minShouldMatch;
+  /**
+   * Estimated number of candidate documents (the number of documents of the
+   * lead terms).
+   */
+  private long _cost = 0;
+  
+  /**
+   * @param termCapacity_ maximal number of terms.
+   * @param minShouldMatch_ minimal number of matching terms in a document
+   *  (the documents with less matching terms are skipped).
    */
-  final ArrayList<TermContext> _terms;
+  MatchingDocEnum(int termCapacity_, int minShouldMatch_) {
+    _terms = new TermContext[termCapacity_];
+    _heap = new TermContext[termCapacity_];
+    _popped = new TermContext[termCapacity_];
+    _matches = new TermContext[termCapacity_];
+    _minShouldMatch = Math.max(1, minShouldMatch_);
+  }
   
   /**
-   * @param termCapacity_ capacity for container allocation.
+   * Partitions the added terms by their number of documents: a document with
+   * minShouldMatch matching terms contains at least one of the
+   * (numTerms - minShouldMatch + 1) rarest terms, so only these terms have to
+   * be enumerated, the others are checked for their candidates.
    */
-  MatchingDocEnum(int termCapacity_) {
-    _terms = new ArrayList<>(termCapacity_);
+  private void partition() {
+    if (_partitioned) {
+      return;
+    }
+    _partitioned = true;
+    
+    Arrays.sort(_terms, 0, _numTerms, COST_ORDER);
+    
+    final int leadCount = Math.max(0, _numTerms - _minShouldMatch + 1);
+    for (int i = 0; i < leadCount; ++i) {
+      // Unpositioned enums (-1) are on the top, they are advanced first.
+      push(_terms[i]);
+      _cost += _terms[i].cost();
+    }
+    _tail = Arrays.copyOfRange(_terms, leadCount, _numTerms);
   }
   
   /**
-   * Advance to the next lowest document id starting from targetDocId_.
+   * Advance to the next lowest document id starting from targetDocId_ which
+   * has at least minShouldMatch matching terms. The term contexts on the
+   * document are available by matchCount() and match().
+   * 
+   * This is the cheap (document id only) phase of the matching: the
+   * positions are not read.
    * 
    * @param targetDocId_ the lower bound of the next doc id.
-   * @return A document match or null if no more.
+   * @return the document id or NO_MORE_DOCS.
    * @throws IOException 
    */
-  DocMatch advance(int targetDocId_) throws IOException {
-    int leastDoc = NO_MORE_DOCS;
-    ArrayList<TermContext> matches = new ArrayList<>(_terms.size());
+  int advance(int targetDocId_) throws IOException {
+    partition();
     
-    for (final TermContext ctx : _terms) {
-      int doc = ctx.lastDocId();
-      // From the documentation: docID returns -1 or NO_MORE_DOCS if nextDoc()
-      // or advance(int) were not called yet.
-      if (doc == -1 || doc == NO_MORE_DOCS || doc < targetDocId_) {
-        // Find next matching doc
-        doc = ctx.advance(targetDocId_);
+    int target = targetDocId_;
+    while (true) {
+      // Put back the lead terms of the previous candidate
+      for (int i = 0; i < _poppedCount; ++i) {
+        final TermContext ctx = _popped[i];
+        if (ctx.lastDocId() >= target || ctx.advance(target) != NO_MORE_DOCS) {
+          push(ctx);
+        }
+      }
+      _poppedCount = 0;
+      _matchCount = 0;
+      
+      // Move the lead terms behind the target
+      while (_heapSize > 0 && _heap[0].lastDocId() < target) {
+        if (_heap[0].advance(target) != NO_MORE_DOCS) {
+          siftDown(0);
+        } else {
+          _heap[0] = _heap[--_heapSize];
+          siftDown(0);
+        }
+      }
+      
+      if (_heapSize == 0) {
+        // Every match needs a lead term
+        return NO_MORE_DOCS;
+      }
+      
+      // Pop the lead terms on the least document
+      final int doc = _heap[0].lastDocId();
+      while (_heapSize > 0 && _heap[0].lastDocId() == doc) {
+        _popped[_poppedCount++] = _heap[0];
+        addMatch(_heap[0]);
+        _heap[0] = _heap[--_heapSize];
+        siftDown(0);
       }
       
-      if (doc < leastDoc) {
-        matches.clear();
-        matches.add(ctx);
-        leastDoc = doc;
-      } else if (doc != NO_MORE_DOCS && doc == leastDoc) {
-        matches.add(ctx);
+      // Check the tail terms (the rarest first) until the candidate can't
+      // have enough matching terms.
+      for (int i = 0; i < _tail.length; ++i) {
+        if (_matchCount + _tail.length - i < _minShouldMatch) {
+          break;
+        }
+        
+        final TermContext ctx = _tail[i];
+        if (ctx.lastDocId() < doc) {
+          ctx.advance(doc);
+        }
+        if (ctx.lastDocId() == doc) {
+          addMatch(ctx);
+        }
       }
+      
+      if (_matchCount >= _minShouldMatch) {
+        return doc;
+      }
+      
+      target = doc + 1;
     }
-    
-    if (leastDoc == NO_MORE_DOCS) {
-      return null;
+  }
+  
+  /**
+   * @return number of matching terms on the current document.
+   */
+  int matchCount() {
+    return _matchCount;
+  }
+  
+  /**
+   * @param index_ index of a matching term (less than matchCount()).
+   * @return a term context on the current document (ordered by the position
+   *  in the query).
+   */
+  TermContext match(int index_) {
+    return _matches[index_];
+  }
+  
+  /**
+   * Adds a term context to the matches of the current document (in the order
+   * of the positions in the query).
+   * 
+   * @param ctx_ a term context.
+   */
+  private void addMatch(TermContext ctx_) {
+    int i = _matchCount++;
+    while (i > 0 && _matches[i - 1].relativePosition() >
+      ctx_.relativePosition()) {
+      _matches[i] = _matches[i - 1];
+      --i;
+    }
+    _matches[i] = ctx_;
+  }
+  
+  /**
+   * Adds a term context to the heap.
+   * 
+   * @param ctx_ a term context.
+   */
+  private void push(TermContext ctx_) {
+    int i = _heapSize++;
+    final int doc = ctx_.lastDocId();
+    while (i > 0) {
+      final int parent = (i - 1) >>> 1;
+      if (_heap[parent].lastDocId() <= doc) {
+        break;
+      }
+      _heap[i] = _heap[parent];
+      i = parent;
+    }
+    _heap[i] = ctx_;
+  }
+  
+  /**
+   * Restores the heap order from an element down.
+   * 
+   * @param index_ index of the element.
+   */
+  private void siftDown(int index_) {
+    if (_heapSize == 0) {
+      return;
     }
     
-    return new DocMatch(leastDoc, matches);
+    final TermContext ctx = _heap[index_];
+    final int doc = ctx.lastDocId();
+    int i = index_;
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= _heapSize) {
+        break;
+      }
+      if (child + 1 < _heapSize &&
+        _heap[child + 1].lastDocId() < _heap[child].lastDocId()) {
+        ++child;
+      }
+      if (_heap[child].lastDocId() >= doc) {
+        break;
+      }
+      _heap[i] = _heap[child];
+      i = child;
+    }
+    _heap[i] = ctx;
   }
   
   /**
-   * Add a context to the enumerator.
+   * Add a context to the enumerator. Must be called before advance().
    * 
    * @param ctx_ a context.
    */
   void add(TermContext ctx_) {
-    _terms.add(ctx_);
+    assert !_partitioned : "add() after advance()!";
+    _terms[_numTerms++] = ctx_;
   }
   
   /**
@@ -249,6 +438,17 @@ final class MatchingDocEnum {
    * @return number of term contexts.
    */
   int numTermContext() {
-    return _terms.size();
+    return _numTerms;
+  }
+  
+  /**
+   * Estimated number of candidate documents: the number of documents of the
+   * lead terms.
+   * 
+   * @return estimated cost.
+   */
+  long cost() {
+    partition();
+    return _cost;
   }
 }
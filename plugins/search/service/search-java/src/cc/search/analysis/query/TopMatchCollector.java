@@ -0,0 +1,494 @@
+package cc.search.analysis.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.lucene.search.ScoreDoc;
+
+/**
+ * A MatchCollector that keeps the best match(es) of the documents which are
+ * still competitive for the top hits of the search: the score of a document
+ * is the score of its best match (like the score of a HIPDQuery hit), and the
+ * documents are ranked like TopScoreDocCollector does (by score, then by
+ * document id). So after the search the matches of every top hit are
+ * available, but the memory does not depend on the number of matching
+ * documents.
+ *
+ * The matches of a document are reported together (by one scorer), so the
+ * matches of the current document are buffered per thread and the document
+ * is ranked only when the matches of the next one arrive (or when the results
+ * are read). The buffers and the slots of the ranked documents are primitive
+ * arrays, MatchInfo objects are only created by getResultsInDoc().
+ *
+ * The collector can be shared by the parallel searches of the segments. The
+ * results must be read after the search.
+ */
+public class TopMatchCollector implements MatchCollector {
+  /**
+   * The best matches of the current document of a thread.
+   */
+  private static final class PendingDoc {
+    /**
+     * Document id (NO_DOC if empty).
+     */
+    int docId = NO_DOC;
+    /**
+     * Best score.
+     */
+    float score;
+    /**
+     * Number of best matches.
+     */
+    int count;
+    /**
+     * Start and end offsets of the best matches (in pairs).
+     */
+    int[] offsets = new int[2 * INITIAL_MATCHES];
+  }
+
+  /**
+   * Initial number of document slots.
+   */
+  private static final int INITIAL_SLOTS = 16;
+  /**
+   * Initial number of matches (offset pairs) per document.
+   */
+  private static final int INITIAL_MATCHES = 2;
+  /**
+   * Empty key in the document id -> slot hash table.
+   */
+  private static final int NO_DOC = -1;
+
+  /**
+   * Maximal number of documents (the number of top hits).
+   */
+  private final int _numHits;
+  /**
+   * The last hit of the previous page (null if the search is not a
+   * searchAfter search). The documents before it are not collected.
+   */
+  private final ScoreDoc _after;
+  /**
+   * The current document of the threads.
+   */
+  private final ThreadLocal<PendingDoc> _pending =
+    new ThreadLocal<PendingDoc>() {
+      @Override
+      protected PendingDoc initialValue() {
+        final PendingDoc pending = new PendingDoc();
+        synchronized (TopMatchCollector.this) {
+          _pendingDocs.add(pending);
+        }
+        return pending;
+      }
+    };
+  /**
+   * The current document of every thread (for ranking them at the end).
+   */
+  private final List<PendingDoc> _pendingDocs = new ArrayList<>();
+  /**
+   * Document id of the slots.
+   */
+  private int[] _slotDocs;
+  /**
+   * Best score of the slots.
+   */
+  private float[] _slotScores;
+  /**
+   * Number of best matches of the slots.
+   */
+  private int[] _slotCounts;
+  /**
+   * Start and end offsets of the best matches of the slots (in pairs).
+   */
+  private int[][] _slotOffsets;
+  /**
+   * Position of the slots in the heap.
+   */
+  private int[] _heapIndex;
+  /**
+   * The slots ordered by their rank, the least competitive document is on
+   * the top (a binary heap, the first _size elements are used). A slot is
+   * never freed, so the first _size slots are used.
+   */
+  private int[] _heap;
+  /**
+   * Number of used slots.
+   */
+  private int _size = 0;
+  /**
+   * Keys of the document id -> slot hash table (linear probing).
+   */
+  private int[] _mapKeys;
+  /**
+   * Values of the document id -> slot hash table.
+   */
+  private int[] _mapValues;
+
+  /**
+   * Creates a collector for the first hits of a search.
+   *
+   * @param numHits_ number of top hits (Integer.MAX_VALUE keeps every
+   *  document).
+   */
+  public TopMatchCollector(int numHits_) {
+    this(numHits_, null);
+  }
+
+  /**
+   * Creates a collector for a page of a searchAfter search.
+   *
+   * @param numHits_ number of top hits (Integer.MAX_VALUE keeps every
+   *  document).
+   * @param after_ the last hit of the previous page (null for the first
+   *  page).
+   */
+  public TopMatchCollector(int numHits_, ScoreDoc after_) {
+    assert numHits_ > 0;
+    _numHits = numHits_;
+    _after = after_;
+
+    final int slots = Math.min(INITIAL_SLOTS, numHits_);
+    _slotDocs = new int[slots];
+    _slotScores = new float[slots];
+    _slotCounts = new int[slots];
+    _slotOffsets = new int[slots][];
+    _heapIndex = new int[slots];
+    _heap = new int[slots];
+    _mapKeys = new int[tableSize(slots)];
+    Arrays.fill(_mapKeys, NO_DOC);
+    _mapValues = new int[_mapKeys.length];
+  }
+
+  @Override
+  public void collectMatch(int docId_, MatchInfo info_) {
+    final PendingDoc pending = _pending.get();
+    if (pending.docId != docId_) {
+      if (pending.docId != NO_DOC) {
+        rank(pending);
+      }
+      pending.docId = docId_;
+      pending.score = info_.score;
+      pending.count = 0;
+    } else if (info_.score < pending.score) {
+      return;
+    } else if (info_.score > pending.score) {
+      // A new best match, the previous ones are dropped
+      pending.score = info_.score;
+      pending.count = 0;
+    }
+
+    final int index = 2 * pending.count;
+    if (index == pending.offsets.length) {
+      pending.offsets = Arrays.copyOf(pending.offsets, 2 * index);
+    }
+    pending.offsets[index] = info_.startOffset;
+    pending.offsets[index + 1] = info_.endOffset;
+    ++pending.count;
+  }
+
+  /**
+   * Returns the collected (best) matches for a document.
+   *
+   * @param docId_ document id.
+   * @return the list of matches in the document (in the order of
+   *  collecting) or null.
+   */
+  public synchronized List<MatchInfo> getResultsInDoc(int docId_) {
+    for (PendingDoc pending : _pendingDocs) {
+      if (pending.docId != NO_DOC) {
+        rank(pending);
+      }
+    }
+
+    final int slot = mapGet(docId_);
+    if (slot < 0) {
+      return null;
+    }
+
+    final int[] offsets = _slotOffsets[slot];
+    final List<MatchInfo> result = new ArrayList<>(_slotCounts[slot]);
+    for (int i = 0; i < _slotCounts[slot]; ++i) {
+      result.add(new MatchInfo(_slotScores[slot], offsets[2 * i],
+        offsets[2 * i + 1]));
+    }
+
+    return result;
+  }
+
+  /**
+   * Ranks a complete document: keeps its matches if it is competitive (the
+   * least competitive document is dropped if there are numHits documents).
+   * The pending document is emptied.
+   *
+   * @param pending_ a pending document.
+   */
+  private synchronized void rank(PendingDoc pending_) {
+    final int docId = pending_.docId;
+    final float score = pending_.score;
+    pending_.docId = NO_DOC;
+
+    if (_after != null && (score > _after.score ||
+      (score == _after.score && docId <= _after.doc))) {
+      // The document is on a previous page
+      return;
+    }
+
+    int slot = mapGet(docId);
+    if (slot >= 0) {
+      // The document is reported again (should not happen)
+      if (score < _slotScores[slot]) {
+        return;
+      }
+      if (score > _slotScores[slot]) {
+        _slotScores[slot] = score;
+        _slotCounts[slot] = 0;
+        siftDown(_heapIndex[slot]);
+      }
+    } else if (_size == _numHits) {
+      slot = _heap[0];
+      if (!isWorse(_slotScores[slot], _slotDocs[slot], score, docId)) {
+        // Not competitive
+        return;
+      }
+
+      // Reuse the slot of the least competitive document
+      mapRemove(_slotDocs[slot]);
+      initSlot(slot, docId, score);
+      siftDown(0);
+      mapPut(docId, slot);
+    } else {
+      slot = _size;
+      ensureSlot(slot);
+      initSlot(slot, docId, score);
+      _heap[_size] = slot;
+      _heapIndex[slot] = _size;
+      siftUp(_size++);
+      mapPut(docId, slot);
+    }
+
+    for (int i = 0; i < pending_.count; ++i) {
+      addOffsets(slot, pending_.offsets[2 * i], pending_.offsets[2 * i + 1]);
+    }
+  }
+
+  /**
+   * @param score1_ score of the first document.
+   * @param doc1_ id of the first document.
+   * @param score2_ score of the second document.
+   * @param doc2_ id of the second document.
+   * @return true if the first document is ranked after the second one.
+   */
+  private static boolean isWorse(float score1_, int doc1_, float score2_,
+    int doc2_) {
+    return score1_ < score2_ || (score1_ == score2_ && doc1_ > doc2_);
+  }
+
+  /**
+   * @param slots_ number of slots.
+   * @return the size of the hash table for a number of slots (a power of 2,
+   *  at least the double of the slots).
+   */
+  private static int tableSize(int slots_) {
+    return Integer.highestOneBit(Math.max(2, slots_) * 2 - 1) * 2;
+  }
+
+  /**
+   * Initializes a slot for a new document.
+   *
+   * @param slot_ a slot.
+   * @param docId_ document id.
+   * @param score_ score of the first match.
+   */
+  private void initSlot(int slot_, int docId_, float score_) {
+    _slotDocs[slot_] = docId_;
+    _slotScores[slot_] = score_;
+    _slotCounts[slot_] = 0;
+    if (_slotOffsets[slot_] == null) {
+      _slotOffsets[slot_] = new int[2 * INITIAL_MATCHES];
+    }
+  }
+
+  /**
+   * Adds a match to a slot.
+   *
+   * @param slot_ a slot.
+   * @param startOffset_ start offset of the match.
+   * @param endOffset_ end offset of the match.
+   */
+  private void addOffsets(int slot_, int startOffset_, int endOffset_) {
+    int[] offsets = _slotOffsets[slot_];
+    final int index = 2 * _slotCounts[slot_];
+    if (index == offsets.length) {
+      offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+      _slotOffsets[slot_] = offsets;
+    }
+    offsets[index] = startOffset_;
+    offsets[index + 1] = endOffset_;
+    ++_slotCounts[slot_];
+  }
+
+  /**
+   * Grows the slot arrays (and the hash table) if a slot does not exist.
+   *
+   * @param slot_ a slot.
+   */
+  private void ensureSlot(int slot_) {
+    if (slot_ < _slotDocs.length) {
+      return;
+    }
+
+    final int slots = (int) Math.min(_numHits, 2L * _slotDocs.length);
+    _slotDocs = Arrays.copyOf(_slotDocs, slots);
+    _slotScores = Arrays.copyOf(_slotScores, slots);
+    _slotCounts = Arrays.copyOf(_slotCounts, slots);
+    _slotOffsets = Arrays.copyOf(_slotOffsets, slots);
+    _heapIndex = Arrays.copyOf(_heapIndex, slots);
+    _heap = Arrays.copyOf(_heap, slots);
+    rehash(tableSize(slots));
+  }
+
+  /**
+   * Moves a heap element up while it is worse than its parent.
+   *
+   * @param index_ index of the element in the heap.
+   */
+  private void siftUp(int index_) {
+    final int slot = _heap[index_];
+    int i = index_;
+    while (i > 0) {
+      final int parent = (i - 1) >>> 1;
+      final int parentSlot = _heap[parent];
+      if (!isWorse(_slotScores[slot], _slotDocs[slot],
+        _slotScores[parentSlot], _slotDocs[parentSlot])) {
+        break;
+      }
+      _heap[i] = parentSlot;
+      _heapIndex[parentSlot] = i;
+      i = parent;
+    }
+    _heap[i] = slot;
+    _heapIndex[slot] = i;
+  }
+
+  /**
+   * Moves a heap element down while a child is worse than it.
+   *
+   * @param index_ index of the element in the heap.
+   */
+  private void siftDown(int index_) {
+    final int slot = _heap[index_];
+    int i = index_;
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= _size) {
+        break;
+      }
+      if (child + 1 < _size && isWorse(_slotScores[_heap[child + 1]],
+        _slotDocs[_heap[child + 1]], _slotScores[_heap[child]],
+        _slotDocs[_heap[child]])) {
+        ++child;
+      }
+      final int childSlot = _heap[child];
+      if (!isWorse(_slotScores[childSlot], _slotDocs[childSlot],
+        _slotScores[slot], _slotDocs[slot])) {
+        break;
+      }
+      _heap[i] = childSlot;
+      _heapIndex[childSlot] = i;
+      i = child;
+    }
+    _heap[i] = slot;
+    _heapIndex[slot] = i;
+  }
+
+  /**
+   * @param docId_ document id.
+   * @return the home position of a document id in the hash table.
+   */
+  private int hash(int docId_) {
+    int hash = docId_ * 0x9E3779B9;
+    hash ^= hash >>> 16;
+    return hash & (_mapKeys.length - 1);
+  }
+
+  /**
+   * @param docId_ document id.
+   * @return the slot of the document or -1.
+   */
+  private int mapGet(int docId_) {
+    final int mask = _mapKeys.length - 1;
+    for (int i = hash(docId_); _mapKeys[i] != NO_DOC; i = (i + 1) & mask) {
+      if (_mapKeys[i] == docId_) {
+        return _mapValues[i];
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Puts a new document into the hash table.
+   *
+   * @param docId_ document id (not in the table).
+   * @param slot_ slot of the document.
+   */
+  private void mapPut(int docId_, int slot_) {
+    final int mask = _mapKeys.length - 1;
+    int i = hash(docId_);
+    while (_mapKeys[i] != NO_DOC) {
+      i = (i + 1) & mask;
+    }
+    _mapKeys[i] = docId_;
+    _mapValues[i] = slot_;
+  }
+
+  /**
+   * Removes a document from the hash table (the following entries of the
+   * probe sequence are shifted back).
+   *
+   * @param docId_ document id.
+   */
+  private void mapRemove(int docId_) {
+    final int mask = _mapKeys.length - 1;
+    int hole = hash(docId_);
+    while (_mapKeys[hole] != docId_) {
+      if (_mapKeys[hole] == NO_DOC) {
+        return;
+      }
+      hole = (hole + 1) & mask;
+    }
+
+    for (int i = (hole + 1) & mask; _mapKeys[i] != NO_DOC;
+      i = (i + 1) & mask) {
+      final int home = hash(_mapKeys[i]);
+      // Move the entry if its home is not in (hole, i] (cyclically)
+      final boolean inRange = hole <= i ? (hole < home && home <= i) :
+        (hole < home || home <= i);
+      if (!inRange) {
+        _mapKeys[hole] = _mapKeys[i];
+        _mapValues[hole] = _mapValues[i];
+        hole = i;
+      }
+    }
+    _mapKeys[hole] = NO_DOC;
+  }
+
+  /**
+   * Resizes the hash table.
+   *
+   * @param size_ new size (a power of 2).
+   */
+  private void rehash(int size_) {
+    final int[] keys = _mapKeys;
+    final int[] values = _mapValues;
+    _mapKeys = new int[size_];
+    Arrays.fill(_mapKeys, NO_DOC);
+    _mapValues = new int[size_];
+
+    for (int i = 0; i < keys.length; ++i) {
+      if (keys[i] != NO_DOC) {
+        mapPut(keys[i], values[i]);
+      }
+    }
+  }
+}
@@ -1,17 +1,38 @@
 package cc.search.match;
 
+import cc.search.analysis.LineBlocks;
 import cc.search.analysis.LineInformations;
+import cc.search.analysis.tags.Tags;
 import cc.search.common.IndexFields;
 import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.search.IndexSearcher;
 
 /**
  * Matching context.
  */
 public class Context {
+  /**
+   * Stored fields which are always needed for a context. The matchers declare
+   * the other ones (see ResultMatcherFactory.getRequiredFields()).
+   */
+  public static final Set<String> BASE_FIELDS = Collections.unmodifiableSet(
+    new HashSet<>(Arrays.asList(IndexFields.filePathField,
+      IndexFields.fileDbIdField, IndexFields.chunkBaseLineField)));
   /**
    * Matching query context.
    */
@@ -29,11 +50,12 @@ public class Context {
    */
   public final IndexSearcher searcher;
   /**
-   * Original file content.
+   * Original file content (null if the content field is not loaded).
    */
   public final String originalContent;
   /**
-   * Line informations based on file content.
+   * Line informations based on file content (null if neither the content
+   * field nor the line starts are available).
    */
   public final LineInformations lineInfos;
   /**
@@ -45,6 +67,22 @@ public class Context {
    */
   public final String fileId;
   /**
+   * Number of file lines before the first line of the document. It is not 0
+   * only if the document is a chunk of a large file (then lineInfos is
+   * relative to the chunk).
+   */
+  public final int baseLine;
+  /**
+   * Cache of the derived artifacts (can be null).
+   */
+  private final DocumentArtifactCache _cache;
+  /**
+   * Deserialized tags (loaded on demand, see getTags()).
+   */
+  private Tags _tags;
+  /**
+   * Creates a context with every stored field of the document.
+   * 
    * @param query_ query context.
    * @param searcher_ a shared index searcher.
    * @param docId_ document database id.
@@ -52,14 +90,260 @@ public class Context {
    */
   public Context(QueryContext query_, IndexSearcher searcher_, int docId_)
     throws IOException {
+    this(query_, searcher_, docId_, searcher_.getIndexReader().document(
+      docId_));
+  }
+  
+  /**
+   * Creates a context for a document loaded with selected fields (at least
+   * BASE_FIELDS).
+   * 
+   * @param query_ query context.
+   * @param searcher_ a shared index searcher.
+   * @param docId_ document database id.
+   * @param document_ the loaded document.
+   * @throws IOException 
+   */
+  public Context(QueryContext query_, IndexSearcher searcher_, int docId_,
+    Document document_) throws IOException {
+    this(query_, searcher_, docId_, document_, null, null, null, null);
+  }
+  
+  /**
+   * @param query_ query context.
+   * @param searcher_ a shared index searcher.
+   * @param docId_ document database id.
+   * @param document_ the loaded document.
+   * @param lineInfos_ cached line informations (can be null).
+   * @param lineBlocks_ line blocks of the content (can be null).
+   * @param tags_ cached tags (can be null).
+   * @param cache_ cache of the derived artifacts (can be null).
+   * @throws IOException 
+   */
+  private Context(QueryContext query_, IndexSearcher searcher_, int docId_,
+    Document document_, LineInformations lineInfos_, LineBlocks lineBlocks_,
+    Tags tags_, DocumentArtifactCache cache_) throws IOException {
     query = query_;
     documentId = docId_;
-    document = searcher_.getIndexReader().document(docId_);
+    document = document_;
     searcher = searcher_;
+    _cache = cache_;
+    _tags = tags_;
     originalContent = document.get(IndexFields.contentField);
     file = new File(document.get(IndexFields.filePathField));
     fileId = document.get(IndexFields.fileDbIdField);
     
-    lineInfos = LineInformations.fromReader(new StringReader(originalContent));
+    final IndexableField baseLineField = document.getField(
+      IndexFields.chunkBaseLineField);
+    baseLine = baseLineField == null ? 0 :
+      baseLineField.numericValue().intValue();
+    
+    final LineInformations.ContentLoader contentLoader =
+      new LineInformations.ContentLoader() {
+        @Override
+        public String load() throws IOException {
+          return loadContent();
+        }
+      };
+    
+    LineInformations lines;
+    if (lineInfos_ != null) {
+      lines = lineInfos_.withContent(contentLoader);
+    } else {
+      lines = loadLineStarts(contentLoader);
+      if (lines == null && originalContent != null) {
+        // Indexed without line starts: scan the content.
+        lines = LineInformations.fromReader(new StringReader(
+          originalContent));
+      }
+      
+      if (lines != null && _cache != null) {
+        _cache.putLineInformations(searcher.getIndexReader(), documentId,
+          lines);
+      }
+    }
+    
+    if (lines != null && lineBlocks_ != null) {
+      // The lines are read from the line blocks, not from the whole content.
+      lines = lines.withLineSource(lineBlocks_);
+    }
+    lineInfos = lines;
+  }
+  
+  /**
+   * Reads the line starts of the document from the doc values (see
+   * IndexFields.lineStartsField).
+   * 
+   * @param loader_ loader of the content for the line texts.
+   * @return line informations or null if the document has no line starts.
+   * @throws IOException 
+   */
+  private LineInformations loadLineStarts(
+    LineInformations.ContentLoader loader_) throws IOException {
+    final BytesRef bytes = getDocValue(searcher, documentId,
+      IndexFields.lineStartsField);
+    return bytes == null ? null :
+      LineInformations.fromLineStarts(bytes, loader_);
+  }
+  
+  /**
+   * Reads the line blocks of a document from the doc values (see
+   * IndexFields.contentBlocksField).
+   * 
+   * @param searcher_ a shared index searcher.
+   * @param docId_ document database id.
+   * @return line blocks or null if the document has no line blocks.
+   * @throws IOException 
+   */
+  private static LineBlocks loadLineBlocks(IndexSearcher searcher_,
+    int docId_) throws IOException {
+    final BytesRef bytes = getDocValue(searcher_, docId_,
+      IndexFields.contentBlocksField);
+    // The returned bytes are reused by the doc values, so they are copied.
+    return bytes == null ? null : new LineBlocks(BytesRef.deepCopyOf(bytes));
+  }
+  
+  /**
+   * Reads a binary doc value of a document.
+   * 
+   * @param searcher_ a shared index searcher.
+   * @param docId_ document database id.
+   * @param field_ a binary doc values field.
+   * @return the value or null if the document has no value.
+   * @throws IOException 
+   */
+  private static BytesRef getDocValue(IndexSearcher searcher_, int docId_,
+    String field_) throws IOException {
+    final List<AtomicReaderContext> leaves = searcher_.getIndexReader()
+      .leaves();
+    final AtomicReaderContext leaf = leaves.get(ReaderUtil.subIndex(docId_,
+      leaves));
+    final AtomicReader segment = leaf.reader();
+    final FieldInfo info = segment.getFieldInfos().fieldInfo(field_);
+    if (info == null || !info.hasDocValues()) {
+      return null;
+    }
+    
+    final BinaryDocValues values = segment.getBinaryDocValues(field_);
+    final BytesRef bytes = values.get(docId_ - leaf.docBase);
+    return bytes.length == 0 ? null : bytes;
+  }
+  
+  /**
+   * @return the content of the document (it is loaded if the document was
+   *  loaded without it).
+   * @throws IOException 
+   */
+  private String loadContent() throws IOException {
+    if (originalContent != null) {
+      return originalContent;
+    }
+    
+    final String content = searcher.doc(documentId, Collections.singleton(
+      IndexFields.contentField)).get(IndexFields.contentField);
+    if (content == null) {
+      throw new IOException("No content in document " + documentId + "!");
+    }
+    
+    return content;
+  }
+  
+  /**
+   * Creates a context for a document with the artifacts in the cache. The
+   * tags are not loaded if they are cached. The content is not loaded if the
+   * document has line starts and line blocks: the matching lines are read
+   * from the line blocks.
+   * 
+   * @param query_ query context.
+   * @param searcher_ a shared index searcher.
+   * @param docId_ document database id.
+   * @param fields_ stored fields to load (at least BASE_FIELDS).
+   * @param cache_ cache of the derived artifacts (can be null).
+   * @return a new context.
+   * @throws IOException 
+   */
+  public static Context load(QueryContext query_, IndexSearcher searcher_,
+    int docId_, Set<String> fields_, DocumentArtifactCache cache_)
+    throws IOException {
+    LineInformations lineInfos = null;
+    LineBlocks lineBlocks = null;
+    if (fields_.contains(IndexFields.contentField)) {
+      lineInfos = cache_ == null ? null : cache_.getLineInformations(
+        searcher_.getIndexReader(), docId_);
+      lineBlocks = loadLineBlocks(searcher_, docId_);
+      
+      if (lineInfos == null && lineBlocks != null) {
+        final BytesRef lineStarts = getDocValue(searcher_, docId_,
+          IndexFields.lineStartsField);
+        if (lineStarts != null) {
+          lineInfos = LineInformations.fromLineStarts(lineStarts, null);
+          if (cache_ != null) {
+            cache_.putLineInformations(searcher_.getIndexReader(), docId_,
+              lineInfos);
+          }
+        }
+      }
+    }
+    final Tags tags = cache_ != null && fields_.contains(
+      IndexFields.tagsField) ? cache_.getTags(searcher_.getIndexReader(),
+        docId_) : null;
+    
+    // Without line blocks the cached line informations have no content, then
+    // the content is still needed for the line texts.
+    final boolean skipContent = lineInfos != null && lineBlocks != null;
+    Set<String> fields = fields_;
+    if (tags != null || skipContent) {
+      fields = new HashSet<>(fields_);
+      if (tags != null) {
+        fields.remove(IndexFields.tagsField);
+      }
+      if (skipContent) {
+        fields.remove(IndexFields.contentField);
+      }
+    }
+    
+    return new Context(query_, searcher_, docId_, searcher_.doc(docId_,
+      fields), lineInfos, lineBlocks, tags, cache_);
+  }
+  
+  /**
+   * Returns the tags of the document. They are deserialized on the first
+   * call (and cached if there is a cache).
+   * 
+   * @return the tags of the document.
+   * @throws IOException 
+   */
+  public Tags getTags() throws IOException {
+    if (_tags != null) {
+      return _tags;
+    }
+    
+    final BytesRef tagsBin = document.getBinaryValue(IndexFields.tagsField);
+    if (tagsBin == null) {
+      throw new IOException("No tags in document " + documentId + "!");
+    }
+    
+    try {
+      _tags = Tags.deserialize(tagsBin.bytes);
+    } catch (ClassNotFoundException ex) {
+      throw new IOException("Deserializing tags failed!", ex);
+    }
+    
+    if (_cache != null) {
+      _cache.putTags(searcher.getIndexReader(), documentId, _tags,
+        tagsBin.length);
+    }
+    
+    return _tags;
+  }
+  
+  /**
+   * Translates a line number of the document to a file line number.
+   * 
+   * @param line_ line number in the document (see lineInfos).
+   * @return line number in the file.
+   */
+  public int toFileLine(int line_) {
+    return baseLine + line_;
   }
 }
@@ -0,0 +1,352 @@
+package cc.search.match;
+
+import cc.search.analysis.LineInformations;
+import cc.search.analysis.tags.Tags;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.ReaderUtil;
+
+/**
+ * Memory bounded LRU cache of the artifacts derived from the stored fields of
+ * a document (line informations of the content, deserialized tags), so a hot
+ * document is not processed again on every query.
+ *
+ * The entries are keyed by the core key of the segment and the document id
+ * in the segment. They stay valid while the segment is open (deletes and
+ * reopens do not change them) and they are dropped when the segment is
+ * closed. The size of an entry is an estimate of its heap usage.
+ */
+public final class DocumentArtifactCache {
+  /**
+   * Kinds of cached artifacts.
+   */
+  private static enum Kind {
+    LineInfos,
+    Tags
+  }
+
+  /**
+   * Key of a cache entry.
+   */
+  private static final class Key {
+    /**
+     * Core key of the segment.
+     */
+    final Object coreKey;
+    /**
+     * Document id in the segment.
+     */
+    final int doc;
+    /**
+     * Kind of the artifact.
+     */
+    final Kind kind;
+
+    /**
+     * @param coreKey_ core key of the segment.
+     * @param doc_ document id in the segment.
+     * @param kind_ kind of the artifact.
+     */
+    Key(Object coreKey_, int doc_, Kind kind_) {
+      coreKey = coreKey_;
+      doc = doc_;
+      kind = kind_;
+    }
+
+    @Override
+    public boolean equals(Object obj_) {
+      if (!(obj_ instanceof Key)) {
+        return false;
+      }
+
+      final Key other = (Key) obj_;
+      return coreKey == other.coreKey && doc == other.doc &&
+        kind == other.kind;
+    }
+
+    @Override
+    public int hashCode() {
+      return (System.identityHashCode(coreKey) * 31 + doc) * 31 +
+        kind.ordinal();
+    }
+  }
+
+  /**
+   * A cached artifact.
+   */
+  private static final class Entry {
+    /**
+     * The artifact.
+     */
+    final Object value;
+    /**
+     * Estimated size in bytes.
+     */
+    final long size;
+
+    /**
+     * @param value_ the artifact.
+     * @param size_ estimated size in bytes.
+     */
+    Entry(Object value_, long size_) {
+      value = value_;
+      size = size_;
+    }
+  }
+
+  /**
+   * Estimated heap usage of a line (its start offset).
+   */
+  private static final long LINE_BYTES = 4;
+  /**
+   * Estimated heap usage of an entry beside the artifact (key, entry, map
+   * node).
+   */
+  private static final long ENTRY_OVERHEAD_BYTES = 96;
+  /**
+   * Estimated heap usage of the deserialized tags per serialized byte.
+   */
+  private static final long TAGS_BYTES_PER_SERIALIZED_BYTE = 4;
+  /**
+   * Maximum size of the cache in bytes.
+   */
+  private final long _maxBytes;
+  /**
+   * The entries in access order (guarded by this).
+   */
+  private final LinkedHashMap<Key, Entry> _entries = new LinkedHashMap<>(
+    1024, 0.75f, true);
+  /**
+   * Core keys of the segments with a registered close listener (guarded by
+   * this).
+   */
+  private final Set<Object> _listenedCores = Collections.newSetFromMap(
+    new IdentityHashMap<Object, Boolean>());
+  /**
+   * Current size of the cache in bytes (guarded by this).
+   */
+  private long _size = 0;
+  /**
+   * Number of cache hits.
+   */
+  private final AtomicLong _hits = new AtomicLong(0);
+  /**
+   * Number of cache misses.
+   */
+  private final AtomicLong _misses = new AtomicLong(0);
+  /**
+   * Number of entries evicted because of the size limit.
+   */
+  private final AtomicLong _evictions = new AtomicLong(0);
+
+  /**
+   * @param maxBytes_ maximum size of the cache in bytes.
+   */
+  public DocumentArtifactCache(long maxBytes_) {
+    _maxBytes = maxBytes_;
+  }
+
+  /**
+   * @param reader_ a top level reader.
+   * @param docId_ a document id of the reader.
+   * @return the cached line informations of the document or null.
+   */
+  public LineInformations getLineInformations(IndexReader reader_,
+    int docId_) {
+    return (LineInformations) get(reader_, docId_, Kind.LineInfos);
+  }
+
+  /**
+   * Caches the line informations of a document. Only the line starts are
+   * cached, the content is given by the context of a request (see
+   * LineInformations.withContent()).
+   *
+   * @param reader_ a top level reader.
+   * @param docId_ a document id of the reader.
+   * @param lineInfos_ line informations of the content.
+   */
+  public void putLineInformations(IndexReader reader_, int docId_,
+    LineInformations lineInfos_) {
+    put(reader_, docId_, Kind.LineInfos, lineInfos_.withContent(null),
+      ENTRY_OVERHEAD_BYTES + LINE_BYTES * lineInfos_.getLineCount());
+  }
+
+  /**
+   * @param reader_ a top level reader.
+   * @param docId_ a document id of the reader.
+   * @return the cached tags of the document or null.
+   */
+  public Tags getTags(IndexReader reader_, int docId_) {
+    return (Tags) get(reader_, docId_, Kind.Tags);
+  }
+
+  /**
+   * Caches the tags of a document.
+   *
+   * @param reader_ a top level reader.
+   * @param docId_ a document id of the reader.
+   * @param tags_ deserialized tags.
+   * @param serializedLength_ length of the serialized tags in bytes.
+   */
+  public void putTags(IndexReader reader_, int docId_, Tags tags_,
+    int serializedLength_) {
+    put(reader_, docId_, Kind.Tags, tags_, ENTRY_OVERHEAD_BYTES +
+      TAGS_BYTES_PER_SERIALIZED_BYTE * serializedLength_);
+  }
+
+  /**
+   * @return number of cache hits.
+   */
+  public long getHitCount() {
+    return _hits.get();
+  }
+
+  /**
+   * @return number of cache misses.
+   */
+  public long getMissCount() {
+    return _misses.get();
+  }
+
+  /**
+   * @return number of entries evicted because of the size limit.
+   */
+  public long getEvictionCount() {
+    return _evictions.get();
+  }
+
+  /**
+   * @return ratio of the hits to the lookups (0 if there was no lookup).
+   */
+  public double getHitRatio() {
+    final long hits = _hits.get();
+    final long lookups = hits + _misses.get();
+    return lookups == 0 ? 0.0 : (double) hits / lookups;
+  }
+
+  /**
+   * @return estimated size of the cache in bytes.
+   */
+  public synchronized long getSize() {
+    return _size;
+  }
+
+  /**
+   * @return number of cached artifacts.
+   */
+  public synchronized int getEntryCount() {
+    return _entries.size();
+  }
+
+  /**
+   * Looks up an artifact.
+   *
+   * @param reader_ a top level reader.
+   * @param docId_ a document id of the reader.
+   * @param kind_ kind of the artifact.
+   * @return the artifact or null.
+   */
+  private Object get(IndexReader reader_, int docId_, Kind kind_) {
+    final AtomicReaderContext leaf = getLeaf(reader_, docId_);
+    final Key key = new Key(leaf.reader().getCoreCacheKey(),
+      docId_ - leaf.docBase, kind_);
+
+    final Entry entry;
+    synchronized (this) {
+      entry = _entries.get(key);
+    }
+
+    if (entry == null) {
+      _misses.incrementAndGet();
+      return null;
+    }
+
+    _hits.incrementAndGet();
+    return entry.value;
+  }
+
+  /**
+   * Caches an artifact and evicts the least recently used ones if the cache
+   * is full. Artifacts larger than the whole cache are not cached.
+   *
+   * @param reader_ a top level reader.
+   * @param docId_ a document id of the reader.
+   * @param kind_ kind of the artifact.
+   * @param value_ the artifact.
+   * @param size_ estimated size of the artifact in bytes.
+   */
+  private void put(IndexReader reader_, int docId_, Kind kind_, Object value_,
+    long size_) {
+    if (size_ > _maxBytes) {
+      return;
+    }
+
+    final AtomicReaderContext leaf = getLeaf(reader_, docId_);
+    final AtomicReader segment = leaf.reader();
+    final Object coreKey = segment.getCoreCacheKey();
+    final Key key = new Key(coreKey, docId_ - leaf.docBase, kind_);
+
+    synchronized (this) {
+      if (_listenedCores.add(coreKey)) {
+        segment.addCoreClosedListener(new AtomicReader.CoreClosedListener() {
+          @Override
+          public void onClose(Object ownerCoreCacheKey_) {
+            removeCore(ownerCoreCacheKey_);
+          }
+        });
+      }
+
+      final Entry old = _entries.put(key, new Entry(value_, size_));
+      if (old != null) {
+        _size -= old.size;
+      }
+      _size += size_;
+
+      final Iterator<Entry> iter = _entries.values().iterator();
+      while (_size > _maxBytes && iter.hasNext()) {
+        _size -= iter.next().size;
+        iter.remove();
+        _evictions.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Drops the artifacts of a closed segment.
+   *
+   * @param coreKey_ core key of the segment.
+   */
+  private synchronized void removeCore(Object coreKey_) {
+    _listenedCores.remove(coreKey_);
+
+    final Iterator<Map.Entry<Key, Entry>> iter = _entries.entrySet()
+      .iterator();
+    while (iter.hasNext()) {
+      final Map.Entry<Key, Entry> entry = iter.next();
+      if (entry.getKey().coreKey == coreKey_) {
+        _size -= entry.getValue().size;
+        iter.remove();
+      }
+    }
+  }
+
+  /**
+   * @param reader_ a top level reader.
+   * @param docId_ a document id of the reader.
+   * @return the segment of the document.
+   */
+  private static AtomicReaderContext getLeaf(IndexReader reader_,
+    int docId_) {
+    final List<AtomicReaderContext> leaves = reader_.leaves();
+    return leaves.get(ReaderUtil.subIndex(docId_, leaves));
+  }
+}
@@ -0,0 +1,298 @@
+package cc.search.match;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.FilteredQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * The terms of a query in a field, extracted and expanded once per request,
+ * so the matching offsets of a hit can be read directly from the postings
+ * (see PostingsLineMatcher).
+ *
+ * Multi term queries (wildcard, regex, prefix, ...) are expanded to the
+ * matching terms of the index. Exact phrases keep the relative positions of
+ * their terms, sloppy phrases are matched term by term. Prohibited clauses
+ * and terms of other fields are ignored (like the highlighter does).
+ */
+public final class MatchPlan {
+  /**
+   * Logger.
+   */
+  private static final Logger _log = Logger.getLogger(
+    MatchPlan.class.getName());
+  /**
+   * Maximum number of terms of the expanded multi term queries. A plan with
+   * more terms is not complete.
+   */
+  private static final int MAX_EXPANDED_TERMS = 16 * 1024;
+
+  /**
+   * An exact phrase.
+   */
+  public static final class Phrase {
+    /**
+     * Terms of the phrase.
+     */
+    public final BytesRef[] terms;
+    /**
+     * Relative position of the terms (the first is 0).
+     */
+    public final int[] positions;
+
+    /**
+     * @param terms_ terms of the phrase.
+     * @param positions_ relative position of the terms.
+     */
+    Phrase(BytesRef[] terms_, int[] positions_) {
+      terms = terms_;
+      positions = positions_;
+    }
+  }
+
+  /**
+   * Collects the terms of a multi term query instead of rewriting it.
+   */
+  private final class TermExpander extends MultiTermQuery.RewriteMethod {
+    @Override
+    public Query rewrite(IndexReader reader_, MultiTermQuery query_)
+      throws IOException {
+      for (AtomicReaderContext leaf : reader_.leaves()) {
+        final Terms terms = leaf.reader().terms(query_.getField());
+        if (terms == null) {
+          continue;
+        }
+
+        final TermsEnum termsEnum = getTermsEnum(query_, terms,
+          new AttributeSource());
+        BytesRef term;
+        while ((term = termsEnum.next()) != null) {
+          if (_terms.size() >= MAX_EXPANDED_TERMS) {
+            _log.log(Level.FINE, "Too many terms for match plan: {0}",
+              query_);
+            _complete = false;
+            return query_;
+          }
+          _terms.add(BytesRef.deepCopyOf(term));
+        }
+      }
+
+      return query_;
+    }
+  }
+
+  /**
+   * The field of the plan.
+   */
+  private final String _field;
+  /**
+   * Searcher of the request (only for compiling).
+   */
+  private final IndexSearcher _searcher;
+  /**
+   * Single terms (sorted for seeking).
+   */
+  private final TreeSet<BytesRef> _terms = new TreeSet<>();
+  /**
+   * Exact phrases.
+   */
+  private final List<Phrase> _phrases = new ArrayList<>();
+  /**
+   * False if a part of the query could not be compiled.
+   */
+  private boolean _complete = true;
+  /**
+   * Single terms as an array (set by compile()).
+   */
+  private BytesRef[] _termArray;
+
+  /**
+   * @param searcher_ searcher of the request.
+   * @param field_ the field of the plan.
+   */
+  private MatchPlan(IndexSearcher searcher_, String field_) {
+    _searcher = searcher_;
+    _field = field_;
+  }
+
+  /**
+   * @return the field of the plan.
+   */
+  public String getField() {
+    return _field;
+  }
+
+  /**
+   * @return single terms in ascending order.
+   */
+  public BytesRef[] getTerms() {
+    return _termArray;
+  }
+
+  /**
+   * @return exact phrases.
+   */
+  public List<Phrase> getPhrases() {
+    return _phrases;
+  }
+
+  /**
+   * @return false if a part of the query could not be compiled: then the
+   *  plan may miss matches.
+   */
+  public boolean isComplete() {
+    return _complete;
+  }
+
+  /**
+   * @return true if the plan has no terms.
+   */
+  public boolean isEmpty() {
+    return _termArray.length == 0 && _phrases.isEmpty();
+  }
+
+  /**
+   * Adds the terms of a query to the plan.
+   *
+   * @param query_ a query.
+   * @throws IOException
+   */
+  private void add(Query query_) throws IOException {
+    if (query_ instanceof BooleanQuery) {
+      for (BooleanClause clause : ((BooleanQuery) query_).clauses()) {
+        if (!clause.isProhibited()) {
+          add(clause.getQuery());
+        }
+      }
+    } else if (query_ instanceof TermQuery) {
+      addTerm(((TermQuery) query_).getTerm());
+    } else if (query_ instanceof PhraseQuery) {
+      addPhrase((PhraseQuery) query_);
+    } else if (query_ instanceof MultiTermQuery) {
+      final MultiTermQuery mtq = (MultiTermQuery) query_;
+      if (_field.equals(mtq.getField())) {
+        new TermExpander().rewrite(_searcher.getIndexReader(), mtq);
+      }
+    } else if (query_ instanceof DisjunctionMaxQuery) {
+      for (Query disjunct : ((DisjunctionMaxQuery) query_).getDisjuncts()) {
+        add(disjunct);
+      }
+    } else if (query_ instanceof ConstantScoreQuery) {
+      final Query inner = ((ConstantScoreQuery) query_).getQuery();
+      if (inner != null) {
+        add(inner);
+      } else {
+        _complete = false;
+      }
+    } else if (query_ instanceof FilteredQuery) {
+      add(((FilteredQuery) query_).getQuery());
+    } else {
+      final Query rewritten = _searcher.rewrite(query_);
+      if (rewritten != query_) {
+        add(rewritten);
+        return;
+      }
+
+      final Set<Term> terms = new HashSet<>();
+      try {
+        query_.extractTerms(terms);
+      } catch (UnsupportedOperationException ex) {
+        _log.log(Level.FINE, "Can't extract terms for match plan: {0}",
+          query_);
+        _complete = false;
+        return;
+      }
+
+      for (Term term : terms) {
+        addTerm(term);
+      }
+    }
+  }
+
+  /**
+   * Adds a single term if it is in the field of the plan.
+   *
+   * @param term_ a term.
+   */
+  private void addTerm(Term term_) {
+    if (_field.equals(term_.field())) {
+      _terms.add(BytesRef.deepCopyOf(term_.bytes()));
+    }
+  }
+
+  /**
+   * Adds a phrase: an exact phrase with its positions, a sloppy one as single
+   * terms.
+   *
+   * @param query_ a phrase query.
+   */
+  private void addPhrase(PhraseQuery query_) {
+    final Term[] terms = query_.getTerms();
+    if (terms.length == 0 || !_field.equals(terms[0].field())) {
+      return;
+    }
+
+    if (terms.length == 1 || query_.getSlop() != 0) {
+      for (Term term : terms) {
+        addTerm(term);
+      }
+      return;
+    }
+
+    final int[] queryPositions = query_.getPositions();
+    final BytesRef[] phraseTerms = new BytesRef[terms.length];
+    final int[] positions = new int[terms.length];
+    for (int i = 0; i < terms.length; ++i) {
+      phraseTerms[i] = BytesRef.deepCopyOf(terms[i].bytes());
+      positions[i] = queryPositions[i] - queryPositions[0];
+    }
+    _phrases.add(new Phrase(phraseTerms, positions));
+  }
+
+  /**
+   * Compiles a plan for a query.
+   *
+   * @param searcher_ searcher of the request (for expanding the multi term
+   *  queries).
+   * @param query_ the query.
+   * @param field_ the matched field.
+   * @return a new plan.
+   * @throws IOException
+   */
+  public static MatchPlan compile(IndexSearcher searcher_, Query query_,
+    String field_) throws IOException {
+    final MatchPlan plan = new MatchPlan(searcher_, field_);
+    plan.add(query_);
+    plan._termArray = plan._terms.toArray(new BytesRef[plan._terms.size()]);
+    plan._terms.clear();
+
+    if (_log.isLoggable(Level.FINE)) {
+      _log.log(Level.FINE, "Match plan for {0}: {1} terms, {2} phrases{3}",
+        new Object[]{query_, plan._termArray.length, plan._phrases.size(),
+          plan._complete ? "" : " (not complete)"});
+    }
+
+    return plan;
+  }
+}
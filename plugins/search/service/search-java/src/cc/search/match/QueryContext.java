@@ -1,6 +1,8 @@
 package cc.search.match;
 
 import cc.search.common.IndexFields;
+import java.io.IOException;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Map;
 import org.apache.lucene.queries.CustomScoreQuery;
@@ -8,6 +10,7 @@ import org.apache.lucene.queries.function.FunctionQuery;
 import org.apache.lucene.queries.function.valuesource.LongFieldSource;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 
 /**
@@ -47,6 +50,15 @@ public class QueryContext {
    * Filter overlapping result lines.
    */
   private boolean _filterOverlapping = false;
+  /**
+   * Number of lines to return before and after the matching lines.
+   */
+  private int _contextLines = 0;
+  /**
+   * Compiled match plans by query type (guarded by this).
+   */
+  private final Map<QueryType, MatchPlan> _matchPlans = new EnumMap<>(
+    QueryType.class);
   /**
    * Creates an empty context.
    */
@@ -117,6 +129,30 @@ public class QueryContext {
   public Object getData(QueryType type_) {
     return _queryData.get(type_);
   }
+  /**
+   * Returns the match plan of a query. The plan is compiled on the first call
+   * and shared by the matchers of the hits.
+   * 
+   * @param type_ query type.
+   * @param searcher_ searcher of the request.
+   * @param field_ the matched field.
+   * @return the match plan or null if no query exists for the given type.
+   * @throws IOException 
+   */
+  public synchronized MatchPlan getMatchPlan(QueryType type_,
+    IndexSearcher searcher_, String field_) throws IOException {
+    final Query query = _queries.get(type_);
+    if (query == null) {
+      return null;
+    }
+    
+    MatchPlan plan = _matchPlans.get(type_);
+    if (plan == null) {
+      plan = MatchPlan.compile(searcher_, query, field_);
+      _matchPlans.put(type_, plan);
+    }
+    return plan;
+  }
   /**
    * @return true if the context is empty.
    */
@@ -139,4 +175,20 @@ public class QueryContext {
   public void setFilterOverlapping(boolean value_) {
     _filterOverlapping = value_;
   }
+  /**
+   * Getter for {@link QueryContext#_contextLines}.
+   * 
+   * @return {@link QueryContext#_contextLines}
+   */
+  public int getContextLines() {
+    return _contextLines;
+  }
+  /**
+   * Setter for {@link QueryContext#_contextLines}.
+   * 
+   * @param value_ value for {@link QueryContext#_contextLines}.
+   */
+  public void setContextLines(int value_) {
+    _contextLines = value_;
+  }
 }
@@ -1,7 +1,8 @@
 package cc.search.match.matcher;
 
 import cc.search.analysis.query.MatchCollector.MatchInfo;
-import cc.search.analysis.query.SimpleMatchCollector;
+import cc.search.analysis.query.TopMatchCollector;
+import cc.search.common.IndexFields;
 import cc.search.match.Context;
 import cc.search.match.QueryContext;
 import cc.service.core.FileRange;
@@ -13,6 +14,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
 
 /**
  * A result matcher factory for a log queries.
@@ -27,7 +29,7 @@ class LogQueryMatcherFactory implements ResultMatcherFactory {
     /**
      * A collector that contains the matches.
      */
-    private final SimpleMatchCollector _collector;
+    private final TopMatchCollector _collector;
     /**
      * Match context.
      */
@@ -37,7 +39,7 @@ class LogQueryMatcherFactory implements ResultMatcherFactory {
      * @param context_ match context.
      * @param collector_  match collector.
      */
-    LogQueryMatcher(Context context_, SimpleMatchCollector collector_) {
+    LogQueryMatcher(Context context_, TopMatchCollector collector_) {
      _collector = collector_;
      _context = context_;
     }
@@ -71,8 +73,8 @@ class LogQueryMatcherFactory implements ResultMatcherFactory {
           getLineStartOffset(endLine) + 1;
         
         result.add(new LineMatch(new FileRange(_context.fileId, new Range(
-          new Position(startLine, startColumn),
-          new Position(endLine, endColumn))),
+          new Position(_context.toFileLine(startLine), startColumn),
+          new Position(_context.toFileLine(endLine), endColumn))),
           _context.lineInfos.getLineContent(startLine)));
       }
       
@@ -87,13 +89,23 @@ class LogQueryMatcherFactory implements ResultMatcherFactory {
   @Override
   public ResultMatcher create(Context context_) throws IOException {
     Object data = context_.query.getData(QueryContext.QueryType.Log);
-    if (data != null && data instanceof SimpleMatchCollector) {
-      return new LogQueryMatcher(context_, (SimpleMatchCollector) data);
+    if (data != null && data instanceof TopMatchCollector) {
+      return new LogQueryMatcher(context_, (TopMatchCollector) data);
     }
     
     return null;
   }
 
+  @Override
+  public Set<String> getRequiredFields(QueryContext query_) {
+    if (query_.getData(QueryContext.QueryType.Log) instanceof
+      TopMatchCollector) {
+      return Collections.singleton(IndexFields.contentField);
+    } else {
+      return Collections.emptySet();
+    }
+  }
+
   @Override
   public void close() {
   }
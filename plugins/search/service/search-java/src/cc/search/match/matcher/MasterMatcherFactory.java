@@ -1,10 +1,13 @@
 package cc.search.match.matcher;
 
 import cc.search.match.Context;
+import cc.search.match.QueryContext;
 import cc.service.search.LineMatch;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -97,6 +100,16 @@ public class MasterMatcherFactory implements ResultMatcherFactory {
     }
   }
 
+  @Override
+  public Set<String> getRequiredFields(QueryContext query_) {
+    final Set<String> fields = new HashSet<>();
+    for (ResultMatcherFactory fac : _factories) {
+      fields.addAll(fac.getRequiredFields(query_));
+    }
+    
+    return fields;
+  }
+
   @Override
   public void close() {
     for (ResultMatcherFactory fac : _factories) {
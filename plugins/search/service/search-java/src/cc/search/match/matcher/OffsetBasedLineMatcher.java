@@ -85,8 +85,9 @@ class OffsetBasedLineMatcher implements ResultMatcher {
     final int startOffset = _offsetAttr.startOffset();
     Location loc = _context.lineInfos.offsetToLocation(startOffset, 
       _offsetAttr.endOffset() - startOffset + 1);
+    final int fileLine = _context.toFileLine(loc.line);
     return new LineMatch(new FileRange(_context.fileId, new Range(
-      new Position(loc.line, loc.startColumn), new Position(loc.line,
+      new Position(fileLine, loc.startColumn), new Position(fileLine,
         loc.endColumn))), _context.lineInfos.getLineContent(loc.line));
   }
 
@@ -0,0 +1,273 @@
+package cc.search.match.matcher;
+
+import cc.search.analysis.Location;
+import cc.search.match.Context;
+import cc.search.match.MatchPlan;
+import cc.service.core.FileRange;
+import cc.service.core.Position;
+import cc.service.core.Range;
+import cc.service.search.LineMatch;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Line matcher which reads the matching offsets of a document directly from
+ * the postings of the terms of a match plan. If the postings of the field
+ * have no offsets, the term vector of the document is used.
+ *
+ * Adjacent matching tokens in a line are merged into one line match (like
+ * OffsetBasedLineMatcher does).
+ */
+class PostingsLineMatcher implements ResultMatcher {
+  /**
+   * A matching token.
+   */
+  private static final class Token {
+    /**
+     * Token position.
+     */
+    final int position;
+    /**
+     * Start offset.
+     */
+    final int startOffset;
+    /**
+     * End offset.
+     */
+    final int endOffset;
+
+    /**
+     * @param position_ token position.
+     * @param startOffset_ start offset.
+     * @param endOffset_ end offset.
+     */
+    Token(int position_, int startOffset_, int endOffset_) {
+      position = position_;
+      startOffset = startOffset_;
+      endOffset = endOffset_;
+    }
+  }
+
+  /**
+   * Orders the tokens by start offset, then by end offset.
+   */
+  private static final Comparator<Token> OFFSET_ORDER =
+    new Comparator<Token>() {
+      @Override
+      public int compare(Token token1_, Token token2_) {
+        if (token1_.startOffset != token2_.startOffset) {
+          return Integer.compare(token1_.startOffset, token2_.startOffset);
+        }
+        return Integer.compare(token1_.endOffset, token2_.endOffset);
+      }
+    };
+  /**
+   * Matching context.
+   */
+  protected final Context _context;
+  /**
+   * The match plan of the query.
+   */
+  private final MatchPlan _plan;
+
+  /**
+   * @param context_ matching context.
+   * @param plan_ the match plan of the query.
+   */
+  PostingsLineMatcher(Context context_, MatchPlan plan_) {
+    _context = context_;
+    _plan = plan_;
+  }
+
+  /**
+   * Filters the matching tokens. The default implementation accepts every
+   * token.
+   *
+   * @param startOffset_ start offset of a matching token.
+   * @param endOffset_ end offset of a matching token.
+   * @return true if the token is a match.
+   * @throws IOException
+   */
+  protected boolean accept(int startOffset_, int endOffset_)
+    throws IOException {
+    return true;
+  }
+
+  @Override
+  public List<LineMatch> match() throws IOException {
+    final List<AtomicReaderContext> leaves = _context.searcher.
+      getIndexReader().leaves();
+    final AtomicReaderContext leaf = leaves.get(ReaderUtil.subIndex(
+      _context.documentId, leaves));
+    final String field = _plan.getField();
+
+    final Terms terms;
+    final int doc;
+    final FieldInfo info = leaf.reader().getFieldInfos().fieldInfo(field);
+    if (info != null && info.getIndexOptions() ==
+      FieldInfo.IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS) {
+      terms = leaf.reader().terms(field);
+      doc = _context.documentId - leaf.docBase;
+    } else {
+      terms = leaf.reader().getTermVector(_context.documentId - leaf.docBase,
+        field);
+      if (terms == null) {
+        throw new IllegalArgumentException("Failed to get term vector for " +
+          "field " + field + "!");
+      }
+      // A term vector has one document.
+      doc = 0;
+    }
+
+    final List<Token> tokens = new ArrayList<>();
+    if (terms != null) {
+      final TermsEnum termsEnum = terms.iterator(null);
+      for (BytesRef term : _plan.getTerms()) {
+        readTokens(termsEnum, term, doc, tokens);
+      }
+      for (MatchPlan.Phrase phrase : _plan.getPhrases()) {
+        matchPhrase(termsEnum, phrase, doc, tokens);
+      }
+    }
+
+    return toLineMatches(tokens);
+  }
+
+  /**
+   * Reads the tokens of a term in a document.
+   *
+   * @param termsEnum_ terms of the field.
+   * @param term_ a term.
+   * @param doc_ the document in termsEnum_.
+   * @param tokens_ output list.
+   * @throws IOException
+   */
+  private static void readTokens(TermsEnum termsEnum_, BytesRef term_,
+    int doc_, List<Token> tokens_) throws IOException {
+    if (!termsEnum_.seekExact(term_)) {
+      return;
+    }
+
+    final DocsAndPositionsEnum postings = termsEnum_.docsAndPositions(null,
+      null, DocsAndPositionsEnum.FLAG_OFFSETS);
+    if (postings == null || postings.advance(doc_) != doc_) {
+      return;
+    }
+
+    for (int i = postings.freq(); i > 0; --i) {
+      final int position = postings.nextPosition();
+      tokens_.add(new Token(position, postings.startOffset(),
+        postings.endOffset()));
+    }
+  }
+
+  /**
+   * Finds the occurrences of an exact phrase in a document.
+   *
+   * @param termsEnum_ terms of the field.
+   * @param phrase_ a phrase.
+   * @param doc_ the document in termsEnum_.
+   * @param tokens_ output list (the tokens of the occurrences are added).
+   * @throws IOException
+   */
+  private static void matchPhrase(TermsEnum termsEnum_,
+    MatchPlan.Phrase phrase_, int doc_, List<Token> tokens_)
+    throws IOException {
+    final List<Map<Integer, Token>> termTokens = new ArrayList<>(
+      phrase_.terms.length);
+    final List<Token> buffer = new ArrayList<>();
+    for (BytesRef term : phrase_.terms) {
+      buffer.clear();
+      readTokens(termsEnum_, term, doc_, buffer);
+      if (buffer.isEmpty()) {
+        return;
+      }
+
+      final Map<Integer, Token> byPosition = new HashMap<>(buffer.size() * 2);
+      for (Token token : buffer) {
+        byPosition.put(token.position, token);
+      }
+      termTokens.add(byPosition);
+    }
+
+    for (Token first : termTokens.get(0).values()) {
+      boolean matches = true;
+      for (int i = 1; i < phrase_.terms.length && matches; ++i) {
+        matches = termTokens.get(i).containsKey(first.position +
+          phrase_.positions[i]);
+      }
+
+      if (matches) {
+        tokens_.add(first);
+        for (int i = 1; i < phrase_.terms.length; ++i) {
+          tokens_.add(termTokens.get(i).get(first.position +
+            phrase_.positions[i]));
+        }
+      }
+    }
+  }
+
+  /**
+   * Converts the matching tokens to line matches: the adjacent tokens of a
+   * line are merged.
+   *
+   * @param tokens_ matching tokens (in any order, can have duplicates).
+   * @return line matches in offset order.
+   * @throws IOException
+   */
+  private List<LineMatch> toLineMatches(List<Token> tokens_)
+    throws IOException {
+    Collections.sort(tokens_, OFFSET_ORDER);
+
+    final List<LineMatch> matches = new ArrayList<>();
+    LineMatch current = null;
+    Token previous = null;
+    for (Token token : tokens_) {
+      if (previous != null && OFFSET_ORDER.compare(previous, token) == 0) {
+        // The same token by more terms or phrases.
+        continue;
+      }
+      if (!accept(token.startOffset, token.endOffset)) {
+        continue;
+      }
+
+      final Location loc = _context.lineInfos.offsetToLocation(
+        token.startOffset, token.endOffset - token.startOffset + 1);
+      final int fileLine = _context.toFileLine(loc.line);
+
+      if (current != null && previous.position + 1 >= token.position &&
+        current.range.range.startpos.line == fileLine) {
+        // "Multi-token match" merge them
+        final Position endPos = current.range.range.endpos;
+        if (fileLine > endPos.line || (fileLine == endPos.line &&
+          loc.endColumn > endPos.column)) {
+          current.range.range.endpos = new Position(fileLine, loc.endColumn);
+        }
+      } else {
+        current = new LineMatch(new FileRange(_context.fileId, new Range(
+          new Position(fileLine, loc.startColumn), new Position(fileLine,
+            loc.endColumn))), _context.lineInfos.getLineContent(loc.line));
+        matches.add(current);
+      }
+      previous = token;
+    }
+
+    return matches;
+  }
+
+  @Override
+  public void close() throws IOException {
+  }
+}
@@ -1,7 +1,9 @@
 package cc.search.match.matcher;
 
 import cc.search.match.Context;
+import cc.search.match.QueryContext;
 import java.io.IOException;
+import java.util.Set;
 
 /**
  * Factory interface for ResultMatcher.
@@ -15,4 +17,15 @@ public interface ResultMatcherFactory extends AutoCloseable {
    * @throws IOException 
    */
   public ResultMatcher create(Context context_) throws IOException;
+  
+  /**
+   * Returns the stored fields needed by the matchers of this factory for a
+   * query (besides Context.BASE_FIELDS). The result documents are loaded
+   * with the fields required by the factory only. This method have to be
+   * thread safe.
+   * 
+   * @param query_ query context.
+   * @return field names (empty if not applicable by the query).
+   */
+  public Set<String> getRequiredFields(QueryContext query_);
 }
@@ -2,25 +2,44 @@ package cc.search.match.matcher;
 
 import cc.search.common.IndexFields;
 import cc.search.match.Context;
+import cc.search.match.MatchPlan;
 import cc.search.match.QueryContext;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
 import org.apache.lucene.search.Query;
 
 /**
- * ResultMatcherFactory for SourceLineMatcher.
+ * ResultMatcherFactory for SourceLineMatcher. The matching lines are read
+ * from the postings by the match plan of the query, the highlighter is used
+ * only if the plan is not complete.
  */
 class SourceLineMatcherFactory implements ResultMatcherFactory {
   @Override
   public ResultMatcher create(Context context_) throws IOException {
-    final Query query = context_.query.get(QueryContext.QueryType.Text);
-    if (query == null) {
+    final MatchPlan plan = context_.query.getMatchPlan(
+      QueryContext.QueryType.Text, context_.searcher,
+      IndexFields.contentField);
+    if (plan == null) {
       return null;
+    } else if (plan.isComplete()) {
+      return new PostingsLineMatcher(context_, plan);
     } else {
+      final Query query = context_.query.get(QueryContext.QueryType.Text);
       return OffsetBasedLineMatcher.fromTermVectorField(context_, query,
         IndexFields.contentField);
     }
   }
 
+  @Override
+  public Set<String> getRequiredFields(QueryContext query_) {
+    if (query_.get(QueryContext.QueryType.Text) == null) {
+      return Collections.emptySet();
+    } else {
+      return Collections.singleton(IndexFields.contentField);
+    }
+  }
+
   @Override
   public void close() {
   }
@@ -4,8 +4,12 @@ import cc.search.analysis.tags.Tag;
 import cc.search.analysis.tags.Tags;
 import cc.search.common.IndexFields;
 import cc.search.match.Context;
+import cc.search.match.MatchPlan;
 import cc.search.match.QueryContext;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -24,6 +28,12 @@ class TagKindMatcherFactory implements ResultMatcherFactory {
    */
   private static final Logger _log  = Logger.getLogger(TagKindMatcherFactory.
     class.getName());
+  /**
+   * Stored fields for matching tags.
+   */
+  private static final Set<String> REQUIRED_FIELDS = Collections.
+    unmodifiableSet(new HashSet<>(Arrays.asList(IndexFields.contentField,
+      IndexFields.tagsField)));
   /**
    * Token filter for filtering relevant tokens by its kind.
    */
@@ -59,14 +69,7 @@ class TagKindMatcherFactory implements ResultMatcherFactory {
     @Override
     public boolean incrementToken() throws IOException {
       while (input.incrementToken()) {
-        final Tag tag = _tags.getByOffset(_currentOffset.startOffset());
-        if (tag == null) {
-          _log.log(Level.WARNING, "No tag find on offset: {0}",
-            _currentOffset.startOffset());
-          continue;
-        }
-        
-        if (_kinds.isEmpty() || _kinds.contains(tag.genericKind)) {
+        if (isKindAccepted(_tags, _kinds, _currentOffset.startOffset())) {
           return true;
         }
       }
@@ -74,6 +77,25 @@ class TagKindMatcherFactory implements ResultMatcherFactory {
       return false;
     }
   }
+  
+  /**
+   * Checks the kind of the tag on an offset.
+   * 
+   * @param tags_ tags.
+   * @param kinds_ allowed kinds. Empty set means no filtering.
+   * @param offset_ start offset of a token.
+   * @return true if there is a tag on the offset with an allowed kind.
+   */
+  private static boolean isKindAccepted(Tags tags_, Set<Tag.Kind> kinds_,
+    int offset_) {
+    final Tag tag = tags_.getByOffset(offset_);
+    if (tag == null) {
+      _log.log(Level.WARNING, "No tag find on offset: {0}", offset_);
+      return false;
+    }
+    
+    return kinds_.isEmpty() || kinds_.contains(tag.genericKind);
+  }
 
   @Override
   public ResultMatcher create(Context context_) throws IOException {
@@ -87,12 +109,18 @@ class TagKindMatcherFactory implements ResultMatcherFactory {
       getData(QueryContext.QueryType.Tag);
     
     // Load terms
-    Tags tags;
-    try {
-      tags = Tags.deserialize(context_.document.getBinaryValue(
-        IndexFields.tagsField).bytes);
-    } catch (ClassNotFoundException ex) {
-      throw new IOException("Deserializing tags failed!", ex);
+    final Tags tags = context_.getTags();
+    
+    final MatchPlan plan = context_.query.getMatchPlan(
+      QueryContext.QueryType.Tag, context_.searcher,
+      IndexFields.definitionsField);
+    if (plan.isComplete()) {
+      return new PostingsLineMatcher(context_, plan) {
+        @Override
+        protected boolean accept(int startOffset_, int endOffset_) {
+          return isKindAccepted(tags, kinds, startOffset_);
+        }
+      };
     }
     
     // Get the base stream.
@@ -107,6 +135,15 @@ class TagKindMatcherFactory implements ResultMatcherFactory {
       IndexFields.definitionsField, stream) { };
   }
 
+  @Override
+  public Set<String> getRequiredFields(QueryContext query_) {
+    if (query_.get(QueryContext.QueryType.Tag) == null) {
+      return Collections.emptySet();
+    } else {
+      return REQUIRED_FIELDS;
+    }
+  }
+
   @Override
   public void close() {
   }
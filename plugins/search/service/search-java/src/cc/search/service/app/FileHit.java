@@ -0,0 +1,55 @@
+package cc.search.service.app;
+
+import org.apache.lucene.search.ScoreDoc;
+
+/**
+ * A file in the result of a search. A large file is indexed in chunks (see
+ * IndexFields.chunkOrdinalField), so a file hit can have more matching
+ * documents. The score and the document id of the hit are the ones of the
+ * best matching document of the file, so file hits are ranked (and paged)
+ * like document hits.
+ *
+ * A file with the same content as a matching file (an alias, see
+ * IndexFields.aliasOfField) is reported after the matching file: its hit has
+ * the score, the document id and the documents of the matching file and the
+ * document of the alias.
+ */
+public class FileHit extends ScoreDoc {
+  /**
+   * The alias document of an alias hit or -1.
+   */
+  public final int aliasDoc;
+  /**
+   * The documents to match in (the matching chunks of the file or the
+   * documents of the canonical file of an alias) in document id order.
+   */
+  public final int[] docs;
+
+  /**
+   * @param doc_ the best matching document of the file.
+   * @param score_ score of the best matching document.
+   * @param docs_ the documents to match in.
+   */
+  public FileHit(int doc_, float score_, int[] docs_) {
+    this(doc_, score_, -1, docs_);
+  }
+
+  /**
+   * @param doc_ the best matching document of the file.
+   * @param score_ score of the best matching document.
+   * @param aliasDoc_ the alias document of an alias hit or -1.
+   * @param docs_ the documents to match in.
+   */
+  public FileHit(int doc_, float score_, int aliasDoc_, int[] docs_) {
+    super(doc_, score_);
+    aliasDoc = aliasDoc_;
+    docs = docs_;
+  }
+
+  /**
+   * @return the document of the reported file (its id and its path).
+   */
+  public int getFileDoc() {
+    return aliasDoc < 0 ? doc : aliasDoc;
+  }
+}
@@ -0,0 +1,485 @@
+package cc.search.service.app;
+
+import cc.search.common.IndexFields;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.queries.TermsFilter;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Collects the matching documents grouped by file (the chunks of a file have
+ * the same file id), so a page of a search is a page of files: the number of
+ * hits, the paging and the matching lines of a file do not depend on the
+ * number of its chunks. The file ids are read from the field cache, so no
+ * stored field is loaded.
+ *
+ * Every matching file is kept (like in HitCounter), because the best chunk of
+ * a file can be found after its other chunks.
+ *
+ * The files with the same content as a matching file (aliases) are hits too:
+ * they are collected by one search after the search of the query (see
+ * collectAliases()) and they follow their canonical file in the pages.
+ */
+public final class FileHitCollector extends Collector {
+  /**
+   * Matching documents of a file.
+   */
+  private static final class Group {
+    /**
+     * Score of the best matching document.
+     */
+    float score;
+    /**
+     * The best matching document.
+     */
+    int doc;
+    /**
+     * The matching documents (the first count elements are used).
+     */
+    int[] docs = new int[1];
+    /**
+     * Number of matching documents.
+     */
+    int count = 0;
+    /**
+     * Canonical file id if the file is an alias (it has no content), null
+     * otherwise.
+     */
+    BytesRef aliasOf;
+    /**
+     * The aliases of the file which are not hits themselves (the first
+     * aliasCount elements are used, null if there is none).
+     */
+    int[] aliasDocs;
+    /**
+     * Number of aliases.
+     */
+    int aliasCount = 0;
+  }
+
+  /**
+   * Collects the aliases of the matching files.
+   */
+  private final class AliasCollector extends Collector {
+    /**
+     * File ids of the current segment.
+     */
+    private BinaryDocValues _aliasFileIds;
+    /**
+     * Canonical file ids of the current segment.
+     */
+    private BinaryDocValues _canonicalIds;
+    /**
+     * Document base of the current segment.
+     */
+    private int _aliasDocBase;
+
+    @Override
+    public void setScorer(Scorer scorer_) {
+      // Scores are not needed.
+    }
+
+    @Override
+    public void collect(int doc_) {
+      if (_groups.containsKey(_aliasFileIds.get(doc_))) {
+        // The alias is a hit itself.
+        return;
+      }
+
+      final Group group = _groups.get(_canonicalIds.get(doc_));
+      if (group == null) {
+        return;
+      }
+
+      if (group.aliasDocs == null) {
+        group.aliasDocs = new int[1];
+      } else if (group.aliasCount == group.aliasDocs.length) {
+        group.aliasDocs = Arrays.copyOf(group.aliasDocs, 2 * group.aliasCount);
+      }
+      group.aliasDocs[group.aliasCount++] = _aliasDocBase + doc_;
+      ++_aliasCount;
+    }
+
+    @Override
+    public void setNextReader(AtomicReaderContext context_)
+      throws IOException {
+      _aliasFileIds = FieldCache.DEFAULT.getTerms(context_.reader(),
+        IndexFields.fileDbIdField, false);
+      _canonicalIds = FieldCache.DEFAULT.getTerms(context_.reader(),
+        IndexFields.aliasOfField, false);
+      _aliasDocBase = context_.docBase;
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder() {
+      return true;
+    }
+  }
+
+  /**
+   * Collects the documents of some files by file id.
+   */
+  private static final class FileDocCollector extends Collector {
+    /**
+     * File ids of the current segment.
+     */
+    private BinaryDocValues _fileIds;
+    /**
+     * Document base of the current segment.
+     */
+    private int _docBase;
+    /**
+     * File id -> documents map.
+     */
+    final Map<BytesRef, List<Integer>> docsByFile = new HashMap<>();
+
+    @Override
+    public void setScorer(Scorer scorer_) {
+      // Scores are not needed.
+    }
+
+    @Override
+    public void collect(int doc_) {
+      final BytesRef fileId = _fileIds.get(doc_);
+      List<Integer> docs = docsByFile.get(fileId);
+      if (docs == null) {
+        docs = new ArrayList<>(1);
+        docsByFile.put(BytesRef.deepCopyOf(fileId), docs);
+      }
+      docs.add(_docBase + doc_);
+    }
+
+    @Override
+    public void setNextReader(AtomicReaderContext context_)
+      throws IOException {
+      _fileIds = FieldCache.DEFAULT.getTerms(context_.reader(),
+        IndexFields.fileDbIdField, false);
+      _docBase = context_.docBase;
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder() {
+      return true;
+    }
+  }
+
+  /**
+   * File id -> matching documents map.
+   */
+  private final Map<BytesRef, Group> _groups = new HashMap<>();
+  /**
+   * Number of the collected aliases.
+   */
+  private int _aliasCount = 0;
+  /**
+   * File ids of the current segment.
+   */
+  private BinaryDocValues _fileIds;
+  /**
+   * Canonical file ids of the current segment.
+   */
+  private BinaryDocValues _aliasOfs;
+  /**
+   * Scorer of the current segment.
+   */
+  private Scorer _scorer;
+  /**
+   * Document base of the current segment.
+   */
+  private int _docBase;
+
+  @Override
+  public void setScorer(Scorer scorer_) {
+    _scorer = scorer_;
+  }
+
+  @Override
+  public void collect(int doc_) throws IOException {
+    final BytesRef fileId = _fileIds.get(doc_);
+    if (fileId.length == 0) {
+      return;
+    }
+
+    final float score = _scorer.score();
+    final int doc = _docBase + doc_;
+
+    Group group = _groups.get(fileId);
+    if (group == null) {
+      group = new Group();
+      group.score = score;
+      group.doc = doc;
+      final BytesRef aliasOf = _aliasOfs.get(doc_);
+      if (aliasOf.length > 0) {
+        group.aliasOf = BytesRef.deepCopyOf(aliasOf);
+      }
+      _groups.put(BytesRef.deepCopyOf(fileId), group);
+    } else if (isWorse(group.score, group.doc, score, doc)) {
+      group.score = score;
+      group.doc = doc;
+    }
+
+    if (group.count == group.docs.length) {
+      group.docs = Arrays.copyOf(group.docs, 2 * group.count);
+    }
+    group.docs[group.count++] = doc;
+  }
+
+  @Override
+  public void setNextReader(AtomicReaderContext context_)
+    throws IOException {
+    _fileIds = FieldCache.DEFAULT.getTerms(context_.reader(),
+      IndexFields.fileDbIdField, false);
+    _aliasOfs = FieldCache.DEFAULT.getTerms(context_.reader(),
+      IndexFields.aliasOfField, false);
+    _docBase = context_.docBase;
+  }
+
+  @Override
+  public boolean acceptsDocsOutOfOrder() {
+    return true;
+  }
+
+  /**
+   * Collects the aliases of the matching files (by one search). The aliases
+   * which are hits themselves are not collected again. It must be called
+   * after the search of the query.
+   *
+   * @param searcher_ searcher of the search.
+   * @param filter_ search filter (can be null).
+   * @throws IOException
+   */
+  public void collectAliases(IndexSearcher searcher_, Filter filter_)
+    throws IOException {
+    if (!hasField(searcher_.getIndexReader(), IndexFields.aliasOfField)) {
+      return;
+    }
+
+    final List<BytesRef> fileIds = new ArrayList<>(_groups.size());
+    for (Map.Entry<BytesRef, Group> entry : _groups.entrySet()) {
+      if (entry.getValue().aliasOf == null) {
+        fileIds.add(entry.getKey());
+      }
+    }
+    if (fileIds.isEmpty()) {
+      return;
+    }
+
+    searcher_.search(new ConstantScoreQuery(new TermsFilter(
+      IndexFields.aliasOfField, fileIds)), filter_, new AliasCollector());
+  }
+
+  /**
+   * @return number of the matching files and their aliases.
+   */
+  public int getFileCount() {
+    return _groups.size() + _aliasCount;
+  }
+
+  /**
+   * Returns a range of the best files after a given hit. The files are ranked
+   * by their best document like TopScoreDocCollector ranks the documents (by
+   * score, then by document id), the aliases of a file follow the file (in
+   * document id order). The total hits of the result is the number of the
+   * matching files and their aliases.
+   *
+   * An alias which is a hit itself is matched in the documents of its
+   * canonical file, they are loaded by one search.
+   *
+   * @param searcher_ searcher of the search.
+   * @param after_ the last hit of the previous page (null for the first
+   *  page, a FileHit continues the aliases of its file).
+   * @param start_ index of the first file (after after_).
+   * @param count_ maximal number of files.
+   * @return the files as FileHit objects.
+   * @throws IOException
+   */
+  public TopDocs topDocs(IndexSearcher searcher_, ScoreDoc after_, int start_,
+    int count_) throws IOException {
+    // Every file of the range has one hit at least, except the file of
+    // after_ (its aliases may continue on this page).
+    final int size = (int) Math.min(Integer.MAX_VALUE, (long) start_ +
+      count_ + (after_ != null ? 1 : 0));
+    final PriorityQueue<Group> top = new PriorityQueue<>(Math.max(1,
+      Math.min(size, _groups.size())), new Comparator<Group>() {
+        @Override
+        public int compare(Group group1_, Group group2_) {
+          // The least competitive file is the head
+          return isWorse(group1_.score, group1_.doc, group2_.score,
+            group2_.doc) ? -1 : 1;
+        }
+      });
+
+    float maxScore = Float.NaN;
+    for (Group group : _groups.values()) {
+      if (Float.isNaN(maxScore) || group.score > maxScore) {
+        maxScore = group.score;
+      }
+      if (after_ != null && isWorse(after_.score, after_.doc, group.score,
+        group.doc)) {
+        // The file is on a previous page
+        continue;
+      }
+
+      if (top.size() < size) {
+        top.add(group);
+      } else if (size > 0 && isWorse(top.peek().score, top.peek().doc,
+        group.score, group.doc)) {
+        top.poll();
+        top.add(group);
+      }
+    }
+
+    final Group[] groups = new Group[top.size()];
+    for (int i = groups.length - 1; i >= 0; --i) {
+      groups[i] = top.poll();
+    }
+    final Map<BytesRef, List<Integer>> canonicalDocs = loadCanonicalDocs(
+      searcher_, groups);
+
+    final int afterAlias = after_ instanceof FileHit ?
+      ((FileHit) after_).aliasDoc : -1;
+    final List<ScoreDoc> hits = new ArrayList<>(Math.min(count_,
+      groups.length));
+    int skip = start_;
+    for (Group group : groups) {
+      final boolean afterFile = after_ != null && group.doc == after_.doc &&
+        group.score == after_.score;
+
+      final int[] docs = getDocsToMatch(group, canonicalDocs);
+      if (!afterFile) {
+        if (skip > 0) {
+          --skip;
+        } else if (hits.size() < count_) {
+          hits.add(new FileHit(group.doc, group.score, docs));
+        }
+      }
+
+      if (group.aliasDocs == null) {
+        continue;
+      }
+
+      Arrays.sort(group.aliasDocs, 0, group.aliasCount);
+      for (int i = 0; i < group.aliasCount && hits.size() < count_; ++i) {
+        if (afterFile && group.aliasDocs[i] <= afterAlias) {
+          continue;
+        }
+
+        if (skip > 0) {
+          --skip;
+        } else {
+          hits.add(new FileHit(group.doc, group.score, group.aliasDocs[i],
+            docs));
+        }
+      }
+    }
+
+    return new TopDocs(getFileCount(), hits.toArray(new ScoreDoc[
+      hits.size()]), maxScore);
+  }
+
+  /**
+   * Loads the documents of the canonical files of the aliases (which have
+   * no content) in some groups by one search.
+   *
+   * @param searcher_ searcher of the search.
+   * @param groups_ some groups.
+   * @return canonical file id -> documents map.
+   * @throws IOException
+   */
+  private static Map<BytesRef, List<Integer>> loadCanonicalDocs(
+    IndexSearcher searcher_, Group[] groups_) throws IOException {
+    final List<BytesRef> canonicalIds = new ArrayList<>();
+    for (Group group : groups_) {
+      if (group.aliasOf != null) {
+        canonicalIds.add(group.aliasOf);
+      }
+    }
+    if (canonicalIds.isEmpty()) {
+      return Collections.emptyMap();
+    }
+
+    final FileDocCollector collector = new FileDocCollector();
+    searcher_.search(new ConstantScoreQuery(new TermsFilter(
+      IndexFields.fileDbIdField, canonicalIds)), collector);
+    return collector.docsByFile;
+  }
+
+  /**
+   * @param group_ a group.
+   * @param canonicalDocs_ the documents of the canonical files (see
+   *  loadCanonicalDocs()).
+   * @return the documents to match in for a group in document id order.
+   */
+  private static int[] getDocsToMatch(Group group_,
+    Map<BytesRef, List<Integer>> canonicalDocs_) {
+    final List<Integer> canonical = group_.aliasOf == null ? null :
+      canonicalDocs_.get(group_.aliasOf);
+    final int[] docs;
+    if (canonical != null) {
+      docs = new int[canonical.size()];
+      for (int i = 0; i < docs.length; ++i) {
+        docs[i] = canonical.get(i);
+      }
+    } else {
+      docs = Arrays.copyOf(group_.docs, group_.count);
+    }
+
+    Arrays.sort(docs);
+    return docs;
+  }
+
+  /**
+   * Checks whether an index may have documents of chunked files (the field
+   * informations of a segment with a chunk contain the chunk ordinal field).
+   *
+   * @param reader_ an index reader.
+   * @return false if the index has no chunked file.
+   */
+  public static boolean hasChunks(IndexReader reader_) {
+    return hasField(reader_, IndexFields.chunkOrdinalField);
+  }
+
+  /**
+   * @param reader_ an index reader.
+   * @param field_ a field name.
+   * @return true if a segment of the index has the field.
+   */
+  private static boolean hasField(IndexReader reader_, String field_) {
+    for (AtomicReaderContext leaf : reader_.leaves()) {
+      if (leaf.reader().getFieldInfos().fieldInfo(field_) != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param score1_ score of the first document.
+   * @param doc1_ id of the first document.
+   * @param score2_ score of the second document.
+   * @param doc2_ id of the second document.
+   * @return true if the first document is ranked after the second one.
+   */
+  private static boolean isWorse(float score1_, int doc1_, float score2_,
+    int doc2_) {
+    return score1_ < score2_ || (score1_ == score2_ && doc1_ > doc2_);
+  }
+}
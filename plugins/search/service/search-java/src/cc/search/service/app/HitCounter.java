@@ -0,0 +1,242 @@
+package cc.search.service.app;
+
+import cc.search.common.IndexFields;
+import cc.search.match.MatchPlan;
+import cc.search.match.QueryContext;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Cheap hit counting for result badges: it counts the matching files and the
+ * matching term and phrase occurrences of a file from the postings, without
+ * loading the content of the documents or computing the matching lines.
+ */
+public final class HitCounter {
+  /**
+   * Logger.
+   */
+  private static final Logger _log = Logger.getLogger(
+    HitCounter.class.getName());
+
+  /**
+   * Utility class.
+   */
+  private HitCounter() {
+  }
+
+  /**
+   * Counts the files which have a matching document and their aliases (like
+   * the total hits of a search, see FileHitCollector).
+   *
+   * @param searcher_ searcher of the request.
+   * @param query_ search query.
+   * @param filter_ search filter (can be null).
+   * @return number of matching files.
+   * @throws IOException
+   */
+  public static int countFiles(IndexSearcher searcher_, Query query_,
+    Filter filter_) throws IOException {
+    final FileHitCollector collector = new FileHitCollector();
+    searcher_.search(query_, filter_, collector);
+    collector.collectAliases(searcher_, filter_);
+    return collector.getFileCount();
+  }
+
+  /**
+   * Returns the match plans of the queries of a query context (see
+   * QueryContext.getMatchPlan()) for counting the occurrences.
+   *
+   * @param searcher_ searcher of the request.
+   * @param context_ query context.
+   * @return the match plans or null if a query has no complete plan.
+   * @throws IOException
+   */
+  public static List<MatchPlan> getMatchPlans(IndexSearcher searcher_,
+    QueryContext context_) throws IOException {
+    final List<MatchPlan> plans = new ArrayList<>(2);
+    for (QueryContext.QueryType type : QueryContext.QueryType.values()) {
+      if (context_.get(type) == null) {
+        continue;
+      }
+
+      final MatchPlan plan;
+      switch (type) {
+        case Text:
+          plan = context_.getMatchPlan(type, searcher_,
+            IndexFields.contentField);
+          break;
+        case Tag:
+          plan = context_.getMatchPlan(type, searcher_,
+            IndexFields.definitionsField);
+          break;
+        default:
+          // The log queries have no plan.
+          plan = null;
+          break;
+      }
+
+      if (plan == null || !plan.isComplete()) {
+        return null;
+      }
+      plans.add(plan);
+    }
+
+    return plans;
+  }
+
+  /**
+   * Counts the occurrences of the terms and the exact phrases of match plans
+   * in a document: the frequencies of the terms and the positions where
+   * every term of a phrase is found.
+   *
+   * @param searcher_ searcher of the request.
+   * @param plans_ match plans (see getMatchPlans()).
+   * @param doc_ a document id.
+   * @return number of occurrences in the document.
+   * @throws IOException
+   */
+  public static long countOccurrences(IndexSearcher searcher_,
+    List<MatchPlan> plans_, int doc_) throws IOException {
+    final List<AtomicReaderContext> leaves = searcher_.getIndexReader()
+      .leaves();
+    final AtomicReaderContext leaf = leaves.get(ReaderUtil.subIndex(doc_,
+      leaves));
+    final int doc = doc_ - leaf.docBase;
+
+    long count = 0;
+    for (MatchPlan plan : plans_) {
+      final Terms terms = leaf.reader().terms(plan.getField());
+      if (terms == null) {
+        continue;
+      }
+
+      final TermsEnum termsEnum = terms.iterator(null);
+      for (BytesRef term : plan.getTerms()) {
+        if (!termsEnum.seekExact(term)) {
+          continue;
+        }
+        final DocsEnum postings = termsEnum.docs(null, null);
+        if (postings.advance(doc) == doc) {
+          count += postings.freq();
+        }
+      }
+
+      for (MatchPlan.Phrase phrase : plan.getPhrases()) {
+        count += countPhrase(termsEnum, phrase, doc);
+      }
+    }
+
+    return count;
+  }
+
+  /**
+   * Counts the occurrences of an exact phrase in a document.
+   *
+   * @param termsEnum_ terms of the field of the phrase.
+   * @param phrase_ a phrase.
+   * @param doc_ the document (in the segment of termsEnum_).
+   * @return number of occurrences.
+   * @throws IOException
+   */
+  private static int countPhrase(TermsEnum termsEnum_,
+    MatchPlan.Phrase phrase_, int doc_) throws IOException {
+    final int[][] positions = new int[phrase_.terms.length][];
+    for (int i = 0; i < positions.length; ++i) {
+      if (!termsEnum_.seekExact(phrase_.terms[i])) {
+        return 0;
+      }
+
+      final DocsAndPositionsEnum postings = termsEnum_.docsAndPositions(null,
+        null, DocsAndPositionsEnum.FLAG_NONE);
+      if (postings == null || postings.advance(doc_) != doc_) {
+        return 0;
+      }
+
+      // The positions are read in ascending order.
+      positions[i] = new int[postings.freq()];
+      for (int j = 0; j < positions[i].length; ++j) {
+        positions[i][j] = postings.nextPosition();
+      }
+    }
+
+    int count = 0;
+    for (int first : positions[0]) {
+      boolean matches = true;
+      for (int i = 1; i < positions.length && matches; ++i) {
+        matches = Arrays.binarySearch(positions[i], first +
+          phrase_.positions[i]) >= 0;
+      }
+      if (matches) {
+        ++count;
+      }
+    }
+
+    return count;
+  }
+
+  /**
+   * Extracts the terms of a query (after rewriting it).
+   *
+   * @param searcher_ searcher of the request.
+   * @param query_ search query.
+   * @return the terms of the query (empty if they can not be extracted).
+   * @throws IOException
+   */
+  public static Set<Term> extractTerms(IndexSearcher searcher_, Query query_)
+    throws IOException {
+    final Set<Term> terms = new HashSet<>();
+    try {
+      searcher_.rewrite(query_).extractTerms(terms);
+    } catch (UnsupportedOperationException ex) {
+      _log.log(Level.FINE, "Can't extract terms from query: {0}", query_);
+    }
+    return terms;
+  }
+
+  /**
+   * Counts the occurrences of the terms in a document (the sum of their
+   * frequencies in the postings). It is the fallback of countOccurrences()
+   * for the queries without a complete match plan.
+   *
+   * @param searcher_ searcher of the request.
+   * @param terms_ terms of the query (see extractTerms()).
+   * @param doc_ a document id.
+   * @return number of term occurrences in the document.
+   * @throws IOException
+   */
+  public static long countTermOccurrences(IndexSearcher searcher_,
+    Set<Term> terms_, int doc_) throws IOException {
+    final List<AtomicReaderContext> leaves = searcher_.getIndexReader()
+      .leaves();
+    final AtomicReaderContext leaf = leaves.get(ReaderUtil.subIndex(doc_,
+      leaves));
+    final int doc = doc_ - leaf.docBase;
+
+    long count = 0;
+    for (Term term : terms_) {
+      final DocsEnum postings = leaf.reader().termDocsEnum(term);
+      if (postings != null && postings.advance(doc) == doc) {
+        count += postings.freq();
+      }
+    }
+
+    return count;
+  }
+}
@@ -0,0 +1,313 @@
+package cc.search.service.app;
+
+import cc.search.common.IndexCommits;
+import cc.search.common.IndexShards;
+import cc.search.common.config.CommonOptions;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * SearcherManager for an index which may have shards (see IndexShards). The
+ * main index and the shards are opened together as a MultiReader. On refresh
+ * only the changed databases are reopened and a new (warmed) searcher is
+ * created only if any of them changed or a shard appeared or disappeared.
+ *
+ * A database is opened at its last servable commit (see IndexCommits), so
+ * the periodic commits of a running rebuild are not served: the old version
+ * is kept until the rebuild is finished.
+ *
+ * Every request must acquire() a searcher and release() it when finished, so
+ * the request sees one consistent version of the index.
+ */
+public final class IndexSearcherManager
+  extends ReferenceManager<IndexSearcher> {
+  /**
+   * Logger.
+   */
+  private static final Logger _log = Logger.getLogger(
+    IndexSearcherManager.class.getName());
+  /**
+   * Program options (for the lock factory).
+   */
+  private final CommonOptions _options;
+  /**
+   * The index directory.
+   */
+  private final File _indexDir;
+  /**
+   * Factory (and warmer) of the new searchers.
+   */
+  private final SearcherFactory _searcherFactory;
+  /**
+   * Opened index databases by path.
+   */
+  private final Map<File, Directory> _directories = new HashMap<>();
+  /**
+   * Thread for the periodic refresh.
+   */
+  private final ScheduledExecutorService _refresher =
+    Executors.newSingleThreadScheduledExecutor();
+
+  /**
+   * Reader of the main index and the shards.
+   */
+  private static final class ShardsReader extends MultiReader {
+    /**
+     * Paths of the opened databases.
+     */
+    final List<File> paths;
+    /**
+     * Readers of the databases (in the same order as the paths).
+     */
+    final List<DirectoryReader> readers;
+
+    /**
+     * The readers are not closed but decRef'ed on close.
+     *
+     * @param paths_ paths of the databases.
+     * @param readers_ readers of the databases.
+     */
+    ShardsReader(List<File> paths_, List<DirectoryReader> readers_) {
+      super(readers_.toArray(new IndexReader[readers_.size()]), false);
+      paths = paths_;
+      readers = readers_;
+    }
+  }
+
+  /**
+   * Opens the index.
+   *
+   * @param options_ program options.
+   * @param indexDir_ the index directory.
+   * @param searcherFactory_ factory (and warmer) of the searchers.
+   * @throws IOException
+   */
+  public IndexSearcherManager(CommonOptions options_, File indexDir_,
+    SearcherFactory searcherFactory_) throws IOException {
+    _options = options_;
+    _indexDir = indexDir_;
+    _searcherFactory = searcherFactory_;
+
+    final List<File> paths = findDatabases();
+    if (paths.isEmpty()) {
+      throw new IOException("No index found in " + _indexDir);
+    }
+
+    current = SearcherManager.getSearcher(_searcherFactory,
+      openReader(paths, null));
+  }
+
+  /**
+   * Returns the version of the index seen by a searcher of a manager. It
+   * changes whenever any database of the index changes (see
+   * DirectoryReader.getVersion()).
+   *
+   * @param searcher_ a searcher acquired from a manager.
+   * @return version string of the index.
+   */
+  public static String getIndexVersion(IndexSearcher searcher_) {
+    final IndexReader reader = searcher_.getIndexReader();
+    if (reader instanceof DirectoryReader) {
+      return Long.toString(((DirectoryReader) reader).getVersion());
+    } else if (!(reader instanceof ShardsReader)) {
+      return "";
+    }
+
+    final StringBuilder version = new StringBuilder();
+    for (DirectoryReader dbReader : ((ShardsReader) reader).readers) {
+      if (version.length() > 0) {
+        version.append('.');
+      }
+      version.append(dbReader.getVersion());
+    }
+
+    return version.toString();
+  }
+
+  /**
+   * @return the index directory.
+   */
+  public File getIndexDir() {
+    return _indexDir;
+  }
+
+  /**
+   * Refreshes the searcher periodically (if the index has changed).
+   *
+   * @param periodSecs_ refresh period in seconds.
+   */
+  public void startPeriodicRefresh(int periodSecs_) {
+    _refresher.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          maybeRefresh();
+        } catch (IOException | RuntimeException ex) {
+          _log.log(Level.WARNING, "Refreshing the index failed!", ex);
+        }
+      }
+    }, periodSecs_, periodSecs_, TimeUnit.SECONDS);
+  }
+
+  /**
+   * @return paths of the existing databases: the main index and the shards.
+   * @throws IOException
+   */
+  private List<File> findDatabases() throws IOException {
+    final List<File> paths = new ArrayList<>();
+    if (DirectoryReader.indexExists(getDirectory(_indexDir))) {
+      paths.add(_indexDir);
+    }
+
+    for (File shardDir : IndexShards.findShardDirs(_indexDir)) {
+      if (DirectoryReader.indexExists(getDirectory(shardDir))) {
+        paths.add(shardDir);
+      }
+    }
+
+    return paths;
+  }
+
+  /**
+   * @param path_ path of an index database.
+   * @return the (cached) directory of the database.
+   * @throws IOException
+   */
+  private synchronized Directory getDirectory(File path_) throws IOException {
+    Directory dir = _directories.get(path_);
+    if (dir == null) {
+      dir = FSDirectory.open(path_, _options.createLockFactory());
+      _directories.put(path_, dir);
+    }
+
+    return dir;
+  }
+
+  /**
+   * Opens a reader for the databases. The unchanged databases of the old
+   * reader are shared. A database without a servable commit keeps its old
+   * reader, or it is skipped until its first servable commit (but a new
+   * index is opened at its last commit on startup).
+   *
+   * @param paths_ paths of the databases.
+   * @param old_ the old reader (can be null).
+   * @return the new reader or null if nothing changed.
+   * @throws IOException
+   */
+  private ShardsReader openReader(List<File> paths_, ShardsReader old_)
+    throws IOException {
+    final List<File> paths = new ArrayList<>(paths_.size());
+    final List<DirectoryReader> readers = new ArrayList<>(paths_.size());
+    final List<DirectoryReader> opened = new ArrayList<>(paths_.size());
+
+    try {
+      for (File path : paths_) {
+        final int oldIndex = old_ == null ? -1 : old_.paths.indexOf(path);
+        final DirectoryReader oldReader = oldIndex < 0 ? null :
+          old_.readers.get(oldIndex);
+        final IndexCommit commit = IndexCommits.findServableCommit(
+          getDirectory(path));
+
+        DirectoryReader reader = null;
+        if (commit != null && oldReader != null) {
+          reader = DirectoryReader.openIfChanged(oldReader, commit);
+        } else if (commit != null) {
+          reader = DirectoryReader.open(commit);
+        } else if (old_ == null) {
+          _log.log(Level.INFO, "No finished index in {0}, opening the last " +
+            "commit.", path);
+          reader = DirectoryReader.open(getDirectory(path));
+        } else if (oldReader == null) {
+          _log.log(Level.FINE, "Skipping unfinished database {0}.", path);
+          continue;
+        }
+
+        if (reader == null) {
+          reader = oldReader;
+        } else {
+          opened.add(reader);
+        }
+
+        paths.add(path);
+        readers.add(reader);
+      }
+
+      if (readers.isEmpty() ||
+        (opened.isEmpty() && old_ != null && old_.paths.equals(paths))) {
+        return null;
+      }
+
+      return new ShardsReader(Collections.unmodifiableList(paths), readers);
+    } finally {
+      // The new ShardsReader holds a reference of its own.
+      for (DirectoryReader reader : opened) {
+        reader.decRef();
+      }
+    }
+  }
+
+  @Override
+  protected IndexSearcher refreshIfNeeded(IndexSearcher reference_)
+    throws IOException {
+    final ShardsReader old = (ShardsReader) reference_.getIndexReader();
+    final List<File> paths = findDatabases();
+    if (paths.isEmpty()) {
+      _log.log(Level.WARNING, "The index disappeared from {0}, keeping the " +
+        "old one.", _indexDir);
+      return null;
+    }
+
+    final ShardsReader reader = openReader(paths, old);
+    if (reader == null) {
+      return null;
+    }
+
+    _log.log(Level.INFO, "Index changed, opening new searcher ({0} " +
+      "document(s)).", reader.numDocs());
+    return SearcherManager.getSearcher(_searcherFactory, reader);
+  }
+
+  @Override
+  protected void decRef(IndexSearcher reference_) throws IOException {
+    reference_.getIndexReader().decRef();
+  }
+
+  @Override
+  protected boolean tryIncRef(IndexSearcher reference_) throws IOException {
+    return reference_.getIndexReader().tryIncRef();
+  }
+
+  @Override
+  protected int getRefCount(IndexSearcher reference_) {
+    return reference_.getIndexReader().getRefCount();
+  }
+
+  @Override
+  protected void afterClose() throws IOException {
+    _refresher.shutdownNow();
+
+    for (Directory dir : _directories.values()) {
+      dir.close();
+    }
+  }
+}
@@ -0,0 +1,152 @@
+package cc.search.service.app;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded executor for the result matching tasks of the search requests. It
+ * is a work-stealing pool with a fixed number of threads: the requests submit
+ * their tasks from their own threads, so they get their own submission queues
+ * and the workers take tasks from all of them (no request can start new
+ * threads or starve the others).
+ *
+ * The tasks of a request are submitted through a Request object which can
+ * cancel the remaining tasks of the request.
+ */
+public final class MatcherExecutor implements AutoCloseable {
+  /**
+   * The worker pool.
+   */
+  private final ForkJoinPool _pool;
+  /**
+   * Number of submitted tasks.
+   */
+  private final AtomicLong _submittedTasks = new AtomicLong(0);
+  /**
+   * Number of finished tasks (including the failed ones).
+   */
+  private final AtomicLong _finishedTasks = new AtomicLong(0);
+  /**
+   * Number of tasks cancelled before they started.
+   */
+  private final AtomicLong _cancelledTasks = new AtomicLong(0);
+
+  /**
+   * The matching tasks of one search request.
+   */
+  public final class Request {
+    /**
+     * True if the request is cancelled.
+     */
+    private volatile boolean _cancelled = false;
+
+    /**
+     * Submits a task of the request. The task is skipped (its result is null)
+     * if the request is cancelled before it starts.
+     *
+     * @param task_ a task.
+     * @param <T> result type.
+     * @return future of the result.
+     */
+    public <T> Future<T> submit(final Callable<T> task_) {
+      final ForkJoinTask<T> task = ForkJoinTask.adapt(new Callable<T>() {
+        @Override
+        public T call() throws Exception {
+          if (_cancelled) {
+            _cancelledTasks.incrementAndGet();
+            return null;
+          }
+
+          try {
+            return task_.call();
+          } finally {
+            _finishedTasks.incrementAndGet();
+          }
+        }
+      });
+
+      _submittedTasks.incrementAndGet();
+      _pool.execute(task);
+
+      return task;
+    }
+
+    /**
+     * Cancels the tasks of the request which are not started yet: they finish
+     * immediately with a null result. The running tasks are not interrupted.
+     */
+    public void cancel() {
+      _cancelled = true;
+    }
+
+    /**
+     * @return true if the request is cancelled.
+     */
+    public boolean isCancelled() {
+      return _cancelled;
+    }
+  }
+
+  /**
+   * @param threads_ number of worker threads.
+   */
+  public MatcherExecutor(int threads_) {
+    _pool = new ForkJoinPool(threads_);
+  }
+
+  /**
+   * @return a new request for submitting tasks.
+   */
+  public Request newRequest() {
+    return new Request();
+  }
+
+  /**
+   * @return number of tasks waiting for a worker.
+   */
+  public long getQueueDepth() {
+    return _pool.getQueuedSubmissionCount() + _pool.getQueuedTaskCount();
+  }
+
+  /**
+   * @return number of running tasks (estimate).
+   */
+  public int getActiveTaskCount() {
+    return _pool.getActiveThreadCount();
+  }
+
+  /**
+   * @return number of submitted tasks.
+   */
+  public long getSubmittedTaskCount() {
+    return _submittedTasks.get();
+  }
+
+  /**
+   * @return number of finished tasks.
+   */
+  public long getFinishedTaskCount() {
+    return _finishedTasks.get();
+  }
+
+  /**
+   * @return number of cancelled tasks.
+   */
+  public long getCancelledTaskCount() {
+    return _cancelledTasks.get();
+  }
+
+  @Override
+  public void close() {
+    _pool.shutdown();
+    try {
+      _pool.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package cc.search.service.app;
+
+/**
+ * Time budget of a search request. The steps of the request check it and
+ * stop early when it is over; in that case they mark the request as
+ * truncated (the result is partial but well-formed).
+ */
+public final class RequestDeadline {
+  /**
+   * The deadline (System.nanoTime() based).
+   */
+  private final long _deadlineNanos;
+  /**
+   * True if a step of the request was cut short.
+   */
+  private volatile boolean _truncated = false;
+
+  /**
+   * @param timeLimitMs_ time budget of the request in milliseconds from now.
+   */
+  public RequestDeadline(long timeLimitMs_) {
+    _deadlineNanos = System.nanoTime() + timeLimitMs_ * 1000000L;
+  }
+
+  /**
+   * @return remaining time in milliseconds (0 if the deadline is over).
+   */
+  public long getRemainingMillis() {
+    return Math.max(0, (_deadlineNanos - System.nanoTime()) / 1000000L);
+  }
+
+  /**
+   * @return true if the deadline is over.
+   */
+  public boolean isExpired() {
+    return _deadlineNanos - System.nanoTime() <= 0;
+  }
+
+  /**
+   * Marks the request as truncated.
+   */
+  public void markTruncated() {
+    _truncated = true;
+  }
+
+  /**
+   * @return true if the result of the request is partial.
+   */
+  public boolean isTruncated() {
+    return _truncated;
+  }
+}
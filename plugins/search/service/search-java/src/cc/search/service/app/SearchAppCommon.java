@@ -4,6 +4,7 @@ import cc.search.analysis.QueryAnalyzer;
 import cc.search.common.config.CommonOptions;
 import cc.search.common.IndexFields;
 import cc.search.match.Context;
+import cc.search.match.DocumentArtifactCache;
 import cc.search.match.QueryContext;
 import cc.search.match.matcher.MasterMatcherFactory;
 import cc.search.match.matcher.ResultMatcher;
@@ -15,29 +16,34 @@ import cc.service.search.SearchResultEntry;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SearcherFactory;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TimeLimitingCollector;
 import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.util.Version;
 
 /**
@@ -48,30 +54,61 @@ public abstract class SearchAppCommon implements AutoCloseable {
    * Default hit limit.
    */
   public static final int DEFAULT_HIT_LIMIT = 100;
+  /**
+   * Default size of the document artifact cache in megabytes.
+   */
+  public static final int DEFAULT_ARTIFACT_CACHE_MB = 64;
+  /**
+   * Field set for loading the file informations of a document.
+   */
+  private static final Set<String> FILE_INFO_FIELD_SET = new HashSet<>(
+    Arrays.asList(IndexFields.fileDbIdField, IndexFields.filePathField));
+  /**
+   * Orders the line matches by their start position.
+   */
+  private static final Comparator<LineMatch> POSITION_ORDER =
+    new Comparator<LineMatch>() {
+      @Override
+      public int compare(LineMatch line1_, LineMatch line2_) {
+        final Range range1 = line1_.range.range;
+        final Range range2 = line2_.range.range;
+        
+        final int res = Integer.compare(range1.startpos.line,
+          range2.startpos.line);
+        return res != 0 ? res : Integer.compare(range1.startpos.column,
+          range2.startpos.column);
+      }
+    };
   /**
    * Program options.
    */
   protected final CommonOptions _options;
   /**
-   * Index database.
+   * Manager of the searchers (it can be swapped to another index). A request
+   * must acquire a searcher and use it for every step (search, matching)
+   * then release it.
    */
-  protected final IndexReader _indexReader;
+  private volatile IndexSearcherManager _searcherManager;
   /**
-   * The once and only searcher.
+   * Factory (and warmer) of the searchers.
    */
-  protected final IndexSearcher _searcher;
+  protected final SearcherFactory _searcherFactory;
   /**
-   * Parser for query strings.
+   * Parsers for query strings (one per thread).
    */
-  protected final QueryParser _textQueryParser;
+  private final ThreadLocal<QueryParser> _textQueryParser;
   /**
-   * Executor for async tasks.
+   * Executor for the result matching tasks.
    */
-  protected final ExecutorService _executor;
+  protected final MatcherExecutor _matcherExecutor;
   /**
    * Matcher factory.
    */
   protected final ResultMatcherFactory _matcherFactory;
+  /**
+   * Cache of the line informations and tags of the hits (null if disabled).
+   */
+  protected final DocumentArtifactCache _artifactCache;
   /**
    * Logger.
    */
@@ -82,6 +119,10 @@ public abstract class SearchAppCommon implements AutoCloseable {
    * Async task class for matching lines in a document.
    */
   private class SearchResultMatcherTask implements Callable<SearchResultEntry> {
+    /**
+     * The searcher of the request.
+     */
+    private final IndexSearcher _searcher;
     /**
      * The document to match in.
      */
@@ -90,6 +131,10 @@ public abstract class SearchAppCommon implements AutoCloseable {
      * User provided query.
      */
     private final QueryContext _query;
+    /**
+     * Stored fields to load (see getFieldsToLoad()).
+     */
+    private final Set<String> _fields;
     /**
      * Filter out overlapping results or not.
      */
@@ -98,46 +143,129 @@ public abstract class SearchAppCommon implements AutoCloseable {
     /**
      * The constructor.
      * 
+     * @param searcher_ The searcher of the request.
      * @param query_ User provided query context.
      * @param doc_  The document to match in.
+     * @param fields_ stored fields to load.
      * @param filterOverlapping_ filter out overlapping results or not.
      */
-    SearchResultMatcherTask(QueryContext query_, ScoreDoc doc_,
-      boolean filterOverlapping_) {
+    SearchResultMatcherTask(IndexSearcher searcher_, QueryContext query_,
+      ScoreDoc doc_, Set<String> fields_, boolean filterOverlapping_) {
+      _searcher = searcher_;
       _query = query_;
       _doc = doc_;
+      _fields = fields_;
       _filterOverlapping = filterOverlapping_;
     }
 
     @Override
     public SearchResultEntry call() throws IOException {
-      Context context = new Context(_query, _searcher, _doc.doc);
-
-      FileInfo docsInfo = new FileInfo();
-      docsInfo.id   = context.fileId;
-      docsInfo.name = context.file.getName();
-      docsInfo.path = context.file.getPath();
+      // The chunks of a large file are matched one by one, the line matches
+      // in the overlapping parts of the chunks are reported only once.
+      final int[] docs = _doc instanceof FileHit ? ((FileHit) _doc).docs :
+        new int[] { _doc.doc };
+      final Map<LineMatch, Context> contextByMatch = new LinkedHashMap<>();
+      // An alias which is a hit itself is matched in the documents of its
+      // canonical file, but it is reported as the alias.
+      final boolean isAlias = Arrays.binarySearch(docs, _doc.doc) < 0;
+      FileInfo docsInfo = isAlias ? loadFileInfo(_searcher, _doc.doc) : null;
       
-      ResultMatcher matcher = _matcherFactory.create(context);
-      if (matcher == null) {
-        _log.log(Level.SEVERE, "No line matcher found for this query! ");
-        return null;
+      for (int doc : docs) {
+        final Context context = Context.load(_query, _searcher, doc, _fields,
+          _artifactCache);
+        if (context.document.getField(IndexFields.aliasOfField) != null) {
+          // The canonical file of the alias is not found.
+          continue;
+        }
+        
+        if (docsInfo == null) {
+          docsInfo = new FileInfo();
+          docsInfo.id   = context.fileId;
+          docsInfo.name = context.file.getName();
+          docsInfo.path = context.file.getPath();
+        }
+
+        ResultMatcher matcher = _matcherFactory.create(context);
+        if (matcher == null) {
+          _log.log(Level.SEVERE, "No line matcher found for this query! ");
+          return null;
+        }
+
+        for (LineMatch line : matcher.match()) {
+          if (!contextByMatch.containsKey(line)) {
+            contextByMatch.put(line, context);
+          }
+        }
       }
       
-      List<LineMatch> match = matcher.match();
-      if (match.isEmpty()) {
+      if (contextByMatch.isEmpty()) {
         _log.log(Level.WARNING, "Empty match for {0} ({1})", 
-          new Object[]{context.file.getPath(), context.fileId});
+          docsInfo == null ? new Object[]{"document", _doc.doc} :
+          new Object[]{docsInfo.path, docsInfo.id});
         return null;
       }
       
+      List<LineMatch> match = new ArrayList<>(contextByMatch.keySet());
+      if (docs.length > 1) {
+        Collections.sort(match, POSITION_ORDER);
+      }
+      
       if (_filterOverlapping) {
         match = filterOverlapping(match);
       }
+      
+      if (_query.getContextLines() > 0) {
+        addContextLines(match, contextByMatch, _query.getContextLines());
+      }
+      
+      if (isAlias) {
+        for (LineMatch line : match) {
+          line.range.file = docsInfo.id;
+        }
+      }
 
       return new SearchResultEntry(match, docsInfo);
     }
     
+    /**
+     * Adds the lines around the matching lines. The context lines are read
+     * from the document of the match, so they do not cross the boundary of a
+     * chunk.
+     * 
+     * @param matches_ the matching lines.
+     * @param contexts_ matching context of the documents of the matches.
+     * @param count_ number of lines before and after a matching line.
+     */
+    private void addContextLines(List<LineMatch> matches_,
+      Map<LineMatch, Context> contexts_, int count_) {
+      for (LineMatch match : matches_) {
+        final Context context = contexts_.get(match);
+        if (context.lineInfos == null) {
+          continue;
+        }
+        
+        final int lineCount = context.lineInfos.getLineCount();
+        final int line = match.range.range.startpos.line - context.baseLine;
+        if (line < 1 || line > lineCount) {
+          continue;
+        }
+        
+        final List<String> before = new ArrayList<>(count_);
+        for (int i = Math.max(1, line - count_); i < line; ++i) {
+          before.add(context.lineInfos.getLineContent(i));
+        }
+        
+        final List<String> after = new ArrayList<>(count_);
+        final int last = Math.min(lineCount, line + count_);
+        for (int i = line + 1; i <= last; ++i) {
+          after.add(context.lineInfos.getLineContent(i));
+        }
+        
+        match.setLinesBefore(before);
+        match.setLinesAfter(after);
+      }
+    }
+    
     /**
      * @param range1_ A range that maybe contains the other.
      * @param range2_ The contained.
@@ -225,26 +353,62 @@ public abstract class SearchAppCommon implements AutoCloseable {
    * @throws IOException
    */
   protected SearchAppCommon(CommonOptions options_) throws IOException {
+    this(options_, new SearcherWarmer());
+  }
+
+  /**
+   * Opens the index database and initializes all members.
+   *
+   * @param options_ program options
+   * @param searcherFactory_ factory (and warmer) of the searchers.
+   * @throws IOException
+   */
+  protected SearchAppCommon(CommonOptions options_,
+    SearcherFactory searcherFactory_) throws IOException {
+    this(options_, searcherFactory_, DEFAULT_ARTIFACT_CACHE_MB);
+  }
+
+  /**
+   * Opens the index database and initializes all members.
+   *
+   * @param options_ program options
+   * @param searcherFactory_ factory (and warmer) of the searchers.
+   * @param artifactCacheMB_ size of the document artifact cache in megabytes
+   *  (0 disables the cache).
+   * @throws IOException
+   */
+  protected SearchAppCommon(CommonOptions options_,
+    SearcherFactory searcherFactory_, int artifactCacheMB_)
+    throws IOException {
     _options = options_;
+    _searcherFactory = searcherFactory_;
 
     try {
-      _indexReader = DirectoryReader.open(FSDirectory.open(
-        new File(_options.indexDirPath), _options.createLockFactory()));
+      // The shards of a sharded index are opened as one MultiReader.
+      _searcherManager = new IndexSearcherManager(_options,
+        new File(_options.indexDirPath), searcherFactory_);
     } catch (IOException e) {
       _log.severe("Failed to open search index!");
       throw e;
     }
 
-    _searcher = new IndexSearcher(_indexReader);
-
-    Analyzer analyzer = new QueryAnalyzer();
-    _textQueryParser = new QueryParser(Version.LUCENE_4_9,
-      IndexFields.contentField, analyzer);
-    _textQueryParser.setAllowLeadingWildcard(true);
+    // QueryParser is not thread-safe but the analyzer is.
+    final Analyzer analyzer = new QueryAnalyzer();
+    _textQueryParser = new ThreadLocal<QueryParser>() {
+      @Override
+      protected QueryParser initialValue() {
+        final QueryParser parser = new QueryParser(Version.LUCENE_4_9,
+          IndexFields.contentField, analyzer);
+        parser.setAllowLeadingWildcard(true);
+        return parser;
+      }
+    };
     
-    _executor = new ThreadPoolExecutor(10, Integer.MAX_VALUE, 10,
-      TimeUnit.MINUTES, new SynchronousQueue<Runnable>());
+    _matcherExecutor = new MatcherExecutor(
+      Runtime.getRuntime().availableProcessors());
     _matcherFactory = new MasterMatcherFactory();
+    _artifactCache = artifactCacheMB_ > 0 ? new DocumentArtifactCache(
+      artifactCacheMB_ * 1024L * 1024L) : null;
   }
 
   /**
@@ -252,7 +416,12 @@ public abstract class SearchAppCommon implements AutoCloseable {
    */
   @Override
   public void close() {
-    _executor.shutdown();
+    _matcherExecutor.close();
+    
+    if (_artifactCache != null) {
+      _log.log(Level.INFO, "Artifact cache hit ratio: {0}",
+        _artifactCache.getHitRatio());
+    }
     
     try {
       _matcherFactory.close();
@@ -260,79 +429,372 @@ public abstract class SearchAppCommon implements AutoCloseable {
       _log.log(Level.SEVERE, "Closing matcher factory failed!", ex);
     }
     
-    if (_indexReader != null) {
+    try {
+      _searcherManager.close();
+    } catch (IOException e) {
+      _log.log(Level.SEVERE, "Shit happened!!!", e);
+    }
+  }
+
+  /**
+   * Acquires the current searcher. It must be released by releaseSearcher().
+   *
+   * @return the current searcher.
+   * @throws IOException
+   */
+  protected IndexSearcher acquireSearcher() throws IOException {
+    while (true) {
+      final IndexSearcherManager manager = _searcherManager;
       try {
-        _indexReader.close();
-      } catch (IOException e) {
-        _log.log(Level.SEVERE, "Shit happened!!!", e);
+        return manager.acquire();
+      } catch (AlreadyClosedException ex) {
+        if (manager == _searcherManager) {
+          throw ex;
+        }
+        // The index was swapped meanwhile: try the new one.
       }
     }
   }
 
+  /**
+   * Releases a searcher acquired by acquireSearcher().
+   *
+   * @param searcher_ the searcher.
+   * @throws IOException
+   */
+  protected void releaseSearcher(IndexSearcher searcher_) throws IOException {
+    // Releasing only decrements the reference count of the reader, so it
+    // works also after the manager of the searcher was swapped out.
+    _searcherManager.release(searcher_);
+  }
+
+  /**
+   * @return manager of the current index.
+   */
+  protected IndexSearcherManager getSearcherManager() {
+    return _searcherManager;
+  }
+
+  /**
+   * Replaces the index. The running requests finish with the old searchers.
+   *
+   * @param manager_ manager of the new index.
+   * @return manager of the old index (it should be closed by the caller).
+   */
+  protected synchronized IndexSearcherManager swapSearcherManager(
+    IndexSearcherManager manager_) {
+    final IndexSearcherManager old = _searcherManager;
+    _searcherManager = manager_;
+    return old;
+  }
+
   /**
    * Does a document search.
    *
+   * @param searcher_ searcher of the request.
+   * @param query_ Search query
+   * @param filter_ Search filter
+   * @param hitLimit_ Hit limit
+   * @return Matching document ids
+   * @throws IOException
+   */
+  protected TopDocs search(IndexSearcher searcher_, Query query_,
+    Filter filter_, int hitLimit_) throws IOException {
+    return search(searcher_, query_, filter_, hitLimit_, null);
+  }
+
+  /**
+   * Does a document search in a time budget. If the time is over, the
+   * documents collected so far are returned and the request is marked as
+   * truncated.
+   *
+   * @param searcher_ searcher of the request.
    * @param query_ Search query
    * @param filter_ Search filter
    * @param hitLimit_ Hit limit
+   * @param deadline_ deadline of the request (can be null).
    * @return Matching document ids
    * @throws IOException
    */
-  protected TopDocs search(Query query_, Filter filter_, int hitLimit_)
+  protected TopDocs search(IndexSearcher searcher_, Query query_,
+    Filter filter_, int hitLimit_, RequestDeadline deadline_)
     throws IOException {
-    return _searcher.search(query_, filter_, hitLimit_);
+    return searchAfter(searcher_, null, query_, filter_, hitLimit_, deadline_);
+  }
+
+  /**
+   * Collects a page of files: the best files after a given hit of a previous
+   * search (see IndexSearcher.searchAfter). The hits are FileHit objects (the
+   * chunks of a file are one hit, the aliases of a file follow the file) and
+   * the total hits is the number of the matching files and their aliases.
+   *
+   * @param searcher_ searcher of the request.
+   * @param after_ the last hit of the previous page (null for the first
+   *  page).
+   * @param query_ Search query
+   * @param filter_ Search filter
+   * @param hitLimit_ Hit limit (size of the page)
+   * @param deadline_ deadline of the request (can be null).
+   * @return Matching files
+   * @throws IOException
+   */
+  protected TopDocs searchAfter(IndexSearcher searcher_, ScoreDoc after_,
+    Query query_, Filter filter_, int hitLimit_, RequestDeadline deadline_)
+    throws IOException {
+    return collectFiles(searcher_, query_, filter_, deadline_).topDocs(
+      searcher_, after_, 0, hitLimit_);
+  }
+
+  /**
+   * Collects the matching files of a query and their aliases. If the time is
+   * over, the files collected so far are returned and the request is marked
+   * as truncated.
+   *
+   * @param searcher_ searcher of the request.
+   * @param query_ Search query
+   * @param filter_ Search filter
+   * @param deadline_ deadline of the request (can be null).
+   * @return the collected files.
+   * @throws IOException
+   */
+  private static FileHitCollector collectFiles(IndexSearcher searcher_,
+    Query query_, Filter filter_, RequestDeadline deadline_)
+    throws IOException {
+    final FileHitCollector fileCollector = new FileHitCollector();
+    if (deadline_ == null) {
+      searcher_.search(query_, filter_, fileCollector);
+    } else if (deadline_.isExpired()) {
+      deadline_.markTruncated();
+      return fileCollector;
+    } else {
+      try {
+        searcher_.search(query_, filter_, new TimeLimitingCollector(
+          fileCollector, TimeLimitingCollector.getGlobalCounter(),
+          deadline_.getRemainingMillis()));
+      } catch (TimeLimitingCollector.TimeExceededException ex) {
+        _log.log(Level.INFO, "Search time limit exceeded: {0}",
+          ex.getMessage());
+        deadline_.markTruncated();
+      }
+    }
+
+    fileCollector.collectAliases(searcher_, filter_);
+    return fileCollector;
+  }
+
+  /**
+   * Parses a text query with the parser of the current thread.
+   *
+   * @param query_ query string.
+   * @return the parsed query.
+   * @throws ParseException
+   */
+  protected Query parseTextQuery(String query_) throws ParseException {
+    return _textQueryParser.get().parse(query_);
   }
 
   /**
    * Does a document search with the default search limit.
    *
+   * @param searcher_ searcher of the request.
    * @param query_ Search query
    * @param filter_ Search filter
    * @return Matching document ids
    * @throws IOException
    */
-  protected TopDocs search(Query query_, Filter filter_) throws IOException {
-    return search(query_, filter_, DEFAULT_HIT_LIMIT);
+  protected TopDocs search(IndexSearcher searcher_, Query query_,
+    Filter filter_) throws IOException {
+    return search(searcher_, query_, filter_, DEFAULT_HIT_LIMIT);
+  }
+
+  /**
+   * Returns the stored fields of a result document needed for matching a
+   * query: the fields of the matchers and the fields of the context.
+   * 
+   * @param query_ Search query context.
+   * @return field names.
+   */
+  private Set<String> getFieldsToLoad(QueryContext query_) {
+    final Set<String> fields = new HashSet<>(Context.BASE_FIELDS);
+    fields.addAll(_matcherFactory.getRequiredFields(query_));
+    fields.add(IndexFields.aliasOfField);
+    
+    return fields;
   }
 
   /**
    * Compute search results for the query and its result docs.
    * 
+   * @param searcher_ searcher of the request (the docs are from it).
    * @param query_ Search query context.
    * @param docs_ A user provided query.
    * @return result list.
    * @throws IOException 
    */
-  protected List<SearchResultEntry> computeResultEntries(QueryContext query_,
-    TopDocs docs_) throws IOException {
-
-    ArrayList<Future<SearchResultEntry>> results = new ArrayList<>(
-      docs_.scoreDocs.length);
+  protected List<SearchResultEntry> computeResultEntries(
+    IndexSearcher searcher_, QueryContext query_, TopDocs docs_)
+    throws IOException {
+    return computeResultEntries(searcher_, query_, docs_, null);
+  }
+  
+  /**
+   * Compute search results for the query and its result docs in a time
+   * budget. If the time is over, the results of the already matched
+   * documents are returned (in score order), the remaining matching tasks
+   * are cancelled and the request is marked as truncated.
+   * 
+   * The documents are submitted in docId order, so the stored fields are
+   * read sequentially; the results are collected in score order. The entry
+   * of an alias (see FileHit) is a copy of the entry of its file, so a file
+   * is matched only once.
+   * 
+   * @param searcher_ searcher of the request (the docs are from it).
+   * @param query_ Search query context.
+   * @param docs_ A user provided query.
+   * @param deadline_ deadline of the request (can be null).
+   * @return result list.
+   * @throws IOException 
+   */
+  protected List<SearchResultEntry> computeResultEntries(
+    IndexSearcher searcher_, QueryContext query_, TopDocs docs_,
+    RequestDeadline deadline_) throws IOException {
 
-    for (ScoreDoc doc : docs_.scoreDocs) {
-      results.add(_executor.submit(new SearchResultMatcherTask(query_, doc,
-        query_.getFilterOverlapping())));
+    final ScoreDoc[] scoreDocs = docs_.scoreDocs;
+    final List<Future<SearchResultEntry>> results = new ArrayList<>(
+      Collections.<Future<SearchResultEntry>>nCopies(scoreDocs.length, null));
+    ArrayList<SearchResultEntry> result = new ArrayList<>(scoreDocs.length);
+    
+    // Score positions in docId order
+    final Integer[] docOrder = new Integer[scoreDocs.length];
+    for (int i = 0; i < docOrder.length; ++i) {
+      docOrder[i] = i;
     }
+    Arrays.sort(docOrder, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer i1_, Integer i2_) {
+        return Integer.compare(scoreDocs[i1_].doc, scoreDocs[i2_].doc);
+      }
+    });
     
-    ArrayList<SearchResultEntry> result = new ArrayList<>(
-      docs_.scoreDocs.length);
-    for (Future<SearchResultEntry> subres : results) {
-      try {
-        SearchResultEntry entry = subres.get();
-        if (entry != null) {
-          result.add(entry);
+    final Set<String> fields = getFieldsToLoad(query_);
+    final MatcherExecutor.Request request = _matcherExecutor.newRequest();
+    try {
+      Future<SearchResultEntry> prev = null;
+      for (int i = 0; i < docOrder.length; ++i) {
+        final int pos = docOrder[i];
+        if (i > 0 && scoreDocs[pos].doc == scoreDocs[docOrder[i - 1]].doc) {
+          // An alias of the previous file
+          results.set(pos, prev);
+          continue;
         }
-      } catch (InterruptedException | ExecutionException ex) {
-        _log.log(Level.WARNING, "Getting result failed!", ex);
+        
+        prev = request.submit(new SearchResultMatcherTask(searcher_, query_,
+          scoreDocs[pos], fields, query_.getFilterOverlapping()));
+        results.set(pos, prev);
       }
+      
+      _log.log(Level.FINE, "Matcher queue depth: {0}, active tasks: {1}",
+        new Object[] {
+          _matcherExecutor.getQueueDepth(),
+          _matcherExecutor.getActiveTaskCount()
+        });
+      
+      boolean timeOver = false;
+      for (int i = 0; i < scoreDocs.length; ++i) {
+        final Future<SearchResultEntry> subres = results.get(i);
+        if (timeOver && !subres.isDone()) {
+          continue;
+        }
+        
+        try {
+          SearchResultEntry entry = deadline_ == null || timeOver ?
+            subres.get() :
+            subres.get(deadline_.getRemainingMillis(), TimeUnit.MILLISECONDS);
+          if (entry == null) {
+            continue;
+          }
+          
+          final int aliasDoc = scoreDocs[i] instanceof FileHit ?
+            ((FileHit) scoreDocs[i]).aliasDoc : -1;
+          result.add(aliasDoc < 0 ? entry :
+            createAliasEntry(searcher_, entry, aliasDoc));
+        } catch (ExecutionException ex) {
+          _log.log(Level.WARNING, "Getting result failed!", ex);
+        } catch (TimeoutException ex) {
+          // Keep only the finished results from now on.
+          timeOver = true;
+          request.cancel();
+          deadline_.markTruncated();
+          _log.log(Level.INFO, "Result matching time limit exceeded.");
+        }
+      }
+    } catch (InterruptedException ex) {
+      _log.log(Level.WARNING, "Result matching interrupted!", ex);
+      Thread.currentThread().interrupt();
+    } finally {
+      // Nothing to do if every task is finished, otherwise the tasks are not
+      // needed any more.
+      request.cancel();
+    }
+
+    if (_artifactCache != null) {
+      _log.log(Level.FINE, "Artifact cache: {0} entries, {1} bytes, hit " +
+        "ratio: {2}, evictions: {3}", new Object[] {
+          _artifactCache.getEntryCount(),
+          _artifactCache.getSize(),
+          _artifactCache.getHitRatio(),
+          _artifactCache.getEvictionCount()
+        });
     }
 
     return result;
   }
   
+  /**
+   * Creates the result entry of an alias (a file with the same content as a
+   * result file, see IndexFields.aliasOfField) from the entry of its file.
+   * 
+   * @param searcher_ searcher of the request.
+   * @param entry_ result entry of the file.
+   * @param aliasDoc_ document of the alias.
+   * @return result entry of the alias.
+   * @throws IOException 
+   */
+  private static SearchResultEntry createAliasEntry(IndexSearcher searcher_,
+    SearchResultEntry entry_, int aliasDoc_) throws IOException {
+    final SearchResultEntry aliasEntry = new SearchResultEntry(entry_);
+    aliasEntry.finfo = loadFileInfo(searcher_, aliasDoc_);
+    for (LineMatch line : aliasEntry.matchingLines) {
+      line.range.file = aliasEntry.finfo.id;
+    }
+    
+    return aliasEntry;
+  }
+  
+  /**
+   * Loads the file informations of a document (an alias too).
+   * 
+   * @param searcher_ searcher of the request.
+   * @param doc_ a document id.
+   * @return file informations of the document.
+   * @throws IOException 
+   */
+  private static FileInfo loadFileInfo(IndexSearcher searcher_, int doc_)
+    throws IOException {
+    final Document document = searcher_.doc(doc_, FILE_INFO_FIELD_SET);
+    final File file = new File(document.get(IndexFields.filePathField));
+    
+    final FileInfo finfo = new FileInfo();
+    finfo.id = document.get(IndexFields.fileDbIdField);
+    finfo.name = file.getName();
+    finfo.path = file.getPath();
+    return finfo;
+  }
+  
   /**
    * Does a ranged document search.
    * 
+   * @param searcher_ searcher of the request.
    * @param query_ Search query
    * @param filter_ Search filter
    * @param startIndex_ Start index
@@ -340,26 +802,28 @@ public abstract class SearchAppCommon implements AutoCloseable {
    * @return Matching document ids
    * @throws IOException
    */
-  protected TopDocs rangedSearch(Query query_, Filter filter_, int startIndex_,
-    int endIndex_) throws IOException {
-    
-    // Run the query
-    TopDocs result = search(query_, filter_);
-
-    if (result.scoreDocs.length <= startIndex_) {
-      // Empty result
-      return new TopDocs(result.totalHits, new ScoreDoc[0], 0);
-    } else {
-      // Real end index
-      final int endIndex = Math.min(result.scoreDocs.length - 1, endIndex_);
-      // Result array
-      final ScoreDoc[] docs = new ScoreDoc[endIndex - startIndex_ + 1];
-
-      for (int i = startIndex_; i <= endIndex; ++i) {
-        docs[i - startIndex_] = result.scoreDocs[i];
-      }
-
-      return new TopDocs(result.totalHits, docs, result.getMaxScore());
-    }
+  protected TopDocs rangedSearch(IndexSearcher searcher_, Query query_,
+    Filter filter_, int startIndex_, int endIndex_) throws IOException {
+    return rangedSearch(searcher_, query_, filter_, startIndex_, endIndex_,
+      null);
+  }
+  
+  /**
+   * Does a ranged document search in a time budget.
+   * 
+   * @param searcher_ searcher of the request.
+   * @param query_ Search query
+   * @param filter_ Search filter
+   * @param startIndex_ Start index
+   * @param endIndex_ End index (inclusive)
+   * @param deadline_ deadline of the request (can be null).
+   * @return Matching document ids
+   * @throws IOException
+   */
+  protected TopDocs rangedSearch(IndexSearcher searcher_, Query query_,
+    Filter filter_, int startIndex_, int endIndex_, RequestDeadline deadline_)
+    throws IOException {
+    return collectFiles(searcher_, query_, filter_, deadline_).topDocs(
+      searcher_, null, startIndex_, endIndex_ - startIndex_ + 1);
   }
 }
@@ -0,0 +1,93 @@
+package cc.search.service.app;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque cursor of a paged search: the last hit of a page and the version of
+ * the index it was found in. The next page is collected after this hit (see
+ * IndexSearcher.searchAfter), so deep pages cost the same as the first one.
+ * If the last hit is an alias, the next page continues with the following
+ * aliases of its file.
+ *
+ * A cursor is valid only on the same index version because the document ids
+ * change when the index changes.
+ */
+public final class SearchCursor {
+  /**
+   * Format version of the encoded cursor.
+   */
+  private static final String FORMAT = "2";
+  /**
+   * Separator of the encoded fields.
+   */
+  private static final String SEPARATOR = ":";
+  /**
+   * Index version of the cursor.
+   */
+  private final String _indexVersion;
+  /**
+   * The last hit of the previous page.
+   */
+  private final FileHit _after;
+
+  /**
+   * @param indexVersion_ index version (see
+   *  IndexSearcherManager.getIndexVersion()).
+   * @param after_ the last hit of a page.
+   */
+  public SearchCursor(String indexVersion_, FileHit after_) {
+    _indexVersion = indexVersion_;
+    _after = after_;
+  }
+
+  /**
+   * @return the index version of the cursor.
+   */
+  public String getIndexVersion() {
+    return _indexVersion;
+  }
+
+  /**
+   * @return the last hit of the previous page (without its documents).
+   */
+  public FileHit getAfter() {
+    return _after;
+  }
+
+  /**
+   * @return the cursor as an url-safe string.
+   */
+  public String encode() {
+    final String raw = FORMAT + SEPARATOR + _indexVersion + SEPARATOR +
+      _after.doc + SEPARATOR + Float.floatToIntBits(_after.score) +
+      SEPARATOR + _after.aliasDoc;
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(
+      raw.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Decodes a cursor.
+   *
+   * @param cursor_ an encoded cursor.
+   * @return the decoded cursor.
+   * @throws IllegalArgumentException on a malformed cursor.
+   */
+  public static SearchCursor decode(String cursor_) {
+    final String raw = new String(Base64.getUrlDecoder().decode(cursor_),
+      StandardCharsets.UTF_8);
+    final String[] fields = raw.split(SEPARATOR, -1);
+    if (fields.length != 5 || !FORMAT.equals(fields[0])) {
+      throw new IllegalArgumentException("Invalid search cursor!");
+    }
+
+    try {
+      return new SearchCursor(fields[1], new FileHit(
+        Integer.parseInt(fields[2]),
+        Float.intBitsToFloat(Integer.parseInt(fields[3])),
+        Integer.parseInt(fields[4]), null));
+    } catch (NumberFormatException ex) {
+      throw new IllegalArgumentException("Invalid search cursor!", ex);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package cc.search.service.app;
+
+import cc.search.analysis.QueryAnalyzer;
+import cc.search.common.IndexFields;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.Version;
+
+/**
+ * Searcher factory which warms up the new searchers with a set of text
+ * queries (and by loading the stored fields of their top documents) before
+ * they serve requests.
+ */
+public final class SearcherWarmer extends SearcherFactory {
+  /**
+   * Logger.
+   */
+  private static final Logger _log = Logger.getLogger(
+    SearcherWarmer.class.getName());
+  /**
+   * Number of fetched documents per warming query.
+   */
+  private static final int WARM_HIT_LIMIT = 10;
+  /**
+   * The warming queries.
+   */
+  private final List<Query> _queries;
+
+  /**
+   * Creates a warmer without queries (it only creates searchers).
+   */
+  public SearcherWarmer() {
+    _queries = Collections.emptyList();
+  }
+
+  /**
+   * Loads the warming queries from a file: one text query per line, empty
+   * lines and lines starting with # are skipped.
+   *
+   * @param queriesFile_ the query file.
+   * @throws IOException
+   */
+  public SearcherWarmer(File queriesFile_) throws IOException {
+    final QueryParser parser = new QueryParser(Version.LUCENE_4_9,
+      IndexFields.contentField, new QueryAnalyzer());
+    parser.setAllowLeadingWildcard(true);
+
+    _queries = new ArrayList<>();
+    for (String line : Files.readAllLines(queriesFile_.toPath(),
+      StandardCharsets.UTF_8)) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+
+      try {
+        _queries.add(parser.parse(line));
+      } catch (ParseException ex) {
+        _log.log(Level.WARNING, "Bad warming query: " + line, ex);
+      }
+    }
+
+    _log.log(Level.INFO, "Loaded {0} warming query(s).", _queries.size());
+  }
+
+  @Override
+  public IndexSearcher newSearcher(IndexReader reader_) throws IOException {
+    final IndexSearcher searcher = new IndexSearcher(reader_);
+    if (_queries.isEmpty()) {
+      return searcher;
+    }
+
+    final long start = System.currentTimeMillis();
+    for (Query query : _queries) {
+      final TopDocs docs = searcher.search(query, WARM_HIT_LIMIT);
+      for (ScoreDoc doc : docs.scoreDocs) {
+        reader_.document(doc.doc);
+      }
+    }
+
+    _log.log(Level.INFO, "Searcher warmed in {0} ms.",
+      System.currentTimeMillis() - start);
+    return searcher;
+  }
+}
@@ -6,6 +6,7 @@ import cc.search.common.config.UnknownArgumentException;
 import cc.search.match.QueryContext;
 import cc.service.search.SearchResultEntry;
 import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 
 import java.io.IOException;
@@ -43,13 +44,14 @@ public class QueryApp extends SearchAppCommon {
    * @throws IOException 
    */
   public void queryAndPrintResults() throws IOException {
+    final IndexSearcher searcher = acquireSearcher();
     try {
-      Query query = _textQueryParser.parse(_appOptions.queryString);
+      Query query = parseTextQuery(_appOptions.queryString);
 
       _log.info("Running query...");
       Date start = new Date();
 
-      TopDocs docs = search(query, null);
+      TopDocs docs = search(searcher, query, null);
 
       Date qtime = new Date();
       _log.log(Level.INFO, "Got doc(s) in {0} total milliseconds",
@@ -58,7 +60,7 @@ public class QueryApp extends SearchAppCommon {
       QueryContext qcontext = new QueryContext();
       qcontext.add(QueryContext.QueryType.Text, query);
       List<SearchResultEntry> searchResultEntries =
-        computeResultEntries(qcontext, docs);
+        computeResultEntries(searcher, qcontext, docs);
 
       _log.log(Level.INFO, "Got result(s) in {0} total milliseconds",
         new Date().getTime() - qtime.getTime());
@@ -69,6 +71,8 @@ public class QueryApp extends SearchAppCommon {
       System.out.println();
     } catch (ParseException e) {
       _log.log(Level.SEVERE, "Failed to parse query!", e);
+    } finally {
+      releaseSearcher(searcher);
     }
   }
 
@@ -0,0 +1,160 @@
+package cc.search.service.app.service;
+
+import cc.search.common.IndexGenerations;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Blue/green index deployment: watches a generations directory (see
+ * IndexGenerations) and swaps in the newest ready generation after it is
+ * opened and warmed in the background. A rollback.request file in the
+ * generations directory swaps back to the previously served index and
+ * rejects the current generation.
+ */
+final class IndexSwapper implements AutoCloseable {
+  /**
+   * Logger.
+   */
+  private static final Logger _log = Logger.getLogger(
+    IndexSwapper.class.getName());
+  /**
+   * The search handler which serves the index.
+   */
+  private final SearchHandler _handler;
+  /**
+   * The generations directory.
+   */
+  private final File _generationsDir;
+  /**
+   * Delete the generations older than the previous one.
+   */
+  private final boolean _deleteOld;
+  /**
+   * Thread of the checks and the swaps.
+   */
+  private final ScheduledExecutorService _watcher =
+    Executors.newSingleThreadScheduledExecutor();
+  /**
+   * The previously served index (for rollback, can be null).
+   */
+  private File _previous = null;
+
+  /**
+   * @param handler_ the search handler.
+   * @param options_ program options.
+   */
+  IndexSwapper(SearchHandler handler_, ServiceAppOptions options_) {
+    _handler = handler_;
+    _generationsDir = new File(options_.generationsDir);
+    _deleteOld = options_.deleteOldGenerations;
+  }
+
+  /**
+   * Checks the generations now and then periodically.
+   *
+   * @param periodSecs_ check period in seconds.
+   */
+  void start(int periodSecs_) {
+    check();
+
+    _watcher.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        check();
+      }
+    }, periodSecs_, periodSecs_, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Handles a rollback request or swaps in a new generation.
+   */
+  private synchronized void check() {
+    try {
+      final File rollbackRequest = new File(_generationsDir,
+        IndexGenerations.ROLLBACK_REQUEST);
+      if (rollbackRequest.exists()) {
+        if (!rollbackRequest.delete()) {
+          _log.log(Level.WARNING, "Failed to delete {0}", rollbackRequest);
+        }
+        rollback();
+        return;
+      }
+
+      final File current = _handler.getIndexDir();
+      final File newest = IndexGenerations.findNewestServable(
+        _generationsDir);
+      if (newest == null || newest.equals(current) ||
+        (isGeneration(current) && newest.compareTo(current) < 0)) {
+        return;
+      }
+
+      _log.log(Level.INFO, "New index generation: {0}", newest);
+      _previous = _handler.swapIndex(newest);
+      deleteOldGenerations();
+    } catch (IOException | RuntimeException ex) {
+      _log.log(Level.SEVERE, "Index generation check failed!", ex);
+    }
+  }
+
+  /**
+   * Swaps back to the previous index and rejects the current generation.
+   *
+   * @throws IOException
+   */
+  private void rollback() throws IOException {
+    if (_previous == null || !_previous.isDirectory()) {
+      _log.log(Level.WARNING, "Rollback requested, but there is no " +
+        "previous index!");
+      return;
+    }
+
+    final File current = _handler.getIndexDir();
+    if (isGeneration(current)) {
+      IndexGenerations.markRejected(current);
+    }
+
+    _log.log(Level.INFO, "Rolling back to {0}", _previous);
+    _handler.swapIndex(_previous);
+    _previous = null;
+  }
+
+  /**
+   * @param dir_ an index directory.
+   * @return true if the index is a generation in the generations directory.
+   */
+  private boolean isGeneration(File dir_) {
+    return _generationsDir.equals(dir_.getParentFile());
+  }
+
+  /**
+   * Deletes the generations older than the previous index (if enabled).
+   */
+  private void deleteOldGenerations() {
+    if (!_deleteOld || _previous == null || !isGeneration(_previous)) {
+      return;
+    }
+
+    for (File generation : IndexGenerations.listGenerations(_generationsDir)) {
+      if (generation.compareTo(_previous) >= 0) {
+        break;
+      }
+
+      try {
+        IndexGenerations.delete(generation);
+        _log.log(Level.INFO, "Old index generation deleted: {0}", generation);
+      } catch (IOException ex) {
+        _log.log(Level.WARNING, "Failed to delete " + generation, ex);
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    _watcher.shutdownNow();
+  }
+}
@@ -4,16 +4,26 @@ import cc.search.analysis.AdvancedTagQueryParser;
 import cc.search.analysis.QueryAnalyzer;
 import cc.search.analysis.log.LogQueryBuilder;
 import cc.search.analysis.query.MatchCollector;
-import cc.search.analysis.query.SimpleMatchCollector;
-import cc.search.analysis.tags.Tag;
-import cc.search.common.config.CommonOptions;
+import cc.search.analysis.query.TopMatchCollector;
 import cc.search.common.IndexFields;
+import cc.search.common.SearchLatencySignal;
 import cc.search.common.SuggestionDatabase;
+import cc.search.match.MatchPlan;
 import cc.search.match.QueryContext;
+import cc.search.service.app.FileHit;
+import cc.search.service.app.FileHitCollector;
+import cc.search.service.app.HitCounter;
+import cc.search.service.app.IndexSearcherManager;
+import cc.search.service.app.RequestDeadline;
 import cc.search.service.app.SearchAppCommon;
+import cc.search.service.app.SearchCursor;
+import cc.search.service.app.SearcherWarmer;
 import cc.search.suggestion.SuggestionHandler;
+import cc.service.core.FileInfo;
 import cc.service.search.FileSearchResult;
 import cc.service.core.InvalidId;
+import cc.service.search.HitCountResult;
+import cc.service.search.RangedHitCountResult;
 import cc.service.search.SearchResult;
 import cc.service.search.SearchResultEntry;
 import cc.service.search.SearchException;
@@ -23,21 +33,28 @@ import cc.service.search.SearchSuggestionParams;
 import cc.service.search.SearchSuggestions;
 import cc.service.search.SearchService;
 import cc.service.search.SearchType;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.QueryWrapperFilter;
 import org.apache.lucene.search.RegexpQuery;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
 import org.apache.thrift.TException;
 
@@ -51,18 +68,36 @@ abstract class SearchHandler extends SearchAppCommon
    */
   private static final Logger _log  = Logger.getLogger(SearchHandler.class
     .getName());
+  /**
+   * Fields of a document for the file informations of a hit count result.
+   */
+  private static final Set<String> FILE_INFO_FIELD_SET = new HashSet<>(
+    Arrays.asList(IndexFields.fileDbIdField, IndexFields.filePathField));
+  /**
+   * Maximum number of context lines before and after a matching line.
+   */
+  private static final int MAX_CONTEXT_LINES = 50;
   /**
    * Handler for suggestion requests.
    */
   private final SuggestionHandler _suggestHandler;
   /**
-   * Query parser for advanced definition search.
+   * Query parsers for advanced definition search (one per thread).
    */
-  protected final AdvancedTagQueryParser _advDefQueryParser;
+  private final ThreadLocal<AdvancedTagQueryParser> _advDefQueryParser;
   /**
    * Query builder for a log query.
    */
   protected final LogQueryBuilder _logQueryBuilder = new LogQueryBuilder();
+  /**
+   * Refresh period of the searchers in seconds (0 means no refresh).
+   */
+  private final int _refreshSecs;
+  /**
+   * Publishes the search latency for the indexer (merge throttling), null if
+   * there is no signal file.
+   */
+  private final SearchLatencySignal _latencySignal;
   /**
    * Construct a filter for a search query.
    * 
@@ -98,27 +133,62 @@ abstract class SearchHandler extends SearchAppCommon
   /**
    * Does a full text search.
    * 
+   * @param searcher_ searcher of the request.
    * @param context_ query context.
    * @param params_ search parameters.
    * @return search query result.
    * @throws ParseException
    * @throws IOException 
    */
-  private SearchResult runSearch(QueryContext context_, SearchParams params_)
+  private SearchResult runSearch(IndexSearcher searcher_,
+    QueryContext context_, SearchParams params_)
     throws ParseException, IOException {
     _log.info("Running text query...");
     _log.finer(params_.toString());
 
     Date start = new Date();
     
+    final RequestDeadline deadline = params_.isSetTimeLimit() &&
+      params_.timeLimit > 0 ? new RequestDeadline(params_.timeLimit) : null;
     final Filter filter = getFilterForSearch(params_);
+    return runSearch(searcher_, context_, params_, filter, deadline, start);
+  }
+  
+  /**
+   * Does a full text search on a searcher.
+   * 
+   * @param searcher_ searcher of the request.
+   * @param context_ query context.
+   * @param params_ search parameters.
+   * @param filter_ search filter (can be null).
+   * @param deadline_ deadline of the request (can be null).
+   * @param start_ start time of the request.
+   * @return search query result (maybe truncated).
+   * @throws IOException 
+   */
+  private SearchResult runSearch(IndexSearcher searcher_,
+    QueryContext context_, SearchParams params_, Filter filter_,
+    RequestDeadline deadline_, Date start_) throws IOException {
+    Date start = start_;
     TopDocs docs;
     
-    if (params_.isSetRange()) {
-      docs = rangedSearch(context_.get(), filter, (int) params_.range.start,
-        (int) (params_.range.start + params_.range.maxSize - 1));
+    if (params_.isSetRange() && params_.range.isSetCursor()) {
+      final SearchCursor cursor = SearchCursor.decode(params_.range.cursor);
+      if (!cursor.getIndexVersion().equals(
+        IndexSearcherManager.getIndexVersion(searcher_))) {
+        throw new IllegalArgumentException("The index has changed since the " +
+          "previous page, please restart the search!");
+      }
+      
+      docs = searchAfter(searcher_, cursor.getAfter(), context_.get(), filter_,
+        (int) params_.range.maxSize, deadline_);
+    } else if (params_.isSetRange()) {
+      docs = rangedSearch(searcher_, context_.get(), filter_,
+        (int) params_.range.start,
+        (int) (params_.range.start + params_.range.maxSize - 1), deadline_);
     } else {
-      docs = search(context_.get(), filter);
+      docs = search(searcher_, context_.get(), filter_, DEFAULT_HIT_LIMIT,
+        deadline_);
     }
     
     _log.log(Level.INFO, "Got {1} doc(s) in {0} total milliseconds",
@@ -128,7 +198,8 @@ abstract class SearchHandler extends SearchAppCommon
         });
 
     start = new Date();
-    List<SearchResultEntry> entries = computeResultEntries(context_, docs);
+    List<SearchResultEntry> entries = computeResultEntries(searcher_,
+      context_, docs, deadline_);
     
     _log.log(Level.INFO, "Got {1} result(s) in {0} total milliseconds",
         new Object[] {
@@ -136,57 +207,217 @@ abstract class SearchHandler extends SearchAppCommon
           entries.size()
         });
     
-    return new SearchResult(
-      Math.min(docs.totalHits, DEFAULT_HIT_LIMIT), entries);
+    // The total is the exact number of the matching files and their aliases
+    // (see FileHitCollector.getFileCount()), not limited by the page size.
+    final SearchResult result = new SearchResult(docs.totalHits, entries);
+    if (deadline_ != null && deadline_.isTruncated()) {
+      result.setTruncated(true);
+    }
+    // A truncated page may miss hits before its last hit, so the next page
+    // can not continue after it: the client has to restart the search.
+    if ((deadline_ == null || !deadline_.isTruncated()) &&
+      params_.isSetRange() && params_.range.maxSize > 0 &&
+      docs.scoreDocs.length == params_.range.maxSize) {
+      result.setNextCursor(new SearchCursor(
+        IndexSearcherManager.getIndexVersion(searcher_),
+        (FileHit) docs.scoreDocs[docs.scoreDocs.length - 1]).encode());
+    }
+    
+    return result;
   }
   
   /**
    * @param options_ command line options.
    * @throws IOException 
    */
-  public SearchHandler(CommonOptions options_) throws IOException {
-    super(options_);
+  public SearchHandler(ServiceAppOptions options_) throws IOException {
+    super(options_, options_.warmQueriesFile == null ? new SearcherWarmer() :
+      new SearcherWarmer(new File(options_.warmQueriesFile)),
+      options_.artifactCacheMB);
+    
+    _refreshSecs = options_.refreshSecs;
+    if (_refreshSecs > 0) {
+      getSearcherManager().startPeriodicRefresh(_refreshSecs);
+    }
     
-    Analyzer analyzer = new QueryAnalyzer();
+    final Analyzer analyzer = new QueryAnalyzer();
     
-    _advDefQueryParser = new AdvancedTagQueryParser(analyzer);
-    _advDefQueryParser.setAllowLeadingWildcard(true);
+    _advDefQueryParser = new ThreadLocal<AdvancedTagQueryParser>() {
+      @Override
+      protected AdvancedTagQueryParser initialValue() {
+        final AdvancedTagQueryParser parser =
+          new AdvancedTagQueryParser(analyzer);
+        parser.setAllowLeadingWildcard(true);
+        return parser;
+      }
+    };
 
     _suggestHandler = new SuggestionHandler();
     _suggestHandler.loadDatabases(options_);
+    
+    _latencySignal = options_.searchLatencySignalPath == null ? null :
+      new SearchLatencySignal(new File(options_.searchLatencySignalPath));
   }
 
-  @Override
-  public SearchResult search(SearchParams params_) throws TException {
-    try {
-      QueryContext qcontext = new QueryContext();
-      
-      // "Free text" search
-      if ((params_.options & SearchOptions.SearchInSource.getValue()) != 0) {
-        qcontext.add(QueryContext.QueryType.Text,
-          _textQueryParser.parse(params_.query));
-      }
-      // Definition search
-      // Advanced search
-      if ((params_.options & SearchOptions.SearchInDefs.getValue()) != 0) {
-        final Query query = _advDefQueryParser.parse(params_.query);
-        final Set<Tag.Kind> kinds = _advDefQueryParser.getParsedKinds();
-        
-        qcontext.add(QueryContext.QueryType.Tag, query, kinds);
-        qcontext.setFilterOverlapping(true);
+  /**
+   * Creates a match collector for the hits of a search (see runSearch()).
+   * 
+   * @param params_ search parameters.
+   * @return match collector.
+   * @throws IllegalArgumentException on a malformed cursor.
+   */
+  private static TopMatchCollector createTopMatchCollector(
+    SearchParams params_) {
+    if (params_.isSetRange() && params_.range.isSetCursor()) {
+      final FileHit after = SearchCursor.decode(params_.range.cursor)
+        .getAfter();
+      final int numHits = (int) Math.max(1, Math.min(Integer.MAX_VALUE - 1,
+        params_.range.maxSize));
+      if (after.aliasDoc < 0) {
+        return new TopMatchCollector(numHits, after);
       }
-      // Log search
-      if ((params_.options & SearchOptions.FindLogText.getValue()) != 0) {
-        final MatchCollector collector = new SimpleMatchCollector(0);
-        qcontext.add(QueryContext.QueryType.Log, _logQueryBuilder.build(
-          params_.query, collector), collector);
+      // The page continues with the aliases of the file of the cursor, they
+      // are matched in the document of the file.
+      return new TopMatchCollector(numHits + 1, new ScoreDoc(after.doc - 1,
+        after.score));
+    } else if (params_.isSetRange()) {
+      return new TopMatchCollector((int) Math.max(1, Math.min(
+        Integer.MAX_VALUE, params_.range.start + params_.range.maxSize)));
+    } else {
+      return new TopMatchCollector(DEFAULT_HIT_LIMIT);
+    }
+  }
+  
+  /**
+   * Builds the query context of the search parameters.
+   * 
+   * @param params_ search parameters.
+   * @param searcher_ searcher of the request.
+   * @return query context (empty if no search option is set).
+   * @throws ParseException 
+   * @throws IOException 
+   */
+  private QueryContext buildQueryContext(SearchParams params_,
+    IndexSearcher searcher_) throws ParseException, IOException {
+    QueryContext qcontext = new QueryContext();
+    
+    // "Free text" search
+    if ((params_.options & SearchOptions.SearchInSource.getValue()) != 0) {
+      qcontext.add(QueryContext.QueryType.Text,
+        parseTextQuery(params_.query));
+    }
+    // Definition search
+    // Advanced search
+    if ((params_.options & SearchOptions.SearchInDefs.getValue()) != 0) {
+      final AdvancedTagQueryParser.ParseResult parsed =
+        _advDefQueryParser.get().parseWithKinds(params_.query);
+      
+      qcontext.add(QueryContext.QueryType.Tag, parsed.query, parsed.kinds);
+      qcontext.setFilterOverlapping(true);
+    }
+    // Log search
+    if ((params_.options & SearchOptions.FindLogText.getValue()) != 0) {
+      // The score of a log-only search is the score of the best match, so
+      // only the matches of the competitive documents have to be kept. With
+      // a filter the scorer also reports documents which are rejected later
+      // by the filter, and a hit of a chunked file needs the matches of
+      // every chunk, so then every document is kept.
+      final MatchCollector collector = qcontext.isEmpty() &&
+        !params_.isSetFilter() &&
+        !FileHitCollector.hasChunks(searcher_.getIndexReader()) ?
+        createTopMatchCollector(params_) :
+        new TopMatchCollector(Integer.MAX_VALUE);
+      qcontext.add(QueryContext.QueryType.Log, _logQueryBuilder.build(
+        params_.query, collector), collector);
+    }
+    
+    if (params_.isSetContextLines()) {
+      qcontext.setContextLines(Math.max(0, Math.min(MAX_CONTEXT_LINES,
+        params_.contextLines)));
+    }
+    
+    return qcontext;
+  }
+  
+  /**
+   * Counts the matching files and the match occurrences of the files in the
+   * range of the parameters (if set). The occurrences are counted by the
+   * match plans of the queries, the terms of the query are counted only if a
+   * query has no complete plan.
+   * 
+   * @param searcher_ searcher of the request.
+   * @param context_ query context.
+   * @param params_ search parameters.
+   * @return hit count result.
+   * @throws IOException 
+   */
+  private RangedHitCountResult countHits(IndexSearcher searcher_,
+    QueryContext context_, SearchParams params_) throws IOException {
+    final Filter filter = getFilterForSearch(params_);
+    final Query query = context_.get();
+    
+    final RangedHitCountResult result = new RangedHitCountResult();
+    result.setQuery(params_.query);
+    result.setResults(new ArrayList<HitCountResult>());
+    
+    if (!params_.isSetRange()) {
+      result.setTotalFiles(HitCounter.countFiles(searcher_, query, filter));
+      return result;
+    }
+    
+    // The ranged search counts the files (and their aliases) like search().
+    final TopDocs docs = rangedSearch(searcher_, query, filter,
+      (int) params_.range.start,
+      (int) (params_.range.start + params_.range.maxSize - 1));
+    result.setTotalFiles(docs.totalHits);
+    
+    final List<MatchPlan> plans = HitCounter.getMatchPlans(searcher_,
+      context_);
+    final Set<Term> terms = plans == null ?
+      HitCounter.extractTerms(searcher_, query) : null;
+    
+    // The counts of the chunks of a file are summed, an alias is counted in
+    // the documents of its canonical file.
+    for (ScoreDoc doc : docs.scoreDocs) {
+      final FileHit hit = (FileHit) doc;
+      final Document document = searcher_.doc(hit.getFileDoc(),
+        FILE_INFO_FIELD_SET);
+      long count = 0;
+      for (int chunk : hit.docs) {
+        count += plans != null ?
+          HitCounter.countOccurrences(searcher_, plans, chunk) :
+          HitCounter.countTermOccurrences(searcher_, terms, chunk);
       }
       
-      if (qcontext.isEmpty()) {
-        // empty search
-        return new SearchResult(0, null);
-      } else {
-        return runSearch(qcontext, params_);
+      final File file = new File(document.get(IndexFields.filePathField));
+      final FileInfo finfo = new FileInfo();
+      finfo.id = document.get(IndexFields.fileDbIdField);
+      finfo.name = file.getName();
+      finfo.path = file.getPath();
+      // The file matched, so it has one hit at least (an alias can match by
+      // its path only).
+      result.results.add(new HitCountResult(Math.max(1, count), finfo));
+    }
+    
+    return result;
+  }
+
+  @Override
+  public SearchResult search(SearchParams params_) throws TException {
+    final long start = System.currentTimeMillis();
+    try {
+      final IndexSearcher searcher = acquireSearcher();
+      try {
+        QueryContext qcontext = buildQueryContext(params_, searcher);
+
+        if (qcontext.isEmpty()) {
+          // empty search
+          return new SearchResult(0, null);
+        } else {
+          return runSearch(searcher, qcontext, params_);
+        }
+      } finally {
+        releaseSearcher(searcher);
       }
     } catch (IllegalArgumentException | ParseException | IOException ex) {
       // Sometimes the query parser throws an IllegalArgumentException instead
@@ -195,9 +426,71 @@ abstract class SearchHandler extends SearchAppCommon
       SearchException exc = new SearchException();
       exc.message = ex.getMessage();
       throw exc;
+    } finally {
+      if (_latencySignal != null) {
+        _latencySignal.record(System.currentTimeMillis() - start);
+      }
     }
   }
 
+  @Override
+  public RangedHitCountResult countHits(SearchParams params_)
+    throws TException {
+    final long start = System.currentTimeMillis();
+    try {
+      final IndexSearcher searcher = acquireSearcher();
+      try {
+        final QueryContext qcontext = buildQueryContext(params_, searcher);
+        if (qcontext.isEmpty()) {
+          return new RangedHitCountResult(0, new ArrayList<HitCountResult>(),
+            params_.query);
+        }
+        
+        return countHits(searcher, qcontext, params_);
+      } finally {
+        releaseSearcher(searcher);
+      }
+    } catch (IllegalArgumentException | ParseException | IOException ex) {
+      _log.log(Level.SEVERE, "Hit counting failed!", ex);
+      SearchException exc = new SearchException();
+      exc.message = ex.getMessage();
+      throw exc;
+    } finally {
+      _log.log(Level.INFO, "Hits counted in {0} milliseconds",
+        System.currentTimeMillis() - start);
+    }
+  }
+
+  /**
+   * Opens and warms the index of a directory then swaps it in. The old index
+   * is closed when its running requests are finished.
+   * 
+   * @param indexDir_ the new index directory.
+   * @return the old index directory.
+   * @throws IOException 
+   */
+  File swapIndex(File indexDir_) throws IOException {
+    final IndexSearcherManager manager = new IndexSearcherManager(_options,
+      indexDir_, _searcherFactory);
+    if (_refreshSecs > 0) {
+      manager.startPeriodicRefresh(_refreshSecs);
+    }
+    
+    final IndexSearcherManager old = swapSearcherManager(manager);
+    old.close();
+    
+    _log.log(Level.INFO, "Index swapped: {0} -> {1}", new Object[] {
+      old.getIndexDir(), indexDir_ });
+    return old.getIndexDir();
+  }
+  
+  /**
+   * @return the current index directory.
+   */
+  File getIndexDir() {
+    return getSearcherManager().getIndexDir();
+  }
+
   @Override
   public FileSearchResult searchFile(SearchParams params_) throws TException {
     throw new UnsupportedOperationException("Not supported yet.");
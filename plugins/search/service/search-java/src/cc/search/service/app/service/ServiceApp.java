@@ -21,6 +21,10 @@ public class ServiceApp extends SearchHandler {
    * IPC message processor.
    */
   private final IPCProcessor _processor;
+  /**
+   * Blue/green index swapper (null if there is no generations directory).
+   */
+  private final IndexSwapper _swapper;
 
   /**
    * @param options_ command line options.
@@ -30,6 +34,13 @@ public class ServiceApp extends SearchHandler {
     super(options_);
     
     _processor = new IPCProcessor(options_, new SearchService.Processor(this));
+    
+    if (options_.generationsDir != null) {
+      _swapper = new IndexSwapper(this, options_);
+      _swapper.start(options_.generationCheckSecs);
+    } else {
+      _swapper = null;
+    }
   }
 
   @Override
@@ -39,6 +50,9 @@ public class ServiceApp extends SearchHandler {
 
   @Override
   public void close() {
+    if (_swapper != null) {
+      _swapper.close();
+    }
     _processor.close();
     
     super.close();
@@ -3,13 +3,113 @@ package cc.search.service.app.service;
 import cc.search.common.config.CommonOptions;
 import cc.search.common.config.InvalidValueException;
 import cc.search.common.config.UnknownArgumentException;
+import cc.search.service.app.SearchAppCommon;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * Command line options for the service application.
  */
 final class ServiceAppOptions extends CommonOptions {
+  /**
+   * Check the index for changes periodically after this many seconds (0
+   * means no refresh).
+   */
+  public int refreshSecs = 10;
+  /**
+   * File of text queries for warming up the new searchers (can be null).
+   */
+  public String warmQueriesFile = null;
+  /**
+   * Directory of the index generations for blue/green deployment (can be
+   * null, see IndexGenerations).
+   */
+  public String generationsDir = null;
+  /**
+   * Check the generations directory after this many seconds.
+   */
+  public int generationCheckSecs = 30;
+  /**
+   * Delete the generations older than the one which can be rolled back to.
+   */
+  public boolean deleteOldGenerations = false;
+  /**
+   * Size of the cache of the line informations and tags of the hits in
+   * megabytes (0 disables the cache).
+   */
+  public int artifactCacheMB = SearchAppCommon.DEFAULT_ARTIFACT_CACHE_MB;
+
+  @Override
+  protected void setFromCommandLineArguments(List<String> args_)
+    throws InvalidValueException, UnknownArgumentException {
+
+    super.setFromCommandLineArguments(args_);
+
+    Iterator<String> argIter = args_.iterator();
+    while (argIter.hasNext()) {
+      String arg = argIter.next();
+
+      switch (arg) {
+        case "-refreshSeconds":
+          refreshSecs = getNonNegative(arg, argIter);
+          break;
+        case "-warmQueries":
+          if (!argIter.hasNext()) {
+            throw new InvalidValueException("-warmQueries is empty");
+          }
+          warmQueriesFile = argIter.next();
+          break;
+        case "-generationsDir":
+          if (!argIter.hasNext()) {
+            throw new InvalidValueException("-generationsDir is empty");
+          }
+          generationsDir = argIter.next();
+          break;
+        case "-generationCheckSeconds":
+          generationCheckSecs = getNonNegative(arg, argIter);
+          if (generationCheckSecs == 0) {
+            throw new InvalidValueException("-generationCheckSeconds must " +
+              "be positive");
+          }
+          break;
+        case "-deleteOldGenerations":
+          deleteOldGenerations = true;
+          break;
+        case "-artifactCacheMB":
+          artifactCacheMB = getNonNegative(arg, argIter);
+          break;
+        default:
+          throw new UnknownArgumentException(arg);
+      }
+    }
+  }
+
+  /**
+   * @param arg_ argument name.
+   * @param argIter_ argument iterator.
+   * @return the value of the argument as a non negative number.
+   * @throws InvalidValueException
+   */
+  private static int getNonNegative(String arg_, Iterator<String> argIter_)
+    throws InvalidValueException {
+    if (!argIter_.hasNext()) {
+      throw new InvalidValueException(arg_ + " is empty");
+    }
+
+    final String value = argIter_.next();
+    try {
+      final int intValue = Integer.parseInt(value);
+      if (intValue >= 0) {
+        return intValue;
+      }
+    } catch (NumberFormatException ex) {
+      // handled below
+    }
+
+    throw new InvalidValueException("Bad value for " + arg_ + ": " + value);
+  }
 
   /**
    * Builds an instance from command line arguments.
@@ -20,6 +120,9 @@ final class ServiceAppOptions extends CommonOptions {
   public ServiceAppOptions(String[] args_)
     throws InvalidValueException, UnknownArgumentException {
 
+    // The search requests are independent, serve the clients in parallel.
+    ipcWorkers = Runtime.getRuntime().availableProcessors();
+    
     ArrayList<String> args = new ArrayList<>(Arrays.asList(args_));
     setFromCommandLineArguments(args);
 
@@ -54,7 +54,13 @@ struct SearchRange
   /**
    * Maximum number of hits.
    */
-  2:i64 maxSize
+  2:i64 maxSize,
+  /**
+   * Optional cursor of a previous page (SearchResult.nextCursor). If it is
+   * set then the page starts after the last hit of the previous page and the
+   * start field is ignored.
+   */
+  3: optional string cursor
 }
 
 /**
@@ -92,7 +98,17 @@ struct SearchParams
   /**
    * Optional filter.
    */
-  4: optional SearchFilter filter
+  4: optional SearchFilter filter,
+  /**
+   * Optional time budget of the search in milliseconds. If the time is over,
+   * the search returns the results found so far (see SearchResult.truncated).
+   */
+  5: optional i64 timeLimit,
+  /**
+   * Optional number of lines to return before and after every matching line
+   * (see LineMatch.linesBefore and LineMatch.linesAfter).
+   */
+  6: optional i32 contextLines
 }
 
 /**
@@ -156,7 +172,19 @@ struct LineMatch
   /**
    * The matching line
    */
-  2:string text
+  2:string text,
+  /**
+   * Lines before the matching line (set if SearchParams.contextLines is set).
+   * It can have less lines at the start of a file (or of a chunk of a large
+   * file).
+   */
+  3: optional list<string> linesBefore,
+  /**
+   * Lines after the matching line (set if SearchParams.contextLines is set).
+   * It can have less lines at the end of a file (or of a chunk of a large
+   * file).
+   */
+  4: optional list<string> linesAfter
 }
 
 /**
@@ -180,13 +208,26 @@ struct SearchResultEntry
 struct SearchResult
 {
   /**
-   * Number of total file matches.
+   * Number of total file matches (the files and their aliases). It is not
+   * limited by the range, but a truncated result counts only the files found
+   * in time.
    */
   1:i64 totalFiles,
   /**
    * The results in the actual range: [firstFileIndex, lastFileIndex]
    */
-  2:list<SearchResultEntry> results
+  2:list<SearchResultEntry> results,
+  /**
+   * True if the time limit of the search was over, so the results are
+   * partial.
+   */
+  3: optional bool truncated,
+  /**
+   * Cursor of the next page if the search had a range and the page is full.
+   * It is valid only until the index changes. A truncated page has no cursor
+   * (the search has to be restarted).
+   */
+  4: optional string nextCursor
 }
 
 /**
@@ -210,7 +251,8 @@ struct FileSearchResult
 struct HitCountResult
 {
   /**
-   * List of matching lines in the file's content
+   * List of matching lines in the file's content (countHits returns the
+   * number of matching term and phrase occurrences taken from the postings)
    */
   1:i64 matchingLines,
   /**
@@ -274,5 +316,13 @@ service SearchService
    * Suggests a search text based on the paramaters.
    */
   SearchSuggestions suggest(1:SearchSuggestionParams params_)
+    throws (1:SearchException se),
+
+  /**
+   * Counts the files matching a text search (exact count, without computing
+   * the matching lines). If the range of the parameters is set then the
+   * per-file counts of the documents in the range are returned too.
+   */
+  RangedHitCountResult countHits(1:SearchParams params_)
     throws (1:SearchException se)
 }
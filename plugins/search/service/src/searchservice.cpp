@@ -112,8 +112,6 @@ void SearchServiceHandler::search(
   SearchResult& _return,
   const SearchParams& params_)
 {
-  std::lock_guard<std::mutex> lock(_javaProcessMutex);
-
   try
   {
     auto start = std::chrono::steady_clock::now();
@@ -254,8 +252,6 @@ void SearchServiceHandler::pleaseStop()
 void SearchServiceHandler::suggest(SearchSuggestions& _return,
   const SearchSuggestionParams& params_)
 {
-  std::lock_guard<std::mutex> lock(_javaProcessMutex);
-
   try
   {
     auto start = std::chrono::steady_clock::now();
@@ -274,6 +270,27 @@ void SearchServiceHandler::suggest(SearchSuggestions& _return,
   }
 }
 
+void SearchServiceHandler::countHits(RangedHitCountResult& _return,
+  const SearchParams& params_)
+{
+  try
+  {
+    auto start = std::chrono::steady_clock::now();
+
+    _javaProcess->countHits(_return, params_);
+
+    auto end = std::chrono::steady_clock::now();
+    auto dur = std::chrono::duration_cast<std::chrono::milliseconds>(end-start);
+
+    LOG(info) << "Hit count time: " << dur.count() << " milliseconds.";
+  }
+  catch (const ServiceProcess::ProcessDied&)
+  {
+    LOG(error) << "Java search service died! Terminating server...";
+    ::abort();
+  }
+}
+
 void SearchServiceHandler::validateRegexp(const std::string& regexp_)
 {
   try